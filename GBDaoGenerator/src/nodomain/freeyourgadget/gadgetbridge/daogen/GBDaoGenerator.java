@@ -58,7 +58,7 @@ public class GBDaoGenerator {
 
 
     public static void main(String[] args) throws Exception {
-        final Schema schema = new Schema(116, MAIN_PACKAGE + ".entities");
+        final Schema schema = new Schema(117, MAIN_PACKAGE + ".entities");
 
         Entity userAttributes = addUserAttributes(schema);
         Entity user = addUserInfo(schema, userAttributes);
@@ -177,6 +177,12 @@ public class GBDaoGenerator {
         addUltrahumanActivitySample(schema, user, device);
         addUltrahumanDeviceStateSample(schema, user, device);
 
+        addEmpaticaE4WaveformChunk(schema, user, device);
+        addEmpaticaE4EdaSample(schema, user, device);
+        addEmpaticaE4TemperatureSample(schema, user, device);
+        addEmpaticaE4ActivitySample(schema, user, device);
+        addEmpaticaE4IbiSample(schema, user, device);
+
         Entity huaweiWorkoutSummary = addHuaweiWorkoutSummarySample(schema, user, device);
         addHuaweiWorkoutSummaryAdditionalValuesSample(schema, huaweiWorkoutSummary);
         addHuaweiWorkoutDataSample(schema, huaweiWorkoutSummary);
@@ -203,6 +209,7 @@ public class GBDaoGenerator {
 
         addActivitySummary(schema, user, device);
         addBatteryLevel(schema, device);
+        addDailyRollup(schema, device);
 
         addGenericHeartRateSample(schema, user, device);
         addGenericSpo2Sample(schema, user, device);
@@ -1409,6 +1416,22 @@ public class GBDaoGenerator {
         return batteryLevel;
     }
 
+    private static Entity addDailyRollup(Schema schema, Entity device) {
+        Entity rollup = addEntity(schema, "DailyRollup");
+        rollup.setJavaDoc("The activity totals of one device for one day, see DailyRollups.");
+        rollup.addIntProperty("dayStart").notNull().primaryKey().javaDocGetterAndSetter("The local midnight that starts the day, in seconds.");
+        Property deviceId = rollup.addLongProperty("deviceId").primaryKey().notNull().getProperty();
+        rollup.addToOne(device, deviceId);
+        rollup.addLongProperty("steps").notNull();
+        rollup.addLongProperty("distance").notNull();
+        rollup.addLongProperty("activeCalories").notNull();
+        rollup.addIntProperty("lightSleepMinutes").notNull();
+        rollup.addIntProperty("deepSleepMinutes").notNull();
+        rollup.addIntProperty("remSleepMinutes").notNull();
+        rollup.addIntProperty("awakeSleepMinutes").notNull();
+        return rollup;
+    }
+
     private static Entity addFitProActivitySample(Schema schema, Entity user, Entity device) {
         Entity activitySample = addEntity(schema, "FitProActivitySample");
         activitySample.implementsSerializable();
@@ -1852,6 +1875,48 @@ public class GBDaoGenerator {
         return sample;
     }
 
+    private static Entity addEmpaticaE4WaveformChunk(Schema schema, Entity user, Entity device) {
+        Entity chunk = addEntity(schema, "EmpaticaE4WaveformChunk");
+        addCommonTimeSampleProperties("AbstractTimeSample", chunk, user, device);
+        chunk.addIntProperty("channel").notNull().primaryKey();
+        chunk.addIntProperty("sampleRate").notNull().javaDocGetterAndSetter("Samples per second, the timestamp is the one of the first sample.");
+        chunk.addIntProperty("sampleCount").notNull();
+        chunk.addByteArrayProperty("data").notNull().javaDocGetterAndSetter("Samples encoded with FloatXorCodec.");
+        return chunk;
+    }
+
+    private static Entity addEmpaticaE4EdaSample(Schema schema, Entity user, Entity device) {
+        Entity sample = addEntity(schema, "EmpaticaE4EdaSample");
+        addCommonTimeSampleProperties("AbstractTimeSample", sample, user, device);
+        sample.addFloatProperty("eda").notNull().javaDocGetterAndSetter("Electrodermal activity in microsiemens.");
+        return sample;
+    }
+
+    private static Entity addEmpaticaE4TemperatureSample(Schema schema, Entity user, Entity device) {
+        Entity sample = addEntity(schema, "EmpaticaE4TemperatureSample");
+        addCommonTimeSampleProperties("AbstractTemperatureSample", sample, user, device);
+        addTemperatureProperties(sample);
+        return sample;
+    }
+
+    private static Entity addEmpaticaE4ActivitySample(Schema schema, Entity user, Entity device) {
+        Entity activitySample = addEntity(schema, "EmpaticaE4ActivitySample");
+        addCommonActivitySampleProperties("AbstractActivitySample", activitySample, user, device);
+        activitySample.implementsSerializable();
+        activitySample.addIntProperty(SAMPLE_RAW_INTENSITY).notNull().codeBeforeGetterAndSetter(OVERRIDE);
+        activitySample.addIntProperty(SAMPLE_STEPS).notNull().codeBeforeGetterAndSetter(OVERRIDE);
+        activitySample.addIntProperty(SAMPLE_RAW_KIND).notNull().codeBeforeGetterAndSetter(OVERRIDE);
+        addHeartRateProperties(activitySample);
+        return activitySample;
+    }
+
+    private static Entity addEmpaticaE4IbiSample(Schema schema, Entity user, Entity device) {
+        Entity sample = addEntity(schema, "EmpaticaE4IbiSample");
+        addCommonTimeSampleProperties("AbstractTimeSample", sample, user, device);
+        sample.addIntProperty("ibi").notNull().javaDocGetterAndSetter("Interval since the previous beat in milliseconds, the timestamp is the one of the beat.");
+        return sample;
+    }
+
     private static Entity addHuaweiDictData(Schema schema, Entity user, Entity device) {
         Entity dictData = addEntity(schema, "HuaweiDictData");
 
@@ -78,6 +78,7 @@ import nodomain.freeyourgadget.gadgetbridge.activities.ControlCenterv2;
 import nodomain.freeyourgadget.gadgetbridge.activities.devicesettings.DeviceSettingsPreferenceConst;
 import nodomain.freeyourgadget.gadgetbridge.database.DBHandler;
 import nodomain.freeyourgadget.gadgetbridge.database.DBHelper;
+import nodomain.freeyourgadget.gadgetbridge.database.DBLockMetrics;
 import nodomain.freeyourgadget.gadgetbridge.database.DBOpenHelper;
 import nodomain.freeyourgadget.gadgetbridge.database.PeriodicDbExporter;
 import nodomain.freeyourgadget.gadgetbridge.devices.DeviceManager;
@@ -137,6 +138,9 @@ public class GBApplication extends Application {
 
     private static GBApplication context;
     private static final Lock dbLock = new ReentrantLock();
+    // how often a reader waiting for the writer checks whether the database is being closed
+    private static final long READER_WRITE_POLL_MILLIS = 50;
+    private static final DBLockMetrics dbLockMetrics = new DBLockMetrics();
     private static DeviceService deviceService;
     private static SharedPreferences sharedPrefs;
     private static final String PREFS_VERSION = "shared_preferences_version";
@@ -449,6 +453,8 @@ public class GBApplication extends Application {
             helper = new DaoMaster.DevOpenHelper(this, null, null);
         } else {
             helper = new DBOpenHelper(this, DATABASE_NAME, null);
+            // lets readers query in parallel to the writer, see #acquireReadOnlyDB()
+            helper.setWriteAheadLoggingEnabled(true);
         }
         SQLiteDatabase db = helper.getWritableDatabase();
         DaoMaster daoMaster = new DaoMaster(db);
@@ -490,22 +496,99 @@ public class GBApplication extends Application {
      * <p>
      * Callers must not hold a reference to the returned instance because it
      * will be invalidated at some point.
+     * <p>
+     * A thread holding a read session gives up as soon as the database is about
+     * to be closed: the writer closing it waits for that read session, so
+     * waiting for the writer would deadlock.
      *
      * @return the DBHandler
      * @throws GBException
      * @see #releaseDB()
      */
     public static DBHandler acquireDB() throws GBException {
+        final long start = System.nanoTime();
         try {
-            if (dbLock.tryLock(30, TimeUnit.SECONDS)) {
+            if (dbLock.tryLock()) {
+                dbLockMetrics.getWriter().recordAcquired(0);
+                return lockHandler;
+            }
+            if (lockHandler != null && lockHandler.holdsReadSession()) {
+                final long deadline = start + TimeUnit.SECONDS.toNanos(30);
+                while (System.nanoTime() < deadline) {
+                    if (dbLock.tryLock(READER_WRITE_POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                        recordDBLockWait(dbLockMetrics.getWriter(), start);
+                        return lockHandler;
+                    }
+                    if (lockHandler.isStateChangePending()) {
+                        Log.w(TAG, "Not waiting for DB lock while reading, the database is being closed");
+                        break;
+                    }
+                }
+            } else if (dbLock.tryLock(30, TimeUnit.SECONDS)) {
+                recordDBLockWait(dbLockMetrics.getWriter(), start);
                 return lockHandler;
             }
         } catch (InterruptedException ex) {
             Log.i(TAG, "Interrupted while waiting for DB lock");
         }
+        dbLockMetrics.getWriter().recordTimeout();
         throw new GBException("Unable to access the database.");
     }
 
+    /**
+     * Returns a DBHandler for reading or throws GBException when that was not
+     * successful. Unlike #acquireDB, this does not wait for the writer: the
+     * database uses write-ahead logging, so readers see the last committed state
+     * while a write is in progress. Readers only wait while the database is
+     * closed, e.g. during an import.
+     * <p>
+     * The returned DBHandler must be closed from the thread that acquired it,
+     * and must not be used to write, close or reopen the database. Nested calls
+     * from the same thread return the same session.
+     *
+     * @return the DBHandler
+     * @throws GBException
+     * @see #acquireDB()
+     */
+    public static DBHandler acquireReadOnlyDB() throws GBException {
+        final long start = System.nanoTime();
+        try {
+            final DBHandler handler = lockHandler.acquireReadOnly(30, TimeUnit.SECONDS);
+            if (handler != null) {
+                recordDBLockWait(dbLockMetrics.getReader(), start);
+                return handler;
+            }
+        } catch (InterruptedException ex) {
+            Log.i(TAG, "Interrupted while waiting for DB read session");
+        }
+        dbLockMetrics.getReader().recordTimeout();
+        throw new GBException("Unable to access the database.");
+    }
+
+    /**
+     * @return whether the given session was obtained through #acquireReadOnlyDB() by the
+     * current thread, and must therefore not be written to
+     */
+    public static boolean isReadOnlySession(final DaoSession session) {
+        return lockHandler != null && lockHandler.isReadSession(session);
+    }
+
+    private static void recordDBLockWait(final DBLockMetrics.Stats stats, final long start) {
+        final long waited = System.nanoTime() - start;
+        stats.recordAcquired(waited);
+        if (waited >= TimeUnit.MILLISECONDS.toNanos(DBLockMetrics.SLOW_WAIT_MILLIS)) {
+            Log.w(TAG, "Waited " + TimeUnit.NANOSECONDS.toMillis(waited) + "ms for DB access on "
+                    + Thread.currentThread().getName());
+        }
+    }
+
+    /**
+     * @return how long #acquireDB and #acquireReadOnlyDB callers waited
+     */
+    public static DBLockMetrics getDBLockMetrics() {
+        return dbLockMetrics;
+    }
+
     /**
      * Releases the database lock.
      *
@@ -729,7 +812,12 @@ public class GBApplication extends Application {
     public static synchronized boolean deleteActivityDatabase(Context context) {
         // TODO: flush, close, reopen db
         if (lockHandler != null) {
-            lockHandler.closeDb();
+            try {
+                lockHandler.closeDb();
+            } catch (final IllegalStateException e) {
+                Log.e(TAG, "Failed to close the database for deletion", e);
+                return false;
+            }
         }
         boolean result = deleteOldActivityDatabase(context);
         result &= getContext().deleteDatabase(DATABASE_NAME);
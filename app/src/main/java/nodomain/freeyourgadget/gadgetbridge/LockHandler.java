@@ -18,20 +18,46 @@ package nodomain.freeyourgadget.gadgetbridge;
 
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.util.Log;
 
+import androidx.annotation.Nullable;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import de.greenrobot.dao.identityscope.IdentityScopeType;
 import nodomain.freeyourgadget.gadgetbridge.database.DBHandler;
+import nodomain.freeyourgadget.gadgetbridge.database.DBHelper;
 import nodomain.freeyourgadget.gadgetbridge.entities.DaoMaster;
 import nodomain.freeyourgadget.gadgetbridge.entities.DaoSession;
+import nodomain.freeyourgadget.gadgetbridge.externalevents.NotificationFilterCache;
 
 /**
  * Provides low-level access to the database.
+ * <p>
+ * Besides the session of the single writer, a small pool of sessions without identity scope
+ * serves readers through {@link #acquireReadOnly(long, TimeUnit)}. With write-ahead logging,
+ * SQLite runs their queries on separate connections, so they do not wait for the writer. Readers
+ * only wait while the database is closed, e.g. for an export or import.
  */
 public class LockHandler implements DBHandler {
+    // Since this class is used before logging is set up, we use plain android.util.Log
+    private static final String TAG = "LockHandler";
+    static final int READ_SESSIONS = 4;
+    private static final long STATE_LOCK_TIMEOUT_SECONDS = 30;
 
     private DaoMaster daoMaster = null;
     private DaoSession session = null;
     private SQLiteOpenHelper helper = null;
 
+    // readers hold the read lock, closing and reopening the database takes the write lock
+    private final ReentrantReadWriteLock stateLock = new ReentrantReadWriteLock();
+    private final BlockingQueue<DaoSession> readSessions = new ArrayBlockingQueue<>(READ_SESSIONS);
+    private final ThreadLocal<ReadOnlyLockHandler> currentReader = new ThreadLocal<>();
+    private int generation;
+
     public LockHandler() {
     }
 
@@ -45,15 +71,129 @@ public class LockHandler implements DBHandler {
         if (helper == null) {
             throw new IllegalArgumentException("helper must not be null");
         }
-        this.daoMaster = daoMaster;
-        this.helper = helper;
+        lockState();
+        try {
+            this.daoMaster = daoMaster;
+            this.helper = helper;
 
-        session = daoMaster.newSession();
-        if (session == null) {
-            throw new RuntimeException("Unable to create database session");
+            session = daoMaster.newSession();
+            if (session == null) {
+                throw new RuntimeException("Unable to create database session");
+            }
+            generation++;
+            // the database may have been replaced, for example by an import
+            DBHelper.getIdCache().invalidateAll();
+            NotificationFilterCache.getInstance().invalidateAll();
+            readSessions.clear();
+            for (int i = 0; i < READ_SESSIONS; i++) {
+                // readers must always see what the writer committed, so they cache nothing
+                readSessions.add(daoMaster.newSession(IdentityScopeType.None));
+            }
+        } finally {
+            stateLock.writeLock().unlock();
+        }
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Waits for the current readers to finish, before the database is closed or replaced.
+     *
+     * @throws IllegalStateException if the readers did not finish in time, since their sessions
+     *                               would be closed underneath them
+     */
+    private void lockState() {
+        if (stateLock.getReadHoldCount() > 0) {
+            throw new IllegalStateException("Cannot change the database state while reading from it");
+        }
+        try {
+            if (!stateLock.writeLock().tryLock(STATE_LOCK_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                Log.w(TAG, "Readers did not finish within " + STATE_LOCK_TIMEOUT_SECONDS + "s");
+                throw new IllegalStateException("Database is still being read from");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for readers to finish", e);
+        }
+    }
+
+    /**
+     * Takes a read session from the pool. A thread that already holds one gets the same again.
+     *
+     * @return the handler for reading, or null if none became available in time
+     */
+    @Nullable
+    DBHandler acquireReadOnly(final long timeout, final TimeUnit unit) throws InterruptedException {
+        final ReadOnlyLockHandler current = currentReader.get();
+        if (current != null) {
+            current.holdCount++;
+            return current;
+        }
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (true) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0 || !stateLock.readLock().tryLock(remaining, TimeUnit.NANOSECONDS)) {
+                return null;
+            }
+            if (isValid()) {
+                final DaoSession readSession = readSessions.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                if (readSession == null) {
+                    stateLock.readLock().unlock();
+                    return null;
+                }
+                final ReadOnlyLockHandler handler = new ReadOnlyLockHandler(this, daoMaster, helper, readSession, generation);
+                currentReader.set(handler);
+                return handler;
+            }
+            stateLock.readLock().unlock();
+
+            // the database is closed, wait for it to be opened again
+            synchronized (this) {
+                remaining = deadline - System.nanoTime();
+                if (!isValid() && remaining > 0) {
+                    TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                }
+            }
         }
     }
 
+    /**
+     * @return whether the given session is the read session held by the current thread
+     */
+    boolean isReadSession(final DaoSession session) {
+        final ReadOnlyLockHandler current = currentReader.get();
+        return current != null && current.getDaoSession() == session;
+    }
+
+    /**
+     * @return whether the current thread holds a read session
+     */
+    boolean holdsReadSession() {
+        return currentReader.get() != null;
+    }
+
+    /**
+     * @return whether a thread waits for the readers, to close or reopen the database
+     */
+    boolean isStateChangePending() {
+        return stateLock.hasQueuedThreads();
+    }
+
+    void releaseReadOnly(final ReadOnlyLockHandler handler) {
+        if (currentReader.get() != handler) {
+            throw new IllegalMonitorStateException("Read session was not acquired by this thread");
+        }
+        if (--handler.holdCount > 0) {
+            return;
+        }
+        currentReader.remove();
+        if (handler.getGeneration() == generation) {
+            readSessions.offer(handler.getDaoSession());
+        }
+        stateLock.readLock().unlock();
+    }
+
     @Override
     public DaoMaster getDaoMaster() {
         return daoMaster;
@@ -89,11 +229,17 @@ public class LockHandler implements DBHandler {
         if (session == null) {
             throw new IllegalStateException("session must not be null");
         }
-        session.clear();
-        session.getDatabase().close();
-        session = null;
-        helper = null;
-        daoMaster = null;
+        lockState();
+        try {
+            session.clear();
+            session.getDatabase().close();
+            session = null;
+            helper = null;
+            daoMaster = null;
+            readSessions.clear();
+        } finally {
+            stateLock.writeLock().unlock();
+        }
     }
 
     @Override
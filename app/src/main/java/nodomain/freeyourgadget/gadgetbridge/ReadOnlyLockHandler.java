@@ -0,0 +1,68 @@
+package nodomain.freeyourgadget.gadgetbridge;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+
+import nodomain.freeyourgadget.gadgetbridge.database.DBHandler;
+import nodomain.freeyourgadget.gadgetbridge.entities.DaoMaster;
+import nodomain.freeyourgadget.gadgetbridge.entities.DaoSession;
+
+/**
+ * Provides read access to the database with one of the read sessions of a {@link LockHandler}.
+ * The database can neither be closed nor reopened through it.
+ */
+class ReadOnlyLockHandler implements DBHandler {
+    private final LockHandler lockHandler;
+    private final DaoMaster daoMaster;
+    private final SQLiteOpenHelper helper;
+    private final DaoSession session;
+    private final int generation;
+    int holdCount = 1;
+
+    ReadOnlyLockHandler(LockHandler lockHandler, DaoMaster daoMaster, SQLiteOpenHelper helper, DaoSession session, int generation) {
+        this.lockHandler = lockHandler;
+        this.daoMaster = daoMaster;
+        this.helper = helper;
+        this.session = session;
+        this.generation = generation;
+    }
+
+    int getGeneration() {
+        return generation;
+    }
+
+    @Override
+    public void closeDb() {
+        throw new UnsupportedOperationException("The database cannot be closed by a reader");
+    }
+
+    @Override
+    public void openDb() {
+        throw new UnsupportedOperationException("The database cannot be opened by a reader");
+    }
+
+    @Override
+    public SQLiteOpenHelper getHelper() {
+        return helper;
+    }
+
+    @Override
+    public void close() {
+        lockHandler.releaseReadOnly(this);
+    }
+
+    @Override
+    public SQLiteDatabase getDatabase() {
+        return daoMaster.getDatabase();
+    }
+
+    @Override
+    public DaoMaster getDaoMaster() {
+        return daoMaster;
+    }
+
+    @Override
+    public DaoSession getDaoSession() {
+        return session;
+    }
+}
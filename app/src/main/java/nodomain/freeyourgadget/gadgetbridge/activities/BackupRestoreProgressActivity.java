@@ -47,6 +47,7 @@ public class BackupRestoreProgressActivity extends AbstractGBActivity {
 
     public static final String EXTRA_URI = "uri";
     public static final String EXTRA_ACTION = "action"; // import/export
+    public static final String EXTRA_SNAPSHOT = "snapshot"; // when importing from a folder, optional
 
     private boolean jobFinished = false;
     private Uri uri;
@@ -171,7 +172,7 @@ public class BackupRestoreProgressActivity extends AbstractGBActivity {
         switch (action) {
             case "import":
                 backupRestoreHint.setText(getString(R.string.backup_restore_do_not_exit, getString(R.string.backup_restore_importing)));
-                mZipBackupJob = new ZipBackupImportJob(GBApplication.getContext(), zipBackupCallback, uri);
+                mZipBackupJob = new ZipBackupImportJob(GBApplication.getContext(), zipBackupCallback, uri, extras.getString(EXTRA_SNAPSHOT));
                 break;
             case "export":
                 backupRestoreHint.setText(getString(R.string.backup_restore_do_not_exit, getString(R.string.backup_restore_exporting)));
@@ -23,6 +23,7 @@ import android.database.Cursor;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
 import android.preference.PreferenceManager;
 import android.provider.DocumentsContract;
 import android.view.MenuItem;
@@ -33,6 +34,7 @@ import android.widget.Toast;
 
 import androidx.activity.result.ActivityResultLauncher;
 import androidx.activity.result.contract.ActivityResultContracts;
+import androidx.annotation.Nullable;
 import androidx.core.app.NavUtils;
 
 import com.google.android.material.dialog.MaterialAlertDialogBuilder;
@@ -43,21 +45,31 @@ import org.slf4j.LoggerFactory;
 import java.io.File;
 import java.io.IOException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.TimeUnit;
 
 import nodomain.freeyourgadget.gadgetbridge.GBApplication;
 import nodomain.freeyourgadget.gadgetbridge.R;
 import nodomain.freeyourgadget.gadgetbridge.activities.files.FileManagerActivity;
+import nodomain.freeyourgadget.gadgetbridge.activities.files.FileManagerAdapter;
 import nodomain.freeyourgadget.gadgetbridge.database.DBHandler;
 import nodomain.freeyourgadget.gadgetbridge.database.DBHelper;
+import nodomain.freeyourgadget.gadgetbridge.devices.empatica.EmpaticaE4SessionExporter;
+import nodomain.freeyourgadget.gadgetbridge.devices.empatica.EmpaticaE4SessionFile;
 import nodomain.freeyourgadget.gadgetbridge.entities.Device;
+import nodomain.freeyourgadget.gadgetbridge.service.devices.empatica.EmpaticaE4SessionRecorder;
 import nodomain.freeyourgadget.gadgetbridge.util.AndroidUtils;
+import nodomain.freeyourgadget.gadgetbridge.util.DateTimeUtils;
 import nodomain.freeyourgadget.gadgetbridge.util.FileUtils;
 import nodomain.freeyourgadget.gadgetbridge.util.GB;
 import nodomain.freeyourgadget.gadgetbridge.util.GBPrefs;
 import nodomain.freeyourgadget.gadgetbridge.util.ImportExportSharedPreferences;
+import nodomain.freeyourgadget.gadgetbridge.util.backup.DocumentTreeStorage;
+import nodomain.freeyourgadget.gadgetbridge.util.backup.IncrementalBackupRepository;
 
 
 public class DataManagementActivity extends AbstractGBActivity {
@@ -98,29 +110,29 @@ public class DataManagementActivity extends AbstractGBActivity {
                         return;
                     }
 
-                    new MaterialAlertDialogBuilder(this)
-                            .setCancelable(true)
-                            .setIcon(R.drawable.ic_warning)
-                            .setTitle(R.string.dbmanagementactivity_import_data_title)
-                            .setMessage(R.string.dbmanagementactivity_overwrite_database_confirmation)
-                            .setPositiveButton(R.string.dbmanagementactivity_overwrite, (dialog, which) -> {
-                                // Disconnect from all devices right away
-                                GBApplication.deviceService().disconnect();
-
-                                final Intent startBackupIntent = new Intent(DataManagementActivity.this, BackupRestoreProgressActivity.class);
-                                startBackupIntent.putExtra(BackupRestoreProgressActivity.EXTRA_URI, uri);
-                                startBackupIntent.putExtra(BackupRestoreProgressActivity.EXTRA_ACTION, "import");
-                                startActivity(startBackupIntent);
-                            })
-                            .setNegativeButton(R.string.Cancel, (dialog, which) -> {
-                            })
-                            .show();
+                    confirmRestore(uri, null);
                 }
         );
 
         final Button restoreFromZipButton = findViewById(R.id.restoreFromZipButton);
         restoreFromZipButton.setOnClickListener(v -> restoreFileChooser.launch(new String[]{"application/zip"}));
 
+        final ActivityResultLauncher<Uri> restoreFolderChooser = registerForActivityResult(
+                new ActivityResultContracts.OpenDocumentTree(),
+                uri -> {
+                    LOG.info("Got restore folder: {}", uri);
+
+                    if (uri == null) {
+                        return;
+                    }
+
+                    chooseSnapshot(uri);
+                }
+        );
+
+        final Button restoreFromIncrementalButton = findViewById(R.id.restoreFromIncrementalButton);
+        restoreFromIncrementalButton.setOnClickListener(v -> restoreFolderChooser.launch(null));
+
         TextView dbPath = findViewById(R.id.activity_data_management_path);
         dbPath.setText(getExternalPath());
 
@@ -145,6 +157,9 @@ public class DataManagementActivity extends AbstractGBActivity {
             startActivity(fileManagerIntent);
         });
 
+        Button showSensorSessionsButton = findViewById(R.id.showSensorSessionsButton);
+        showSensorSessionsButton.setOnClickListener(v -> showSensorSessions());
+
         int oldDBVisibility = hasOldActivityDatabase() ? View.VISIBLE : View.GONE;
 
         TextView deleteOldActivityTitle = findViewById(R.id.mergeOldActivityDataTitle);
@@ -181,6 +196,72 @@ public class DataManagementActivity extends AbstractGBActivity {
         sharedPrefs = PreferenceManager.getDefaultSharedPreferences(this);
     }
 
+    /**
+     * Lists the snapshots in the folder on a background thread, since each query to the document
+     * provider can be slow.
+     */
+    private void chooseSnapshot(final Uri folderUri) {
+        final Handler handler = new Handler(getMainLooper());
+        new Thread(() -> {
+            try {
+                final IncrementalBackupRepository repository = new IncrementalBackupRepository(
+                        new DocumentTreeStorage(this, folderUri)
+                );
+                final List<String> snapshots = repository.listSnapshots();
+                handler.post(() -> chooseSnapshot(folderUri, snapshots));
+            } catch (final Exception e) {
+                LOG.error("Failed to list snapshots in {}", folderUri, e);
+                handler.post(() -> GB.toast(this, getString(R.string.error_message, e.getLocalizedMessage()), Toast.LENGTH_LONG, GB.ERROR, e));
+            }
+        }, "gb-list-snapshots").start();
+    }
+
+    private void chooseSnapshot(final Uri folderUri, final List<String> snapshots) {
+        if (isFinishing()) {
+            return;
+        }
+        if (snapshots.isEmpty()) {
+            GB.toast(this, getString(R.string.backup_restore_no_snapshots), Toast.LENGTH_LONG, GB.WARN);
+            return;
+        }
+
+        // Newest first
+        Collections.reverse(snapshots);
+        final String[] snapshotNames = snapshots.toArray(new String[0]);
+
+        new MaterialAlertDialogBuilder(this)
+                .setCancelable(true)
+                .setTitle(R.string.backup_restore_choose_snapshot)
+                .setItems(snapshotNames, (dialog, which) -> confirmRestore(folderUri, snapshotNames[which]))
+                .setNegativeButton(R.string.Cancel, (dialog, which) -> {
+                })
+                .show();
+    }
+
+    /**
+     * @param snapshot the snapshot to restore, if the uri is a folder with incremental exports
+     */
+    private void confirmRestore(final Uri uri, @Nullable final String snapshot) {
+        new MaterialAlertDialogBuilder(this)
+                .setCancelable(true)
+                .setIcon(R.drawable.ic_warning)
+                .setTitle(R.string.dbmanagementactivity_import_data_title)
+                .setMessage(R.string.dbmanagementactivity_overwrite_database_confirmation)
+                .setPositiveButton(R.string.dbmanagementactivity_overwrite, (dialog, which) -> {
+                    // Disconnect from all devices right away
+                    GBApplication.deviceService().disconnect();
+
+                    final Intent startBackupIntent = new Intent(DataManagementActivity.this, BackupRestoreProgressActivity.class);
+                    startBackupIntent.putExtra(BackupRestoreProgressActivity.EXTRA_URI, uri);
+                    startBackupIntent.putExtra(BackupRestoreProgressActivity.EXTRA_ACTION, "import");
+                    startBackupIntent.putExtra(BackupRestoreProgressActivity.EXTRA_SNAPSHOT, snapshot);
+                    startActivity(startBackupIntent);
+                })
+                .setNegativeButton(R.string.Cancel, (dialog, which) -> {
+                })
+                .show();
+    }
+
     private String getAutoExportLocationPreferenceString() {
         String autoExportLocation = GBApplication.getPrefs().getString(GBPrefs.AUTO_EXPORT_DB_LOCATION, null);
         if (autoExportLocation == null) {
@@ -301,11 +382,11 @@ public class DataManagementActivity extends AbstractGBActivity {
                 .setPositiveButton(R.string.activity_DB_ExportButton, new DialogInterface.OnClickListener() {
                     @Override
                     public void onClick(DialogInterface dialog, int which) {
-                        try (DBHandler dbHandler = GBApplication.acquireDB()) {
+                        try {
                             exportShared();
                             DBHelper helper = new DBHelper(DataManagementActivity.this);
                             File dir = FileUtils.getExternalFilesDir();
-                            File destFile = helper.exportDB(dbHandler, dir);
+                            File destFile = helper.exportDB(dir);
                             GB.toast(DataManagementActivity.this, getString(R.string.dbmanagementactivity_exported_to, destFile.getAbsolutePath()), Toast.LENGTH_LONG, GB.INFO);
                         } catch (Exception ex) {
                             GB.toast(DataManagementActivity.this, getString(R.string.dbmanagementactivity_error_exporting_db, ex.getLocalizedMessage()), Toast.LENGTH_LONG, GB.ERROR, ex);
@@ -351,6 +432,99 @@ public class DataManagementActivity extends AbstractGBActivity {
                 .show();
     }
 
+    /**
+     * Lists the recorded sensor sessions, which are scanned on a background thread since that
+     * reads the whole files.
+     */
+    private void showSensorSessions() {
+        final Handler handler = new Handler(getMainLooper());
+        new Thread(() -> {
+            final List<EmpaticaE4SessionFile.Info> sessions = new ArrayList<>();
+            try {
+                final File dir = new File(FileUtils.getExternalFilesDir(), EmpaticaE4SessionFile.DIRECTORY);
+                for (final File file : EmpaticaE4SessionFile.list(dir)) {
+                    try {
+                        sessions.add(EmpaticaE4SessionFile.scan(file, null));
+                    } catch (final IOException e) {
+                        LOG.warn("Failed to read sensor session {}", file, e);
+                    }
+                }
+            } catch (final IOException e) {
+                LOG.warn("Unable to get external files dir", e);
+            }
+            handler.post(() -> showSensorSessions(sessions));
+        }, "gb-sensor-sessions").start();
+    }
+
+    private void showSensorSessions(final List<EmpaticaE4SessionFile.Info> sessions) {
+        if (isFinishing()) {
+            return;
+        }
+        if (sessions.isEmpty()) {
+            GB.toast(this, getString(R.string.dbmanagementactivity_no_sensor_sessions), Toast.LENGTH_SHORT, GB.INFO);
+            return;
+        }
+        final String[] labels = new String[sessions.size()];
+        for (int i = 0; i < sessions.size(); i++) {
+            final EmpaticaE4SessionFile.Info info = sessions.get(i);
+            final StringBuilder label = new StringBuilder();
+            label.append(info.getAddress()).append('\n')
+                    .append(DateTimeUtils.formatDateTime(new Date(info.getStartTime()))).append(", ")
+                    .append(DateTimeUtils.formatDurationHoursMinutes(info.getEndTime() - info.getStartTime(), TimeUnit.MILLISECONDS)).append(", ")
+                    .append(FileManagerAdapter.formatFileSize(info.getFile().length()));
+            if (EmpaticaE4SessionRecorder.isRecording(info.getFile())) {
+                label.append(" (").append(getString(R.string.dbmanagementactivity_sensor_session_recording)).append(')');
+            } else if (info.isRecovered() || !info.isClosed()) {
+                label.append(" (").append(getString(R.string.dbmanagementactivity_sensor_session_recovered)).append(')');
+            }
+            labels[i] = label.toString();
+        }
+        new MaterialAlertDialogBuilder(this)
+                .setCancelable(true)
+                .setTitle(R.string.activity_db_management_sensor_sessions_label)
+                .setItems(labels, (dialog, which) -> convertSensorSession(sessions.get(which).getFile()))
+                .setNegativeButton(R.string.Cancel, (dialog, which) -> {
+                })
+                .show();
+    }
+
+    private void convertSensorSession(final File session) {
+        new MaterialAlertDialogBuilder(this)
+                .setCancelable(true)
+                .setTitle(R.string.dbmanagementactivity_sensor_session_convert_title)
+                .setMessage(session.getName())
+                .setPositiveButton(R.string.dbmanagementactivity_sensor_session_convert_edf, (dialog, which) -> convertSensorSession(session, true))
+                .setNeutralButton(R.string.dbmanagementactivity_sensor_session_convert_csv, (dialog, which) -> convertSensorSession(session, false))
+                .setNegativeButton(R.string.Cancel, (dialog, which) -> {
+                })
+                .show();
+    }
+
+    private void convertSensorSession(final File session, final boolean edf) {
+        GB.toast(this, getString(R.string.dbmanagementactivity_sensor_session_converting, session.getName()), Toast.LENGTH_SHORT, GB.INFO);
+        final Handler handler = new Handler(getMainLooper());
+        new Thread(() -> {
+            try {
+                final File targetDir = FileUtils.getExternalFilesDir();
+                final String result;
+                if (edf) {
+                    result = EmpaticaE4SessionExporter.exportEdf(session, targetDir).getName();
+                } else {
+                    final List<File> files = EmpaticaE4SessionExporter.exportCsv(session, targetDir);
+                    final StringBuilder names = new StringBuilder();
+                    for (final File file : files) {
+                        names.append(names.length() > 0 ? ", " : "").append(file.getName());
+                    }
+                    result = names.toString();
+                }
+                handler.post(() -> GB.toast(getString(R.string.dbmanagementactivity_sensor_session_converted, result), Toast.LENGTH_LONG, GB.INFO));
+            } catch (final Exception e) {
+                LOG.error("Failed to convert sensor session {}", session, e);
+                handler.post(() -> GB.toast(getString(R.string.dbmanagementactivity_error_converting_sensor_session, e.getLocalizedMessage()), Toast.LENGTH_LONG, GB.ERROR, e));
+            }
+        }, "gb-sensor-session-convert").start();
+    }
+
     private void deleteActivityDatabase() {
         new MaterialAlertDialogBuilder(this)
                 .setCancelable(true)
@@ -77,11 +77,15 @@ import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 
 import com.google.android.material.dialog.MaterialAlertDialogBuilder;
 
+import org.json.JSONException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
@@ -125,7 +129,9 @@ import nodomain.freeyourgadget.gadgetbridge.model.RecordedDataTypes;
 import nodomain.freeyourgadget.gadgetbridge.model.weather.Weather;
 import nodomain.freeyourgadget.gadgetbridge.model.weather.WeatherMapper;
 import nodomain.freeyourgadget.gadgetbridge.model.WeatherSpec;
+import nodomain.freeyourgadget.gadgetbridge.service.btle.BtLEQueueMetrics;
 import nodomain.freeyourgadget.gadgetbridge.service.serial.GBDeviceProtocol;
+import nodomain.freeyourgadget.gadgetbridge.util.FileUtils;
 import nodomain.freeyourgadget.gadgetbridge.util.GB;
 import nodomain.freeyourgadget.gadgetbridge.util.WidgetPreferenceStorage;
 
@@ -749,6 +755,9 @@ public class DebugActivity extends AbstractGBActivity {
             }
         });
 
+        Button showBleQueueMetrics = findViewById(R.id.showBleQueueMetrics);
+        showBleQueueMetrics.setOnClickListener(v -> showBleQueueMetrics());
+
         Button showStatusFitnessAppTracking = findViewById(R.id.showStatusFitnessAppTracking);
         final int delay = 2 * 1000;
 
@@ -990,6 +999,53 @@ public class DebugActivity extends AbstractGBActivity {
                 .show();
     }
 
+    private void showBleQueueMetrics() {
+        final List<BtLEQueueMetrics> allMetrics = BtLEQueueMetrics.getAll();
+        final StringBuilder sb = new StringBuilder();
+        for (final BtLEQueueMetrics metrics : allMetrics) {
+            final GBDevice device = GBApplication.app().getDeviceManager().getDeviceByAddress(metrics.getAddress());
+            if (device != null) {
+                sb.append(device.getAliasOrName()).append(" - ");
+            }
+            sb.append(metrics).append("\n");
+        }
+
+        new MaterialAlertDialogBuilder(DebugActivity.this)
+                .setCancelable(true)
+                .setTitle(R.string.debug_ble_metrics_show)
+                .setMessage(allMetrics.isEmpty() ? getString(R.string.debug_ble_metrics_none) : sb.toString().trim())
+                .setPositiveButton(R.string.ok, (dialog, which) -> {
+                })
+                .setNeutralButton(R.string.debug_ble_metrics_export, (dialog, which) -> exportBleQueueMetrics())
+                .setNegativeButton(R.string.debug_ble_metrics_reset, (dialog, which) -> BtLEQueueMetrics.resetAll())
+                .show();
+    }
+
+    private void exportBleQueueMetrics() {
+        final File file;
+        try {
+            file = FileUtils.getExternalFile("ble-queue-metrics.json");
+            try (FileOutputStream out = new FileOutputStream(file)) {
+                out.write(BtLEQueueMetrics.allToJson().toString(2).getBytes(StandardCharsets.UTF_8));
+            }
+        } catch (final IOException | JSONException e) {
+            GB.toast("Failed to export BLE queue metrics", Toast.LENGTH_LONG, GB.ERROR, e);
+            return;
+        }
+
+        final Uri providerUri = FileProvider.getUriForFile(
+                this,
+                getApplicationContext().getPackageName() + ".screenshot_provider",
+                file
+        );
+        final Intent shareIntent = new Intent(Intent.ACTION_SEND);
+        shareIntent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+        shareIntent.setType("application/json");
+        shareIntent.putExtra(EXTRA_SUBJECT, "Gadgetbridge BLE queue metrics");
+        shareIntent.putExtra(Intent.EXTRA_STREAM, providerUri);
+        startActivity(Intent.createChooser(shareIntent, "Share File"));
+    }
+
     private void testNewFunctionality() {
         GBApplication.deviceService().onTestNewFunction();
 
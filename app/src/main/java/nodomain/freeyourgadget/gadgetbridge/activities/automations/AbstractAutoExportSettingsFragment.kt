@@ -27,6 +27,7 @@ import androidx.activity.result.ActivityResultCallback
 import androidx.activity.result.contract.ActivityResultContracts.StartActivityForResult
 import androidx.core.content.edit
 import androidx.core.net.toUri
+import androidx.documentfile.provider.DocumentFile
 import androidx.lifecycle.lifecycleScope
 import androidx.preference.Preference
 import androidx.preference.PreferenceGroup
@@ -42,6 +43,7 @@ import nodomain.freeyourgadget.gadgetbridge.util.AndroidUtils
 import nodomain.freeyourgadget.gadgetbridge.util.DateTimeUtils
 import nodomain.freeyourgadget.gadgetbridge.util.GBPrefs
 import nodomain.freeyourgadget.gadgetbridge.util.PeriodicExporter
+import nodomain.freeyourgadget.gadgetbridge.util.backup.ZipBackupExportJob
 import org.slf4j.Logger
 import org.slf4j.LoggerFactory
 import java.util.Date
@@ -59,7 +61,9 @@ abstract class AbstractAutoExportSettingsFragment(
 
         val prefKeyEnabled = keyPrefix + GBPrefs.AUTO_EXPORT_ENABLED
         val prefKeyLocation = keyPrefix + GBPrefs.AUTO_EXPORT_LOCATION
+        val prefKeyIncremental = keyPrefix + GBPrefs.AUTO_EXPORT_INCREMENTAL
         val prefKeyInterval = keyPrefix + GBPrefs.AUTO_EXPORT_INTERVAL
+        val prefKeyKeepSnapshots = keyPrefix + GBPrefs.AUTO_EXPORT_KEEP_SNAPSHOTS
         val prefKeyStartTime = keyPrefix + "auto_export_start_time"
         val prefKeyRunNow = keyPrefix + "auto_export_run_now"
 
@@ -76,9 +80,14 @@ abstract class AbstractAutoExportSettingsFragment(
                     LOG.error("Got no uri")
                     return@ActivityResultCallback
                 }
+                // Folders are also read, to find what was already exported
                 requireContext().contentResolver.takePersistableUriPermission(
                     uri,
-                    Intent.FLAG_GRANT_WRITE_URI_PERMISSION
+                    if (DocumentsContract.isTreeUri(uri)) {
+                        Intent.FLAG_GRANT_READ_URI_PERMISSION or Intent.FLAG_GRANT_WRITE_URI_PERMISSION
+                    } else {
+                        Intent.FLAG_GRANT_WRITE_URI_PERMISSION
+                    }
                 )
                 gbPrefs.preferences.edit {
                     putString(prefKeyLocation, uri.toString())
@@ -92,15 +101,22 @@ abstract class AbstractAutoExportSettingsFragment(
         )
 
         setInputTypeFor(prefKeyInterval, InputType.TYPE_CLASS_NUMBER)
+        setInputTypeFor(prefKeyKeepSnapshots, InputType.TYPE_CLASS_NUMBER)
 
         val prefExportLocation = findPreference<Preference>(prefKeyLocation)
         if (prefExportLocation != null) {
             prefExportLocation.setOnPreferenceClickListener {
-                val i = Intent(Intent.ACTION_CREATE_DOCUMENT)
-                i.setType(exporter.getFileMimeType())
-                i.addCategory(Intent.CATEGORY_OPENABLE)
-                i.putExtra(Intent.EXTRA_TITLE, "Gadgetbridge.${exporter.getFileExtension()}")
-                i.addFlags(Intent.FLAG_GRANT_PERSISTABLE_URI_PERMISSION or Intent.FLAG_GRANT_WRITE_URI_PERMISSION)
+                val i: Intent
+                if (exporter.supportsIncremental() && gbPrefs.getBoolean(prefKeyIncremental, false)) {
+                    i = Intent(Intent.ACTION_OPEN_DOCUMENT_TREE)
+                    i.addFlags(Intent.FLAG_GRANT_PERSISTABLE_URI_PERMISSION or Intent.FLAG_GRANT_READ_URI_PERMISSION or Intent.FLAG_GRANT_WRITE_URI_PERMISSION)
+                } else {
+                    i = Intent(Intent.ACTION_CREATE_DOCUMENT)
+                    i.setType(exporter.getFileMimeType())
+                    i.addCategory(Intent.CATEGORY_OPENABLE)
+                    i.putExtra(Intent.EXTRA_TITLE, "Gadgetbridge.${exporter.getFileExtension()}")
+                    i.addFlags(Intent.FLAG_GRANT_PERSISTABLE_URI_PERMISSION or Intent.FLAG_GRANT_WRITE_URI_PERMISSION)
+                }
                 val title: String = requireContext().applicationContext.getString(R.string.choose_auto_export_location)
                 exportLocationPicker.launch(Intent.createChooser(i, title))
 
@@ -114,6 +130,19 @@ abstract class AbstractAutoExportSettingsFragment(
             )
         }
 
+        val prefIncremental = findPreference<Preference>(prefKeyIncremental)
+        if (prefIncremental != null) {
+            prefIncremental.isVisible = exporter.supportsIncremental()
+            prefIncremental.setOnPreferenceChangeListener { preference: Preference?, incremental: Any? ->
+                // A file and a folder are picked differently, the location needs to be chosen again
+                gbPrefs.preferences.edit {
+                    remove(prefKeyLocation)
+                }
+                prefExportLocation?.setSummary("")
+                true
+            }
+        }
+
         val prefExportInterval = findPreference<Preference>(prefKeyInterval)
         if (prefExportInterval != null) {
             prefExportInterval.setOnPreferenceChangeListener { preference: Preference?, autoExportInterval: Any? ->
@@ -133,6 +162,25 @@ abstract class AbstractAutoExportSettingsFragment(
             prefExportInterval.setSummary(summary)
         }
 
+        val prefKeepSnapshots = findPreference<Preference>(prefKeyKeepSnapshots)
+        if (prefKeepSnapshots != null) {
+            prefKeepSnapshots.isVisible = exporter.supportsIncremental()
+            prefKeepSnapshots.setOnPreferenceChangeListener { preference: Preference?, keepSnapshots: Any? ->
+                val summary = String.format(
+                    requireContext().applicationContext.getString(R.string.pref_summary_auto_export_keep_snapshots),
+                    (keepSnapshots as String?)!!.toInt()
+                )
+                prefKeepSnapshots.setSummary(summary)
+                true
+            }
+            val keepSnapshots = gbPrefs.getInt(prefKeyKeepSnapshots, ZipBackupExportJob.DEFAULT_KEEP_SNAPSHOTS)
+            val summary = String.format(
+                requireContext().applicationContext.getString(R.string.pref_summary_auto_export_keep_snapshots),
+                keepSnapshots
+            )
+            prefKeepSnapshots.setSummary(summary)
+        }
+
         val prefExportEnabled = findPreference<Preference>(prefKeyEnabled)
         prefExportEnabled?.setOnPreferenceChangeListener { preference: Preference?, autoExportEnabled: Any? ->
             scheduleNextExecutionDelayed()
@@ -277,6 +325,13 @@ abstract class AbstractAutoExportSettingsFragment(
                 return ""
             }
             val uri = uriString.toUri()
+            if (DocumentsContract.isTreeUri(uri)) {
+                val name = DocumentFile.fromTreeUri(context, uri)?.name
+                if (name != null) {
+                    return name
+                }
+                return context.getString(R.string.activity_db_management_autoexport_location)
+            }
             try {
                 return AndroidUtils.getFilePath(context.applicationContext, uri)
             } catch (e: IllegalArgumentException) {
@@ -354,6 +354,11 @@ public abstract class AbstractChartFragment<D extends ChartsData> extends Abstra
             super(task, context);
         }
 
+        @Override
+        protected boolean isReadOnly() {
+            return true;
+        }
+
         @Override
         protected void doInBackground(final DBHandler db) {
             final ChartsHost chartsHost = getChartsHost();
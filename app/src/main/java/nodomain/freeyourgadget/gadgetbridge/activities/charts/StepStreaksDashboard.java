@@ -246,6 +246,11 @@ public class StepStreaksDashboard extends MaterialDialogFragment {
             this.period = period;
         }
 
+        @Override
+        protected boolean isReadOnly() {
+            return true;
+        }
+
         @Override
         protected void doInBackground(DBHandler db) {
             switch (period) {
@@ -47,9 +47,17 @@ public abstract class DBAccess extends AsyncTask {
 
     protected abstract void doInBackground(DBHandler handler);
 
+    /**
+     * Whether the task only reads, so that it can use GBApplication#acquireReadOnlyDB()
+     * and does not have to wait for writers.
+     */
+    protected boolean isReadOnly() {
+        return false;
+    }
+
     @Override
     protected Object doInBackground(Object[] params) {
-        try (DBHandler db = GBApplication.acquireDB()) {
+        try (DBHandler db = isReadOnly() ? GBApplication.acquireReadOnlyDB() : GBApplication.acquireDB()) {
             doInBackground(db);
         } catch (Exception e) {
             LOG.error("Error during DBAccess for {}", mTask, e);
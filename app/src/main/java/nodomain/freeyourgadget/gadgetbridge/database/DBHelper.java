@@ -20,8 +20,10 @@ package nodomain.freeyourgadget.gadgetbridge.database;
 
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -89,6 +91,9 @@ import nodomain.freeyourgadget.gadgetbridge.util.GBPrefs;
  */
 public class DBHelper {
     private static final Logger LOG = LoggerFactory.getLogger(DBHelper.class);
+    private static final EntityIdCache ID_CACHE = new EntityIdCache();
+    private static final int CHECKPOINT_ATTEMPTS = 10;
+    private static final long CHECKPOINT_RETRY_DELAY_MILLIS = 200;
 
     private final Context context;
 
@@ -111,34 +116,115 @@ public class DBHelper {
         return path;
     }
 
-    public File exportDB(DBHandler dbHandler, File toDir) throws IllegalStateException, IOException {
-        String dbPath = getClosedDBPath(dbHandler);
-        try {
-            File sourceFile = new File(dbPath);
-            File destFile = new File(toDir, sourceFile.getName());
-            if (destFile.exists()) {
-                File backup = new File(toDir, destFile.getName() + "_" + getDate());
-                destFile.renameTo(backup);
-            } else if (!toDir.exists()) {
-                if (!toDir.mkdirs()) {
-                    throw new IOException("Unable to create directory: " + toDir.getAbsolutePath());
-                }
+    /**
+     * Exports a snapshot of the database to the given directory, without closing it.
+     */
+    public File exportDB(File toDir) throws IOException {
+        File destFile = new File(toDir, GBApplication.DATABASE_NAME);
+        if (destFile.exists()) {
+            File backup = new File(toDir, destFile.getName() + "_" + getDate());
+            destFile.renameTo(backup);
+        } else if (!toDir.exists()) {
+            if (!toDir.mkdirs()) {
+                throw new IOException("Unable to create directory: " + toDir.getAbsolutePath());
             }
+        }
+
+        snapshotDB(destFile);
+        return destFile;
+    }
 
-            FileUtils.copyFile(sourceFile, destFile);
-            return destFile;
+    /**
+     * Exports a snapshot of the database to the given stream, without closing it.
+     */
+    public void exportDB(OutputStream dest) throws IOException {
+        File snapshot = File.createTempFile("export", ".db", context.getCacheDir());
+        try {
+            snapshotDB(snapshot);
+            FileUtils.copyFileToStream(snapshot, dest);
         } finally {
-            dbHandler.openDb();
+            if (!snapshot.delete()) {
+                LOG.warn("Failed to delete {}", snapshot);
+            }
         }
     }
 
-    public void exportDB(DBHandler dbHandler, OutputStream dest) throws IOException {
-        String dbPath = getClosedDBPath(dbHandler);
+    /**
+     * Writes a consistent snapshot of the database to the given file, while it stays open.
+     * <p>
+     * With SQLite 3.28 or newer, this runs VACUUM INTO on a separate, read-only connection, so
+     * that other threads can keep reading and writing in the meantime. Otherwise, the write-ahead
+     * log is checkpointed and the database file copied while holding the writer lock, which
+     * blocks writers but not readers.
+     */
+    private void snapshotDB(File destFile) throws IOException {
+        final long start = System.currentTimeMillis();
         try {
-            File source = new File(dbPath);
-            FileUtils.copyFileToStream(source, dest);
-        } finally {
-            dbHandler.openDb();
+            // the read session keeps the database from being closed or replaced meanwhile
+            try (DBHandler dbHandler = GBApplication.acquireReadOnlyDB()) {
+                if (supportsVacuumInto(dbHandler.getDatabase())) {
+                    vacuumInto(dbHandler.getDatabase().getPath(), destFile);
+                    LOG.info("Database snapshot took {}ms", System.currentTimeMillis() - start);
+                    return;
+                }
+            }
+            // Outside of the read session: waiting for the writer lock while holding it would
+            // deadlock with a writer that waits for the readers to close the database. The writer
+            // lock keeps the database open on its own.
+            copyCheckpointed(destFile);
+            LOG.info("Database snapshot took {}ms", System.currentTimeMillis() - start);
+        } catch (final IOException e) {
+            throw e;
+        } catch (final Exception e) {
+            throw new IOException("Failed to snapshot the database", e);
+        }
+    }
+
+    private static boolean supportsVacuumInto(SQLiteDatabase db) {
+        final String version = DatabaseUtils.stringForQuery(db, "SELECT sqlite_version()", null);
+        final String[] parts = version.split("\\.");
+        try {
+            final int major = Integer.parseInt(parts[0]);
+            final int minor = parts.length > 1 ? Integer.parseInt(parts[1]) : 0;
+            // 3.27 introduced VACUUM INTO, but only allows it on a read-only connection since 3.28
+            return major > 3 || (major == 3 && minor >= 28);
+        } catch (final NumberFormatException e) {
+            LOG.warn("Unknown SQLite version {}", version);
+            return false;
+        }
+    }
+
+    private static void vacuumInto(String dbPath, File destFile) throws IOException {
+        // VACUUM INTO refuses to overwrite a file with content
+        if (destFile.exists() && !destFile.delete()) {
+            throw new IOException("Unable to delete " + destFile.getAbsolutePath());
+        }
+
+        // A connection of its own, so that the pooled connections are not held up. The
+        // snapshot is a read transaction, which does not block the writer in WAL mode.
+        try (SQLiteDatabase db = SQLiteDatabase.openDatabase(dbPath, null, SQLiteDatabase.OPEN_READONLY)) {
+            db.execSQL("VACUUM INTO ?", new Object[]{destFile.getAbsolutePath()});
+        }
+    }
+
+    private static void copyCheckpointed(File destFile) throws Exception {
+        try (DBHandler dbHandler = GBApplication.acquireDB()) {
+            final SQLiteDatabase db = dbHandler.getDatabase();
+            // Nothing is written while we hold the writer lock, so once the whole log has been
+            // copied into the database file, that file is a consistent snapshot on its own.
+            // Readers still on an older snapshot keep the checkpoint from completing, but they
+            // do not take long.
+            try (SQLiteStatement checkpoint = db.compileStatement("PRAGMA wal_checkpoint(TRUNCATE)")) {
+                int attempt = 0;
+                // the first column is 1 if the checkpoint could not complete
+                while (checkpoint.simpleQueryForLong() != 0) {
+                    if (++attempt >= CHECKPOINT_ATTEMPTS) {
+                        throw new IOException("Unable to checkpoint the database, it is busy");
+                    }
+                    Thread.sleep(CHECKPOINT_RETRY_DELAY_MILLIS);
+                }
+            }
+            FileUtils.copyFile(new File(db.getPath()), destFile);
         }
     }
 
@@ -153,6 +239,9 @@ public class DBHelper {
     public void importDB(DBHandler dbHandler, InputStream inputStream) throws IllegalStateException, IOException {
         String dbPath = getClosedDBPath(dbHandler);
         try {
+            // a write-ahead log left behind would be applied on top of the imported database
+            new File(dbPath + "-wal").delete();
+            new File(dbPath + "-shm").delete();
             File toFile = new File(dbPath);
             FileUtils.copyStreamToFile(inputStream, toFile);
         } finally {
@@ -199,15 +288,31 @@ public class DBHelper {
      * be updated with the current preferences values. If no user exists yet, it will
      * be created in the database.
      * <p>
+     * On a session from GBApplication#acquireReadOnlyDB(), an existing user is returned as is,
+     * and a missing one is created through the writer session.
+     * <p>
      * Note: so far there is only ever a single user; there is no multi-user support yet
      * @return the User entity
      */
     @NonNull
     public static User getUser(DaoSession session) {
+        long generation = ID_CACHE.getGeneration();
         ActivityUser prefsUser = new ActivityUser();
         UserDao userDao = session.getUserDao();
         User user;
         List<User> users = userDao.loadAll();
+        if (GBApplication.isReadOnlySession(session)) {
+            if (users.isEmpty()) {
+                try (DBHandler db = GBApplication.acquireDB()) {
+                    return getUser(db.getDaoSession());
+                } catch (Exception e) {
+                    throw new IllegalStateException("Unable to create the user", e);
+                }
+            }
+            user = users.get(0);
+            cacheUserId(session, user.getId(), generation);
+            return user;
+        }
         if (users.isEmpty()) {
             user = createUser(prefsUser, session);
         } else {
@@ -215,10 +320,49 @@ public class DBHelper {
             ensureUserUpToDate(user, prefsUser, session);
         }
         ensureUserAttributes(user, prefsUser, session);
+        cacheUserId(session, user.getId(), generation);
 
         return user;
     }
 
+    /**
+     * Like {@link #getUser(DaoSession)}, but only returns the id, which is cached. The user is
+     * therefore not updated with the current preferences values.
+     */
+    public static long getUserId(DaoSession session) {
+        Long userId = ID_CACHE.getUserId();
+        if (userId == null) {
+            userId = getUser(session).getId();
+        }
+        return userId;
+    }
+
+    /**
+     * Ids looked up or inserted inside a transaction are not cached, since the transaction may
+     * still be rolled back, leaving the id pointing to a row that was never committed.
+     */
+    private static void cacheDeviceId(DaoSession session, String address, long id, long generation) {
+        if (!session.getDatabase().inTransaction()) {
+            ID_CACHE.putDeviceId(address, id, generation);
+        }
+    }
+
+    /**
+     * @see #cacheDeviceId(DaoSession, String, long, long)
+     */
+    private static void cacheUserId(DaoSession session, long id, long generation) {
+        if (!session.getDatabase().inTransaction()) {
+            ID_CACHE.putUserId(id, generation);
+        }
+    }
+
+    /**
+     * @return the cache of device and user ids, to be invalidated whenever they change
+     */
+    public static EntityIdCache getIdCache() {
+        return ID_CACHE;
+    }
+
     @NonNull
     public static UserAttributes getUserAttributes(User user) {
         List<UserAttributes> list = user.getUserAttributesList();
@@ -370,15 +514,46 @@ public class DBHelper {
      */
     @Nullable
     public static Device findDevice(GBDevice gbDevice, DaoSession session) {
+        long generation = ID_CACHE.getGeneration();
         DeviceDao deviceDao = session.getDeviceDao();
         Query<Device> query = deviceDao.queryBuilder().where(DeviceDao.Properties.Identifier.eq(gbDevice.getAddress())).build();
         List<Device> devices = query.list();
         if (!devices.isEmpty()) {
-            return devices.get(0);
+            Device device = devices.get(0);
+            cacheDeviceId(session, gbDevice.getAddress(), device.getId(), generation);
+            return device;
         }
         return null;
     }
 
+    /**
+     * Like {@link #findDevice(GBDevice, DaoSession)}, but only returns the id, which is cached.
+     * @return the id of the corresponding Device entity, or null if none
+     */
+    @Nullable
+    public static Long findDeviceId(GBDevice gbDevice, DaoSession session) {
+        Long deviceId = ID_CACHE.getDeviceId(gbDevice.getAddress());
+        if (deviceId == null) {
+            Device device = findDevice(gbDevice, session);
+            if (device != null) {
+                deviceId = device.getId();
+            }
+        }
+        return deviceId;
+    }
+
+    /**
+     * Like {@link #getDevice(GBDevice, DaoSession)}, but only returns the id, which is cached. The
+     * device is therefore only created, but not updated with the current values of the GBDevice.
+     */
+    public static long getDeviceId(GBDevice gbDevice, DaoSession session) {
+        Long deviceId = ID_CACHE.getDeviceId(gbDevice.getAddress());
+        if (deviceId == null) {
+            deviceId = getDevice(gbDevice, session).getId();
+        }
+        return deviceId;
+    }
+
     public static void updateDeviceMacAddress(final DaoSession session, final String oldAddress, final String newAddress) {
         final DeviceDao deviceDao = session.getDeviceDao();
         final Query<Device> query = deviceDao.queryBuilder().where(DeviceDao.Properties.Identifier.eq(oldAddress)).build();
@@ -391,6 +566,8 @@ public class DBHelper {
         final Device device = devices.get(0);
         device.setIdentifier(newAddress);
         session.getDeviceDao().update(device);
+        ID_CACHE.invalidateDevice(oldAddress);
+        ID_CACHE.invalidateDevice(newAddress);
     }
 
     public static void updateDeviceType(final DaoSession session, final String address, final DeviceType newType) {
@@ -419,14 +596,29 @@ public class DBHelper {
      * Looks up in the database the Device entity corresponding to the GBDevice. If a device
      * exists already, it will be updated with the current preferences values. If no device exists
      * yet, it will be created in the database.
+     * <p>
+     * On a session from GBApplication#acquireReadOnlyDB(), an existing device is returned as is,
+     * and a missing one is created through the writer session.
      *
      * @param session
      * @return the device entity corresponding to the given GBDevice
      */
     public static Device getDevice(GBDevice gbDevice, DaoSession session) {
+        long generation = ID_CACHE.getGeneration();
         Device device = findDevice(gbDevice, session);
+        if (GBApplication.isReadOnlySession(session)) {
+            if (device != null) {
+                return device;
+            }
+            try (DBHandler db = GBApplication.acquireDB()) {
+                return getDevice(gbDevice, db.getDaoSession());
+            } catch (Exception e) {
+                throw new IllegalStateException("Unable to create the device " + gbDevice.getAddress(), e);
+            }
+        }
         if (device == null) {
             device = createDevice(gbDevice, session);
+            cacheDeviceId(session, gbDevice.getAddress(), device.getId(), generation);
         } else {
             ensureDeviceUpToDate(device, gbDevice, session);
         }
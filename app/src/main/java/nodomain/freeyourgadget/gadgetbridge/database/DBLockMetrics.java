@@ -0,0 +1,97 @@
+package nodomain.freeyourgadget.gadgetbridge.database;
+
+import androidx.annotation.NonNull;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * How long callers of {@link nodomain.freeyourgadget.gadgetbridge.GBApplication#acquireDB()} and
+ * {@link nodomain.freeyourgadget.gadgetbridge.GBApplication#acquireReadOnlyDB()} waited for the
+ * database.
+ */
+public final class DBLockMetrics {
+    public static final long SLOW_WAIT_MILLIS = 100;
+
+    private final Stats writer = new Stats("writer");
+    private final Stats reader = new Stats("reader");
+
+    public static final class Stats {
+        private final String name;
+        private final AtomicLong acquired = new AtomicLong();
+        private final AtomicLong slowWaits = new AtomicLong();
+        private final AtomicLong timeouts = new AtomicLong();
+        private final AtomicLong totalWaitNanos = new AtomicLong();
+        private final AtomicLong maxWaitNanos = new AtomicLong();
+
+        private Stats(final String name) {
+            this.name = name;
+        }
+
+        public void recordAcquired(final long waitNanos) {
+            acquired.incrementAndGet();
+            if (waitNanos == 0) {
+                return;
+            }
+            totalWaitNanos.addAndGet(waitNanos);
+            if (waitNanos >= TimeUnit.MILLISECONDS.toNanos(SLOW_WAIT_MILLIS)) {
+                slowWaits.incrementAndGet();
+            }
+            long max = maxWaitNanos.get();
+            while (waitNanos > max && !maxWaitNanos.compareAndSet(max, waitNanos)) {
+                max = maxWaitNanos.get();
+            }
+        }
+
+        public void recordTimeout() {
+            timeouts.incrementAndGet();
+        }
+
+        public long getAcquired() {
+            return acquired.get();
+        }
+
+        /**
+         * @return how often a caller waited for at least {@link #SLOW_WAIT_MILLIS}
+         */
+        public long getSlowWaits() {
+            return slowWaits.get();
+        }
+
+        public long getTimeouts() {
+            return timeouts.get();
+        }
+
+        public long getTotalWaitNanos() {
+            return totalWaitNanos.get();
+        }
+
+        public long getMaxWaitNanos() {
+            return maxWaitNanos.get();
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%s: %d acquired, %d slow, %d timeouts, wait total %dms max %dms",
+                    name, getAcquired(), getSlowWaits(), getTimeouts(),
+                    TimeUnit.NANOSECONDS.toMillis(getTotalWaitNanos()),
+                    TimeUnit.NANOSECONDS.toMillis(getMaxWaitNanos()));
+        }
+    }
+
+    public Stats getWriter() {
+        return writer;
+    }
+
+    public Stats getReader() {
+        return reader;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return writer + "; " + reader;
+    }
+}
@@ -38,11 +38,9 @@ class DatabaseExportWorker(
         }
 
         try {
-            GBApplication.acquireDB().use { dbHandler ->
-                val helper = DBHelper(mContext)
-                mContext.contentResolver.openOutputStream(dst.toUri()).use { out ->
-                    helper.exportDB(dbHandler, out)
-                }
+            val helper = DBHelper(mContext)
+            mContext.contentResolver.openOutputStream(dst.toUri()).use { out ->
+                helper.exportDB(out)
             }
 
             GBApplication.getPrefs().preferences.edit {
@@ -0,0 +1,99 @@
+package nodomain.freeyourgadget.gadgetbridge.database;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches the ids of the Device entities by {@link nodomain.freeyourgadget.gadgetbridge.impl.GBDevice}
+ * address, and the id of the User entity, so that sample queries and writes do not look them up
+ * every time.
+ * <p>
+ * The ids only change when a device is deleted, its address is changed or the database is
+ * replaced, which must {@link #invalidateDevice(String) invalidate} the affected entries. Lookups
+ * that started before an invalidation are not cached, since they may have seen the old state.
+ */
+public final class EntityIdCache {
+    private final Map<String, Long> deviceIds = new ConcurrentHashMap<>();
+    private volatile Long userId;
+    // incremented on every invalidation, guarded by this
+    private volatile long generation;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @return the current generation, to be passed to the put methods after a lookup
+     */
+    public long getGeneration() {
+        return generation;
+    }
+
+    @Nullable
+    public Long getDeviceId(@NonNull final String address) {
+        return count(deviceIds.get(address));
+    }
+
+    @Nullable
+    public Long getUserId() {
+        return count(userId);
+    }
+
+    private Long count(final Long id) {
+        (id != null ? hits : misses).incrementAndGet();
+        return id;
+    }
+
+    /**
+     * Caches the id of a device, unless the cache was invalidated since the given generation.
+     */
+    public synchronized void putDeviceId(@NonNull final String address, final long id, final long lookupGeneration) {
+        if (lookupGeneration == generation) {
+            deviceIds.put(address, id);
+        }
+    }
+
+    /**
+     * Caches the id of the user, unless the cache was invalidated since the given generation.
+     */
+    public synchronized void putUserId(final long id, final long lookupGeneration) {
+        if (lookupGeneration == generation) {
+            userId = id;
+        }
+    }
+
+    /**
+     * Must be called after the device with the given address was deleted or got a new address.
+     */
+    public synchronized void invalidateDevice(@NonNull final String address) {
+        generation++;
+        deviceIds.remove(address);
+    }
+
+    /**
+     * Must be called after the database was replaced or reopened.
+     */
+    public synchronized void invalidateAll() {
+        generation++;
+        deviceIds.clear();
+        userId = null;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "%d devices, %d hits, %d misses", deviceIds.size(), getHits(), getMisses());
+    }
+}
@@ -0,0 +1,433 @@
+package nodomain.freeyourgadget.gadgetbridge.database;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import de.greenrobot.dao.AbstractDao;
+import nodomain.freeyourgadget.gadgetbridge.GBApplication;
+import nodomain.freeyourgadget.gadgetbridge.entities.AbstractActivitySample;
+import nodomain.freeyourgadget.gadgetbridge.entities.AbstractTimeSample;
+import nodomain.freeyourgadget.gadgetbridge.entities.DaoSession;
+import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
+import nodomain.freeyourgadget.gadgetbridge.model.DailyRollups;
+
+/**
+ * Persists samples that arrive one at a time, such as realtime heart rate, without blocking the
+ * caller on the database.
+ * <p>
+ * Submitted samples are kept per entity class, and therefore per DAO, and written by a single
+ * thread in one transaction, {@link #FLUSH_INTERVAL_MS} after the first pending sample or as soon
+ * as {@link #MAX_PENDING} samples are pending. The device and user ids are taken from the
+ * {@link DBHelper#getIdCache() id cache} and assigned when the samples are written, so samples are
+ * submitted without them. The samples of a failed flush are retried once, together with the next
+ * flush, before they are dropped.
+ * <p>
+ * Producers that collect their samples in bulk, such as the sensor streams of an E4, register as a
+ * {@link Source} instead. While any source is registered, a flush runs every
+ * {@link #FLUSH_INTERVAL_MS} and takes the samples of all sources into the same transaction, so
+ * that there is a single write-behind thread contending for the DB lock.
+ * <p>
+ * A submitted sample belongs to the service and must not be changed afterwards.
+ */
+public class SampleIngestionService {
+    private static final Logger LOG = LoggerFactory.getLogger(SampleIngestionService.class);
+
+    private static final long FLUSH_INTERVAL_MS = 10_000L;
+    private static final int MAX_PENDING = 500;
+    private static final long FLUSH_TIMEOUT_MS = 30_000L;
+
+    private static SampleIngestionService instance;
+
+    /**
+     * Where the samples end up. Abstracted so that the service can be tested without a database.
+     */
+    public interface Store<H extends AutoCloseable> {
+        /**
+         * Blocks until exclusive access to the database is acquired.
+         */
+        H acquire() throws Exception;
+
+        /**
+         * Persists the samples of all entity classes in a single transaction.
+         */
+        void persist(H handle, Map<Class<?>, List<Pending>> samples) throws Exception;
+    }
+
+    /**
+     * Collects samples on its own, and hands them over whenever the service flushes.
+     */
+    public interface Source {
+        /**
+         * Adds the samples collected since the last call to the batch. Called from the ingestion
+         * thread.
+         */
+        void takeSamples(Batch batch);
+    }
+
+    /**
+     * The samples of one flush, by entity class.
+     */
+    public static final class Batch {
+        private final Map<Class<?>, List<Pending>> samples = new LinkedHashMap<>();
+        private int count;
+
+        public void add(@NonNull final GBDevice device, @NonNull final AbstractActivitySample sample) {
+            put(device, sample);
+        }
+
+        public void add(@NonNull final GBDevice device, @NonNull final AbstractTimeSample sample) {
+            put(device, sample);
+        }
+
+        public void addAll(@NonNull final GBDevice device, @NonNull final List<? extends AbstractTimeSample> samples) {
+            for (final AbstractTimeSample sample : samples) {
+                put(device, sample);
+            }
+        }
+
+        private void put(final GBDevice device, final Object sample) {
+            List<Pending> list = samples.get(sample.getClass());
+            if (list == null) {
+                list = new ArrayList<>();
+                samples.put(sample.getClass(), list);
+            }
+            list.add(new Pending(device, sample));
+            count++;
+        }
+
+        /**
+         * Appends the samples of the other batch, after the ones of this batch.
+         */
+        private void append(final Batch other) {
+            for (final Map.Entry<Class<?>, List<Pending>> entry : other.samples.entrySet()) {
+                List<Pending> list = samples.get(entry.getKey());
+                if (list == null) {
+                    list = new ArrayList<>(entry.getValue().size());
+                    samples.put(entry.getKey(), list);
+                }
+                list.addAll(entry.getValue());
+            }
+            count += other.count;
+        }
+
+        public int getCount() {
+            return count;
+        }
+    }
+
+    /**
+     * A sample that was submitted, but not yet persisted.
+     */
+    public static final class Pending {
+        private final GBDevice device;
+        private final Object sample;
+
+        private Pending(final GBDevice device, final Object sample) {
+            this.device = device;
+            this.sample = sample;
+        }
+
+        public GBDevice getDevice() {
+            return device;
+        }
+
+        public Object getSample() {
+            return sample;
+        }
+    }
+
+    private final Store<?> store;
+    private final long flushIntervalMs;
+    private final int maxPending;
+    private final ScheduledExecutorService executor;
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+    private final List<Source> sources = new CopyOnWriteArrayList<>();
+
+    // guarded by this
+    private Batch pending = new Batch();
+    private ScheduledFuture<?> periodicFlush;
+
+    // the samples of the last failed flush, retried once with the next one; only used from the ingestion thread
+    private Batch retry;
+
+    // only written from the ingestion thread
+    private volatile long flushes;
+    private volatile long failedFlushes;
+    private volatile long committedSamples;
+    private volatile long droppedSamples;
+    private volatile long lockWaitNanos;
+    private volatile long maxLockWaitNanos;
+    private volatile long commitNanos;
+
+    public static synchronized SampleIngestionService getInstance() {
+        if (instance == null) {
+            instance = new SampleIngestionService(new DatabaseStore(), FLUSH_INTERVAL_MS, MAX_PENDING);
+        }
+        return instance;
+    }
+
+    public SampleIngestionService(final Store<?> store, final long flushIntervalMs, final int maxPending) {
+        this.store = store;
+        this.flushIntervalMs = flushIntervalMs;
+        this.maxPending = maxPending;
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "Sample ingestion");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Queues an activity sample of the given device. Never blocks on the database.
+     */
+    public void submit(@NonNull final GBDevice device, @NonNull final AbstractActivitySample sample) {
+        enqueue(device, sample);
+    }
+
+    /**
+     * Queues a time sample of the given device. Never blocks on the database.
+     */
+    public void submit(@NonNull final GBDevice device, @NonNull final AbstractTimeSample sample) {
+        enqueue(device, sample);
+    }
+
+    private void enqueue(final GBDevice device, final Object sample) {
+        final int count;
+        synchronized (this) {
+            pending.put(device, sample);
+            count = pending.getCount();
+        }
+        if (count == 1) {
+            executor.schedule(() -> flush(null), flushIntervalMs, TimeUnit.MILLISECONDS);
+        } else if (count >= maxPending) {
+            requestFlush();
+        }
+    }
+
+    /**
+     * Starts taking the samples of the source on every flush.
+     */
+    public synchronized void register(@NonNull final Source source) {
+        sources.add(source);
+        if (periodicFlush == null) {
+            periodicFlush = executor.scheduleWithFixedDelay(() -> flush(null), flushIntervalMs, flushIntervalMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Persists the remaining samples of the source, together with all other pending samples, and
+     * stops taking its samples. Blocks until done.
+     */
+    public void unregister(@NonNull final Source source) {
+        synchronized (this) {
+            sources.remove(source);
+            if (sources.isEmpty() && periodicFlush != null) {
+                periodicFlush.cancel(false);
+                periodicFlush = null;
+            }
+        }
+        await(executor.submit(() -> flush(source)));
+    }
+
+    /**
+     * Requests the pending samples to be written now, for example when a device disconnects.
+     * Coalesced with flushes that are already requested.
+     */
+    public void requestFlush() {
+        if (flushRequested.compareAndSet(false, true)) {
+            executor.execute(() -> flush(null));
+        }
+    }
+
+    /**
+     * Writes the pending samples and blocks until done.
+     */
+    public void flushAndWait() {
+        await(executor.submit(() -> flush(null)));
+    }
+
+    private static void await(final Future<?> flush) {
+        try {
+            flush.get(FLUSH_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (final TimeoutException e) {
+            LOG.warn("Timed out waiting for pending samples to be written");
+        } catch (final ExecutionException e) {
+            LOG.error("Failed to write pending samples", e);
+        } catch (final InterruptedException e) {
+            LOG.warn("Interrupted while waiting for pending samples to be written");
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void flush(@Nullable final Source closing) {
+        flushRequested.set(false);
+
+        final Batch batch;
+        synchronized (this) {
+            batch = pending;
+            pending = new Batch();
+        }
+        for (final Source source : sources) {
+            source.takeSamples(batch);
+        }
+        if (closing != null && !sources.contains(closing)) {
+            closing.takeSamples(batch);
+        }
+        final Batch retried = retry;
+        retry = null;
+        if (batch.getCount() == 0 && retried == null) {
+            return;
+        }
+        // the retried samples go first, so that newer versions of the same rows replace them
+        final Batch flushed = retried != null ? retried : batch;
+        final int retriedCount = retried != null ? retried.getCount() : 0;
+        if (retried != null) {
+            retried.append(batch);
+        }
+        final int count = flushed.getCount();
+
+        try {
+            commit(store, flushed.samples);
+            committedSamples += count;
+        } catch (final Exception e) {
+            // keep at most the samples of one flush, so that a broken database does not pile them up
+            failedFlushes++;
+            droppedSamples += retriedCount;
+            if (batch.getCount() > 0) {
+                retry = batch;
+                executor.schedule(() -> flush(null), flushIntervalMs, TimeUnit.MILLISECONDS);
+            }
+            LOG.error("Error persisting {} samples of {} types, dropped {}, retrying {} with the next flush",
+                    count, flushed.samples.size(), retriedCount, batch.getCount(), e);
+        }
+        flushes++;
+    }
+
+    private <H extends AutoCloseable> void commit(final Store<H> store, final Map<Class<?>, List<Pending>> samples) throws Exception {
+        final long waitStart = System.nanoTime();
+        try (H handle = store.acquire()) {
+            final long acquired = System.nanoTime();
+            final long waited = acquired - waitStart;
+            lockWaitNanos += waited;
+            maxLockWaitNanos = Math.max(maxLockWaitNanos, waited);
+
+            store.persist(handle, samples);
+
+            final long committed = System.nanoTime() - acquired;
+            commitNanos += committed;
+            LOG.debug("Persisted samples of {} types, waited {}ms for the DB lock, committed in {}ms",
+                    samples.size(), TimeUnit.NANOSECONDS.toMillis(waited), TimeUnit.NANOSECONDS.toMillis(committed));
+        }
+    }
+
+    /**
+     * @return the number of submitted samples that are pending, without the ones of sources
+     */
+    public synchronized int getPendingCount() {
+        return pending.getCount();
+    }
+
+    public long getFlushes() {
+        return flushes;
+    }
+
+    public long getFailedFlushes() {
+        return failedFlushes;
+    }
+
+    public long getCommittedSamples() {
+        return committedSamples;
+    }
+
+    /**
+     * Samples that were lost because their flush failed, and the retry with the next flush as well.
+     */
+    public long getDroppedSamples() {
+        return droppedSamples;
+    }
+
+    /**
+     * Total time spent waiting for exclusive database access.
+     */
+    public long getLockWaitNanos() {
+        return lockWaitNanos;
+    }
+
+    public long getMaxLockWaitNanos() {
+        return maxLockWaitNanos;
+    }
+
+    /**
+     * Total time spent persisting, while holding exclusive database access.
+     */
+    public long getCommitNanos() {
+        return commitNanos;
+    }
+
+    private static class DatabaseStore implements Store<DBHandler> {
+        @Override
+        public DBHandler acquire() throws Exception {
+            return GBApplication.acquireDB();
+        }
+
+        @Override
+        public void persist(final DBHandler db, final Map<Class<?>, List<Pending>> samples) {
+            final DaoSession session = db.getDaoSession();
+            final long userId = DBHelper.getUserId(session);
+            final Map<Class<?>, List<Object>> entities = new LinkedHashMap<>(samples.size());
+            for (final Map.Entry<Class<?>, List<Pending>> entry : samples.entrySet()) {
+                final List<Object> list = new ArrayList<>(entry.getValue().size());
+                for (final Pending pending : entry.getValue()) {
+                    assignIds(pending.getSample(), DBHelper.getDeviceId(pending.getDevice(), session), userId);
+                    list.add(pending.getSample());
+                }
+                entities.put(entry.getKey(), list);
+            }
+
+            session.runInTx(() -> {
+                for (final Map.Entry<Class<?>, List<Object>> entry : entities.entrySet()) {
+                    @SuppressWarnings("unchecked")
+                    final AbstractDao<Object, ?> dao = (AbstractDao<Object, ?>) session.getDao(entry.getKey());
+                    dao.insertOrReplaceInTx(entry.getValue());
+                    invalidateRollups(session, entry.getKey(), entry.getValue());
+                }
+            });
+        }
+
+        @SuppressWarnings("unchecked")
+        private static void invalidateRollups(final DaoSession session, final Class<?> entityClass, final List<?> samples) {
+            if (AbstractActivitySample.class.isAssignableFrom(entityClass)) {
+                DailyRollups.invalidateActivitySamples(session, (List<AbstractActivitySample>) samples);
+            } else {
+                DailyRollups.invalidateTimeSamples(session, (List<AbstractTimeSample>) samples);
+            }
+        }
+
+        private static void assignIds(final Object sample, final long deviceId, final long userId) {
+            if (sample instanceof AbstractActivitySample) {
+                ((AbstractActivitySample) sample).setDeviceId(deviceId);
+                ((AbstractActivitySample) sample).setUserId(userId);
+            } else {
+                ((AbstractTimeSample) sample).setDeviceId(deviceId);
+                ((AbstractTimeSample) sample).setUserId(userId);
+            }
+        }
+    }
+}
@@ -82,6 +82,7 @@ import nodomain.freeyourgadget.gadgetbridge.model.ActivitySummaryParser;
 import nodomain.freeyourgadget.gadgetbridge.model.Alarm;
 import nodomain.freeyourgadget.gadgetbridge.model.BatteryConfig;
 import nodomain.freeyourgadget.gadgetbridge.model.BodyEnergySample;
+import nodomain.freeyourgadget.gadgetbridge.model.DailyRollups;
 import nodomain.freeyourgadget.gadgetbridge.model.DeviceType;
 import nodomain.freeyourgadget.gadgetbridge.model.HeartRateSample;
 import nodomain.freeyourgadget.gadgetbridge.model.HrvSummarySample;
@@ -224,7 +225,9 @@ public abstract class AbstractDeviceCoordinator implements DeviceCoordinator {
                 batteryLevelQueryBuilder.where(BatteryLevelDao.Properties.DeviceId.eq(device.getId())).buildDelete().executeDeleteWithoutDetachingEntities();
                 QueryBuilder<?> alarmDeviceQueryBuilder = session.getAlarmDao().queryBuilder();
                 alarmDeviceQueryBuilder.where(AlarmDao.Properties.DeviceId.eq(device.getId())).buildDelete().executeDeleteWithoutDetachingEntities();
+                DailyRollups.deleteDevice(session, device);
                 session.getDeviceDao().delete(device);
+                DBHelper.getIdCache().invalidateDevice(gbDevice.getAddress());
             } else {
                 LOG.info("device to delete not found in db: {}", gbDevice);
             }
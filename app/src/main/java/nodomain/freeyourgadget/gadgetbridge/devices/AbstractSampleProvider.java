@@ -23,15 +23,15 @@ import androidx.annotation.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.time.Instant;
 import java.time.LocalDate;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Collections;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.ListIterator;
+import java.util.RandomAccess;
 import java.util.Set;
+import java.util.function.IntFunction;
 
 import de.greenrobot.dao.AbstractDao;
 import de.greenrobot.dao.Property;
@@ -40,10 +40,10 @@ import de.greenrobot.dao.query.WhereCondition;
 import nodomain.freeyourgadget.gadgetbridge.database.DBHelper;
 import nodomain.freeyourgadget.gadgetbridge.entities.AbstractActivitySample;
 import nodomain.freeyourgadget.gadgetbridge.entities.DaoSession;
-import nodomain.freeyourgadget.gadgetbridge.entities.Device;
 import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
 import nodomain.freeyourgadget.gadgetbridge.model.ActivityKind;
 import nodomain.freeyourgadget.gadgetbridge.model.ActivitySample;
+import nodomain.freeyourgadget.gadgetbridge.model.DailyRollups;
 
 /**
  * Base class for all sample providers. A Sample provider is device specific and provides
@@ -101,24 +101,26 @@ public abstract class AbstractSampleProvider<T extends AbstractActivitySample> i
     @Override
     public void addGBActivitySample(T activitySample) {
         getSampleDao().insertOrReplace(activitySample);
+        DailyRollups.invalidateActivitySamples(getSession(), Collections.singletonList(activitySample));
     }
 
     @Override
     public void addGBActivitySamples(T[] activitySamples) {
         getSampleDao().insertOrReplaceInTx(activitySamples);
+        DailyRollups.invalidateActivitySamples(getSession(), Arrays.asList(activitySamples));
     }
 
     @Nullable
     @Override
     public T getLatestActivitySample() {
         QueryBuilder<T> qb = getSampleDao().queryBuilder();
-        Device dbDevice = DBHelper.findDevice(getDevice(), getSession());
-        if (dbDevice == null) {
+        Long deviceId = DBHelper.findDeviceId(getDevice(), getSession());
+        if (deviceId == null) {
             // no device, no sample
             return null;
         }
         Property deviceProperty = getDeviceIdentifierSampleProperty();
-        qb.where(deviceProperty.eq(dbDevice.getId())).orderDesc(getTimestampSampleProperty()).limit(1);
+        qb.where(deviceProperty.eq(deviceId)).orderDesc(getTimestampSampleProperty()).limit(1);
         List<T> samples = qb.build().list();
         if (samples.isEmpty()) {
             return null;
@@ -132,15 +134,15 @@ public abstract class AbstractSampleProvider<T extends AbstractActivitySample> i
     @Override
     public T getLatestActivitySample(final int until) {
         QueryBuilder<T> qb = getSampleDao().queryBuilder();
-        Device dbDevice = DBHelper.findDevice(getDevice(), getSession());
-        if (dbDevice == null) {
+        Long deviceId = DBHelper.findDeviceId(getDevice(), getSession());
+        if (deviceId == null) {
             // no device, no sample
             return null;
         }
         Property deviceProperty = getDeviceIdentifierSampleProperty();
         Property timestampProperty = getTimestampSampleProperty();
         qb.where(timestampProperty.le(until))
-                .where(deviceProperty.eq(dbDevice.getId()))
+                .where(deviceProperty.eq(deviceId))
                 .orderDesc(timestampProperty).limit(1);
         List<T> samples = qb.build().list();
         if (samples.isEmpty()) {
@@ -155,13 +157,13 @@ public abstract class AbstractSampleProvider<T extends AbstractActivitySample> i
     @Override
     public T getFirstActivitySample() {
         QueryBuilder<T> qb = getSampleDao().queryBuilder();
-        Device dbDevice = DBHelper.findDevice(getDevice(), getSession());
-        if (dbDevice == null) {
+        Long deviceId = DBHelper.findDeviceId(getDevice(), getSession());
+        if (deviceId == null) {
             // no device, no sample
             return null;
         }
         Property deviceProperty = getDeviceIdentifierSampleProperty();
-        qb.where(deviceProperty.eq(dbDevice.getId())).orderAsc(getTimestampSampleProperty()).limit(1);
+        qb.where(deviceProperty.eq(deviceId)).orderAsc(getTimestampSampleProperty()).limit(1);
         List<T> samples = qb.build().list();
         if (samples.isEmpty()) {
             return null;
@@ -180,13 +182,13 @@ public abstract class AbstractSampleProvider<T extends AbstractActivitySample> i
     protected List<T> getGBActivitySamples(int timestamp_from, int timestamp_to) {
         QueryBuilder<T> qb = getSampleDao().queryBuilder();
         Property timestampProperty = getTimestampSampleProperty();
-        Device dbDevice = DBHelper.findDevice(getDevice(), getSession());
-        if (dbDevice == null) {
+        Long deviceId = DBHelper.findDeviceId(getDevice(), getSession());
+        if (deviceId == null) {
             // no device, no samples
             return Collections.emptyList();
         }
         Property deviceProperty = getDeviceIdentifierSampleProperty();
-        qb.where(deviceProperty.eq(dbDevice.getId()), timestampProperty.ge(timestamp_from))
+        qb.where(deviceProperty.eq(deviceId), timestampProperty.ge(timestamp_from))
             .where(timestampProperty.le(timestamp_to));
         List<T> samples = qb.build().list();
         for (T sample : samples) {
@@ -301,15 +303,15 @@ public abstract class AbstractSampleProvider<T extends AbstractActivitySample> i
 
     @Nullable
     public T getLastSampleWithStepsBefore(final int timestampTo, final Property stepsSampleProperty) {
-        final Device dbDevice = DBHelper.findDevice(getDevice(), getSession());
-        if (dbDevice == null) {
+        final Long deviceId = DBHelper.findDeviceId(getDevice(), getSession());
+        if (deviceId == null) {
             // no device, no sample
             return null;
         }
 
         final List<T> samples = getSampleDao().queryBuilder()
                 .where(
-                        getDeviceIdentifierSampleProperty().eq(dbDevice.getId()),
+                        getDeviceIdentifierSampleProperty().eq(deviceId),
                         getTimestampSampleProperty().le(timestampTo),
                         stepsSampleProperty.gt(-1)
                 ).orderDesc(getTimestampSampleProperty())
@@ -331,55 +333,65 @@ public abstract class AbstractSampleProvider<T extends AbstractActivitySample> i
         return d1.equals(d2);
     }
 
+    /**
+     * Fills the gaps between the provided samples, which must be sorted by timestamp, with a dummy
+     * sample for each missing minute.
+     */
     protected List<T> fillGaps(final List<T> samples, final int timestamp_from, final int timestamp_to) {
         if (samples.isEmpty()) {
             return samples;
         }
 
-        final long nanoStart = System.nanoTime();
+        // Do not generate fake samples into the future
+        final int minTo = (int) Math.min(timestamp_to, System.currentTimeMillis() / 1000L);
 
-        final List<T> ret = new LinkedList<>(samples);
+        final List<T> ret = fillGaps(samples, timestamp_from, minTo, this::createDummySample);
 
-        //ret.sort(Comparator.comparingLong(T::getTimestamp));
+        LOG.trace("Filled gaps with {} samples", ret.size() - samples.size());
 
-        final int firstTimestamp = ret.get(0).getTimestamp();
-        if (firstTimestamp - timestamp_from > 60) {
-            // Gap at the start
-            for (int ts = timestamp_from; ts <= firstTimestamp + 60; ts += 60) {
-                ret.add(0, createDummySample(ts));
-            }
-        }
+        return ret;
+    }
 
-        final int lastTimestamp = ret.get(ret.size() - 1).getTimestamp();
-        // Do not generate fake samples into the future
-        final long minTo = Math.min(timestamp_to, System.currentTimeMillis() / 1000L);
-        if (minTo - lastTimestamp > 60) {
-            // Gap at the end
-            for (int ts = lastTimestamp + 60; ts <= minTo; ts += 60) {
-                ret.add(createDummySample(ts));
+    /**
+     * Copies the samples, which must be sorted by timestamp and not be empty, into a new list,
+     * with a dummy sample for each missing minute in between them, and before and after them up to
+     * the given range. All samples end up in timestamp order.
+     */
+    static <T extends AbstractActivitySample> List<T> fillGaps(final List<T> samples,
+                                                                final int timestampFrom,
+                                                                final int timestampTo,
+                                                                final IntFunction<T> dummyFactory) {
+        final List<T> input = samples instanceof RandomAccess ? samples : new ArrayList<>(samples);
+        final int firstTimestamp = input.get(0).getTimestamp();
+        final int lastTimestamp = input.get(input.size() - 1).getTimestamp();
+
+        // Count first, so that the list never grows
+        final int leadingGap = firstTimestamp - timestampFrom > 60 ? (firstTimestamp - timestampFrom + 59) / 60 : 0;
+        final int trailingGap = timestampTo - lastTimestamp > 60 ? (timestampTo - lastTimestamp) / 60 : 0;
+        int size = input.size() + leadingGap + trailingGap;
+        for (int i = 1; i < input.size(); i++) {
+            final int gap = input.get(i).getTimestamp() - input.get(i - 1).getTimestamp();
+            if (gap > 60) {
+                size += (gap - 1) / 60;
             }
         }
 
-        final ListIterator<T> it = ret.listIterator();
-        T previousSample = it.next();
-
-        while (it.hasNext()) {
-            final T sample = it.next();
-            if (sample.getTimestamp() - previousSample.getTimestamp() > 60) {
-                LOG.trace("Filling gap between {} and {}", Instant.ofEpochSecond(previousSample.getTimestamp() + 60), Instant.ofEpochSecond(sample.getTimestamp()));
-                for (int ts = previousSample.getTimestamp() + 60; ts < sample.getTimestamp(); ts += 60) {
-                    it.add(createDummySample(ts));
-                }
+        final List<T> ret = new ArrayList<>(size);
+        for (int i = 0; i < leadingGap; i++) {
+            ret.add(dummyFactory.apply(timestampFrom + i * 60));
+        }
+        int previousTimestamp = firstTimestamp;
+        for (final T sample : input) {
+            final int timestamp = sample.getTimestamp();
+            for (int ts = previousTimestamp + 60; ts < timestamp; ts += 60) {
+                ret.add(dummyFactory.apply(ts));
             }
-            previousSample = sample;
+            ret.add(sample);
+            previousTimestamp = timestamp;
+        }
+        for (int i = 1; i <= trailingGap; i++) {
+            ret.add(dummyFactory.apply(lastTimestamp + i * 60));
         }
-
-        final long nanoEnd = System.nanoTime();
-
-        final long executionTime = (nanoEnd - nanoStart) / 1000000;
-
-        final int dummyCount = ret.size() - samples.size();
-        LOG.trace("Filled gaps with {} samples in {}ms", dummyCount, executionTime);
 
         return ret;
     }
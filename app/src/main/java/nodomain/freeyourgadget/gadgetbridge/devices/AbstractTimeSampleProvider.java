@@ -34,9 +34,8 @@ import de.greenrobot.dao.query.QueryBuilder;
 import nodomain.freeyourgadget.gadgetbridge.database.DBHelper;
 import nodomain.freeyourgadget.gadgetbridge.entities.AbstractTimeSample;
 import nodomain.freeyourgadget.gadgetbridge.entities.DaoSession;
-import nodomain.freeyourgadget.gadgetbridge.entities.Device;
-import nodomain.freeyourgadget.gadgetbridge.entities.User;
 import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
+import nodomain.freeyourgadget.gadgetbridge.model.DailyRollups;
 import nodomain.freeyourgadget.gadgetbridge.util.GB;
 
 /**
@@ -69,13 +68,13 @@ public abstract class AbstractTimeSampleProvider<T extends AbstractTimeSample> i
     public List<T> getAllSamples(final long timestampFrom, final long timestampTo) {
         final QueryBuilder<T> qb = getSampleDao().queryBuilder();
         final Property timestampProperty = getTimestampSampleProperty();
-        final Device dbDevice = DBHelper.findDevice(getDevice(), getSession());
-        if (dbDevice == null) {
+        final Long deviceId = DBHelper.findDeviceId(getDevice(), getSession());
+        if (deviceId == null) {
             // no device, no samples
             return Collections.emptyList();
         }
         final Property deviceProperty = getDeviceIdentifierSampleProperty();
-        qb.where(deviceProperty.eq(dbDevice.getId()), timestampProperty.ge(timestampFrom))
+        qb.where(deviceProperty.eq(deviceId), timestampProperty.ge(timestampFrom))
                 .where(timestampProperty.le(timestampTo));
         final List<T> samples = qb.build().list();
         detachFromSession();
@@ -85,24 +84,26 @@ public abstract class AbstractTimeSampleProvider<T extends AbstractTimeSample> i
     @Override
     public void addSample(final T activitySample) {
         getSampleDao().insertOrReplace(activitySample);
+        DailyRollups.invalidateTimeSamples(getSession(), Collections.singletonList(activitySample));
     }
 
     @Override
     public void addSamples(final List<T> activitySamples) {
         getSampleDao().insertOrReplaceInTx(activitySamples);
+        DailyRollups.invalidateTimeSamples(getSession(), activitySamples);
     }
 
     @Nullable
     @Override
     public T getLatestSample() {
         final QueryBuilder<T> qb = getSampleDao().queryBuilder();
-        final Device dbDevice = DBHelper.findDevice(getDevice(), getSession());
-        if (dbDevice == null) {
+        final Long deviceId = DBHelper.findDeviceId(getDevice(), getSession());
+        if (deviceId == null) {
             // no device, no sample
             return null;
         }
         final Property deviceProperty = getDeviceIdentifierSampleProperty();
-        qb.where(deviceProperty.eq(dbDevice.getId())).orderDesc(getTimestampSampleProperty()).limit(1);
+        qb.where(deviceProperty.eq(deviceId)).orderDesc(getTimestampSampleProperty()).limit(1);
         final List<T> samples = qb.build().list();
         if (samples.isEmpty()) {
             return null;
@@ -114,14 +115,14 @@ public abstract class AbstractTimeSampleProvider<T extends AbstractTimeSample> i
     @Override
     public T getLatestSample(final long until) {
         final QueryBuilder<T> qb = getSampleDao().queryBuilder();
-        final Device dbDevice = DBHelper.findDevice(getDevice(), getSession());
-        if (dbDevice == null) {
+        final Long deviceId = DBHelper.findDeviceId(getDevice(), getSession());
+        if (deviceId == null) {
             // no device, no sample
             return null;
         }
         final Property deviceProperty = getDeviceIdentifierSampleProperty();
         qb.where(getTimestampSampleProperty().le(until))
-                .where(deviceProperty.eq(dbDevice.getId()))
+                .where(deviceProperty.eq(deviceId))
                 .orderDesc(getTimestampSampleProperty()).limit(1);
         final List<T> samples = qb.build().list();
         if (samples.isEmpty()) {
@@ -132,8 +133,8 @@ public abstract class AbstractTimeSampleProvider<T extends AbstractTimeSample> i
 
     @Nullable
     public T getLastSampleBefore(final long timestampTo) {
-        final Device dbDevice = DBHelper.findDevice(getDevice(), getSession());
-        if (dbDevice == null) {
+        final Long deviceId = DBHelper.findDeviceId(getDevice(), getSession());
+        if (deviceId == null) {
             // no device, no sample
             return null;
         }
@@ -141,7 +142,7 @@ public abstract class AbstractTimeSampleProvider<T extends AbstractTimeSample> i
         final Property deviceIdSampleProp = getDeviceIdentifierSampleProperty();
         final Property timestampSampleProp = getTimestampSampleProperty();
         final List<T> samples = getSampleDao().queryBuilder()
-                .where(deviceIdSampleProp.eq(dbDevice.getId()),
+                .where(deviceIdSampleProp.eq(deviceId),
                         timestampSampleProp.le(timestampTo))
                 .orderDesc(getTimestampSampleProperty())
                 .limit(1)
@@ -152,8 +153,8 @@ public abstract class AbstractTimeSampleProvider<T extends AbstractTimeSample> i
 
     @Nullable
     public T getNextSampleAfter(final long timestampFrom) {
-        final Device dbDevice = DBHelper.findDevice(getDevice(), getSession());
-        if (dbDevice == null) {
+        final Long deviceId = DBHelper.findDeviceId(getDevice(), getSession());
+        if (deviceId == null) {
             // no device, no sample
             return null;
         }
@@ -161,7 +162,7 @@ public abstract class AbstractTimeSampleProvider<T extends AbstractTimeSample> i
         final Property deviceIdSampleProp = getDeviceIdentifierSampleProperty();
         final Property timestampSampleProp = getTimestampSampleProperty();
         final List<T> samples = getSampleDao().queryBuilder()
-                .where(deviceIdSampleProp.eq(dbDevice.getId()),
+                .where(deviceIdSampleProp.eq(deviceId),
                         timestampSampleProp.ge(timestampFrom))
                 .orderAsc(getTimestampSampleProperty())
                 .limit(1)
@@ -174,13 +175,13 @@ public abstract class AbstractTimeSampleProvider<T extends AbstractTimeSample> i
     @Override
     public T getFirstSample() {
         final QueryBuilder<T> qb = getSampleDao().queryBuilder();
-        final Device dbDevice = DBHelper.findDevice(getDevice(), getSession());
-        if (dbDevice == null) {
+        final Long deviceId = DBHelper.findDeviceId(getDevice(), getSession());
+        if (deviceId == null) {
             // no device, no sample
             return null;
         }
         final Property deviceProperty = getDeviceIdentifierSampleProperty();
-        qb.where(deviceProperty.eq(dbDevice.getId())).orderAsc(getTimestampSampleProperty()).limit(1);
+        qb.where(deviceProperty.eq(deviceId)).orderAsc(getTimestampSampleProperty()).limit(1);
         final List<T> samples = qb.build().list();
         if (samples.isEmpty()) {
             return null;
@@ -221,12 +222,12 @@ public abstract class AbstractTimeSampleProvider<T extends AbstractTimeSample> i
         try {
             final DaoSession session = getSession();
 
-            final Device device = DBHelper.getDevice(gbDevice, session);
-            final User user = DBHelper.getUser(session);
+            final long deviceId = DBHelper.getDeviceId(gbDevice, session);
+            final long userId = DBHelper.getUserId(session);
 
             for (final T sample : samples) {
-                sample.setDevice(device);
-                sample.setUser(user);
+                sample.setDeviceId(deviceId);
+                sample.setUserId(userId);
             }
 
             this.addSamples(samples);
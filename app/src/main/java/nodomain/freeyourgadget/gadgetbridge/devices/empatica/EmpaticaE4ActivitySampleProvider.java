@@ -0,0 +1,89 @@
+package nodomain.freeyourgadget.gadgetbridge.devices.empatica;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import de.greenrobot.dao.AbstractDao;
+import de.greenrobot.dao.Property;
+import nodomain.freeyourgadget.gadgetbridge.devices.AbstractSampleProvider;
+import nodomain.freeyourgadget.gadgetbridge.entities.DaoSession;
+import nodomain.freeyourgadget.gadgetbridge.entities.EmpaticaE4ActivitySample;
+import nodomain.freeyourgadget.gadgetbridge.entities.EmpaticaE4ActivitySampleDao;
+import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
+import nodomain.freeyourgadget.gadgetbridge.model.ActivityKind;
+
+/**
+ * Per-minute activity samples, computed on the phone from the E4 accelerometer stream.
+ */
+public class EmpaticaE4ActivitySampleProvider extends AbstractSampleProvider<EmpaticaE4ActivitySample> {
+    public static final int RAW_KIND_UNKNOWN = 0;
+    public static final int RAW_KIND_ACTIVITY = 1;
+    public static final int RAW_KIND_WALKING = 2;
+    public static final int RAW_KIND_RUNNING = 3;
+    public static final int RAW_KIND_SLEEP = 4;
+
+    /**
+     * Raw intensity, the mean dynamic acceleration in milli-g, at which the normalized intensity is 1.
+     */
+    public static final int MAX_RAW_INTENSITY = 500;
+
+    public EmpaticaE4ActivitySampleProvider(final GBDevice device, final DaoSession session) {
+        super(device, session);
+    }
+
+    @NonNull
+    @Override
+    public AbstractDao<EmpaticaE4ActivitySample, ?> getSampleDao() {
+        return getSession().getEmpaticaE4ActivitySampleDao();
+    }
+
+    @Nullable
+    @Override
+    protected Property getRawKindSampleProperty() {
+        return EmpaticaE4ActivitySampleDao.Properties.RawKind;
+    }
+
+    @NonNull
+    @Override
+    protected Property getTimestampSampleProperty() {
+        return EmpaticaE4ActivitySampleDao.Properties.Timestamp;
+    }
+
+    @NonNull
+    @Override
+    protected Property getDeviceIdentifierSampleProperty() {
+        return EmpaticaE4ActivitySampleDao.Properties.DeviceId;
+    }
+
+    @Override
+    public ActivityKind normalizeType(final int rawType) {
+        return switch (rawType) {
+            case RAW_KIND_ACTIVITY -> ActivityKind.ACTIVITY;
+            case RAW_KIND_WALKING -> ActivityKind.WALKING;
+            case RAW_KIND_RUNNING -> ActivityKind.RUNNING;
+            case RAW_KIND_SLEEP -> ActivityKind.LIGHT_SLEEP;
+            default -> ActivityKind.UNKNOWN;
+        };
+    }
+
+    @Override
+    public int toRawActivityKind(final ActivityKind activityKind) {
+        return switch (activityKind) {
+            case ACTIVITY -> RAW_KIND_ACTIVITY;
+            case WALKING -> RAW_KIND_WALKING;
+            case RUNNING -> RAW_KIND_RUNNING;
+            case LIGHT_SLEEP -> RAW_KIND_SLEEP;
+            default -> RAW_KIND_UNKNOWN;
+        };
+    }
+
+    @Override
+    public float normalizeIntensity(final int rawIntensity) {
+        return Math.min(1f, rawIntensity / (float) MAX_RAW_INTENSITY);
+    }
+
+    @Override
+    public EmpaticaE4ActivitySample createActivitySample() {
+        return new EmpaticaE4ActivitySample();
+    }
+}
@@ -17,4 +17,10 @@ public class EmpaticaE4Constants {
     public static final UUID BATTERY_CHARACTERISTIC = UUID.fromString("00003eb3-0000-1000-8000-00805f9b34fb");
     public static final UUID CONTROL_CHARACTERISTIC = UUID.fromString("00003eb2-0000-1000-8000-00805f9b34fb");
     public static final UUID CMD_CHARACTERISTIC = UUID.fromString("00003e71-0000-1000-8000-00805f9b34fb");
-}
\ No newline at end of file
+
+    // Sampling rates of the sensor streams, in Hz
+    public static final int BVP_SAMPLE_RATE = 64;
+    public static final int GSR_SAMPLE_RATE = 4;
+    public static final int ACC_SAMPLE_RATE = 32;
+    public static final int ST_SAMPLE_RATE = 4;
+}
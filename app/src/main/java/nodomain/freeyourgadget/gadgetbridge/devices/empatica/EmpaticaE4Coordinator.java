@@ -4,14 +4,33 @@ import static nodomain.freeyourgadget.gadgetbridge.GBApplication.getContext;
 
 import androidx.annotation.NonNull;
 
+import java.util.HashMap;
+import java.util.Map;
 import java.util.regex.Pattern;
 
+import de.greenrobot.dao.AbstractDao;
+import de.greenrobot.dao.Property;
+
 import nodomain.freeyourgadget.gadgetbridge.R;
 import nodomain.freeyourgadget.gadgetbridge.devices.AbstractBLEDeviceCoordinator;
+import nodomain.freeyourgadget.gadgetbridge.devices.GenericHrvValueSampleProvider;
+import nodomain.freeyourgadget.gadgetbridge.devices.GenericStressSampleProvider;
 import nodomain.freeyourgadget.gadgetbridge.devices.InstallHandler;
 import nodomain.freeyourgadget.gadgetbridge.devices.SampleProvider;
+import nodomain.freeyourgadget.gadgetbridge.devices.TimeSampleProvider;
+import nodomain.freeyourgadget.gadgetbridge.entities.DaoSession;
 import nodomain.freeyourgadget.gadgetbridge.entities.Device;
+import nodomain.freeyourgadget.gadgetbridge.entities.EmpaticaE4ActivitySampleDao;
+import nodomain.freeyourgadget.gadgetbridge.entities.EmpaticaE4EdaSampleDao;
+import nodomain.freeyourgadget.gadgetbridge.entities.EmpaticaE4IbiSampleDao;
+import nodomain.freeyourgadget.gadgetbridge.entities.EmpaticaE4TemperatureSampleDao;
+import nodomain.freeyourgadget.gadgetbridge.entities.EmpaticaE4WaveformChunkDao;
+import nodomain.freeyourgadget.gadgetbridge.entities.GenericHrvValueSampleDao;
+import nodomain.freeyourgadget.gadgetbridge.entities.GenericStressSampleDao;
 import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
+import nodomain.freeyourgadget.gadgetbridge.model.ActivitySample;
+import nodomain.freeyourgadget.gadgetbridge.model.HrvValueSample;
+import nodomain.freeyourgadget.gadgetbridge.model.StressSample;
 import nodomain.freeyourgadget.gadgetbridge.service.DeviceSupport;
 import nodomain.freeyourgadget.gadgetbridge.service.devices.empatica.EmpaticaE4DeviceSupport;
 import nodomain.freeyourgadget.gadgetbridge.service.devices.unknown.UnknownDeviceSupport;
@@ -53,6 +72,66 @@ public class EmpaticaE4Coordinator extends AbstractBLEDeviceCoordinator {
         return BONDING_STYLE_NONE;
     }
 
+    @Override
+    public Map<AbstractDao<?, ?>, Property> getAllDeviceDao(@NonNull final DaoSession session) {
+        Map<AbstractDao<?, ?>, Property> map = new HashMap<>(7);
+        map.put(session.getEmpaticaE4WaveformChunkDao(), EmpaticaE4WaveformChunkDao.Properties.DeviceId);
+        map.put(session.getEmpaticaE4EdaSampleDao(), EmpaticaE4EdaSampleDao.Properties.DeviceId);
+        map.put(session.getEmpaticaE4TemperatureSampleDao(), EmpaticaE4TemperatureSampleDao.Properties.DeviceId);
+        map.put(session.getGenericHrvValueSampleDao(), GenericHrvValueSampleDao.Properties.DeviceId);
+        map.put(session.getGenericStressSampleDao(), GenericStressSampleDao.Properties.DeviceId);
+        map.put(session.getEmpaticaE4ActivitySampleDao(), EmpaticaE4ActivitySampleDao.Properties.DeviceId);
+        map.put(session.getEmpaticaE4IbiSampleDao(), EmpaticaE4IbiSampleDao.Properties.DeviceId);
+        return map;
+    }
+
+    @Override
+    public SampleProvider<? extends ActivitySample> getSampleProvider(GBDevice device, DaoSession session) {
+        return new EmpaticaE4ActivitySampleProvider(device, session);
+    }
+
+    @Override
+    public boolean supportsActivityTracking(@NonNull GBDevice device) {
+        return true;
+    }
+
+    @Override
+    public boolean supportsHeartRateMeasurement(@NonNull GBDevice device) {
+        return true;
+    }
+
+    @Override
+    public boolean supportsRealtimeData(@NonNull GBDevice device) {
+        return true;
+    }
+
+    @Override
+    public TimeSampleProvider<? extends HrvValueSample> getHrvValueSampleProvider(GBDevice device, DaoSession session) {
+        return new GenericHrvValueSampleProvider(device, session);
+    }
+
+    @Override
+    public boolean supportsHrvMeasurement(@NonNull final GBDevice device) {
+        return true;
+    }
+
+    @Override
+    public TimeSampleProvider<? extends StressSample> getStressSampleProvider(GBDevice device, DaoSession session) {
+        return new GenericStressSampleProvider(device, session);
+    }
+
+    @Override
+    public boolean supportsStressMeasurement(@NonNull GBDevice device) {
+        return true;
+    }
+
+    @Override
+    public int[] getSupportedDeviceSpecificSettings(GBDevice device) {
+        return new int[]{
+                R.xml.devicesettings_empatica_e4_session_recording,
+        };
+    }
+
     @Override
     public DeviceKind getDeviceKind(@NonNull GBDevice device) {
         return DeviceKind.WATCH;
@@ -0,0 +1,40 @@
+package nodomain.freeyourgadget.gadgetbridge.devices.empatica;
+
+import androidx.annotation.NonNull;
+
+import de.greenrobot.dao.AbstractDao;
+import de.greenrobot.dao.Property;
+import nodomain.freeyourgadget.gadgetbridge.devices.AbstractTimeSampleProvider;
+import nodomain.freeyourgadget.gadgetbridge.entities.DaoSession;
+import nodomain.freeyourgadget.gadgetbridge.entities.EmpaticaE4EdaSample;
+import nodomain.freeyourgadget.gadgetbridge.entities.EmpaticaE4EdaSampleDao;
+import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
+
+public class EmpaticaE4EdaSampleProvider extends AbstractTimeSampleProvider<EmpaticaE4EdaSample> {
+    public EmpaticaE4EdaSampleProvider(final GBDevice device, final DaoSession session) {
+        super(device, session);
+    }
+
+    @NonNull
+    @Override
+    public AbstractDao<EmpaticaE4EdaSample, ?> getSampleDao() {
+        return getSession().getEmpaticaE4EdaSampleDao();
+    }
+
+    @NonNull
+    @Override
+    protected Property getTimestampSampleProperty() {
+        return EmpaticaE4EdaSampleDao.Properties.Timestamp;
+    }
+
+    @NonNull
+    @Override
+    protected Property getDeviceIdentifierSampleProperty() {
+        return EmpaticaE4EdaSampleDao.Properties.DeviceId;
+    }
+
+    @Override
+    public EmpaticaE4EdaSample createSample() {
+        return new EmpaticaE4EdaSample();
+    }
+}
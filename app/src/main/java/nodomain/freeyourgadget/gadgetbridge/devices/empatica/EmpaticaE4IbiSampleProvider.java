@@ -0,0 +1,40 @@
+package nodomain.freeyourgadget.gadgetbridge.devices.empatica;
+
+import androidx.annotation.NonNull;
+
+import de.greenrobot.dao.AbstractDao;
+import de.greenrobot.dao.Property;
+import nodomain.freeyourgadget.gadgetbridge.devices.AbstractTimeSampleProvider;
+import nodomain.freeyourgadget.gadgetbridge.entities.DaoSession;
+import nodomain.freeyourgadget.gadgetbridge.entities.EmpaticaE4IbiSample;
+import nodomain.freeyourgadget.gadgetbridge.entities.EmpaticaE4IbiSampleDao;
+import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
+
+public class EmpaticaE4IbiSampleProvider extends AbstractTimeSampleProvider<EmpaticaE4IbiSample> {
+    public EmpaticaE4IbiSampleProvider(final GBDevice device, final DaoSession session) {
+        super(device, session);
+    }
+
+    @NonNull
+    @Override
+    public AbstractDao<EmpaticaE4IbiSample, ?> getSampleDao() {
+        return getSession().getEmpaticaE4IbiSampleDao();
+    }
+
+    @NonNull
+    @Override
+    protected Property getTimestampSampleProperty() {
+        return EmpaticaE4IbiSampleDao.Properties.Timestamp;
+    }
+
+    @NonNull
+    @Override
+    protected Property getDeviceIdentifierSampleProperty() {
+        return EmpaticaE4IbiSampleDao.Properties.DeviceId;
+    }
+
+    @Override
+    public EmpaticaE4IbiSample createSample() {
+        return new EmpaticaE4IbiSample();
+    }
+}
@@ -0,0 +1,386 @@
+package nodomain.freeyourgadget.gadgetbridge.devices.empatica;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+import nodomain.freeyourgadget.gadgetbridge.service.devices.empatica.EmpaticaE4Decoder;
+import nodomain.freeyourgadget.gadgetbridge.service.devices.empatica.EmpaticaE4SampleRing;
+
+/**
+ * Converts recorded {@link EmpaticaE4SessionFile E4 sessions} to CSV and EDF.
+ * <p>
+ * The recorded notifications are decoded the same way as during the live session, so the sample
+ * timestamps match the ones of the persisted samples.
+ */
+public final class EmpaticaE4SessionExporter {
+    private static final String[] STREAM_NAMES = {"bvp", "eda", "acc", "temperature"};
+    private static final String[] CSV_HEADERS = {
+            "timestamp,bvp",
+            "timestamp,eda_us",
+            "timestamp,x_g,y_g,z_g",
+            "timestamp,temperature_c",
+    };
+    private static final float ACC_RAW_PER_G = 64f;
+
+    // EDF signals: BVP, EDA, ACC x, y, z and temperature
+    private static final String[] EDF_LABELS = {"BVP", "EDA", "ACC X", "ACC Y", "ACC Z", "Temp"};
+    private static final String[] EDF_DIMENSIONS = {"", "uS", "g", "g", "g", "degC"};
+    private static final int[] EDF_STREAMS = {
+            EmpaticaE4Decoder.STREAM_BVP,
+            EmpaticaE4Decoder.STREAM_GSR,
+            EmpaticaE4Decoder.STREAM_ACC,
+            EmpaticaE4Decoder.STREAM_ACC,
+            EmpaticaE4Decoder.STREAM_ACC,
+            EmpaticaE4Decoder.STREAM_ST,
+    };
+    private static final int[] EDF_CHANNELS = {0, 0, 0, 1, 2, 0};
+    private static final int[] EDF_SAMPLE_RATES = {
+            EmpaticaE4Constants.BVP_SAMPLE_RATE,
+            EmpaticaE4Constants.GSR_SAMPLE_RATE,
+            EmpaticaE4Constants.ACC_SAMPLE_RATE,
+            EmpaticaE4Constants.ACC_SAMPLE_RATE,
+            EmpaticaE4Constants.ACC_SAMPLE_RATE,
+            EmpaticaE4Constants.ST_SAMPLE_RATE,
+    };
+    private static final int EDF_DIGITAL_MIN = Short.MIN_VALUE;
+    private static final int EDF_DIGITAL_MAX = Short.MAX_VALUE;
+    // data records that are kept in memory, to absorb the skew between the streams
+    private static final int EDF_WINDOW = 32;
+    private static final int UNSET = Integer.MIN_VALUE;
+
+    private interface SampleVisitor {
+        void onSample(int stream, long timestamp, EmpaticaE4SampleRing ring, int index);
+    }
+
+    private EmpaticaE4SessionExporter() {
+    }
+
+    private static EmpaticaE4SessionFile.Info decode(final File session, final SampleVisitor visitor) throws IOException {
+        final EmpaticaE4Decoder decoder = new EmpaticaE4Decoder();
+        return EmpaticaE4SessionFile.scan(session, (stream, timestamp, data, offset, length) -> {
+            if (stream >= EmpaticaE4Decoder.STREAM_COUNT) {
+                return;
+            }
+            decoder.decode(stream, data, offset, length, timestamp);
+            final EmpaticaE4SampleRing ring = decoder.getRing(stream);
+            final int size = ring.size();
+            for (int i = 0; i < size; i++) {
+                visitor.onSample(stream, ring.getTimestamp(i), ring, i);
+            }
+            ring.clear();
+        });
+    }
+
+    private static String baseName(final File session) {
+        final String name = session.getName();
+        return name.substring(0, name.length() - EmpaticaE4SessionFile.EXTENSION.length());
+    }
+
+    private static float physicalValue(final int stream, final EmpaticaE4SampleRing ring, final int index, final int channel) {
+        final float value = ring.getValue(index, channel);
+        return stream == EmpaticaE4Decoder.STREAM_ACC ? value / ACC_RAW_PER_G : value;
+    }
+
+    /**
+     * Writes one CSV file per stream into {@code targetDir}.
+     *
+     * @return the files written
+     */
+    public static List<File> exportCsv(final File session, final File targetDir) throws IOException {
+        final String baseName = baseName(session);
+        final List<File> files = new ArrayList<>(STREAM_NAMES.length);
+        final Writer[] writers = new Writer[STREAM_NAMES.length];
+        try {
+            for (int stream = 0; stream < STREAM_NAMES.length; stream++) {
+                final File file = new File(targetDir, baseName + "_" + STREAM_NAMES[stream] + ".csv");
+                files.add(file);
+                writers[stream] = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8));
+                writers[stream].write(CSV_HEADERS[stream]);
+                writers[stream].write('\n');
+            }
+
+            final StringBuilder line = new StringBuilder();
+            final IOException[] error = {null};
+            decode(session, (stream, timestamp, ring, index) -> {
+                if (error[0] != null) {
+                    return;
+                }
+                line.setLength(0);
+                line.append(timestamp);
+                for (int channel = 0; channel < ring.getWidth(); channel++) {
+                    line.append(',').append(physicalValue(stream, ring, index, channel));
+                }
+                line.append('\n');
+                try {
+                    writers[stream].append(line);
+                } catch (final IOException e) {
+                    error[0] = e;
+                }
+            });
+            if (error[0] != null) {
+                throw error[0];
+            }
+        } finally {
+            IOException closeError = null;
+            for (final Writer writer : writers) {
+                if (writer == null) {
+                    continue;
+                }
+                try {
+                    writer.close();
+                } catch (final IOException e) {
+                    closeError = e;
+                }
+            }
+            if (closeError != null) {
+                throw closeError;
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Writes the session as an EDF file into {@code targetDir}, with data records of one second.
+     * <p>
+     * Each sample is placed in the slot of its data record that its timestamp falls into. Slots
+     * without a sample, such as the ones of a connection loss, repeat the previous value of the
+     * signal, since EDF has no notion of missing values.
+     */
+    public static File exportEdf(final File session, final File targetDir) throws IOException {
+        // first pass: the time range and the physical range of each signal
+        final long[] range = {Long.MAX_VALUE, Long.MIN_VALUE};
+        final float[] min = new float[EDF_LABELS.length];
+        final float[] max = new float[EDF_LABELS.length];
+        Arrays.fill(min, Float.POSITIVE_INFINITY);
+        Arrays.fill(max, Float.NEGATIVE_INFINITY);
+        final EmpaticaE4SessionFile.Info info = decode(session, (stream, timestamp, ring, index) -> {
+            range[0] = Math.min(range[0], timestamp);
+            range[1] = Math.max(range[1], timestamp);
+            for (int signal = 0; signal < EDF_STREAMS.length; signal++) {
+                if (EDF_STREAMS[signal] == stream) {
+                    final float value = physicalValue(stream, ring, index, EDF_CHANNELS[signal]);
+                    min[signal] = Math.min(min[signal], value);
+                    max[signal] = Math.max(max[signal], value);
+                }
+            }
+        });
+        if (range[0] > range[1]) {
+            throw new IOException("No samples in " + session.getName());
+        }
+        for (int signal = 0; signal < EDF_LABELS.length; signal++) {
+            if (min[signal] > max[signal]) {
+                min[signal] = 0;
+                max[signal] = 1;
+            }
+            // scale with the extremes as they end up in the header
+            min[signal] = Float.parseFloat(formatPhysical(min[signal]));
+            max[signal] = Float.parseFloat(formatPhysical(max[signal]));
+            if (max[signal] <= min[signal]) {
+                max[signal] = min[signal] + 1;
+            }
+        }
+
+        final long start = range[0] - Math.floorMod(range[0], 1000L);
+        final int records = (int) ((range[1] - start) / 1000 + 1);
+        final File file = new File(targetDir, baseName(session) + ".edf");
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
+            writeEdfHeader(out, info.getAddress(), start, records, min, max);
+            // second pass: the data records
+            final EdfRecordWriter recordWriter = new EdfRecordWriter(out, start, min, max);
+            final IOException[] error = {null};
+            decode(session, (stream, timestamp, ring, index) -> {
+                if (error[0] != null) {
+                    return;
+                }
+                try {
+                    for (int signal = 0; signal < EDF_STREAMS.length; signal++) {
+                        if (EDF_STREAMS[signal] == stream) {
+                            recordWriter.add(signal, timestamp, physicalValue(stream, ring, index, EDF_CHANNELS[signal]));
+                        }
+                    }
+                } catch (final IOException e) {
+                    error[0] = e;
+                }
+            });
+            if (error[0] != null) {
+                throw error[0];
+            }
+            recordWriter.finish(records);
+        }
+        return file;
+    }
+
+    private static void writeEdfHeader(final OutputStream out, final String address, final long start,
+                                       final int records, final float[] min, final float[] max) throws IOException {
+        final int signals = EDF_LABELS.length;
+        final StringBuilder header = new StringBuilder();
+        final Date startDate = new Date(start);
+        appendField(header, "0", 8);
+        appendField(header, "X", 80);
+        appendField(header, "Empatica E4 " + address, 80);
+        appendField(header, new SimpleDateFormat("dd.MM.yy", Locale.ROOT).format(startDate), 8);
+        appendField(header, new SimpleDateFormat("HH.mm.ss", Locale.ROOT).format(startDate), 8);
+        appendField(header, Integer.toString(256 * (signals + 1)), 8);
+        appendField(header, "", 44);
+        appendField(header, Integer.toString(records), 8);
+        appendField(header, "1", 8);
+        appendField(header, Integer.toString(signals), 4);
+        for (int i = 0; i < signals; i++) {
+            appendField(header, EDF_LABELS[i], 16);
+        }
+        for (int i = 0; i < signals; i++) {
+            appendField(header, "Empatica E4", 80);
+        }
+        for (int i = 0; i < signals; i++) {
+            appendField(header, EDF_DIMENSIONS[i], 8);
+        }
+        for (int i = 0; i < signals; i++) {
+            appendField(header, formatPhysical(min[i]), 8);
+        }
+        for (int i = 0; i < signals; i++) {
+            appendField(header, formatPhysical(max[i]), 8);
+        }
+        for (int i = 0; i < signals; i++) {
+            appendField(header, Integer.toString(EDF_DIGITAL_MIN), 8);
+        }
+        for (int i = 0; i < signals; i++) {
+            appendField(header, Integer.toString(EDF_DIGITAL_MAX), 8);
+        }
+        for (int i = 0; i < signals; i++) {
+            appendField(header, "", 80);
+        }
+        for (int i = 0; i < signals; i++) {
+            appendField(header, Integer.toString(EDF_SAMPLE_RATES[i]), 8);
+        }
+        for (int i = 0; i < signals; i++) {
+            appendField(header, "", 32);
+        }
+        out.write(header.toString().getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static void appendField(final StringBuilder header, final String value, final int width) {
+        final String field = value.length() > width ? value.substring(0, width) : value;
+        header.append(field);
+        for (int i = field.length(); i < width; i++) {
+            header.append(' ');
+        }
+    }
+
+    /**
+     * Formats a physical extreme into the 8 characters of an EDF header field.
+     */
+    static String formatPhysical(final float value) {
+        for (int decimals = 4; decimals > 0; decimals--) {
+            final String formatted = String.format(Locale.ROOT, "%." + decimals + "f", value);
+            if (formatted.length() <= 8) {
+                return formatted;
+            }
+        }
+        return Long.toString(Math.round(value));
+    }
+
+    /**
+     * Collects the samples of the last {@link #EDF_WINDOW} data records, and writes the oldest one
+     * once a sample for a later record arrives.
+     */
+    private static class EdfRecordWriter {
+        private final OutputStream out;
+        private final long start;
+        private final double[] scales = new double[EDF_LABELS.length];
+        private final double[] physicalMin = new double[EDF_LABELS.length];
+        private final int[] signalOffsets = new int[EDF_LABELS.length];
+        private final int recordSize;
+        private final int[] window;
+        private final int[] lastValues = new int[EDF_LABELS.length];
+        private final byte[] recordBytes;
+        private int firstRecord;
+        private int written;
+
+        EdfRecordWriter(final OutputStream out, final long start, final float[] min, final float[] max) {
+            this.out = out;
+            this.start = start;
+            int size = 0;
+            for (int signal = 0; signal < EDF_LABELS.length; signal++) {
+                signalOffsets[signal] = size;
+                size += EDF_SAMPLE_RATES[signal];
+                physicalMin[signal] = min[signal];
+                scales[signal] = (EDF_DIGITAL_MAX - (double) EDF_DIGITAL_MIN) / (max[signal] - min[signal]);
+            }
+            this.recordSize = size;
+            this.window = new int[EDF_WINDOW * size];
+            this.recordBytes = new byte[size * 2];
+            Arrays.fill(window, UNSET);
+        }
+
+        void add(final int signal, final long timestamp, final float value) throws IOException {
+            final long elapsed = timestamp - start;
+            final int record = (int) (elapsed / 1000);
+            while (record >= firstRecord + EDF_WINDOW) {
+                writeFirst();
+            }
+            if (record < firstRecord) {
+                // too late, the record has been written already
+                return;
+            }
+            final int slot = (int) (elapsed % 1000 * EDF_SAMPLE_RATES[signal] / 1000);
+            final long digital = Math.round((value - physicalMin[signal]) * scales[signal] + EDF_DIGITAL_MIN);
+            window[(record % EDF_WINDOW) * recordSize + signalOffsets[signal] + slot] =
+                    (int) Math.max(EDF_DIGITAL_MIN, Math.min(EDF_DIGITAL_MAX, digital));
+        }
+
+        private void writeFirst() throws IOException {
+            final int base = (firstRecord % EDF_WINDOW) * recordSize;
+            for (int signal = 0; signal < EDF_LABELS.length; signal++) {
+                for (int i = 0; i < EDF_SAMPLE_RATES[signal]; i++) {
+                    final int index = base + signalOffsets[signal] + i;
+                    if (window[index] != UNSET) {
+                        lastValues[signal] = window[index];
+                    } else if (written == 0 && i == 0) {
+                        lastValues[signal] = firstValue(signal);
+                    }
+                    final int value = lastValues[signal];
+                    recordBytes[(index - base) * 2] = (byte) value;
+                    recordBytes[(index - base) * 2 + 1] = (byte) (value >> 8);
+                    window[index] = UNSET;
+                }
+            }
+            out.write(recordBytes);
+            firstRecord++;
+            written++;
+        }
+
+        /**
+         * The first value of the signal within the window, to fill the slots before it.
+         */
+        private int firstValue(final int signal) {
+            for (int record = firstRecord; record < firstRecord + EDF_WINDOW; record++) {
+                final int base = (record % EDF_WINDOW) * recordSize + signalOffsets[signal];
+                for (int i = 0; i < EDF_SAMPLE_RATES[signal]; i++) {
+                    if (window[base + i] != UNSET) {
+                        return window[base + i];
+                    }
+                }
+            }
+            return 0;
+        }
+
+        void finish(final int records) throws IOException {
+            while (written < records) {
+                writeFirst();
+            }
+        }
+    }
+}
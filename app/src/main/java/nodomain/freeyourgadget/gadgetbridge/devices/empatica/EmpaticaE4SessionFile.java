@@ -0,0 +1,368 @@
+package nodomain.freeyourgadget.gadgetbridge.devices.empatica;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.CRC32;
+
+/**
+ * File format of the raw E4 session recordings, and the scan that reads them back.
+ * <p>
+ * A session file starts with a {@link #HEADER_SIZE} bytes header, followed by records that are
+ * appended in order. All values are little-endian.
+ * <pre>
+ * header:  magic (8) | version (2) | flags (2) | header size (4) | start time (8)
+ *          | committed end offset (8) | device address, zero padded (24) | reserved (8)
+ * record:  payload length (2) | type (1) | stream (1) | timestamp (8) | payload | crc32 (4)
+ * </pre>
+ * The CRC covers the record up to the payload end. Frame records hold a notification payload as
+ * received from the E4. Sync records hold {@link #SYNC_MARKER} and are written periodically, after
+ * which the committed end offset in the header is updated and the file is flushed to storage.
+ * <p>
+ * Since the recorder grows the file in zero-filled regions, the log ends at the first record with
+ * type 0. A record that does not validate, for example because it was only partially written
+ * back before a power loss, is skipped up to the next sync record. Files that were not closed
+ * cleanly are {@link #recover(File) recovered} before the recorder starts a new session.
+ */
+public final class EmpaticaE4SessionFile {
+    public static final String DIRECTORY = "e4_sessions";
+    public static final String EXTENSION = ".e4s";
+
+    public static final int HEADER_SIZE = 64;
+    public static final int VERSION = 1;
+
+    public static final int FLAG_CLOSED = 1;
+    public static final int FLAG_RECOVERED = 1 << 1;
+
+    public static final int OFFSET_VERSION = 8;
+    public static final int OFFSET_FLAGS = 10;
+    public static final int OFFSET_HEADER_SIZE = 12;
+    public static final int OFFSET_START_TIME = 16;
+    public static final int OFFSET_COMMITTED_END = 24;
+    public static final int OFFSET_ADDRESS = 32;
+    public static final int ADDRESS_LENGTH = 24;
+
+    public static final int RECORD_HEADER_SIZE = 12;
+    public static final int RECORD_OVERHEAD = RECORD_HEADER_SIZE + 4;
+    public static final int MAX_PAYLOAD = 0xffff;
+
+    public static final int TYPE_END = 0;
+    public static final int TYPE_FRAME = 1;
+    public static final int TYPE_SYNC = 2;
+
+    private static final byte[] MAGIC = {'G', 'B', 'E', '4', 'R', 'E', 'C', 0};
+    public static final byte[] SYNC_MARKER = {
+            (byte) 0x8a, 0x45, 0x34, 0x53, 0x59, 0x4e, 0x43, (byte) 0xa7,
+            0x1f, (byte) 0xc2, 0x6d, (byte) 0x93, 0x0e, (byte) 0xb5, 0x58, (byte) 0xe1,
+    };
+
+    public interface FrameVisitor {
+        /**
+         * @param data reused between calls, only valid until the method returns
+         */
+        void onFrame(int stream, long timestamp, byte[] data, int offset, int length);
+    }
+
+    /**
+     * Summary of a session file, as determined by {@link #scan(File, FrameVisitor)}.
+     */
+    public static class Info {
+        private final File file;
+        private final String address;
+        private final long startTime;
+        private final int flags;
+        private long endTime;
+        private long frames;
+        private long validEnd;
+        private long skippedBytes;
+
+        private Info(final File file, final String address, final long startTime, final int flags) {
+            this.file = file;
+            this.address = address;
+            this.startTime = startTime;
+            this.flags = flags;
+            this.endTime = startTime;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public String getAddress() {
+            return address;
+        }
+
+        public long getStartTime() {
+            return startTime;
+        }
+
+        /**
+         * Timestamp of the last valid frame.
+         */
+        public long getEndTime() {
+            return endTime;
+        }
+
+        public long getFrames() {
+            return frames;
+        }
+
+        /**
+         * Offset right after the last valid record.
+         */
+        public long getValidEnd() {
+            return validEnd;
+        }
+
+        /**
+         * Bytes of corrupt records that were skipped up to the next sync record.
+         */
+        public long getSkippedBytes() {
+            return skippedBytes;
+        }
+
+        public boolean isClosed() {
+            return (flags & FLAG_CLOSED) != 0;
+        }
+
+        public boolean isRecovered() {
+            return (flags & FLAG_RECOVERED) != 0;
+        }
+    }
+
+    private EmpaticaE4SessionFile() {
+    }
+
+    public static File createFile(final File dir, final String address, final long startTime) {
+        final SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.ROOT);
+        return new File(dir, filePrefix(address) + format.format(new Date(startTime)) + EXTENSION);
+    }
+
+    private static String filePrefix(final String address) {
+        return "e4_" + address.replace(':', '_') + "_";
+    }
+
+    /**
+     * Lists the session files in the directory, newest first.
+     */
+    public static List<File> list(final File dir) {
+        final File[] files = dir.listFiles((d, name) -> name.endsWith(EXTENSION));
+        if (files == null) {
+            return Collections.emptyList();
+        }
+        final List<File> result = new ArrayList<>(Arrays.asList(files));
+        Collections.sort(result, (f1, f2) -> f2.getName().compareTo(f1.getName()));
+        return result;
+    }
+
+    /**
+     * Lists the session files of one device that were not closed cleanly.
+     */
+    public static List<File> listUnclosed(final File dir, final String address) throws IOException {
+        final List<File> result = new ArrayList<>();
+        for (final File file : list(dir)) {
+            if (file.getName().startsWith(filePrefix(address)) && (readFlags(file) & FLAG_CLOSED) == 0) {
+                result.add(file);
+            }
+        }
+        return result;
+    }
+
+    public static void writeHeader(final ByteBuffer header, final String address, final long startTime) {
+        header.order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < MAGIC.length; i++) {
+            header.put(i, MAGIC[i]);
+        }
+        header.putShort(OFFSET_VERSION, (short) VERSION);
+        header.putShort(OFFSET_FLAGS, (short) 0);
+        header.putInt(OFFSET_HEADER_SIZE, HEADER_SIZE);
+        header.putLong(OFFSET_START_TIME, startTime);
+        header.putLong(OFFSET_COMMITTED_END, HEADER_SIZE);
+        final byte[] addressBytes = address.getBytes(StandardCharsets.US_ASCII);
+        for (int i = 0; i < Math.min(addressBytes.length, ADDRESS_LENGTH); i++) {
+            header.put(OFFSET_ADDRESS + i, addressBytes[i]);
+        }
+    }
+
+    private static int readFlags(final File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            final ByteBuffer header = readHeader(raf.getChannel(), file);
+            return header.getShort(OFFSET_FLAGS) & 0xffff;
+        }
+    }
+
+    private static ByteBuffer readHeader(final FileChannel channel, final File file) throws IOException {
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        while (header.hasRemaining()) {
+            if (channel.read(header, header.position()) < 0) {
+                throw new IOException("Truncated header in " + file);
+            }
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (header.get(i) != MAGIC[i]) {
+                throw new IOException("Not an E4 session file: " + file);
+            }
+        }
+        final int version = header.getShort(OFFSET_VERSION) & 0xffff;
+        if (version != VERSION) {
+            throw new IOException("Unsupported E4 session file version " + version + ": " + file);
+        }
+        return header;
+    }
+
+    /**
+     * Reads all valid frames of the file, skipping corrupt records up to the next sync record.
+     *
+     * @param visitor may be null, to only determine the {@link Info}
+     */
+    public static Info scan(final File file, @Nullable final FrameVisitor visitor) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            final FileChannel channel = raf.getChannel();
+            final ByteBuffer header = readHeader(channel, file);
+            final String address = readAddress(header);
+            final Info info = new Info(file, address, header.getLong(OFFSET_START_TIME), header.getShort(OFFSET_FLAGS) & 0xffff);
+
+            final long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("E4 session file too large: " + file);
+            }
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            scanRecords(buffer, info, visitor);
+            return info;
+        }
+    }
+
+    private static String readAddress(final ByteBuffer header) {
+        final byte[] bytes = new byte[ADDRESS_LENGTH];
+        header.position(OFFSET_ADDRESS);
+        header.get(bytes);
+        int length = 0;
+        while (length < bytes.length && bytes[length] != 0) {
+            length++;
+        }
+        return new String(bytes, 0, length, StandardCharsets.US_ASCII);
+    }
+
+    private static void scanRecords(final ByteBuffer buffer, final Info info, @Nullable final FrameVisitor visitor) {
+        final byte[] record = new byte[RECORD_HEADER_SIZE + MAX_PAYLOAD];
+        final CRC32 crc = new CRC32();
+        final int limit = buffer.limit();
+        int position = HEADER_SIZE;
+        info.validEnd = position;
+
+        while (position + RECORD_OVERHEAD <= limit) {
+            final int length = readRecord(buffer, position, record, crc);
+            if (length < 0) {
+                final int sync = findSyncRecord(buffer, position + 1, record, crc);
+                if (sync < 0) {
+                    break;
+                }
+                info.skippedBytes += sync - position;
+                position = sync;
+                continue;
+            }
+
+            if (record[2] == TYPE_FRAME) {
+                final long timestamp = buffer.getLong(position + 4);
+                info.frames++;
+                info.endTime = Math.max(info.endTime, timestamp);
+                if (visitor != null) {
+                    visitor.onFrame(record[3] & 0xff, timestamp, record, RECORD_HEADER_SIZE, length);
+                }
+            }
+            position += RECORD_OVERHEAD + length;
+            info.validEnd = position;
+        }
+    }
+
+    /**
+     * Copies the record at {@code position} into {@code record} and validates it.
+     *
+     * @return the payload length, or -1 if the record is not valid
+     */
+    private static int readRecord(final ByteBuffer buffer, final int position, final byte[] record, final CRC32 crc) {
+        final int length = buffer.getShort(position) & 0xffff;
+        final int type = buffer.get(position + 2);
+        if (type != TYPE_FRAME && type != TYPE_SYNC) {
+            return -1;
+        }
+        if (position + RECORD_OVERHEAD + length > buffer.limit()) {
+            return -1;
+        }
+        buffer.position(position);
+        buffer.get(record, 0, RECORD_HEADER_SIZE + length);
+        crc.reset();
+        crc.update(record, 0, RECORD_HEADER_SIZE + length);
+        if ((int) crc.getValue() != buffer.getInt(position + RECORD_HEADER_SIZE + length)) {
+            return -1;
+        }
+        if (type == TYPE_SYNC && !matchesSyncMarker(buffer, position + RECORD_HEADER_SIZE, length)) {
+            return -1;
+        }
+        return length;
+    }
+
+    private static boolean matchesSyncMarker(final ByteBuffer buffer, final int position, final int length) {
+        if (length != SYNC_MARKER.length) {
+            return false;
+        }
+        for (int i = 0; i < SYNC_MARKER.length; i++) {
+            if (buffer.get(position + i) != SYNC_MARKER[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the position of the first valid sync record at or after {@code from}, or -1
+     */
+    private static int findSyncRecord(final ByteBuffer buffer, final int from, final byte[] record, final CRC32 crc) {
+        final int last = buffer.limit() - SYNC_MARKER.length - 4;
+        for (int marker = from + RECORD_HEADER_SIZE; marker <= last; marker++) {
+            if (buffer.get(marker) == SYNC_MARKER[0]
+                    && matchesSyncMarker(buffer, marker, SYNC_MARKER.length)
+                    && readRecord(buffer, marker - RECORD_HEADER_SIZE, record, crc) >= 0) {
+                return marker - RECORD_HEADER_SIZE;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Makes a session file that was not closed cleanly readable as closed: the zero-filled tail is
+     * truncated after the last valid record, and the file is flagged as recovered.
+     */
+    @NonNull
+    public static Info recover(final File file) throws IOException {
+        final Info info = scan(file, null);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            final FileChannel channel = raf.getChannel();
+            channel.truncate(info.validEnd);
+            final ByteBuffer flags = ByteBuffer.allocate(2).order(ByteOrder.LITTLE_ENDIAN);
+            flags.putShort(0, (short) (FLAG_CLOSED | FLAG_RECOVERED));
+            channel.write(flags, OFFSET_FLAGS);
+            final ByteBuffer committedEnd = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+            committedEnd.putLong(0, info.validEnd);
+            channel.write(committedEnd, OFFSET_COMMITTED_END);
+            channel.force(true);
+        }
+        return scan(file, null);
+    }
+}
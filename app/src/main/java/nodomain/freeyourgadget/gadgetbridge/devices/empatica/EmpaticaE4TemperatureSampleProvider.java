@@ -0,0 +1,40 @@
+package nodomain.freeyourgadget.gadgetbridge.devices.empatica;
+
+import androidx.annotation.NonNull;
+
+import de.greenrobot.dao.AbstractDao;
+import de.greenrobot.dao.Property;
+import nodomain.freeyourgadget.gadgetbridge.devices.AbstractTimeSampleProvider;
+import nodomain.freeyourgadget.gadgetbridge.entities.DaoSession;
+import nodomain.freeyourgadget.gadgetbridge.entities.EmpaticaE4TemperatureSample;
+import nodomain.freeyourgadget.gadgetbridge.entities.EmpaticaE4TemperatureSampleDao;
+import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
+
+public class EmpaticaE4TemperatureSampleProvider extends AbstractTimeSampleProvider<EmpaticaE4TemperatureSample> {
+    public EmpaticaE4TemperatureSampleProvider(final GBDevice device, final DaoSession session) {
+        super(device, session);
+    }
+
+    @NonNull
+    @Override
+    public AbstractDao<EmpaticaE4TemperatureSample, ?> getSampleDao() {
+        return getSession().getEmpaticaE4TemperatureSampleDao();
+    }
+
+    @NonNull
+    @Override
+    protected Property getTimestampSampleProperty() {
+        return EmpaticaE4TemperatureSampleDao.Properties.Timestamp;
+    }
+
+    @NonNull
+    @Override
+    protected Property getDeviceIdentifierSampleProperty() {
+        return EmpaticaE4TemperatureSampleDao.Properties.DeviceId;
+    }
+
+    @Override
+    public EmpaticaE4TemperatureSample createSample() {
+        return new EmpaticaE4TemperatureSample();
+    }
+}
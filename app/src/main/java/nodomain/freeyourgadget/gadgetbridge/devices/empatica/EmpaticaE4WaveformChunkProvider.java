@@ -0,0 +1,130 @@
+package nodomain.freeyourgadget.gadgetbridge.devices.empatica;
+
+import androidx.annotation.NonNull;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.greenrobot.dao.AbstractDao;
+import de.greenrobot.dao.Property;
+import de.greenrobot.dao.query.CloseableListIterator;
+import nodomain.freeyourgadget.gadgetbridge.database.DBHelper;
+import nodomain.freeyourgadget.gadgetbridge.devices.AbstractTimeSampleProvider;
+import nodomain.freeyourgadget.gadgetbridge.entities.DaoSession;
+import nodomain.freeyourgadget.gadgetbridge.entities.Device;
+import nodomain.freeyourgadget.gadgetbridge.entities.EmpaticaE4WaveformChunk;
+import nodomain.freeyourgadget.gadgetbridge.entities.EmpaticaE4WaveformChunkDao;
+import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
+import nodomain.freeyourgadget.gadgetbridge.util.FloatXorCodec;
+
+/**
+ * Provides the high-rate E4 waveforms, which are stored in compressed chunks of up to
+ * {@link #CHUNK_DURATION_MS} per channel. Use {@link #forEachSample} to read samples without
+ * materializing them.
+ */
+public class EmpaticaE4WaveformChunkProvider extends AbstractTimeSampleProvider<EmpaticaE4WaveformChunk> {
+    private static final Logger LOG = LoggerFactory.getLogger(EmpaticaE4WaveformChunkProvider.class);
+
+    public static final int CHANNEL_BVP = 0;
+    public static final int CHANNEL_ACC_X = 1;
+    public static final int CHANNEL_ACC_Y = 2;
+    public static final int CHANNEL_ACC_Z = 3;
+
+    public static final long CHUNK_DURATION_MS = 60_000L;
+
+    public interface SampleVisitor {
+        void onSample(long timestamp, float value);
+    }
+
+    public EmpaticaE4WaveformChunkProvider(final GBDevice device, final DaoSession session) {
+        super(device, session);
+    }
+
+    @NonNull
+    @Override
+    public AbstractDao<EmpaticaE4WaveformChunk, ?> getSampleDao() {
+        return getSession().getEmpaticaE4WaveformChunkDao();
+    }
+
+    @NonNull
+    @Override
+    protected Property getTimestampSampleProperty() {
+        return EmpaticaE4WaveformChunkDao.Properties.Timestamp;
+    }
+
+    @NonNull
+    @Override
+    protected Property getDeviceIdentifierSampleProperty() {
+        return EmpaticaE4WaveformChunkDao.Properties.DeviceId;
+    }
+
+    @Override
+    public EmpaticaE4WaveformChunk createSample() {
+        return new EmpaticaE4WaveformChunk();
+    }
+
+    /**
+     * Passes all samples of a channel between {@code timestampFrom} and {@code timestampTo}
+     * (inclusive, in milliseconds) to the visitor, oldest first. Chunks are loaded from a cursor
+     * and decoded one at a time, so memory use does not depend on the length of the range.
+     *
+     * @return the number of samples visited
+     */
+    public long forEachSample(final int channel, final long timestampFrom, final long timestampTo, final SampleVisitor visitor) {
+        final Device dbDevice = DBHelper.findDevice(getDevice(), getSession());
+        if (dbDevice == null) {
+            // no device, no samples
+            return 0;
+        }
+
+        final ChunkDecoder decoder = new ChunkDecoder(timestampFrom, timestampTo, visitor);
+        try (CloseableListIterator<EmpaticaE4WaveformChunk> it = getSampleDao().queryBuilder()
+                .where(EmpaticaE4WaveformChunkDao.Properties.DeviceId.eq(dbDevice.getId()),
+                        EmpaticaE4WaveformChunkDao.Properties.Channel.eq(channel),
+                        // a chunk starting before the range may still overlap it
+                        EmpaticaE4WaveformChunkDao.Properties.Timestamp.gt(timestampFrom - CHUNK_DURATION_MS),
+                        EmpaticaE4WaveformChunkDao.Properties.Timestamp.le(timestampTo))
+                .orderAsc(EmpaticaE4WaveformChunkDao.Properties.Timestamp)
+                .build()
+                .listIterator()) {
+            while (it.hasNext()) {
+                decoder.decode(it.next());
+            }
+        } catch (final Exception e) {
+            LOG.error("Failed to read E4 waveform chunks", e);
+        }
+        return decoder.visited;
+    }
+
+    private static final class ChunkDecoder implements FloatXorCodec.ValueConsumer {
+        private final FloatXorCodec.Decoder decoder = new FloatXorCodec.Decoder();
+        private final long timestampFrom;
+        private final long timestampTo;
+        private final SampleVisitor visitor;
+
+        private long chunkTimestamp;
+        private int chunkSampleRate;
+        private long visited;
+
+        private ChunkDecoder(final long timestampFrom, final long timestampTo, final SampleVisitor visitor) {
+            this.timestampFrom = timestampFrom;
+            this.timestampTo = timestampTo;
+            this.visitor = visitor;
+        }
+
+        private void decode(final EmpaticaE4WaveformChunk chunk) {
+            chunkTimestamp = chunk.getTimestamp();
+            chunkSampleRate = chunk.getSampleRate();
+            decoder.decode(chunk.getData(), chunk.getSampleCount(), this);
+        }
+
+        @Override
+        public void accept(final int index, final float value) {
+            final long timestamp = chunkTimestamp + index * 1000L / chunkSampleRate;
+            if (timestamp >= timestampFrom && timestamp <= timestampTo) {
+                visitor.onSample(timestamp, value);
+                visited++;
+            }
+        }
+    }
+}
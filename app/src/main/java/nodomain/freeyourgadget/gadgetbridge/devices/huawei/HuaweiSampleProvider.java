@@ -23,6 +23,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -47,6 +48,7 @@ import nodomain.freeyourgadget.gadgetbridge.entities.HuaweiWorkoutSummarySampleD
 import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
 import nodomain.freeyourgadget.gadgetbridge.model.ActivityKind;
 import nodomain.freeyourgadget.gadgetbridge.model.ActivitySample;
+import nodomain.freeyourgadget.gadgetbridge.model.DailyRollups;
 
 public class HuaweiSampleProvider extends AbstractSampleProvider<HuaweiActivitySample> {
 
@@ -235,6 +237,7 @@ public class HuaweiSampleProvider extends AbstractSampleProvider<HuaweiActivityS
 
         getSampleDao().insertOrReplace(start);
         getSampleDao().insertOrReplace(end);
+        DailyRollups.invalidateActivitySamples(getSession(), Arrays.asList(start, end));
     }
 
     @Override
@@ -255,6 +258,7 @@ public class HuaweiSampleProvider extends AbstractSampleProvider<HuaweiActivityS
             newSamples.add(end);
         }
         getSampleDao().insertOrReplaceInTx(newSamples);
+        DailyRollups.invalidateActivitySamples(getSession(), newSamples);
     }
 
     /**
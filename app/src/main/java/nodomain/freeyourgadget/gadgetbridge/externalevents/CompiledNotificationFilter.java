@@ -0,0 +1,121 @@
+package nodomain.freeyourgadget.gadgetbridge.externalevents;
+
+import static nodomain.freeyourgadget.gadgetbridge.activities.NotificationFilterActivity.NOTIFICATION_FILTER_MODE_BLACKLIST;
+import static nodomain.freeyourgadget.gadgetbridge.activities.NotificationFilterActivity.NOTIFICATION_FILTER_MODE_NONE;
+import static nodomain.freeyourgadget.gadgetbridge.activities.NotificationFilterActivity.NOTIFICATION_FILTER_MODE_WHITELIST;
+import static nodomain.freeyourgadget.gadgetbridge.activities.NotificationFilterActivity.NOTIFICATION_FILTER_SUBMODE_ALL;
+
+import androidx.annotation.NonNull;
+
+import org.ahocorasick.trie.Trie;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+import nodomain.freeyourgadget.gadgetbridge.entities.NotificationFilter;
+
+/**
+ * The words of a {@link NotificationFilter}, compiled into an Aho-Corasick automaton, so that a
+ * notification is matched against all of them in a single pass over its text.
+ * <p>
+ * Words are matched case-sensitively anywhere in the text, like {@link String#contains}.
+ * Instances are immutable and can be shared between threads.
+ */
+public final class CompiledNotificationFilter {
+    private static final Logger LOG = LoggerFactory.getLogger(CompiledNotificationFilter.class);
+
+    /**
+     * Used for packages without a filter, lets every notification through.
+     */
+    public static final CompiledNotificationFilter NONE = new CompiledNotificationFilter(NOTIFICATION_FILTER_MODE_NONE, false, null, 0);
+
+    private final int mode;
+    private final boolean allMode;
+    private final Trie trie;
+    private final int numberOfWords;
+
+    private CompiledNotificationFilter(final int mode, final boolean allMode, final Trie trie, final int numberOfWords) {
+        this.mode = mode;
+        this.allMode = allMode;
+        this.trie = trie;
+        this.numberOfWords = numberOfWords;
+    }
+
+    public static CompiledNotificationFilter compile(@NonNull final NotificationFilter notificationFilter, @NonNull final Collection<String> words) {
+        final int mode = notificationFilter.getNotificationFilterMode();
+        if (mode != NOTIFICATION_FILTER_MODE_BLACKLIST && mode != NOTIFICATION_FILTER_MODE_WHITELIST) {
+            return NONE;
+        }
+
+        final Set<String> distinctWords = new HashSet<>(words);
+        final Trie trie = Trie.builder()
+                .addKeywords(distinctWords)
+                .build();
+
+        return new CompiledNotificationFilter(
+                mode,
+                notificationFilter.getNotificationFilterSubMode() == NOTIFICATION_FILTER_SUBMODE_ALL,
+                trie,
+                distinctWords.size()
+        );
+    }
+
+    /**
+     * @return whether a notification with the given text should be processed
+     */
+    public boolean shouldContinue(@NonNull final String body) {
+        switch (mode) {
+            case NOTIFICATION_FILTER_MODE_BLACKLIST:
+                if (allMode) {
+                    if (!containsAll(body)) {
+                        LOG.info("Not every word was found, blacklist has no effect, processing continues.");
+                        return true;
+                    }
+                    LOG.info("Every word was found, blacklist has effect, processing stops.");
+                    return false;
+                } else {
+                    final boolean containsAny = trie.containsMatch(body);
+                    if (!containsAny) {
+                        LOG.info("No matching word was found, blacklist has no effect, processing continues.");
+                    } else {
+                        LOG.info("At least one matching word was found, blacklist has effect, processing stops.");
+                    }
+                    return !containsAny;
+                }
+
+            case NOTIFICATION_FILTER_MODE_WHITELIST:
+                if (allMode) {
+                    if (!containsAll(body)) {
+                        LOG.info("Not every word was found, whitelist has no effect, processing stops.");
+                        return false;
+                    }
+                    LOG.info("Every word was found, whitelist has effect, processing continues.");
+                    return true;
+                } else {
+                    final boolean containsAny = trie.containsMatch(body);
+                    if (containsAny) {
+                        LOG.info("At least one matching word was found, whitelist has effect, processing continues.");
+                    } else {
+                        LOG.info("No matching word was found, whitelist has no effect, processing stops.");
+                    }
+                    return containsAny;
+                }
+
+            default:
+                return true;
+        }
+    }
+
+    private boolean containsAll(final String body) {
+        if (numberOfWords == 0) {
+            return true;
+        }
+
+        final Set<String> found = new HashSet<>();
+        trie.parseText(body, emit -> found.add(emit.getKeyword()));
+        return found.size() == numberOfWords;
+    }
+}
@@ -0,0 +1,65 @@
+package nodomain.freeyourgadget.gadgetbridge.externalevents;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Caches the {@link CompiledNotificationFilter} of each package, so that incoming notifications
+ * do not query the database. Packages without a filter are cached as
+ * {@link CompiledNotificationFilter#NONE}.
+ * <p>
+ * Entries must be invalidated when a filter is changed, and all of them when the database is
+ * replaced. Lookups that started before an invalidation are not cached, since they may have seen
+ * the old filter.
+ */
+public final class NotificationFilterCache {
+    private static final NotificationFilterCache instance = new NotificationFilterCache();
+
+    private final Map<String, CompiledNotificationFilter> filters = new ConcurrentHashMap<>();
+    // incremented on every invalidation, guarded by this
+    private volatile long generation;
+
+    public static NotificationFilterCache getInstance() {
+        return instance;
+    }
+
+    /**
+     * @return the current generation, to be passed to {@link #put} after loading a filter
+     */
+    public long getGeneration() {
+        return generation;
+    }
+
+    @Nullable
+    public CompiledNotificationFilter get(@NonNull final String packageName) {
+        return filters.get(packageName.toLowerCase());
+    }
+
+    /**
+     * Caches the filter of a package, unless the cache was invalidated since the given generation.
+     */
+    public synchronized void put(@NonNull final String packageName, @NonNull final CompiledNotificationFilter filter, final long lookupGeneration) {
+        if (lookupGeneration == generation) {
+            filters.put(packageName.toLowerCase(), filter);
+        }
+    }
+
+    /**
+     * Must be called after the filter of the given package was changed.
+     */
+    public synchronized void invalidate(@NonNull final String packageName) {
+        generation++;
+        filters.remove(packageName.toLowerCase());
+    }
+
+    /**
+     * Must be called after the database was replaced or reopened.
+     */
+    public synchronized void invalidateAll() {
+        generation++;
+        filters.clear();
+    }
+}
@@ -58,7 +58,6 @@ import androidx.core.app.RemoteInput;
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 
 import org.apache.commons.lang3.StringUtils;
-import org.apache.commons.lang3.Strings;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -98,9 +97,6 @@ import nodomain.freeyourgadget.gadgetbridge.util.MediaManager;
 import nodomain.freeyourgadget.gadgetbridge.util.NotificationUtils;
 import nodomain.freeyourgadget.gadgetbridge.util.Prefs;
 
-import static nodomain.freeyourgadget.gadgetbridge.activities.NotificationFilterActivity.NOTIFICATION_FILTER_MODE_BLACKLIST;
-import static nodomain.freeyourgadget.gadgetbridge.activities.NotificationFilterActivity.NOTIFICATION_FILTER_MODE_WHITELIST;
-import static nodomain.freeyourgadget.gadgetbridge.activities.NotificationFilterActivity.NOTIFICATION_FILTER_SUBMODE_ALL;
 import static nodomain.freeyourgadget.gadgetbridge.util.StringUtils.ensureNotNull;
 
 public class NotificationListener extends NotificationListenerService {
@@ -608,12 +604,32 @@ public class NotificationListener extends NotificationListenerService {
     }
 
     private boolean checkNotificationContentForWhiteAndBlackList(String packageName, String body) {
+        final NotificationFilterCache cache = NotificationFilterCache.getInstance();
+        CompiledNotificationFilter compiledFilter = cache.get(packageName);
+        if (compiledFilter == null) {
+            final long generation = cache.getGeneration();
+            compiledFilter = loadNotificationFilter(packageName);
+            if (compiledFilter == null) {
+                return true;
+            }
+            cache.put(packageName, compiledFilter, generation);
+        }
+
+        return compiledFilter.shouldContinue(body);
+    }
+
+    /**
+     * @return the compiled filter for the package, {@link CompiledNotificationFilter#NONE} if it
+     * has none, or null if it could not be loaded
+     */
+    @Nullable
+    private CompiledNotificationFilter loadNotificationFilter(String packageName) {
         long start = System.currentTimeMillis();
 
         List<String> wordsList = new ArrayList<>();
         NotificationFilter notificationFilter;
 
-        try (DBHandler db = GBApplication.acquireDB()) {
+        try (DBHandler db = GBApplication.acquireReadOnlyDB()) {
 
             NotificationFilterDao notificationFilterDao = db.getDaoSession().getNotificationFilterDao();
             NotificationFilterEntryDao notificationFilterEntryDao = db.getDaoSession().getNotificationFilterEntryDao();
@@ -623,7 +639,7 @@ public class NotificationListener extends NotificationListenerService {
 
             if (notificationFilter == null) {
                 LOG.debug("No Notification Filter found");
-                return true;
+                return CompiledNotificationFilter.NONE;
             }
 
             LOG.debug("Loaded notification filter for '{}'", packageName);
@@ -644,10 +660,12 @@ public class NotificationListener extends NotificationListenerService {
 
         } catch (Exception e) {
             LOG.error("Could not acquire DB.", e);
-            return true;
+            return null;
         }
 
-        return shouldContinueAfterFilter(body, wordsList, notificationFilter);
+        LOG.debug("Mode: '{}' Submode: '{}' WordsList: '{}'", notificationFilter.getNotificationFilterMode(), notificationFilter.getNotificationFilterSubMode(), wordsList);
+
+        return CompiledNotificationFilter.compile(notificationFilter, wordsList);
     }
 
     private void handleCallNotification(StatusBarNotification sbn) {
@@ -740,52 +758,7 @@ public class NotificationListener extends NotificationListenerService {
     boolean shouldContinueAfterFilter(String body, @NonNull List<String> wordsList, @NonNull NotificationFilter notificationFilter) {
         LOG.debug("Mode: '{}' Submode: '{}' WordsList: '{}'", notificationFilter.getNotificationFilterMode(), notificationFilter.getNotificationFilterSubMode(), wordsList);
 
-        boolean allMode = notificationFilter.getNotificationFilterSubMode() == NOTIFICATION_FILTER_SUBMODE_ALL;
-
-        switch (notificationFilter.getNotificationFilterMode()) {
-            case NOTIFICATION_FILTER_MODE_BLACKLIST:
-                if (allMode) {
-                    for (String word : wordsList) {
-                        if (!body.contains(word)) {
-                            LOG.info("Not every word was found, blacklist has no effect, processing continues.");
-                            return true;
-                        }
-                    }
-                    LOG.info("Every word was found, blacklist has effect, processing stops.");
-                    return false;
-                } else {
-                    boolean containsAny = Strings.CS.containsAny(body, wordsList.toArray(new CharSequence[0]));
-                    if (!containsAny) {
-                        LOG.info("No matching word was found, blacklist has no effect, processing continues.");
-                    } else {
-                        LOG.info("At least one matching word was found, blacklist has effect, processing stops.");
-                    }
-                    return !containsAny;
-                }
-
-            case NOTIFICATION_FILTER_MODE_WHITELIST:
-                if (allMode) {
-                    for (String word : wordsList) {
-                        if (!body.contains(word)) {
-                            LOG.info("Not every word was found, whitelist has no effect, processing stops.");
-                            return false;
-                        }
-                    }
-                    LOG.info("Every word was found, whitelist has effect, processing continues.");
-                    return true;
-                } else {
-                    boolean containsAny = Strings.CS.containsAny(body, wordsList.toArray(new CharSequence[0]));
-                    if (containsAny) {
-                        LOG.info("At least one matching word was found, whitelist has effect, processing continues.");
-                    } else {
-                        LOG.info("No matching word was found, whitelist has no effect, processing stops.");
-                    }
-                    return containsAny;
-                }
-
-            default:
-                return true;
-        }
+        return CompiledNotificationFilter.compile(notificationFilter, wordsList).shouldContinue(body);
     }
 
     // Strip Unicode control sequences: some apps like Telegram add a lot of them for unknown reasons.
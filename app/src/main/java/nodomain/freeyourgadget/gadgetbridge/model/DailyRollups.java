@@ -0,0 +1,257 @@
+package nodomain.freeyourgadget.gadgetbridge.model;
+
+import androidx.annotation.NonNull;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import nodomain.freeyourgadget.gadgetbridge.GBApplication;
+import nodomain.freeyourgadget.gadgetbridge.database.DBHandler;
+import nodomain.freeyourgadget.gadgetbridge.database.DBHelper;
+import nodomain.freeyourgadget.gadgetbridge.entities.AbstractActivitySample;
+import nodomain.freeyourgadget.gadgetbridge.entities.AbstractTimeSample;
+import nodomain.freeyourgadget.gadgetbridge.entities.DailyRollup;
+import nodomain.freeyourgadget.gadgetbridge.entities.DailyRollupDao;
+import nodomain.freeyourgadget.gadgetbridge.entities.DaoSession;
+import nodomain.freeyourgadget.gadgetbridge.entities.Device;
+import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
+
+/**
+ * Keeps the {@link DailyTotals} of past days in the {@link DailyRollup} table, so that they do not
+ * have to be calculated from the samples of the day each time.
+ * <p>
+ * A day is only kept once it is over, since its samples are still changing until then. Its row is
+ * deleted whenever samples within the day or the sleep window before it are written, see
+ * {@link #invalidate(DaoSession, long, long, long)}, and created again by a background thread the
+ * next time the day is requested. That thread holds exclusive database access while calculating,
+ * so that no sample can be written in between.
+ * <p>
+ * The resting calories are not kept, since they do not come from the samples of the day.
+ */
+public final class DailyRollups {
+    private static final Logger LOG = LoggerFactory.getLogger(DailyRollups.class);
+
+    private static final long DAY_SECONDS = TimeUnit.DAYS.toSeconds(1);
+    // the row of a day covers the samples from 12h before (sleep) until its end, plus an hour for DST
+    private static final long INVALIDATE_BEFORE_SECONDS = TimeUnit.HOURS.toSeconds(25);
+    private static final long INVALIDATE_AFTER_SECONDS = TimeUnit.HOURS.toSeconds(13);
+    // days calculated per exclusive database access
+    private static final int DAYS_PER_BATCH = 8;
+    private static final int MAX_PENDING = 4096;
+
+    private static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor(runnable -> {
+        final Thread thread = new Thread(runnable, "Daily rollups");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // the days to calculate, by device address and day start; guarded by itself
+    private static final Map<String, Request> PENDING = new LinkedHashMap<>();
+    private static boolean scheduled;
+
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+    private static final AtomicLong created = new AtomicLong();
+
+    private static final class Request {
+        private final GBDevice device;
+        private final int dayStart;
+
+        private Request(final GBDevice device, final int dayStart) {
+            this.device = device;
+            this.dayStart = dayStart;
+        }
+    }
+
+    private DailyRollups() {
+    }
+
+    /**
+     * @return the totals of the given day, from the rollup table if possible
+     */
+    @NonNull
+    static DailyTotals getDailyTotals(final GBDevice device, final Calendar day, final DBHandler db) {
+        final int dayStart = getDayStart(day);
+        if (!isOver(dayStart)) {
+            return DailyTotals.calculateDailyTotalsForDevice(device, day, db);
+        }
+
+        final DaoSession session = db.getDaoSession();
+        final Long deviceId = DBHelper.findDeviceId(device, session);
+        if (deviceId != null) {
+            final DailyRollup rollup = session.getDailyRollupDao().queryBuilder()
+                    .where(DailyRollupDao.Properties.DeviceId.eq(deviceId), DailyRollupDao.Properties.DayStart.eq(dayStart))
+                    .unique();
+            if (rollup != null) {
+                hits.incrementAndGet();
+                return DailyTotals.fromRollup(device, day, rollup, db);
+            }
+        }
+
+        misses.incrementAndGet();
+        requestRollup(device, dayStart);
+        return DailyTotals.calculateDailyTotalsForDevice(device, day, db);
+    }
+
+    static int getDayStart(final Calendar day) {
+        final Calendar start = (Calendar) day.clone();
+        start.set(Calendar.HOUR_OF_DAY, 0);
+        start.set(Calendar.MINUTE, 0);
+        start.set(Calendar.SECOND, 0);
+        start.set(Calendar.MILLISECOND, 0);
+        return (int) (start.getTimeInMillis() / 1000);
+    }
+
+    private static boolean isOver(final int dayStart) {
+        return dayStart + DAY_SECONDS <= System.currentTimeMillis() / 1000;
+    }
+
+    /**
+     * Deletes the rows of all days that may include samples of the given device between the given
+     * timestamps, in seconds. Must be called with the session that writes the samples.
+     */
+    public static void invalidate(final DaoSession session, final long deviceId, final long fromSeconds, final long toSeconds) {
+        session.getDailyRollupDao().queryBuilder()
+                .where(DailyRollupDao.Properties.DeviceId.eq(deviceId),
+                        DailyRollupDao.Properties.DayStart.ge(fromSeconds - INVALIDATE_BEFORE_SECONDS),
+                        DailyRollupDao.Properties.DayStart.le(toSeconds + INVALIDATE_AFTER_SECONDS))
+                .buildDelete()
+                .executeDeleteWithoutDetachingEntities();
+    }
+
+    /**
+     * Deletes the rows of all days that include the given samples.
+     */
+    public static void invalidateActivitySamples(final DaoSession session, final Iterable<? extends AbstractActivitySample> samples) {
+        final Map<Long, long[]> ranges = new LinkedHashMap<>();
+        for (final AbstractActivitySample sample : samples) {
+            addToRange(ranges, sample.getDeviceId(), sample.getTimestamp());
+        }
+        invalidateRanges(session, ranges);
+    }
+
+    /**
+     * Deletes the rows of all days that include the given samples, since the activity samples of
+     * some devices are merged with time samples, such as sleep stages.
+     */
+    public static void invalidateTimeSamples(final DaoSession session, final Iterable<? extends AbstractTimeSample> samples) {
+        final Map<Long, long[]> ranges = new LinkedHashMap<>();
+        for (final AbstractTimeSample sample : samples) {
+            addToRange(ranges, sample.getDeviceId(), sample.getTimestamp() / 1000);
+        }
+        invalidateRanges(session, ranges);
+    }
+
+    /**
+     * Deletes all rows of the given device, and forgets the days still to be calculated for it.
+     * Must be called with the session that deletes the device.
+     */
+    public static void deleteDevice(final DaoSession session, final Device device) {
+        session.getDailyRollupDao().queryBuilder()
+                .where(DailyRollupDao.Properties.DeviceId.eq(device.getId()))
+                .buildDelete()
+                .executeDeleteWithoutDetachingEntities();
+        synchronized (PENDING) {
+            PENDING.keySet().removeIf(key -> key.startsWith(device.getIdentifier() + "/"));
+        }
+    }
+
+    private static void addToRange(final Map<Long, long[]> ranges, final long deviceId, final long timestamp) {
+        final long[] range = ranges.get(deviceId);
+        if (range == null) {
+            ranges.put(deviceId, new long[]{timestamp, timestamp});
+        } else {
+            range[0] = Math.min(range[0], timestamp);
+            range[1] = Math.max(range[1], timestamp);
+        }
+    }
+
+    private static void invalidateRanges(final DaoSession session, final Map<Long, long[]> ranges) {
+        for (final Map.Entry<Long, long[]> entry : ranges.entrySet()) {
+            invalidate(session, entry.getKey(), entry.getValue()[0], entry.getValue()[1]);
+        }
+    }
+
+    private static void requestRollup(final GBDevice device, final int dayStart) {
+        synchronized (PENDING) {
+            if (PENDING.size() >= MAX_PENDING) {
+                return;
+            }
+            PENDING.put(device.getAddress() + "/" + dayStart, new Request(device, dayStart));
+            if (scheduled) {
+                return;
+            }
+            scheduled = true;
+        }
+        EXECUTOR.execute(DailyRollups::createPending);
+    }
+
+    private static void createPending() {
+        while (true) {
+            final List<Request> batch = new ArrayList<>(DAYS_PER_BATCH);
+            synchronized (PENDING) {
+                final Iterator<Request> it = PENDING.values().iterator();
+                while (it.hasNext() && batch.size() < DAYS_PER_BATCH) {
+                    batch.add(it.next());
+                    it.remove();
+                }
+                if (batch.isEmpty()) {
+                    scheduled = false;
+                    return;
+                }
+            }
+
+            try (DBHandler db = GBApplication.acquireDB()) {
+                for (final Request request : batch) {
+                    createRollup(request, db);
+                }
+            } catch (final Exception e) {
+                LOG.error("Failed to create the rollups of {} days", batch.size(), e);
+            }
+        }
+    }
+
+    private static void createRollup(final Request request, final DBHandler db) {
+        final DaoSession session = db.getDaoSession();
+        final Long deviceId = DBHelper.findDeviceId(request.device, session);
+        if (deviceId == null) {
+            // deleted in the meantime
+            return;
+        }
+        final Calendar day = Calendar.getInstance();
+        day.setTimeInMillis(request.dayStart * 1000L);
+        final DailyTotals totals = DailyTotals.calculateDailyTotalsForDevice(request.device, day, db);
+        final long[] sleep = totals.getSleepMinutes();
+        session.getDailyRollupDao().insertOrReplace(new DailyRollup(
+                request.dayStart, deviceId, totals.getSteps(), totals.getDistance(), totals.getActiveCalories(),
+                (int) sleep[0], (int) sleep[1], (int) sleep[2], (int) sleep[3]
+        ));
+        created.incrementAndGet();
+    }
+
+    public static long getHits() {
+        return hits.get();
+    }
+
+    public static long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return the number of rows created since the start of the app
+     */
+    public static long getCreated() {
+        return created.get();
+    }
+}
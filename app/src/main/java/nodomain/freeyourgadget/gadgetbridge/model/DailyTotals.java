@@ -33,6 +33,7 @@ import nodomain.freeyourgadget.gadgetbridge.devices.DefaultRestingMetabolicRateP
 import nodomain.freeyourgadget.gadgetbridge.devices.DeviceCoordinator;
 import nodomain.freeyourgadget.gadgetbridge.devices.SampleProvider;
 import nodomain.freeyourgadget.gadgetbridge.entities.AbstractActivitySample;
+import nodomain.freeyourgadget.gadgetbridge.entities.DailyRollup;
 import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
 
 
@@ -78,9 +79,16 @@ public class DailyTotals implements Serializable {
         return sleep[0] + sleep[1] + sleep[2];
     }
 
+    /**
+     * @return the minutes of light, deep, rem and awake sleep
+     */
+    long[] getSleepMinutes() {
+        return sleep;
+    }
+
     public static DailyTotals getDailyTotalsForDevice(GBDevice device, Calendar day) {
 
-        try (DBHandler handler = GBApplication.acquireDB()) {
+        try (DBHandler handler = GBApplication.acquireReadOnlyDB()) {
             return getDailyTotalsForDevice(device, day, handler);
         } catch (Exception e) {
             //GB.toast("Error loading sleep/steps widget data for device: " + device, Toast.LENGTH_SHORT, GB.ERROR, e);
@@ -89,6 +97,18 @@ public class DailyTotals implements Serializable {
     }
 
     public static DailyTotals getDailyTotalsForDevice(GBDevice device, Calendar day, DBHandler handler) {
+        return DailyRollups.getDailyTotals(device, day, handler);
+    }
+
+    static DailyTotals fromRollup(GBDevice device, Calendar day, DailyRollup rollup, DBHandler handler) {
+        long[] sleep = new long[]{rollup.getLightSleepMinutes(), rollup.getDeepSleepMinutes(), rollup.getRemSleepMinutes(), rollup.getAwakeSleepMinutes()};
+        return new DailyTotals(rollup.getSteps(), rollup.getDistance(), sleep, rollup.getActiveCalories(), getRestingCaloriesOfDay(handler, day, device));
+    }
+
+    /**
+     * Calculates the totals from the samples of the day, without looking at the {@link DailyRollups}.
+     */
+    static DailyTotals calculateDailyTotalsForDevice(GBDevice device, Calendar day, DBHandler handler) {
         ActivityAnalysis analysis = new ActivityAnalysis();
         ActivityAmounts totalAmounts;
         ActivityAmounts amountsSleep;
@@ -19,8 +19,29 @@ package nodomain.freeyourgadget.gadgetbridge.service.btle;
 import nodomain.freeyourgadget.gadgetbridge.util.DateTimeUtils;
 
 public abstract class AbstractTransaction {
+    /**
+     * The lane of the queue a transaction waits in. Lanes are served in this order, and queued
+     * transactions of a higher lane run between two actions of a preemptible one.
+     */
+    public enum Priority {
+        /** Time critical exchanges, such as notifications, find device or music control. */
+        REALTIME,
+        /** Actions the user waits for, such as changing a setting. The default. */
+        INTERACTIVE,
+        /** Large transfers, such as firmware, watchface or AGPS uploads. */
+        BULK,
+        /** Anything that may wait, such as periodic syncs. */
+        BACKGROUND;
+
+        public boolean isPreemptible() {
+            return this == BULK || this == BACKGROUND;
+        }
+    }
+
     private final String mName;
     private final long creationTimestamp = System.currentTimeMillis();
+    private Priority mPriority = Priority.INTERACTIVE;
+    private long mQueuedAtNanos;
 
     public AbstractTransaction(String taskName) {
         this.mName = taskName;
@@ -34,12 +55,33 @@ public abstract class AbstractTransaction {
         return DateTimeUtils.formatLocalTime(creationTimestamp);
     }
 
+    public Priority getPriority() {
+        return mPriority;
+    }
+
+    /**
+     * Transactions of a preemptible priority must not rely on being run without other
+     * transactions in between their actions.
+     */
+    public void setPriority(Priority priority) {
+        mPriority = priority;
+    }
+
+    long getQueuedAtNanos() {
+        return mQueuedAtNanos;
+    }
+
+    void setQueuedAtNanos(long queuedAtNanos) {
+        mQueuedAtNanos = queuedAtNanos;
+    }
+
     public abstract int getActionCount();
 
     @Override
     public String toString() {
         return getCreationTime() + " " + getClass().getSimpleName() + " with "
-                + getActionCount() + " actions for " + getTaskName();
+                + getActionCount() + " actions for " + getTaskName()
+                + (mPriority != Priority.INTERACTIVE ? " (" + mPriority + ")" : "");
     }
 
 }
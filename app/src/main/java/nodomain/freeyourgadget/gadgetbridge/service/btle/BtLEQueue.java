@@ -43,11 +43,12 @@ import androidx.annotation.RequiresApi;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
-import java.util.concurrent.BlockingDeque;
+import java.util.UUID;
 import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -76,7 +77,7 @@ public final class BtLEQueue implements Thread.UncaughtExceptionHandler {
     private BluetoothGattServer mBluetoothGattServer;
     private final Set<? extends BluetoothGattService> mSupportedServerServices;
 
-    private final BlockingDeque<AbstractTransaction> mTransactions;
+    private final TransactionLanes mTransactions;
     private final AtomicBoolean mDisposed;
     private volatile boolean mAbortTransaction;
     private volatile boolean mAbortServerTransaction;
@@ -87,6 +88,8 @@ public final class BtLEQueue implements Thread.UncaughtExceptionHandler {
     private CountDownLatch mWaitForServerActionResultLatch;
     private CountDownLatch mConnectionLatch;
     private BluetoothGattCharacteristic mWaitCharacteristic;
+    private final WriteWindow mWriteWindow = new WriteWindow();
+    private final BtLEQueueMetrics mMetrics;
     private final NoThrowBluetoothGattCallback<InternalGattCallback> internalGattCallback;
     private final InternalGattServerCallback internalGattServerCallback;
     private final AbstractBTLEDeviceSupport mDeviceSupport;
@@ -123,98 +126,235 @@ public final class BtLEQueue implements Thread.UncaughtExceptionHandler {
                         mConnectionLatch = null;
                     }
 
-                    if (qTransaction instanceof final ServerTransaction serverTransaction) {
-                        internalGattServerCallback.setTransactionGattCallback(serverTransaction.getGattCallback());
-                        mAbortServerTransaction = false;
+                    runTransaction(qTransaction, false);
+                } catch (InterruptedException ignored) {
+                    mConnectionLatch = null;
+                    LOG.debug("Queue Dispatch Thread interrupted");
+                } catch (Throwable ex) {
+                    LOG.error("Queue Dispatch Thread died", ex);
+                    crashed = true;
+                    mConnectionLatch = null;
+                } finally {
+                    mWaitForActionResultLatch = null;
+                    mWaitCharacteristic = null;
+                }
+            }
+            LOG.debug("finished thread {}", Thread.currentThread().getName());
+        }
 
-                        for (final BtLEServerAction action : serverTransaction.getActions()) {
-                            if (mAbortServerTransaction) { // got disconnected
-                                LOG.info("Aborting running server transaction");
+        /**
+         * @param preempting whether the transaction runs in between the actions of a preempted one,
+         *                   whose GATT callback must stay installed
+         */
+        private void runTransaction(final AbstractTransaction qTransaction, final boolean preempting) throws InterruptedException {
+            if (qTransaction instanceof final ServerTransaction serverTransaction) {
+                internalGattServerCallback.setTransactionGattCallback(serverTransaction.getGattCallback());
+                mAbortServerTransaction = false;
+
+                for (final BtLEServerAction action : serverTransaction.getActions()) {
+                    if (mAbortServerTransaction) { // got disconnected
+                        LOG.info("Aborting running server transaction");
+                        break;
+                    }
+                    if (LOG.isDebugEnabled()) {
+                        LOG.debug("execute server: {}", action);
+                    }
+                    if (action.run(mBluetoothGattServer)) {
+                        // check again, maybe due to some condition, action did not need to write, so we can't wait
+                        boolean waitForResult = action.expectsResult();
+                        if (waitForResult) {
+                            mWaitForServerActionResultLatch.await();
+                            mWaitForServerActionResultLatch = null;
+                            if (mAbortServerTransaction) {
                                 break;
                             }
-                            if (LOG.isDebugEnabled()) {
-                                LOG.debug("execute server: {}", action);
-                            }
-                            if (action.run(mBluetoothGattServer)) {
-                                // check again, maybe due to some condition, action did not need to write, so we can't wait
-                                boolean waitForResult = action.expectsResult();
-                                if (waitForResult) {
-                                    mWaitForServerActionResultLatch.await();
-                                    mWaitForServerActionResultLatch = null;
-                                    if (mAbortServerTransaction) {
-                                        break;
-                                    }
-                                }
-                            } else {
-                                LOG.error("Server action returned false: {}", action);
+                        }
+                    } else {
+                        LOG.error("Server action returned false: {}", action);
+                        break; // abort the transaction
+                    }
+                }
+            }
+
+            if (qTransaction instanceof final Transaction transaction) {
+                LOG.trace("Changing gatt callback for {}? {}", transaction.getTaskName(), transaction.isModifyGattCallback());
+                if (preempting) {
+                    internalGattCallback.Delegate.startPreempting(transaction.isModifyGattCallback() ? transaction.getGattCallback() : null,
+                            getCharacteristics(transaction));
+                } else if (mImplicitGattCallbackModify || transaction.isModifyGattCallback()) {
+                    internalGattCallback.Delegate.setTransactionGattCallback(transaction.getGattCallback());
+                }
+                mAbortTransaction = false;
+                final boolean pipelined = transaction.getWriteWindow() > 1;
+                // preempting transactions are never preempted themselves, the preempted one picks
+                // up the transactions that were queued in the meantime
+                final boolean preemptible = !preempting && transaction.getPriority().isPreemptible();
+                final Set<UUID> ownCharacteristics = preemptible ? getCharacteristics(transaction) : Collections.emptySet();
+                mWriteWindow.reset(transaction.getWriteWindow());
+                boolean firstAction = true;
+                // Run all actions of the transaction until one doesn't succeed
+                for (final BtLEAction action : transaction.getActions()) {
+                    if (preemptible && !firstAction && !runPreempting(transaction, ownCharacteristics)) {
+                        LOG.info("Aborting preempted transaction");
+                        break;
+                    }
+                    firstAction = false;
+                    if (mAbortTransaction) { // got disconnected
+                        LOG.info("Aborting running transaction");
+                        break;
+                    }
+                    while ((action instanceof WriteAction) && mPauseTransaction && !mAbortTransaction) {
+                      LOG.info("Pausing WriteAction");
+                      try {
+                          Thread.sleep(100L);
+                      } catch (Exception e) {
+                          LOG.info("Exception during pause", e);
+                          break;
+                      }
+                    }
+                    if (pipelined) {
+                        if (isPipelinable(action)) {
+                            if (!runPipelined(action)) {
                                 break; // abort the transaction
                             }
+                            continue;
+                        }
+                        // serial actions must not see the callbacks of the writes in flight
+                        if (!mWriteWindow.awaitIdle()) {
+                            break;
                         }
                     }
-
-                    if (qTransaction instanceof final Transaction transaction) {
-                        LOG.trace("Changing gatt callback for {}? {}", transaction.getTaskName(), transaction.isModifyGattCallback());
-                        if (mImplicitGattCallbackModify || transaction.isModifyGattCallback()) {
-                            internalGattCallback.Delegate.setTransactionGattCallback(transaction.getGattCallback());
+                    mWaitCharacteristic = action.getCharacteristic();
+                    mWaitForActionResultLatch = new CountDownLatch(1);
+                    if (LOG.isDebugEnabled()) {
+                        LOG.debug("execute: {}", action);
+                    }
+                    if (action instanceof final GattListenerAction listenerAction) {
+                        // this special action overwrites the transaction gatt listener (if any), it must
+                        // always be the last action in the transaction
+                        if (preempting) {
+                            internalGattCallback.Delegate.setPreemptingGattCallback(listenerAction.getGattCallback());
+                        } else {
+                            internalGattCallback.Delegate.setTransactionGattCallback(listenerAction.getGattCallback());
                         }
-                        mAbortTransaction = false;
-                        // Run all actions of the transaction until one doesn't succeed
-                        for (final BtLEAction action : transaction.getActions()) {
-                            if (mAbortTransaction) { // got disconnected
-                                LOG.info("Aborting running transaction");
+                    }
+                    final long started = System.nanoTime();
+                    if (action.run(mBluetoothGatt)) {
+                        recordBytesOut(action);
+                        // check again, maybe due to some condition, action did not need to write, so we can't wait
+                        boolean waitForResult = action.expectsResult();
+                        if (waitForResult) {
+                            mWaitForActionResultLatch.await();
+                            mWaitForActionResultLatch = null;
+                            if (mAbortTransaction) {
                                 break;
                             }
-                            while ((action instanceof WriteAction) && mPauseTransaction && !mAbortTransaction) {
-                              LOG.info("Pausing WriteAction");
-                              try {
-                                  Thread.sleep(100L);
-                              } catch (Exception e) {
-                                  LOG.info("Exception during pause", e);
-                                  break;
-                              }
-                            }
-                            mWaitCharacteristic = action.getCharacteristic();
-                            mWaitForActionResultLatch = new CountDownLatch(1);
-                            if (LOG.isDebugEnabled()) {
-                                LOG.debug("execute: {}", action);
-                            }
-                            if (action instanceof final GattListenerAction listenerAction) {
-                                // this special action overwrites the transaction gatt listener (if any), it must
-                                // always be the last action in the transaction
-                                internalGattCallback.Delegate.setTransactionGattCallback(listenerAction.getGattCallback());
-                            }
-                            if (action.run(mBluetoothGatt)) {
-                                // check again, maybe due to some condition, action did not need to write, so we can't wait
-                                boolean waitForResult = action.expectsResult();
-                                if (waitForResult) {
-                                    mWaitForActionResultLatch.await();
-                                    mWaitForActionResultLatch = null;
-                                    if (mAbortTransaction) {
-                                        break;
-                                    }
-                                }
-                            } else {
-                                LOG.error("Action returned false: {}", action);
-                                break; // abort the transaction
-                            }
+                            mMetrics.recordAction(action, System.nanoTime() - started);
                         }
+                    } else {
+                        LOG.error("Action returned false: {}", action);
+                        break; // abort the transaction
                     }
-                } catch (InterruptedException ignored) {
-                    mConnectionLatch = null;
-                    LOG.debug("Queue Dispatch Thread interrupted");
-                } catch (Throwable ex) {
-                    LOG.error("Queue Dispatch Thread died", ex);
-                    crashed = true;
-                    mConnectionLatch = null;
-                } finally {
-                    mWaitForActionResultLatch = null;
-                    mWaitCharacteristic = null;
+                }
+                if (pipelined) {
+                    // the transaction is only done once its last writes completed
+                    mWriteWindow.awaitIdle();
                 }
             }
-            LOG.debug("finished thread {}", Thread.currentThread().getName());
+        }
+
+        /**
+         * Runs the transactions waiting in lanes above the one of the given transaction, in
+         * between two of its actions, and prepares the given transaction to continue.
+         * <p>
+         * The GATT callback of the given transaction stays installed meanwhile. Only the events of
+         * the characteristics that the preempting transactions use, and the given one does not,
+         * are routed to the callbacks of the preempting transactions.
+         *
+         * @param ownCharacteristics the characteristics used by the actions of the given transaction
+         * @return false if the given transaction must be aborted
+         */
+        private boolean runPreempting(final Transaction transaction, final Set<UUID> ownCharacteristics) throws InterruptedException {
+            AbstractTransaction preempting = mTransactions.pollAbove(transaction.getPriority());
+            if (preempting == null) {
+                return true;
+            }
+            if (!mWriteWindow.awaitIdle()) {
+                return false;
+            }
+            internalGattCallback.Delegate.setPreemptedCharacteristics(ownCharacteristics);
+            try {
+                do {
+                    LOG.debug("{} preempted by {}", transaction.getTaskName(), preempting);
+                    runTransaction(preempting, true);
+                    if (!isConnected()) {
+                        return false;
+                    }
+                    preempting = mTransactions.pollAbove(transaction.getPriority());
+                } while (preempting != null);
+            } finally {
+                internalGattCallback.Delegate.stopPreempting();
+            }
+
+            // a failed preempting transaction must not abort the preempted one
+            mAbortTransaction = false;
+            mWriteWindow.reset(transaction.getWriteWindow());
+            return true;
         }
     };
 
+    private static Set<UUID> getCharacteristics(final Transaction transaction) {
+        final Set<UUID> characteristics = new HashSet<>();
+        for (final BtLEAction action : transaction.getActions()) {
+            final BluetoothGattCharacteristic characteristic = action.getCharacteristic();
+            if (characteristic != null) {
+                characteristics.add(characteristic.getUuid());
+            }
+        }
+        return characteristics;
+    }
+
+    private static boolean isPipelinable(final BtLEAction action) {
+        return action instanceof WriteAction
+                && action.getCharacteristic() != null
+                && action.getCharacteristic().getWriteType() == BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE;
+    }
+
+    /**
+     * Issues a write of a pipelined transaction without waiting for its result, once a credit of
+     * the {@link WriteWindow} is available.
+     *
+     * @return false if the transaction must be aborted
+     */
+    private boolean runPipelined(final BtLEAction action) throws InterruptedException {
+        while (true) {
+            if (!mWriteWindow.acquire()) {
+                return false;
+            }
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("execute pipelined ({} in flight): {}", mWriteWindow.getInFlight(), action);
+            }
+            if (action.run(mBluetoothGatt)) {
+                recordBytesOut(action);
+                return true;
+            }
+            // the stack may still be busy with a previous write, retry once that one completed
+            if (!mWriteWindow.retryAfterCompletion()) {
+                LOG.error("Action returned false: {}", action);
+                return false;
+            }
+        }
+    }
+
+    private void recordBytesOut(final BtLEAction action) {
+        if (action instanceof final WriteAction writeAction) {
+            final byte[] value = writeAction.getValue();
+            if (value != null) {
+                mMetrics.recordBytesOut(value.length);
+            }
+        }
+    }
+
     BtLEQueue(GBDevice gbDevice, Set<? extends BluetoothGattService> supportedServerServices, AbstractBTLEDeviceSupport deviceSupport) {
         // 1) apply all settings
         mBluetoothAdapter = deviceSupport.getBluetoothAdapter();
@@ -233,7 +373,8 @@ public final class BtLEQueue implements Thread.UncaughtExceptionHandler {
         // 2) create new objects
         mDisposed = new AtomicBoolean(false);
         mGattMonitor = new Object();
-        mTransactions = new LinkedBlockingDeque<>();
+        mTransactions = new TransactionLanes();
+        mMetrics = BtLEQueueMetrics.forDevice(gbDevice.getAddress());
         internalGattCallback = new NoThrowBluetoothGattCallback<>(new InternalGattCallback(deviceSupport));
         internalGattServerCallback = new InternalGattServerCallback(deviceSupport);
         mDispatchThread = new Thread(new DispatchRunnable(), "BtLEQueue_" + threadIdx + "_out");
@@ -383,10 +524,17 @@ public final class BtLEQueue implements Thread.UncaughtExceptionHandler {
     private void handleDisconnected(int status) {
         LOG.debug("handleDisconnected: {}", BleNamesResolver.getStatusString(status));
         internalGattCallback.Delegate.reset();
+        if (LOG.isDebugEnabled()) {
+            for (final TransactionLanes.LaneStats laneStats : mTransactions.getStats()) {
+                LOG.debug("lane {}", laneStats);
+            }
+            LOG.debug("metrics {}", mMetrics);
+        }
         mTransactions.clear();
         mPauseTransaction = false;
         mAbortTransaction = true;
         mAbortServerTransaction = true;
+        mWriteWindow.abort();
         final CountDownLatch clientLatch = mWaitForActionResultLatch;
         if (clientLatch != null) {
             clientLatch.countDown();
@@ -468,6 +616,7 @@ public final class BtLEQueue implements Thread.UncaughtExceptionHandler {
         }
 
         disconnect();
+        mWriteWindow.abort();
 
         if (mReceiverThread != null && mReceiverThread.isAlive()) {
             mReceiverHandler.post(() -> {
@@ -498,6 +647,7 @@ public final class BtLEQueue implements Thread.UncaughtExceptionHandler {
      */
     public void abortCurrentTransaction() {
         mAbortTransaction = true;
+        mWriteWindow.abort();
         final CountDownLatch latch = mWaitForActionResultLatch;
         if (latch != null) {
             latch.countDown();
@@ -515,7 +665,7 @@ public final class BtLEQueue implements Thread.UncaughtExceptionHandler {
     }
 
     /**
-     * Adds a transaction to the beginning of the queue.
+     * Adds a transaction to the beginning of the lane of its priority.
      * Note that actions of the *currently executing* transaction
      * will still be executed before the given transaction.
      */
@@ -530,6 +680,20 @@ public final class BtLEQueue implements Thread.UncaughtExceptionHandler {
         mTransactions.clear();
     }
 
+    /**
+     * @return the depth and wait time metrics of each priority lane, in priority order
+     */
+    public TransactionLanes.LaneStats[] getLaneStats() {
+        return mTransactions.getStats();
+    }
+
+    /**
+     * @return the latency and throughput metrics of the device of this queue
+     */
+    public BtLEQueueMetrics getMetrics() {
+        return mMetrics;
+    }
+
     /** @noinspection BooleanMethodIsAlwaysInverted*/
     private boolean checkCorrectGattInstance(BluetoothGatt gatt, String where) {
         if (gatt != mBluetoothGatt && mBluetoothGatt != null) {
@@ -562,10 +726,41 @@ public final class BtLEQueue implements Thread.UncaughtExceptionHandler {
             mExternalGattCallback = externalGattCallback;
         }
 
+        // set while a transaction runs in between the actions of a preempted one, whose callback
+        // stays in mTransactionGattCallback
+        private volatile Set<UUID> mPreemptedCharacteristics = Collections.emptySet();
+        private volatile Set<UUID> mPreemptingCharacteristics = Collections.emptySet();
+        private volatile
+        @Nullable
+        GattCallback mPreemptingGattCallback;
+
         void setTransactionGattCallback(@Nullable GattCallback callback) {
             mTransactionGattCallback = callback;
         }
 
+        void setPreemptedCharacteristics(Set<UUID> characteristics) {
+            mPreemptedCharacteristics = characteristics;
+        }
+
+        /**
+         * Routes the events of the given characteristics to the given callback, or to the external
+         * one if null, unless the preempted transaction uses them as well.
+         */
+        void startPreempting(@Nullable GattCallback callback, Set<UUID> characteristics) {
+            mPreemptingGattCallback = callback;
+            mPreemptingCharacteristics = characteristics;
+        }
+
+        void setPreemptingGattCallback(@Nullable GattCallback callback) {
+            mPreemptingGattCallback = callback;
+        }
+
+        void stopPreempting() {
+            mPreemptingCharacteristics = Collections.emptySet();
+            mPreemptedCharacteristics = Collections.emptySet();
+            mPreemptingGattCallback = null;
+        }
+
         private GattCallback getCallbackToUse() {
             final GattCallback callback = mTransactionGattCallback;
             if (callback != null) {
@@ -574,6 +769,17 @@ public final class BtLEQueue implements Thread.UncaughtExceptionHandler {
             return mExternalGattCallback;
         }
 
+        private GattCallback getCallbackToUse(@Nullable BluetoothGattCharacteristic characteristic) {
+            if (characteristic != null) {
+                final UUID uuid = characteristic.getUuid();
+                if (mPreemptingCharacteristics.contains(uuid) && !mPreemptedCharacteristics.contains(uuid)) {
+                    final GattCallback callback = mPreemptingGattCallback;
+                    return callback != null ? callback : mExternalGattCallback;
+                }
+            }
+            return getCallbackToUse();
+        }
+
         @Override
         public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
             final int bondState = gatt.getDevice().getBondState();
@@ -611,6 +817,7 @@ public final class BtLEQueue implements Thread.UncaughtExceptionHandler {
             switch (newState) {
                 case BluetoothProfile.STATE_CONNECTED:
                     LOG.info("Connected to GATT server.");
+                    mMetrics.recordConnected();
                     setDeviceConnectionState(State.CONNECTED);
 
                     // discover services in the main thread (appears to fix Samsung connection problems)
@@ -635,6 +842,7 @@ public final class BtLEQueue implements Thread.UncaughtExceptionHandler {
                     break;
                 case BluetoothProfile.STATE_DISCONNECTED:
                     LOG.info("Disconnected from GATT server.");
+                    mMetrics.recordDisconnected();
                     synchronized (mGattMonitor) {
                         handleDisconnected(status);
                     }
@@ -680,7 +888,7 @@ public final class BtLEQueue implements Thread.UncaughtExceptionHandler {
                 return;
             }
 
-            final GattCallback callback = getCallbackToUse();
+            final GattCallback callback = getCallbackToUse(characteristic);
             if (callback != null) {
                 try {
                     callback.onCharacteristicWrite(gatt, characteristic, status);
@@ -688,6 +896,17 @@ public final class BtLEQueue implements Thread.UncaughtExceptionHandler {
                     LOG.error("onCharacteristicWrite failed", ex);
                 }
             }
+            final long issued = mWriteWindow.release();
+            if (issued >= 0) {
+                // a pipelined write completed, which returns its credit
+                mMetrics.recordLatency(BtLEQueueMetrics.ActionType.WRITE, System.nanoTime() - issued);
+                if (status != BluetoothGatt.GATT_SUCCESS) {
+                    LOG.debug("failed pipelined write, aborting transaction: {} {}", characteristic.getUuid(), BleNamesResolver.getStatusString(status));
+                    mAbortTransaction = true;
+                    mWriteWindow.abort();
+                }
+                return;
+            }
             checkWaitingCharacteristic(characteristic, status);
         }
 
@@ -737,8 +956,9 @@ public final class BtLEQueue implements Thread.UncaughtExceptionHandler {
             if (!checkCorrectGattInstance(gatt, "onCharacteristicRead")) {
                 return;
             }
+            mMetrics.recordBytesIn(value.length);
 
-            final GattCallback callback = getCallbackToUse();
+            final GattCallback callback = getCallbackToUse(characteristic);
             if (callback != null) {
                 try {
                     callback.onCharacteristicRead(gatt, characteristic, value, status);
@@ -767,7 +987,7 @@ public final class BtLEQueue implements Thread.UncaughtExceptionHandler {
                 return;
             }
 
-            final GattCallback callback = getCallbackToUse();
+            final GattCallback callback = getCallbackToUse(descriptor.getCharacteristic());
             if (callback != null) {
                 try {
                     callback.onDescriptorRead(gatt, descriptor, status, value);
@@ -785,7 +1005,7 @@ public final class BtLEQueue implements Thread.UncaughtExceptionHandler {
                 return;
             }
 
-            final GattCallback callback = getCallbackToUse();
+            final GattCallback callback = getCallbackToUse(descriptor.getCharacteristic());
             if (callback != null) {
                 try {
                     callback.onDescriptorWrite(gatt, descriptor, status);
@@ -814,8 +1034,9 @@ public final class BtLEQueue implements Thread.UncaughtExceptionHandler {
             if (!checkCorrectGattInstance(gatt, "characteristic changed")) {
                 return;
             }
+            mMetrics.recordNotification(characteristic.getUuid(), value.length);
 
-            final GattCallback callback = getCallbackToUse();
+            final GattCallback callback = getCallbackToUse(characteristic);
             if (callback != null) {
                 try {
                     callback.onCharacteristicChanged(gatt, characteristic, value);
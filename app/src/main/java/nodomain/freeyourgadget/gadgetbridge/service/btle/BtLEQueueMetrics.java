@@ -0,0 +1,328 @@
+package nodomain.freeyourgadget.gadgetbridge.service.btle;
+
+import androidx.annotation.NonNull;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import nodomain.freeyourgadget.gadgetbridge.service.btle.actions.NotifyAction;
+import nodomain.freeyourgadget.gadgetbridge.service.btle.actions.ReadAction;
+import nodomain.freeyourgadget.gadgetbridge.service.btle.actions.RequestMtuAction;
+import nodomain.freeyourgadget.gadgetbridge.service.btle.actions.WriteAction;
+
+/**
+ * Always-on performance metrics of the {@link BtLEQueue} of one device: latency histograms per
+ * action type, bytes in and out, notifications per characteristic and connection counts.
+ * <p>
+ * The metrics are kept per device address for the lifetime of the process, so that they survive
+ * the queue being recreated on reconnection. Recording only touches atomics and an uncontended
+ * lock per characteristic, so that it can be done on the dispatch and receiver threads.
+ */
+public final class BtLEQueueMetrics {
+    private static final Map<String, BtLEQueueMetrics> REGISTRY = new ConcurrentHashMap<>();
+
+    public enum ActionType {
+        WRITE,
+        READ,
+        NOTIFY,
+        MTU,
+        OTHER;
+
+        static ActionType of(final BtLEAction action) {
+            if (action instanceof WriteAction) {
+                return WRITE;
+            } else if (action instanceof ReadAction) {
+                return READ;
+            } else if (action instanceof NotifyAction) {
+                return NOTIFY;
+            } else if (action instanceof RequestMtuAction) {
+                return MTU;
+            }
+            return OTHER;
+        }
+    }
+
+    private final String address;
+    private final long createdNanos = System.nanoTime();
+    private final LatencyHistogram[] latencies = new LatencyHistogram[ActionType.values().length];
+    private final AtomicLong bytesOut = new AtomicLong();
+    private final AtomicLong bytesIn = new AtomicLong();
+    private final AtomicLong connects = new AtomicLong();
+    private final AtomicLong disconnects = new AtomicLong();
+    private final ConcurrentHashMap<UUID, CharacteristicStats> notifications = new ConcurrentHashMap<>();
+
+    /**
+     * The notifications received from one characteristic.
+     */
+    public static final class CharacteristicStats {
+        private static final long RATE_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong bytes = new AtomicLong();
+        private final long firstNanos = System.nanoTime();
+        private volatile long lastNanos = firstNanos;
+        // notifications in the current and the previous window of one second
+        private long windowStartNanos = firstNanos;
+        private int windowCount;
+        private int previousWindowCount;
+
+        private void record(final int length, final long now) {
+            count.incrementAndGet();
+            bytes.addAndGet(length);
+            lastNanos = now;
+            synchronized (this) {
+                advanceWindow(now);
+                windowCount++;
+            }
+        }
+
+        private void advanceWindow(final long now) {
+            final long elapsed = now - windowStartNanos;
+            if (elapsed >= RATE_WINDOW_NANOS) {
+                // a gap of more than one window means that the previous one was empty
+                previousWindowCount = elapsed >= 2 * RATE_WINDOW_NANOS ? 0 : windowCount;
+                windowStartNanos += elapsed / RATE_WINDOW_NANOS * RATE_WINDOW_NANOS;
+                windowCount = 0;
+            }
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public long getBytes() {
+            return bytes.get();
+        }
+
+        /**
+         * @return the notifications per second during the last complete second
+         */
+        public synchronized int getCurrentRate() {
+            advanceWindow(System.nanoTime());
+            return previousWindowCount;
+        }
+
+        /**
+         * @return the notifications per second between the first and the last one
+         */
+        public double getAverageRate() {
+            final long elapsed = lastNanos - firstNanos;
+            if (elapsed <= 0) {
+                return 0;
+            }
+            return (count.get() - 1) * 1e9 / elapsed;
+        }
+    }
+
+    private BtLEQueueMetrics(final String address) {
+        this.address = address;
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * @return the metrics of the given device, created if necessary
+     */
+    @NonNull
+    public static BtLEQueueMetrics forDevice(@NonNull final String address) {
+        BtLEQueueMetrics metrics = REGISTRY.get(address);
+        if (metrics == null) {
+            final BtLEQueueMetrics created = new BtLEQueueMetrics(address);
+            metrics = REGISTRY.putIfAbsent(address, created);
+            if (metrics == null) {
+                metrics = created;
+            }
+        }
+        return metrics;
+    }
+
+    /**
+     * @return the metrics of all devices that had a queue, ordered by address
+     */
+    @NonNull
+    public static List<BtLEQueueMetrics> getAll() {
+        final List<BtLEQueueMetrics> all = new ArrayList<>(REGISTRY.values());
+        Collections.sort(all, (a, b) -> a.address.compareTo(b.address));
+        return all;
+    }
+
+    public static void resetAll() {
+        for (final BtLEQueueMetrics metrics : REGISTRY.values()) {
+            metrics.reset();
+        }
+    }
+
+    private void reset() {
+        for (final LatencyHistogram histogram : latencies) {
+            histogram.reset();
+        }
+        bytesOut.set(0);
+        bytesIn.set(0);
+        connects.set(0);
+        disconnects.set(0);
+        notifications.clear();
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    void recordAction(final BtLEAction action, final long elapsedNanos) {
+        latencies[ActionType.of(action).ordinal()].recordNanos(elapsedNanos);
+    }
+
+    void recordLatency(final ActionType type, final long elapsedNanos) {
+        latencies[type.ordinal()].recordNanos(elapsedNanos);
+    }
+
+    void recordBytesOut(final int length) {
+        bytesOut.addAndGet(length);
+    }
+
+    void recordBytesIn(final int length) {
+        bytesIn.addAndGet(length);
+    }
+
+    void recordNotification(final UUID characteristic, final int length) {
+        final long now = System.nanoTime();
+        CharacteristicStats stats = notifications.get(characteristic);
+        if (stats == null) {
+            final CharacteristicStats created = new CharacteristicStats();
+            stats = notifications.putIfAbsent(characteristic, created);
+            if (stats == null) {
+                stats = created;
+            }
+        }
+        stats.record(length, now);
+        bytesIn.addAndGet(length);
+    }
+
+    void recordConnected() {
+        connects.incrementAndGet();
+    }
+
+    void recordDisconnected() {
+        disconnects.incrementAndGet();
+    }
+
+    public LatencyHistogram getLatency(final ActionType type) {
+        return latencies[type.ordinal()];
+    }
+
+    public long getBytesOut() {
+        return bytesOut.get();
+    }
+
+    public long getBytesIn() {
+        return bytesIn.get();
+    }
+
+    public long getConnects() {
+        return connects.get();
+    }
+
+    /**
+     * @return the connections after the first one
+     */
+    public long getReconnects() {
+        return Math.max(0, connects.get() - 1);
+    }
+
+    public long getDisconnects() {
+        return disconnects.get();
+    }
+
+    /**
+     * @return the notification metrics per characteristic, ordered by UUID
+     */
+    public Map<UUID, CharacteristicStats> getNotifications() {
+        return new TreeMap<>(notifications);
+    }
+
+    public JSONObject toJson() throws JSONException {
+        final JSONObject json = new JSONObject();
+        json.put("address", address);
+        json.put("uptimeSeconds", TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - createdNanos));
+        json.put("bytesOut", getBytesOut());
+        json.put("bytesIn", getBytesIn());
+        json.put("connects", getConnects());
+        json.put("reconnects", getReconnects());
+        json.put("disconnects", getDisconnects());
+
+        final JSONObject latencyJson = new JSONObject();
+        for (final ActionType type : ActionType.values()) {
+            final LatencyHistogram histogram = getLatency(type);
+            if (histogram.getCount() == 0) {
+                continue;
+            }
+            final JSONObject histogramJson = new JSONObject();
+            histogramJson.put("count", histogram.getCount());
+            histogramJson.put("meanMicros", histogram.getMeanMicros());
+            histogramJson.put("p50Micros", histogram.getPercentileMicros(50));
+            histogramJson.put("p90Micros", histogram.getPercentileMicros(90));
+            histogramJson.put("p99Micros", histogram.getPercentileMicros(99));
+            histogramJson.put("p999Micros", histogram.getPercentileMicros(99.9));
+            histogramJson.put("maxMicros", histogram.getMaxMicros());
+            latencyJson.put(type.name().toLowerCase(Locale.ROOT), histogramJson);
+        }
+        json.put("latency", latencyJson);
+
+        final JSONArray notificationsJson = new JSONArray();
+        for (final Map.Entry<UUID, CharacteristicStats> entry : getNotifications().entrySet()) {
+            final CharacteristicStats stats = entry.getValue();
+            final JSONObject statsJson = new JSONObject();
+            statsJson.put("characteristic", entry.getKey().toString());
+            statsJson.put("count", stats.getCount());
+            statsJson.put("bytes", stats.getBytes());
+            statsJson.put("currentRate", stats.getCurrentRate());
+            statsJson.put("averageRate", stats.getAverageRate());
+            notificationsJson.put(statsJson);
+        }
+        json.put("notifications", notificationsJson);
+        return json;
+    }
+
+    /**
+     * @return the metrics of all devices
+     */
+    public static JSONArray allToJson() throws JSONException {
+        final JSONArray json = new JSONArray();
+        for (final BtLEQueueMetrics metrics : getAll()) {
+            json.put(metrics.toJson());
+        }
+        return json;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder(address).append('\n');
+        builder.append(String.format(Locale.ROOT, "out %d bytes, in %d bytes, %d reconnects, %d disconnects\n",
+                getBytesOut(), getBytesIn(), getReconnects(), getDisconnects()));
+        for (final ActionType type : ActionType.values()) {
+            final LatencyHistogram histogram = getLatency(type);
+            if (histogram.getCount() > 0) {
+                builder.append(type.name().toLowerCase(Locale.ROOT)).append(": ").append(histogram).append('\n');
+            }
+        }
+        for (final Map.Entry<UUID, CharacteristicStats> entry : getNotifications().entrySet()) {
+            final CharacteristicStats stats = entry.getValue();
+            builder.append(String.format(Locale.ROOT, "%s: %d notifications, %d bytes, %d/s (avg %.1f/s)\n",
+                    entry.getKey(), stats.getCount(), stats.getBytes(), stats.getCurrentRate(), stats.getAverageRate()));
+        }
+        return builder.toString();
+    }
+}
@@ -38,6 +38,8 @@ public class Transaction extends AbstractTransaction {
 
     private boolean modifyGattCallback;
 
+    private int writeWindow = 1;
+
     public Transaction(String taskName) {
         super(taskName);
     }
@@ -76,6 +78,18 @@ public class Transaction extends AbstractTransaction {
         return modifyGattCallback;
     }
 
+    /**
+     * Sets how many writes without response may be in flight at once. With more than one, the
+     * queue issues them back to back instead of waiting for the result of each.
+     */
+    public void setWriteWindow(int writeWindow) {
+        this.writeWindow = Math.max(1, writeWindow);
+    }
+
+    public int getWriteWindow() {
+        return writeWindow;
+    }
+
     @Override
     public int getActionCount() {
         return mActions.size();
@@ -350,6 +350,32 @@ public class TransactionBuilder {
         return mTransaction.getGattCallback();
     }
 
+    /// Sets the lane the transaction waits in. Transactions of a higher lane run first, and in
+    /// between two actions of a {@link AbstractTransaction.Priority#isPreemptible() preemptible}
+    /// one, so that a large upload does not hold back notifications or music control.
+    ///
+    /// The GATT callback of a preempted transaction stays installed while others run in between,
+    /// and keeps receiving the events of its own characteristics. A preemptible transfer must still
+    /// allow writes to other characteristics in between its actions.
+    /// @see AbstractTransaction.Priority
+    @NonNull
+    public TransactionBuilder setPriority(@NonNull final AbstractTransaction.Priority priority) {
+        mTransaction.setPriority(priority);
+        return this;
+    }
+
+    /// Opts in to pipelined writes: up to {@code window} writes to characteristics with
+    /// {@link BluetoothGattCharacteristic#WRITE_TYPE_NO_RESPONSE} are kept in flight, each
+    /// `onCharacteristicWrite` callback allowing the next one. All other actions still wait for
+    /// their result, after the writes in flight completed. Meant for bulk transfers such as
+    /// firmware and file uploads.
+    /// @param window the number of writes in flight, 1 (the default) runs all actions serially
+    @NonNull
+    public TransactionBuilder setWriteWindow(@IntRange(from = 1L) final int window) {
+        mTransaction.setWriteWindow(window);
+        return this;
+    }
+
     /// To be used as the final step to execute the transaction by the queue.
     /// @see #queueConnected()
     /// @see #queueImmediately()
@@ -0,0 +1,207 @@
+package nodomain.freeyourgadget.gadgetbridge.service.btle;
+
+import androidx.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The transactions waiting in a {@link BtLEQueue}, in one FIFO lane per
+ * {@link AbstractTransaction.Priority}. Keeps the depth of each lane and how long transactions
+ * waited in it, so that head-of-line blocking shows up in the logs.
+ */
+public final class TransactionLanes {
+    private static final Logger LOG = LoggerFactory.getLogger(TransactionLanes.class);
+
+    private static final AbstractTransaction.Priority[] PRIORITIES = AbstractTransaction.Priority.values();
+
+    @SuppressWarnings("unchecked")
+    private final ArrayDeque<AbstractTransaction>[] lanes = new ArrayDeque[PRIORITIES.length];
+    private final LaneStats[] stats = new LaneStats[PRIORITIES.length];
+
+    /**
+     * The metrics of one lane since the queue was created.
+     */
+    public static final class LaneStats {
+        private final AbstractTransaction.Priority priority;
+        private int depth;
+        private int maxDepth;
+        private long dequeued;
+        private long preemptions;
+        private long totalWaitNanos;
+        private long maxWaitNanos;
+
+        private LaneStats(final AbstractTransaction.Priority priority) {
+            this.priority = priority;
+        }
+
+        private LaneStats(final LaneStats other) {
+            this.priority = other.priority;
+            this.depth = other.depth;
+            this.maxDepth = other.maxDepth;
+            this.dequeued = other.dequeued;
+            this.preemptions = other.preemptions;
+            this.totalWaitNanos = other.totalWaitNanos;
+            this.maxWaitNanos = other.maxWaitNanos;
+        }
+
+        public AbstractTransaction.Priority getPriority() {
+            return priority;
+        }
+
+        public int getDepth() {
+            return depth;
+        }
+
+        public int getMaxDepth() {
+            return maxDepth;
+        }
+
+        public long getDequeued() {
+            return dequeued;
+        }
+
+        /**
+         * @return how often a transaction of this lane ran in between the actions of a transaction
+         * of a lower one
+         */
+        public long getPreemptions() {
+            return preemptions;
+        }
+
+        public long getTotalWaitNanos() {
+            return totalWaitNanos;
+        }
+
+        public long getMaxWaitNanos() {
+            return maxWaitNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%s: depth %d (max %d), %d dequeued, %d preempting, wait avg %dms max %dms",
+                    priority, depth, maxDepth, dequeued, preemptions,
+                    dequeued == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(totalWaitNanos / dequeued),
+                    TimeUnit.NANOSECONDS.toMillis(maxWaitNanos));
+        }
+    }
+
+    TransactionLanes() {
+        for (int i = 0; i < PRIORITIES.length; i++) {
+            lanes[i] = new ArrayDeque<>();
+            stats[i] = new LaneStats(PRIORITIES[i]);
+        }
+    }
+
+    synchronized void addLast(final AbstractTransaction transaction) {
+        add(transaction, false);
+    }
+
+    /**
+     * Adds the transaction before the others of its lane.
+     */
+    synchronized void addFirst(final AbstractTransaction transaction) {
+        add(transaction, true);
+    }
+
+    private void add(final AbstractTransaction transaction, final boolean first) {
+        final int lane = transaction.getPriority().ordinal();
+        transaction.setQueuedAtNanos(System.nanoTime());
+        if (first) {
+            lanes[lane].addFirst(transaction);
+        } else {
+            lanes[lane].addLast(transaction);
+        }
+        final LaneStats laneStats = stats[lane];
+        laneStats.depth = lanes[lane].size();
+        laneStats.maxDepth = Math.max(laneStats.maxDepth, laneStats.depth);
+        notifyAll();
+    }
+
+    /**
+     * Waits for a transaction and takes the first one of the highest non-empty lane.
+     */
+    synchronized AbstractTransaction takeFirst() throws InterruptedException {
+        while (true) {
+            for (int lane = 0; lane < lanes.length; lane++) {
+                if (!lanes[lane].isEmpty()) {
+                    return take(lane, false);
+                }
+            }
+            wait();
+        }
+    }
+
+    /**
+     * Takes the first transaction of the highest non-empty lane above the given priority, without
+     * waiting.
+     */
+    @Nullable
+    synchronized AbstractTransaction pollAbove(final AbstractTransaction.Priority priority) {
+        for (int lane = 0; lane < priority.ordinal(); lane++) {
+            if (!lanes[lane].isEmpty()) {
+                return take(lane, true);
+            }
+        }
+        return null;
+    }
+
+    private AbstractTransaction take(final int lane, final boolean preempting) {
+        final AbstractTransaction transaction = lanes[lane].pollFirst();
+        final long waited = System.nanoTime() - transaction.getQueuedAtNanos();
+        final LaneStats laneStats = stats[lane];
+        laneStats.depth = lanes[lane].size();
+        laneStats.dequeued++;
+        laneStats.totalWaitNanos += waited;
+        laneStats.maxWaitNanos = Math.max(laneStats.maxWaitNanos, waited);
+        if (preempting) {
+            laneStats.preemptions++;
+        }
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("{} lane: took {} after {}ms{}, queued: {}", PRIORITIES[lane], transaction.getTaskName(),
+                    TimeUnit.NANOSECONDS.toMillis(waited), preempting ? " (preempting)" : "", depths());
+        }
+        return transaction;
+    }
+
+    synchronized void clear() {
+        for (int lane = 0; lane < lanes.length; lane++) {
+            lanes[lane].clear();
+            stats[lane].depth = 0;
+        }
+    }
+
+    synchronized int size() {
+        int size = 0;
+        for (final ArrayDeque<AbstractTransaction> lane : lanes) {
+            size += lane.size();
+        }
+        return size;
+    }
+
+    /**
+     * @return a copy of the metrics of each lane, in priority order
+     */
+    synchronized LaneStats[] getStats() {
+        final LaneStats[] copy = new LaneStats[stats.length];
+        for (int lane = 0; lane < stats.length; lane++) {
+            copy[lane] = new LaneStats(stats[lane]);
+        }
+        return copy;
+    }
+
+    private String depths() {
+        final StringBuilder builder = new StringBuilder();
+        for (int lane = 0; lane < lanes.length; lane++) {
+            if (lane > 0) {
+                builder.append(' ');
+            }
+            builder.append(PRIORITIES[lane].name().toLowerCase(Locale.ROOT)).append('=').append(lanes[lane].size());
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,152 @@
+package nodomain.freeyourgadget.gadgetbridge.service.btle;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Credits for the writes without response that {@link BtLEQueue} keeps in flight for a pipelined
+ * {@link Transaction}.
+ * <p>
+ * A credit is taken before each write and returned by the {@code onCharacteristicWrite} callback
+ * for it. Stacks that do not report writes without response never return the credits, so they
+ * are reclaimed when no callback arrived within {@link #CREDIT_TIMEOUT_MS}.
+ */
+final class WriteWindow {
+    private static final Logger LOG = LoggerFactory.getLogger(WriteWindow.class);
+
+    static final long CREDIT_TIMEOUT_MS = 1000L;
+
+    private int size = 1;
+    private int inFlight;
+    // issue times of the writes in flight, oldest first from head
+    private long[] issuedAt = new long[1];
+    private int head;
+    private long completions;
+    // completions when the last credit was taken
+    private long completionsAtAcquire;
+    private boolean aborted;
+
+    /**
+     * Starts a new transaction with the given number of credits.
+     */
+    synchronized void reset(final int size) {
+        this.size = Math.max(1, size);
+        this.inFlight = 0;
+        this.head = 0;
+        if (issuedAt.length < this.size) {
+            issuedAt = new long[this.size];
+        }
+        this.aborted = false;
+    }
+
+    synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * Takes a credit, waiting until one is returned if all are in flight.
+     *
+     * @return false if the transaction was aborted while waiting
+     */
+    synchronized boolean acquire() throws InterruptedException {
+        while (inFlight >= size && !aborted) {
+            if (!awaitCompletion()) {
+                LOG.warn("No write callback within {}ms, reclaiming {} credits", CREDIT_TIMEOUT_MS, inFlight);
+                inFlight = 0;
+            }
+        }
+        if (aborted) {
+            return false;
+        }
+        issuedAt[(head + inFlight) % size] = System.nanoTime();
+        inFlight++;
+        completionsAtAcquire = completions;
+        return true;
+    }
+
+    /**
+     * Returns the credit of a completed write.
+     *
+     * @return the {@link System#nanoTime()} at which the completed write was issued, or -1 if no
+     * write was in flight, so the callback belongs to a serial action
+     */
+    synchronized long release() {
+        if (inFlight == 0) {
+            return -1;
+        }
+        final long issued = issuedAt[head];
+        head = (head + 1) % size;
+        inFlight--;
+        completions++;
+        notifyAll();
+        return issued;
+    }
+
+    /**
+     * Returns the credit of a write the stack refused, and waits for a write in flight to complete
+     * before it is retried. Android refuses new writes while it waits for the callback of the
+     * previous one, even for writes without response.
+     *
+     * @return false if the write should not be retried, because nothing was in flight or the
+     * transaction was aborted
+     */
+    synchronized boolean retryAfterCompletion() throws InterruptedException {
+        inFlight--;
+        if (aborted) {
+            return false;
+        }
+        if (completions != completionsAtAcquire) {
+            // a write completed since, so the stack is likely no longer busy
+            return true;
+        }
+        if (inFlight == 0) {
+            return false;
+        }
+        if (!awaitCompletion()) {
+            LOG.warn("No write callback within {}ms, reclaiming {} credits", CREDIT_TIMEOUT_MS, inFlight);
+            inFlight = 0;
+        }
+        return !aborted;
+    }
+
+    /**
+     * Waits until all writes in flight completed, before an action that must run serially.
+     *
+     * @return false if the transaction was aborted while waiting
+     */
+    synchronized boolean awaitIdle() throws InterruptedException {
+        while (inFlight > 0 && !aborted) {
+            if (!awaitCompletion()) {
+                LOG.warn("No write callback within {}ms, reclaiming {} credits", CREDIT_TIMEOUT_MS, inFlight);
+                inFlight = 0;
+            }
+        }
+        return !aborted;
+    }
+
+    /**
+     * Wakes up the dispatcher if it is waiting for credits.
+     */
+    synchronized void abort() {
+        aborted = true;
+        notifyAll();
+    }
+
+    /**
+     * @return false if nothing completed within the timeout
+     */
+    private boolean awaitCompletion() throws InterruptedException {
+        final long seen = completions;
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(CREDIT_TIMEOUT_MS);
+        while (completions == seen && !aborted) {
+            final long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return true;
+    }
+}
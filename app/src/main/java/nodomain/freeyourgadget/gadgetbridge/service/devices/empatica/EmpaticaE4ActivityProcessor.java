@@ -0,0 +1,264 @@
+package nodomain.freeyourgadget.gadgetbridge.service.devices.empatica;
+
+import nodomain.freeyourgadget.gadgetbridge.devices.empatica.EmpaticaE4ActivitySampleProvider;
+import nodomain.freeyourgadget.gadgetbridge.model.ActivitySample;
+import nodomain.freeyourgadget.gadgetbridge.util.Biquad;
+
+/**
+ * Reduces the E4 accelerometer stream to one activity sample per minute, with intensity, steps,
+ * heart rate and activity kind.
+ * <p>
+ * Per sample, the magnitude of the acceleration is band-pass filtered to remove gravity. The mean
+ * absolute value over a minute is the intensity, in milli-g. Steps are peaks of the filtered
+ * magnitude that are at least {@link #STEP_THRESHOLD_G} high and follow each other at a walking
+ * or running pace. They only count after {@link #STEPS_TO_START} regular steps, which rejects
+ * isolated arm movements. Minutes without steps and little movement in the surrounding minutes are
+ * scored as sleep, using the weights of the Cole-Kripke algorithm.
+ * <p>
+ * Since the sleep score looks {@link #MINUTES_AFTER} minutes ahead, minutes are reported with that
+ * delay, or when the stream has a gap or {@link #flush()} is called. All state is fixed in size and
+ * nothing is allocated per sample.
+ * <p>
+ * Not thread-safe.
+ */
+public class EmpaticaE4ActivityProcessor {
+    public interface Listener {
+        /**
+         * @param timestamp start of the minute, in seconds
+         */
+        void onActivityMinute(int timestamp, int rawIntensity, int steps, int rawKind, int heartRate);
+    }
+
+    private static final long MINUTE_MS = 60_000L;
+    // a notification arriving late or early by less than this is considered continuous
+    private static final long GAP_TOLERANCE_MS = 1000L;
+    private static final double RAW_PER_G = 64.0;
+
+    private static final double INTENSITY_LOW_CUTOFF_HZ = 0.25;
+    private static final double INTENSITY_HIGH_CUTOFF_HZ = 2.5;
+    private static final double STEP_LOW_CUTOFF_HZ = 0.5;
+    private static final double STEP_HIGH_CUTOFF_HZ = 3.5;
+
+    private static final double STEP_THRESHOLD_G = 0.1;
+    private static final double MIN_STEP_INTERVAL_MS = 250;
+    private static final double MAX_STEP_INTERVAL_MS = 2000;
+    private static final int STEPS_TO_START = 4;
+
+    private static final int WALKING_STEPS_PER_MINUTE = 30;
+    private static final int RUNNING_STEPS_PER_MINUTE = 140;
+    // mean dynamic acceleration in milli-g
+    private static final int ACTIVITY_INTENSITY = 50;
+    private static final int SLEEP_MAX_INTENSITY = 10;
+
+    // Cole-Kripke weights for the minutes -4 to +2 around the scored one
+    private static final double[] SLEEP_WEIGHTS = {106, 54, 58, 76, 230, 74, 67};
+    private static final int MINUTES_BEFORE = 4;
+    private static final int MINUTES_AFTER = 2;
+    private static final int WINDOW = MINUTES_BEFORE + 1 + MINUTES_AFTER;
+
+    private final Listener listener;
+    private final Biquad intensityHighPass;
+    private final Biquad intensityLowPass;
+    private final Biquad stepHighPass;
+    private final Biquad stepLowPass;
+    private final double period;
+
+    private long lastTimestamp = -1;
+    private long minuteStart = -1;
+    private double intensitySum;
+    private int minuteSamples;
+    private int minuteSteps;
+    private int heartRateSum;
+    private int heartRateCount;
+
+    private double previous1;
+    private double previous2;
+    private double lastStepTime = -1;
+    private int pendingSteps;
+    private boolean walking;
+
+    // completed minutes, oldest first; the last `unreported` ones have not been reported yet
+    private final long[] windowMinutes = new long[WINDOW];
+    private final int[] windowIntensity = new int[WINDOW];
+    private final int[] windowSteps = new int[WINDOW];
+    private final int[] windowHeartRate = new int[WINDOW];
+    private int windowSize;
+    private int unreported;
+
+    public EmpaticaE4ActivityProcessor(final int sampleRate, final Listener listener) {
+        this.listener = listener;
+        this.period = 1000.0 / sampleRate;
+        this.intensityHighPass = Biquad.highPass(sampleRate, INTENSITY_LOW_CUTOFF_HZ);
+        this.intensityLowPass = Biquad.lowPass(sampleRate, INTENSITY_HIGH_CUTOFF_HZ);
+        this.stepHighPass = Biquad.highPass(sampleRate, STEP_LOW_CUTOFF_HZ);
+        this.stepLowPass = Biquad.lowPass(sampleRate, STEP_HIGH_CUTOFF_HZ);
+    }
+
+    /**
+     * Processes all samples in the ring, without removing them.
+     */
+    public void process(final EmpaticaE4SampleRing ring) {
+        final int size = ring.size();
+        for (int i = 0; i < size; i++) {
+            add(ring.getTimestamp(i), ring.getValue(i, 0), ring.getValue(i, 1), ring.getValue(i, 2));
+        }
+    }
+
+    /**
+     * @param x raw acceleration, 1/64 g
+     */
+    public void add(final long timestamp, final float x, final float y, final float z) {
+        final double magnitude = Math.sqrt(x * x + y * y + z * z) / RAW_PER_G;
+        if (lastTimestamp < 0 || Math.abs(timestamp - lastTimestamp) > GAP_TOLERANCE_MS) {
+            resetFilters(magnitude);
+        }
+        lastTimestamp = timestamp;
+
+        final long minute = timestamp - Math.floorMod(timestamp, MINUTE_MS);
+        if (minute != minuteStart) {
+            if (minuteStart >= 0) {
+                completeMinute();
+                if (minute != minuteStart + MINUTE_MS) {
+                    // missing minutes, the neighbours of the pending ones are unknown
+                    reportPending();
+                }
+            }
+            minuteStart = minute;
+        }
+
+        final double dynamic = intensityLowPass.filter(intensityHighPass.filter(magnitude));
+        intensitySum += Math.abs(dynamic);
+        minuteSamples++;
+
+        final double step = stepLowPass.filter(stepHighPass.filter(magnitude));
+        if (previous1 > STEP_THRESHOLD_G && previous1 > previous2 && previous1 >= step) {
+            onStepPeak(timestamp - period);
+        }
+        previous2 = previous1;
+        previous1 = step;
+    }
+
+    /**
+     * Adds a heart rate measurement to the current minute.
+     */
+    public void addHeartRate(final int heartRate) {
+        heartRateSum += heartRate;
+        heartRateCount++;
+    }
+
+    /**
+     * Reports the current, possibly incomplete minute and all minutes held back for sleep scoring.
+     */
+    public void flush() {
+        if (minuteSamples > 0) {
+            completeMinute();
+        }
+        reportPending();
+        minuteStart = -1;
+        lastTimestamp = -1;
+    }
+
+    private void resetFilters(final double magnitude) {
+        intensityHighPass.reset(magnitude);
+        intensityLowPass.reset(0);
+        stepHighPass.reset(magnitude);
+        stepLowPass.reset(0);
+        previous1 = 0;
+        previous2 = 0;
+        lastStepTime = -1;
+        pendingSteps = 0;
+        walking = false;
+    }
+
+    private void onStepPeak(final double time) {
+        if (lastStepTime >= 0) {
+            final double interval = time - lastStepTime;
+            if (interval < MIN_STEP_INTERVAL_MS) {
+                return;
+            }
+            if (interval > MAX_STEP_INTERVAL_MS) {
+                walking = false;
+                pendingSteps = 0;
+            }
+        }
+        lastStepTime = time;
+
+        if (walking) {
+            minuteSteps++;
+        } else if (++pendingSteps >= STEPS_TO_START) {
+            walking = true;
+            minuteSteps += pendingSteps;
+            pendingSteps = 0;
+        }
+    }
+
+    private void completeMinute() {
+        if (windowSize == WINDOW) {
+            // the oldest minute was reported already, it only served as a neighbour
+            System.arraycopy(windowMinutes, 1, windowMinutes, 0, WINDOW - 1);
+            System.arraycopy(windowIntensity, 1, windowIntensity, 0, WINDOW - 1);
+            System.arraycopy(windowSteps, 1, windowSteps, 0, WINDOW - 1);
+            System.arraycopy(windowHeartRate, 1, windowHeartRate, 0, WINDOW - 1);
+            windowSize--;
+        }
+        windowMinutes[windowSize] = minuteStart;
+        windowIntensity[windowSize] = minuteSamples > 0 ? (int) Math.round(intensitySum / minuteSamples * 1000) : 0;
+        windowSteps[windowSize] = minuteSteps;
+        windowHeartRate[windowSize] = heartRateCount > 0 ? Math.round((float) heartRateSum / heartRateCount) : ActivitySample.NOT_MEASURED;
+        windowSize++;
+        unreported++;
+
+        intensitySum = 0;
+        minuteSamples = 0;
+        minuteSteps = 0;
+        heartRateSum = 0;
+        heartRateCount = 0;
+
+        if (unreported > MINUTES_AFTER) {
+            report(windowSize - unreported);
+            unreported--;
+        }
+    }
+
+    private void reportPending() {
+        while (unreported > 0) {
+            report(windowSize - unreported);
+            unreported--;
+        }
+        windowSize = 0;
+    }
+
+    private void report(final int index) {
+        final int steps = windowSteps[index];
+        final int intensity = windowIntensity[index];
+        final int rawKind;
+        if (steps >= RUNNING_STEPS_PER_MINUTE) {
+            rawKind = EmpaticaE4ActivitySampleProvider.RAW_KIND_RUNNING;
+        } else if (steps >= WALKING_STEPS_PER_MINUTE) {
+            rawKind = EmpaticaE4ActivitySampleProvider.RAW_KIND_WALKING;
+        } else if (intensity >= ACTIVITY_INTENSITY) {
+            rawKind = EmpaticaE4ActivitySampleProvider.RAW_KIND_ACTIVITY;
+        } else if (steps == 0 && sleepScore(index) < SLEEP_MAX_INTENSITY) {
+            rawKind = EmpaticaE4ActivitySampleProvider.RAW_KIND_SLEEP;
+        } else {
+            rawKind = EmpaticaE4ActivitySampleProvider.RAW_KIND_UNKNOWN;
+        }
+        listener.onActivityMinute((int) (windowMinutes[index] / 1000), intensity, steps, rawKind, windowHeartRate[index]);
+    }
+
+    /**
+     * Weighted mean intensity around the minute, over the neighbours that are available.
+     */
+    private double sleepScore(final int index) {
+        double sum = 0;
+        double weights = 0;
+        for (int i = 0; i < WINDOW; i++) {
+            final int neighbour = index - MINUTES_BEFORE + i;
+            if (neighbour >= 0 && neighbour < windowSize) {
+                sum += SLEEP_WEIGHTS[i] * windowIntensity[neighbour];
+                weights += SLEEP_WEIGHTS[i];
+            }
+        }
+        return sum / weights;
+    }
+}
@@ -0,0 +1,159 @@
+package nodomain.freeyourgadget.gadgetbridge.service.devices.empatica;
+
+import nodomain.freeyourgadget.gadgetbridge.devices.empatica.EmpaticaE4Constants;
+import nodomain.freeyourgadget.gadgetbridge.service.btle.BLETypeConversions;
+
+/**
+ * Decodes E4 sensor notifications into per-stream {@link EmpaticaE4SampleRing rings}.
+ * <p>
+ * Notifications are dispatched on the characteristic handle (instance id) that is resolved once
+ * after service discovery, and decoded straight into preallocated primitive buffers, so that
+ * nothing is allocated per packet.
+ * <p>
+ * Apart from {@link #streamForHandle(int)}, all methods must be called from the same thread.
+ */
+public final class EmpaticaE4Decoder {
+    public static final int STREAM_UNKNOWN = -1;
+    public static final int STREAM_BVP = 0;
+    public static final int STREAM_GSR = 1;
+    public static final int STREAM_ACC = 2;
+    public static final int STREAM_ST = 3;
+    public static final int STREAM_COUNT = 4;
+
+    public static final int RING_CAPACITY = 1024;
+
+    private static final int[] SAMPLE_RATES = {
+            EmpaticaE4Constants.BVP_SAMPLE_RATE,
+            EmpaticaE4Constants.GSR_SAMPLE_RATE,
+            EmpaticaE4Constants.ACC_SAMPLE_RATE,
+            EmpaticaE4Constants.ST_SAMPLE_RATE,
+    };
+
+    private final int[] handles = {-1, -1, -1, -1};
+    private final EmpaticaE4SampleRing[] rings = new EmpaticaE4SampleRing[STREAM_COUNT];
+
+    // timestamp of the last sample decoded for each stream
+    private final long[] lastSampleTimestamps = new long[STREAM_COUNT];
+
+    public EmpaticaE4Decoder() {
+        rings[STREAM_BVP] = new EmpaticaE4SampleRing(RING_CAPACITY, 1);
+        rings[STREAM_GSR] = new EmpaticaE4SampleRing(RING_CAPACITY, 1);
+        rings[STREAM_ACC] = new EmpaticaE4SampleRing(RING_CAPACITY, 3);
+        rings[STREAM_ST] = new EmpaticaE4SampleRing(RING_CAPACITY, 1);
+    }
+
+    /**
+     * Binds a stream to the handle of the characteristic it is notified on.
+     */
+    public void setHandle(final int stream, final int handle) {
+        handles[stream] = handle;
+    }
+
+    public int streamForHandle(final int handle) {
+        for (int stream = 0; stream < STREAM_COUNT; stream++) {
+            if (handles[stream] == handle) {
+                return stream;
+            }
+        }
+        return STREAM_UNKNOWN;
+    }
+
+    public EmpaticaE4SampleRing getRing(final int stream) {
+        return rings[stream];
+    }
+
+    /**
+     * @return the most samples a payload of the given length can decode to, in any stream
+     */
+    public static int getMaxSamples(final int length) {
+        // accelerometer samples are the smallest, 3 bytes each
+        return length / 3;
+    }
+
+    /**
+     * @return the number of samples dropped because a ring was full, across all streams
+     */
+    public long getDropped() {
+        long dropped = 0;
+        for (final EmpaticaE4SampleRing ring : rings) {
+            dropped += ring.getDropped();
+        }
+        return dropped;
+    }
+
+    /**
+     * Decodes a notification of the given stream that arrived at {@code now}.
+     *
+     * @return the number of samples decoded
+     */
+    public int decode(final int stream, final byte[] data, final long now) {
+        return decode(stream, data, 0, data.length, now);
+    }
+
+    /**
+     * Decodes a notification payload stored at {@code offset} in {@code data}.
+     *
+     * @return the number of samples decoded
+     */
+    public int decode(final int stream, final byte[] data, final int offset, final int length, final long now) {
+        final EmpaticaE4SampleRing ring = rings[stream];
+        switch (stream) {
+            case STREAM_BVP:
+            case STREAM_ST: {
+                // stream of little-endian float values
+                final int count = length / 4;
+                final long first = firstTimestamp(stream, count, now);
+                final double period = 1000.0 / SAMPLE_RATES[stream];
+                for (int i = 0; i < count; i++) {
+                    ring.offer(first + Math.round(i * period), readFloat(data, offset + i * 4));
+                }
+                return count;
+            }
+            case STREAM_GSR: {
+                final int count = length / 4;
+                final long first = firstTimestamp(stream, count, now);
+                final double period = 1000.0 / SAMPLE_RATES[stream];
+                for (int i = 0; i < count; i++) {
+                    // Convert to microsiemens (Empatica sends it in MegaOhms which needs conversion)
+                    // The actual conversion might need tweaking based on device specifics.
+                    ring.offer(first + Math.round(i * period), readFloat(data, offset + i * 4) * 1000);
+                }
+                return count;
+            }
+            case STREAM_ACC: {
+                // Packets of 3 signed bytes (x, y, z), where 1g = 64.
+                final int count = length / 3;
+                final long first = firstTimestamp(stream, count, now);
+                final double period = 1000.0 / SAMPLE_RATES[stream];
+                for (int i = 0; i < count; i++) {
+                    final int o = offset + i * 3;
+                    ring.offer(first + Math.round(i * period), data[o], data[o + 1], data[o + 2]);
+                }
+                return count;
+            }
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * The E4 does not send timestamps, so the samples of a notification are spread backwards from
+     * the time of arrival according to the sampling rate, while keeping each stream monotonic.
+     */
+    private long firstTimestamp(final int stream, final int count, final long now) {
+        if (count == 0) {
+            return now;
+        }
+        final double period = 1000.0 / SAMPLE_RATES[stream];
+        long first = now - Math.round((count - 1) * period);
+        if (first <= lastSampleTimestamps[stream]) {
+            first = lastSampleTimestamps[stream] + Math.round(period);
+        }
+        lastSampleTimestamps[stream] = first + Math.round((count - 1) * period);
+        return first;
+    }
+
+    private static float readFloat(final byte[] data, final int offset) {
+        return Float.intBitsToFloat(BLETypeConversions.toUint32(data, offset));
+    }
+}
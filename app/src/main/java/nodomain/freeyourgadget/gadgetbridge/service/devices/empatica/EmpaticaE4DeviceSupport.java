@@ -6,22 +6,30 @@ import android.bluetooth.BluetoothGattCharacteristic;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.UUID;
 
+import nodomain.freeyourgadget.gadgetbridge.activities.devicesettings.DeviceSettingsPreferenceConst;
 import nodomain.freeyourgadget.gadgetbridge.deviceevents.GBDeviceEventBatteryInfo;
 import nodomain.freeyourgadget.gadgetbridge.devices.empatica.EmpaticaE4Constants;
+import nodomain.freeyourgadget.gadgetbridge.devices.empatica.EmpaticaE4SessionFile;
 import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
 import nodomain.freeyourgadget.gadgetbridge.service.btle.AbstractBTLESingleDeviceSupport;
 import nodomain.freeyourgadget.gadgetbridge.service.btle.TransactionBuilder;
 import nodomain.freeyourgadget.gadgetbridge.service.btle.actions.SetDeviceStateAction;
+import nodomain.freeyourgadget.gadgetbridge.util.FileUtils;
 import nodomain.freeyourgadget.gadgetbridge.util.GB;
 
 public class EmpaticaE4DeviceSupport extends AbstractBTLESingleDeviceSupport {
 
     private static final Logger LOG = LoggerFactory.getLogger(EmpaticaE4DeviceSupport.class);
 
+    private final EmpaticaE4Decoder decoder = new EmpaticaE4Decoder();
+    private volatile EmpaticaE4Pipeline pipeline;
+
     public EmpaticaE4DeviceSupport() {
         super(LOG);
         // Add all the services the E4 uses
@@ -33,6 +41,10 @@ public class EmpaticaE4DeviceSupport extends AbstractBTLESingleDeviceSupport {
     @Override
     protected TransactionBuilder initializeDevice(TransactionBuilder builder) {
         LOG.info("Initializing Empatica E4...");
+        if (pipeline == null) {
+            pipeline = new EmpaticaE4Pipeline(getContext(), getDevice(), decoder, createSessionRecorder());
+        }
+
         // Mark the device as initializing
         builder.add(new SetDeviceStateAction(getDevice(), GBDevice.State.INITIALIZING, getContext()));
 
@@ -40,6 +52,11 @@ public class EmpaticaE4DeviceSupport extends AbstractBTLESingleDeviceSupport {
         getDevice().setFirmwareVersion("N/A");
         getDevice().setFirmwareVersion2("N/A");
 
+        bindStream(EmpaticaE4Decoder.STREAM_BVP, EmpaticaE4Constants.BVP_CHARACTERISTIC);
+        bindStream(EmpaticaE4Decoder.STREAM_GSR, EmpaticaE4Constants.GSR_CHARACTERISTIC);
+        bindStream(EmpaticaE4Decoder.STREAM_ACC, EmpaticaE4Constants.ACC_CHARACTERISTIC);
+        bindStream(EmpaticaE4Decoder.STREAM_ST, EmpaticaE4Constants.ST_CHARACTERISTIC);
+
         // Request a larger MTU for better data throughput.
         builder.add(new nodomain.freeyourgadget.gadgetbridge.service.btle.actions.RequestMtuAction(247));
 
@@ -77,56 +94,27 @@ public class EmpaticaE4DeviceSupport extends AbstractBTLESingleDeviceSupport {
                                            byte[] data) {
         super.onCharacteristicChanged(gatt, characteristic, data);
 
+        // Sensor streams are dispatched on the precomputed handle and handed over to the
+        // pipeline thread, so that decoding and persisting never block the receiver thread
+        final int stream = decoder.streamForHandle(characteristic.getInstanceId());
+        if (stream != EmpaticaE4Decoder.STREAM_UNKNOWN) {
+            final EmpaticaE4Pipeline currentPipeline = pipeline;
+            if (currentPipeline == null) {
+                LOG.warn("Ignoring sensor data before initialization");
+                return true;
+            }
+            currentPipeline.submit(stream, data, System.currentTimeMillis());
+            return true;
+        }
+
         UUID characteristicUUID = characteristic.getUuid();
-        ByteBuffer buffer = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
 
         if (EmpaticaE4Constants.BATTERY_CHARACTERISTIC.equals(characteristicUUID)) {
             // Battery level is a single byte representing the percentage.
-            float batteryLevel = buffer.get();
             GBDeviceEventBatteryInfo batteryInfo = new GBDeviceEventBatteryInfo();
-            batteryInfo.level = (short) batteryLevel;
+            batteryInfo.level = data[0];
             handleGBDeviceEvent(batteryInfo);
-            LOG.info(String.format("Battery: %.0f %%", batteryLevel));
-
-        } else if (EmpaticaE4Constants.BVP_CHARACTERISTIC.equals(characteristicUUID)) {
-            // BVP is a stream of float values. The BVP signal is proportional to the amount of red light reflected by the blood vessels.
-            // It is not directly in a standard unit but is a relative measure.
-            while (buffer.hasRemaining()) {
-                float bvp = buffer.getFloat();
-                LOG.info(String.format("BVP: %.4f", bvp));
-            }
-
-        } else if (EmpaticaE4Constants.GSR_CHARACTERISTIC.equals(characteristicUUID)) {
-            // GSR (EDA) is a stream of float values.
-            // Unit: microsiemens (μS)
-            while (buffer.hasRemaining()) {
-                float gsr = buffer.getFloat();
-                // Convert to microsiemens by multiplying by 1,000,000 (Empatica sends it in MegaOhms which needs conversion)
-                // We'll log the raw value and a converted value for clarity. The actual conversion might need tweaking based on device specifics.
-                LOG.info(String.format("GSR/EDA: %.6f μS", gsr * 1000));
-            }
-
-        } else if (EmpaticaE4Constants.ACC_CHARACTERISTIC.equals(characteristicUUID)) {
-            // Accelerometer data comes in packets of 3 signed bytes (x, y, z).
-            // Unit: g-force. The raw value is scaled, where 1g = 64.
-            while (buffer.remaining() >= 3) {
-                int x = buffer.get(); // signed byte
-                int y = buffer.get(); // signed byte
-                int z = buffer.get(); // signed byte
-                // Convert raw values to g's
-                float x_g = x / 64.0f;
-                float y_g = y / 64.0f;
-                float z_g = z / 64.0f;
-                LOG.info(String.format("Accelerometer: X: %.2fg, Y: %.2fg, Z: %.2fg", x_g, y_g, z_g));
-            }
-
-        } else if (EmpaticaE4Constants.ST_CHARACTERISTIC.equals(characteristicUUID)) {
-            // Skin Temperature is a stream of float values.
-            // Unit: degrees Celsius (°C)
-            while (buffer.hasRemaining()) {
-                float temperature = buffer.getFloat();
-                LOG.info(String.format("Temperature: %.2f °C", temperature));
-            }
+            LOG.info("Battery: {}%", batteryInfo.level);
         } else {
             LOG.debug("Unhandled characteristic changed: " + characteristicUUID + " value: " + GB.hexdump(data));
         }
@@ -171,6 +159,40 @@ public class EmpaticaE4DeviceSupport extends AbstractBTLESingleDeviceSupport {
         return true;
     }*/
 
+    private EmpaticaE4SessionRecorder createSessionRecorder() {
+        if (!getDevicePrefs().getBoolean(DeviceSettingsPreferenceConst.PREF_EMPATICA_E4_RECORD_SESSIONS, false)) {
+            return null;
+        }
+        try {
+            final File dir = new File(FileUtils.getExternalFilesDir(), EmpaticaE4SessionFile.DIRECTORY);
+            return EmpaticaE4SessionRecorder.open(dir, getDevice().getAddress(), System.currentTimeMillis());
+        } catch (final IOException e) {
+            LOG.error("Failed to start recording the E4 session", e);
+            return null;
+        }
+    }
+
+    private void bindStream(final int stream, final UUID characteristicUuid) {
+        final BluetoothGattCharacteristic characteristic = getCharacteristic(characteristicUuid);
+        if (characteristic == null) {
+            LOG.warn("Characteristic {} not available", characteristicUuid);
+            return;
+        }
+        decoder.setHandle(stream, characteristic.getInstanceId());
+    }
+
+    @Override
+    public void dispose() {
+        synchronized (ConnectionMonitor) {
+            if (pipeline != null) {
+                // does not wait, the pipeline persists its pending samples on its own thread
+                pipeline.close();
+                pipeline = null;
+            }
+            super.dispose();
+        }
+    }
+
     @Override
     public boolean useAutoConnect() {
         return true;
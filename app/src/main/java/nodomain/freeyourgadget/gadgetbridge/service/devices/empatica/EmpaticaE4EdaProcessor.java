@@ -0,0 +1,200 @@
+package nodomain.freeyourgadget.gadgetbridge.service.devices.empatica;
+
+import nodomain.freeyourgadget.gadgetbridge.util.Biquad;
+
+/**
+ * Online decomposition of the E4 electrodermal activity into its tonic level and phasic skin
+ * conductance responses (SCR), reduced to a stress level once per minute.
+ * <p>
+ * The smoothed signal is split by an asymmetric tracker that follows decreases quickly and
+ * increases slowly, so the tonic level stays at the floor between responses and the phasic part is
+ * what rises above it. SCRs are detected from the slope of the signal: an onset when it rises
+ * faster than {@link #ONSET_SLOPE}, and a peak when it stops rising, counting the response if the
+ * amplitude exceeds {@link #MIN_SCR_AMPLITUDE}. The stress level is derived from the SCR rate over
+ * the last {@link #RATE_WINDOW_MINUTES} minutes. A minute interrupted by a gap or the end of the
+ * stream is reported as partial, with the rate scaled to the part it covers. The state is constant
+ * in size, however long the session runs.
+ * <p>
+ * Not thread-safe.
+ */
+public class EmpaticaE4EdaProcessor {
+    public interface Listener {
+        /**
+         * @param timestamp end of the minute the level was computed for, or of the last sample if
+         *                  the minute is partial
+         * @param stress    between 0 and 100
+         * @param partial   whether the stream ended or had a gap before the minute was complete
+         */
+        void onStress(long timestamp, int stress, boolean partial);
+    }
+
+    public static final long MINUTE_MS = 60_000L;
+
+    // a notification arriving late or early by less than this is considered continuous
+    private static final long GAP_TOLERANCE_MS = 1000L;
+    private static final double SMOOTHING_CUTOFF_HZ = 1.0;
+    // time constants of the tonic tracker while the signal is above and below it
+    private static final double TONIC_RISE_TIME_MS = 30_000.0;
+    private static final double TONIC_FALL_TIME_MS = 2_000.0;
+
+    // in microsiemens per second and microsiemens
+    private static final double ONSET_SLOPE = 0.01;
+    private static final double MIN_SCR_AMPLITUDE = 0.03;
+    // below this the sensor is most likely not in contact with the skin
+    private static final double MIN_CONTACT_EDA = 0.05;
+    // share of samples in a minute that need skin contact for a stress level
+    private static final double MIN_CONTACT_RATIO = 0.8;
+
+    // a partial minute shorter than this is too short for a meaningful rate
+    private static final long MIN_PARTIAL_MS = 15_000L;
+
+    private static final int RATE_WINDOW_MINUTES = 5;
+    // SCRs per minute at which the stress level reaches 63%
+    private static final double RATE_SCALE = 8.0;
+
+    private final Listener listener;
+    private final int sampleRate;
+    private final double period;
+    private final double riseAlpha;
+    private final double fallAlpha;
+    private final Biquad smoothing;
+
+    private long startTimestamp;
+    private long sampleCount;
+    private double tonic;
+    private double phasic;
+    private double previous;
+    private boolean rising;
+    private double onsetValue;
+
+    private long minuteStart;
+    private int minuteSamples;
+    private int minuteContactSamples;
+    private int minuteResponses;
+
+    private final int[] responsesPerMinute = new int[RATE_WINDOW_MINUTES];
+    private int minuteIndex;
+    private int minutesInWindow;
+
+    public EmpaticaE4EdaProcessor(final int sampleRate, final Listener listener) {
+        this.listener = listener;
+        this.sampleRate = sampleRate;
+        this.period = 1000.0 / sampleRate;
+        this.riseAlpha = 1 - Math.exp(-period / TONIC_RISE_TIME_MS);
+        this.fallAlpha = 1 - Math.exp(-period / TONIC_FALL_TIME_MS);
+        this.smoothing = Biquad.lowPass(sampleRate, SMOOTHING_CUTOFF_HZ);
+    }
+
+    /**
+     * Processes all samples in the ring, without removing them.
+     */
+    public void process(final EmpaticaE4SampleRing ring) {
+        final int size = ring.size();
+        for (int i = 0; i < size; i++) {
+            add(ring.getTimestamp(i), ring.getValue(i, 0));
+        }
+    }
+
+    public void add(final long timestamp, final float eda) {
+        if (sampleCount == 0 || Math.abs(timestamp - (startTimestamp + sampleCount * period)) > GAP_TOLERANCE_MS) {
+            reset(timestamp, eda);
+        }
+        final long time = startTimestamp + Math.round(sampleCount * period);
+        sampleCount++;
+
+        if (time - minuteStart >= MINUTE_MS) {
+            completeMinute(minuteStart + MINUTE_MS, false);
+            minuteStart += MINUTE_MS * ((time - minuteStart) / MINUTE_MS);
+        }
+
+        final double value = smoothing.filter(eda);
+        minuteSamples++;
+        if (value < MIN_CONTACT_EDA) {
+            // off the wrist, do not mistake the contact being restored for a response
+            rising = false;
+            previous = value;
+            return;
+        }
+        minuteContactSamples++;
+
+        tonic += (value - tonic) * (value > tonic ? riseAlpha : fallAlpha);
+        phasic = Math.max(0, value - tonic);
+
+        final double slope = (value - previous) * sampleRate;
+        if (!rising && slope > ONSET_SLOPE) {
+            rising = true;
+            onsetValue = previous;
+        } else if (rising && slope <= 0) {
+            rising = false;
+            if (previous - onsetValue >= MIN_SCR_AMPLITUDE) {
+                minuteResponses++;
+            }
+        }
+        previous = value;
+    }
+
+    public double getTonic() {
+        return tonic;
+    }
+
+    public double getPhasic() {
+        return phasic;
+    }
+
+    /**
+     * Reports the minute in progress as partial. Called when the stream ends.
+     */
+    public void flush() {
+        completePartialMinute();
+    }
+
+    private void completePartialMinute() {
+        if (sampleCount > 0 && minuteSamples * period >= MIN_PARTIAL_MS) {
+            completeMinute(startTimestamp + Math.round(sampleCount * period), true);
+        }
+    }
+
+    private void reset(final long timestamp, final float eda) {
+        completePartialMinute();
+        startTimestamp = timestamp;
+        sampleCount = 0;
+        smoothing.reset(eda);
+        tonic = eda;
+        phasic = 0;
+        previous = eda;
+        rising = false;
+        minuteStart = timestamp;
+        minuteSamples = 0;
+        minuteContactSamples = 0;
+        minuteResponses = 0;
+        minuteIndex = 0;
+        minutesInWindow = 0;
+    }
+
+    private void completeMinute(final long timestamp, final boolean partial) {
+        final boolean inContact = minuteSamples > 0 && minuteContactSamples >= minuteSamples * MIN_CONTACT_RATIO;
+        if (inContact) {
+            responsesPerMinute[minuteIndex] = minuteResponses;
+            minuteIndex = (minuteIndex + 1) % RATE_WINDOW_MINUTES;
+            if (minutesInWindow < RATE_WINDOW_MINUTES) {
+                minutesInWindow++;
+            }
+
+            int responses = 0;
+            for (int i = 0; i < minutesInWindow; i++) {
+                responses += responsesPerMinute[i];
+            }
+            // the current minute only counts for the part it covers
+            final double coverage = partial ? Math.min(1.0, minuteSamples * period / MINUTE_MS) : 1.0;
+            final double rate = responses / (minutesInWindow - 1 + coverage);
+            listener.onStress(timestamp, (int) Math.round(100 * (1 - Math.exp(-rate / RATE_SCALE))), partial);
+        } else {
+            // the rate is no longer representative after the sensor lost contact
+            minutesInWindow = 0;
+            minuteIndex = 0;
+        }
+        minuteSamples = 0;
+        minuteContactSamples = 0;
+        minuteResponses = 0;
+    }
+}
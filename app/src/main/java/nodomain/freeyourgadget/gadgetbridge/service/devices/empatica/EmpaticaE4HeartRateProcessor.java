@@ -0,0 +1,217 @@
+package nodomain.freeyourgadget.gadgetbridge.service.devices.empatica;
+
+import nodomain.freeyourgadget.gadgetbridge.util.Biquad;
+
+/**
+ * Derives heart rate, inter-beat intervals and HRV from the E4 blood volume pulse, one sample at a
+ * time.
+ * <p>
+ * The BVP is band-pass filtered to 0.5-4 Hz (30-240 bpm), systolic peaks are detected as local
+ * maxima above an adaptive fraction of the recent peak amplitude, and the intervals between
+ * consecutive peaks (IBI) yield the heart rate and the RMSSD over {@link #HRV_WINDOW_MS}. All state
+ * is a handful of fields, so the work per sample is constant and nothing is allocated.
+ * <p>
+ * Peak times are derived from the sample count rather than the notification arrival times, since
+ * the sensor clock is much more regular. The state is reset whenever the stream has a gap.
+ * <p>
+ * Not thread-safe.
+ */
+public class EmpaticaE4HeartRateProcessor {
+    public interface Listener {
+        void onHeartRate(long timestamp, int heartRate);
+
+        /**
+         * Called for every interval that passed the artifact rejection.
+         *
+         * @param timestamp the time of the beat that ends the interval
+         * @param ibi       the interval since the previous beat, in milliseconds
+         */
+        void onIbi(long timestamp, int ibi);
+
+        /**
+         * @param rmssd root mean square of successive IBI differences, in milliseconds
+         */
+        void onHrv(long timestamp, int rmssd);
+    }
+
+    public static final long HRV_WINDOW_MS = 5 * 60_000L;
+
+    private static final double LOW_CUTOFF_HZ = 0.5;
+    private static final double HIGH_CUTOFF_HZ = 4.0;
+    // a notification arriving late or early by less than this is considered continuous
+    private static final long GAP_TOLERANCE_MS = 1000L;
+    // let the filters settle before detecting peaks
+    private static final long WARMUP_MS = 2000L;
+
+    private static final double PEAK_THRESHOLD = 0.5;
+    private static final double ENVELOPE_SMOOTHING = 0.125;
+    // per-sample decay of the peak envelope, so that it recovers from motion artifacts
+    private static final double ENVELOPE_HALF_LIFE_MS = 5000.0;
+
+    private static final double MIN_IBI_MS = 300.0;
+    private static final double MAX_IBI_MS = 2000.0;
+    // IBIs deviating more than this from the recent mean are considered artifacts
+    private static final double MAX_IBI_DEVIATION = 0.3;
+    private static final int MAX_CONSECUTIVE_REJECTS = 4;
+    private static final int IBI_HISTORY = 8;
+    // require at least half of the window to be covered by clean beats at 60 bpm
+    private static final int MIN_HRV_INTERVALS = (int) (HRV_WINDOW_MS / 1000 / 2);
+
+    private final Listener listener;
+    private final double period;
+    private final long warmupSamples;
+    private final double envelopeDecay;
+    private final Biquad highPass;
+    private final Biquad lowPass;
+
+    private long startTimestamp;
+    private long sampleCount;
+    private double previous1;
+    private double previous2;
+    private double envelope;
+    private double lastPeakTime;
+
+    private final double[] ibis = new double[IBI_HISTORY];
+    private int ibiCount;
+    private int ibiIndex;
+    private double ibiSum;
+    private double previousIbi;
+    private int consecutiveRejects;
+
+    private double hrvWindowStart;
+    private double hrvSumOfSquares;
+    private int hrvIntervals;
+
+    public EmpaticaE4HeartRateProcessor(final int sampleRate, final Listener listener) {
+        this.listener = listener;
+        this.period = 1000.0 / sampleRate;
+        this.warmupSamples = WARMUP_MS * sampleRate / 1000;
+        this.envelopeDecay = Math.pow(0.5, period / ENVELOPE_HALF_LIFE_MS);
+        this.highPass = Biquad.highPass(sampleRate, LOW_CUTOFF_HZ);
+        this.lowPass = Biquad.lowPass(sampleRate, HIGH_CUTOFF_HZ);
+    }
+
+    /**
+     * Processes all samples in the ring, without removing them.
+     */
+    public void process(final EmpaticaE4SampleRing ring) {
+        final int size = ring.size();
+        for (int i = 0; i < size; i++) {
+            add(ring.getTimestamp(i), ring.getValue(i, 0));
+        }
+    }
+
+    public void add(final long timestamp, final float bvp) {
+        if (sampleCount == 0 || Math.abs(timestamp - (startTimestamp + sampleCount * period)) > GAP_TOLERANCE_MS) {
+            reset(timestamp, bvp);
+        }
+        final double time = startTimestamp + sampleCount * period;
+        sampleCount++;
+
+        final double filtered = lowPass.filter(highPass.filter(bvp));
+        if (sampleCount > warmupSamples && previous1 > 0 && previous1 > previous2 && previous1 >= filtered) {
+            onLocalMaximum(time - period, previous2, previous1, filtered);
+        }
+        envelope *= envelopeDecay;
+        previous2 = previous1;
+        previous1 = filtered;
+    }
+
+    private void reset(final long timestamp, final float bvp) {
+        startTimestamp = timestamp;
+        sampleCount = 0;
+        highPass.reset(bvp);
+        lowPass.reset(0);
+        previous1 = 0;
+        previous2 = 0;
+        envelope = 0;
+        lastPeakTime = -1;
+        ibiCount = 0;
+        ibiIndex = 0;
+        ibiSum = 0;
+        previousIbi = 0;
+        consecutiveRejects = 0;
+        hrvWindowStart = timestamp;
+        hrvSumOfSquares = 0;
+        hrvIntervals = 0;
+    }
+
+    private void onLocalMaximum(final double time, final double before, final double peak, final double after) {
+        if (peak < envelope * PEAK_THRESHOLD) {
+            return;
+        }
+        envelope += (peak - envelope) * ENVELOPE_SMOOTHING;
+
+        // parabolic interpolation of the peak between the samples
+        final double denominator = before - 2 * peak + after;
+        final double offset = denominator != 0 ? 0.5 * (before - after) / denominator : 0;
+        final double peakTime = time + offset * period;
+
+        if (lastPeakTime >= 0) {
+            final double ibi = peakTime - lastPeakTime;
+            if (ibi < MIN_IBI_MS) {
+                // dicrotic notch or noise within the refractory period
+                return;
+            }
+            onBeat(peakTime, ibi);
+        }
+        lastPeakTime = peakTime;
+    }
+
+    private void onBeat(final double time, final double ibi) {
+        if (ibi > MAX_IBI_MS) {
+            // missed beats, the interval is meaningless
+            previousIbi = 0;
+            return;
+        }
+        final boolean checked = ibiCount >= IBI_HISTORY / 2;
+        if (checked) {
+            final double mean = ibiSum / ibiCount;
+            if (Math.abs(ibi - mean) > mean * MAX_IBI_DEVIATION) {
+                previousIbi = 0;
+                if (++consecutiveRejects >= MAX_CONSECUTIVE_REJECTS) {
+                    // the rhythm changed rather than a few artifacts, start over
+                    ibiCount = 0;
+                    ibiIndex = 0;
+                    ibiSum = 0;
+                    consecutiveRejects = 0;
+                }
+                return;
+            }
+        }
+        consecutiveRejects = 0;
+        if (checked) {
+            // the first intervals after a reset can not be told apart from artifacts yet
+            listener.onIbi(Math.round(time), (int) Math.round(ibi));
+        }
+
+        if (ibiCount == IBI_HISTORY) {
+            ibiSum -= ibis[ibiIndex];
+        } else {
+            ibiCount++;
+        }
+        ibis[ibiIndex] = ibi;
+        ibiSum += ibi;
+        ibiIndex = (ibiIndex + 1) % IBI_HISTORY;
+
+        if (previousIbi > 0) {
+            final double difference = ibi - previousIbi;
+            hrvSumOfSquares += difference * difference;
+            hrvIntervals++;
+        }
+        previousIbi = ibi;
+
+        if (ibiCount >= IBI_HISTORY / 2) {
+            listener.onHeartRate(Math.round(time), (int) Math.round(60_000.0 * ibiCount / ibiSum));
+        }
+
+        if (time - hrvWindowStart >= HRV_WINDOW_MS) {
+            if (hrvIntervals >= MIN_HRV_INTERVALS) {
+                listener.onHrv(Math.round(time), (int) Math.round(Math.sqrt(hrvSumOfSquares / hrvIntervals)));
+            }
+            hrvWindowStart = time;
+            hrvSumOfSquares = 0;
+            hrvIntervals = 0;
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package nodomain.freeyourgadget.gadgetbridge.service.devices.empatica;
+
+import android.content.Context;
+
+import androidx.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import nodomain.freeyourgadget.gadgetbridge.devices.empatica.EmpaticaE4Constants;
+import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
+import nodomain.freeyourgadget.gadgetbridge.util.RealtimeSamplesAggregator;
+import nodomain.freeyourgadget.gadgetbridge.util.SpscFrameRingBuffer;
+
+/**
+ * Moves decoding and persistence of the E4 sensor streams off the BLE receiver thread.
+ * <p>
+ * Raw notifications are copied into a {@link SpscFrameRingBuffer} by the receiver thread and
+ * handled by a dedicated consumer thread, so that slow consumers such as database writes can never
+ * stall GATT notification handling. If the consumer falls behind, notifications are dropped and
+ * counted instead of blocking the receiver.
+ * <p>
+ * The consumer thread also runs the signal processing stages on the decoded samples, before they
+ * are handed to the writer. If a {@link EmpaticaE4SessionRecorder} is given, the raw notifications
+ * are recorded as well, without going through the database.
+ */
+public class EmpaticaE4Pipeline implements SpscFrameRingBuffer.FrameHandler,
+        EmpaticaE4HeartRateProcessor.Listener, EmpaticaE4EdaProcessor.Listener, EmpaticaE4ActivityProcessor.Listener {
+    private static final Logger LOG = LoggerFactory.getLogger(EmpaticaE4Pipeline.class);
+
+    // roughly 5 seconds of notifications across all streams
+    private static final int RING_CAPACITY = 512;
+    // payload of the largest notification with the 247 bytes MTU requested during initialization
+    private static final int MAX_FRAME_SIZE = 244;
+    // the writer empties the sample rings after each batch, so a batch must never decode more
+    // samples than a sample ring holds
+    private static final int DRAIN_BATCH = EmpaticaE4Decoder.RING_CAPACITY / EmpaticaE4Decoder.getMaxSamples(MAX_FRAME_SIZE);
+    private static final long IDLE_PARK_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final long REALTIME_HEART_RATE_INTERVAL_MS = 1000L;
+
+    // consumer threads still flushing after close(), see awaitClosed()
+    private static final Set<Thread> CLOSING = ConcurrentHashMap.newKeySet();
+
+    private final SpscFrameRingBuffer ring = new SpscFrameRingBuffer(RING_CAPACITY, MAX_FRAME_SIZE);
+    private final EmpaticaE4Decoder decoder;
+    private final EmpaticaE4SampleWriter writer;
+    private final EmpaticaE4HeartRateProcessor heartRateProcessor;
+    private final EmpaticaE4EdaProcessor edaProcessor;
+    private final EmpaticaE4ActivityProcessor activityProcessor;
+    private final RealtimeSamplesAggregator realtimeSamplesAggregator;
+    @Nullable
+    private final EmpaticaE4SessionRecorder recorder;
+    private final Thread consumer;
+
+    private volatile boolean running = true;
+    private volatile boolean consumerParked;
+
+    // only accessed from the consumer thread
+    private long reportedDropped;
+    private long reportedDroppedSamples;
+    private long lastRealtimeHeartRate;
+
+    public EmpaticaE4Pipeline(final Context context, final GBDevice gbDevice, final EmpaticaE4Decoder decoder,
+                              @Nullable final EmpaticaE4SessionRecorder recorder) {
+        this.decoder = decoder;
+        this.recorder = recorder;
+        this.writer = new EmpaticaE4SampleWriter(gbDevice);
+        this.heartRateProcessor = new EmpaticaE4HeartRateProcessor(EmpaticaE4Constants.BVP_SAMPLE_RATE, this);
+        this.edaProcessor = new EmpaticaE4EdaProcessor(EmpaticaE4Constants.GSR_SAMPLE_RATE, this);
+        this.activityProcessor = new EmpaticaE4ActivityProcessor(EmpaticaE4Constants.ACC_SAMPLE_RATE, this);
+        this.realtimeSamplesAggregator = new RealtimeSamplesAggregator(context, gbDevice);
+        this.consumer = new Thread(this::consume, "E4 pipeline " + gbDevice.getAddress());
+        this.consumer.setDaemon(true);
+        this.consumer.start();
+    }
+
+    /**
+     * Queues a notification of the given stream for decoding. Receiver thread only, never blocks.
+     *
+     * @return false if the notification was dropped
+     */
+    public boolean submit(final int stream, final byte[] data, final long timestamp) {
+        if (data.length > MAX_FRAME_SIZE) {
+            LOG.warn("Dropping oversized notification of {} bytes", data.length);
+            return false;
+        }
+        final boolean queued = ring.offer(stream, timestamp, data, 0, data.length);
+        if (consumerParked) {
+            LockSupport.unpark(consumer);
+        }
+        return queued;
+    }
+
+    @Override
+    public void onFrame(final int tag, final long timestamp, final byte[] data, final int offset, final int length) {
+        decoder.decode(tag, data, offset, length, timestamp);
+        if (recorder != null) {
+            recorder.append(tag, timestamp, data, offset, length);
+        }
+    }
+
+    private void consume() {
+        while (running || !ring.isEmpty()) {
+            if (ring.drain(this, DRAIN_BATCH) > 0) {
+                heartRateProcessor.process(decoder.getRing(EmpaticaE4Decoder.STREAM_BVP));
+                edaProcessor.process(decoder.getRing(EmpaticaE4Decoder.STREAM_GSR));
+                activityProcessor.process(decoder.getRing(EmpaticaE4Decoder.STREAM_ACC));
+                writer.drain(decoder);
+                reportDrops();
+                continue;
+            }
+
+            consumerParked = true;
+            // re-check after announcing that we park, so that a concurrent submit is not missed
+            if (running && ring.isEmpty()) {
+                LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+            }
+            consumerParked = false;
+        }
+        // report the minutes held back by the processors before the writer is closed
+        edaProcessor.flush();
+        activityProcessor.flush();
+
+        // the writer and the recorder are only closed here, once nothing can append to them
+        // anymore. Closing the writer waits for its samples to be committed, which is why this
+        // runs on the consumer thread instead of the thread disposing the device support
+        try {
+            writer.close();
+            if (recorder != null) {
+                recorder.close();
+            }
+        } finally {
+            CLOSING.remove(consumer);
+        }
+
+        LOG.info("E4 pipeline closed: {} notifications, {} dropped, high-water mark {}/{}, {} decoded samples dropped",
+                ring.getOffered(), ring.getDropped(), ring.getHighWaterMark(), ring.getCapacity(), decoder.getDropped());
+    }
+
+    @Override
+    public void onHeartRate(final long timestamp, final int heartRate) {
+        activityProcessor.addHeartRate(heartRate);
+        if (timestamp - lastRealtimeHeartRate >= REALTIME_HEART_RATE_INTERVAL_MS) {
+            lastRealtimeHeartRate = timestamp;
+            realtimeSamplesAggregator.broadcastHeartRate(heartRate);
+        }
+    }
+
+    @Override
+    public void onIbi(final long timestamp, final int ibi) {
+        writer.addIbi(timestamp, ibi);
+    }
+
+    @Override
+    public void onHrv(final long timestamp, final int rmssd) {
+        LOG.debug("E4 HRV: RMSSD {}ms", rmssd);
+        writer.addHrv(timestamp, rmssd);
+    }
+
+    @Override
+    public void onStress(final long timestamp, final int stress, final boolean partial) {
+        if (partial) {
+            LOG.debug("E4 stress {} for a partial minute ending at {}", stress, timestamp);
+        }
+        writer.addStress(timestamp, stress);
+    }
+
+    @Override
+    public void onActivityMinute(final int timestamp, final int rawIntensity, final int steps, final int rawKind, final int heartRate) {
+        writer.addActivity(timestamp, rawIntensity, steps, rawKind, heartRate);
+    }
+
+    private void reportDrops() {
+        final long dropped = ring.getDropped();
+        if (dropped != reportedDropped) {
+            LOG.warn("Consumer fell behind, {} notifications dropped so far (high-water mark {}/{})",
+                    dropped, ring.getHighWaterMark(), ring.getCapacity());
+            reportedDropped = dropped;
+        }
+        final long droppedSamples = decoder.getDropped();
+        if (droppedSamples != reportedDroppedSamples) {
+            LOG.warn("Sample rings overflowed, {} decoded samples dropped so far", droppedSamples);
+            reportedDroppedSamples = droppedSamples;
+        }
+    }
+
+    /**
+     * Stops the consumer without waiting for it. The consumer processes all queued notifications,
+     * persists the pending samples and closes the recorder before it exits. Notifications submitted
+     * after this call are not processed anymore.
+     */
+    public void close() {
+        if (!running) {
+            return;
+        }
+        if (consumer.isAlive()) {
+            CLOSING.add(consumer);
+        }
+        running = false;
+        LockSupport.unpark(consumer);
+    }
+
+    /**
+     * Waits for the consumers of all closed pipelines to persist their pending samples and exit.
+     *
+     * @return false if a consumer was still running when the timeout expired
+     */
+    public static boolean awaitClosed(final long timeoutMillis) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + timeoutMillis;
+        for (final Thread thread : CLOSING) {
+            final long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            thread.join(remaining);
+            if (!thread.isAlive()) {
+                // the consumer may have died before it could unregister itself
+                CLOSING.remove(thread);
+            }
+        }
+        return CLOSING.isEmpty();
+    }
+
+    /**
+     * @return the number of notifications dropped before decoding, plus the number of decoded
+     * samples dropped before they reached the writer
+     */
+    public long getDropped() {
+        return ring.getDropped() + decoder.getDropped();
+    }
+
+    public int getHighWaterMark() {
+        return ring.getHighWaterMark();
+    }
+}
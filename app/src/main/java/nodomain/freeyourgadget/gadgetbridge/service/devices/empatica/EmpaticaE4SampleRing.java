@@ -0,0 +1,114 @@
+package nodomain.freeyourgadget.gadgetbridge.service.devices.empatica;
+
+/**
+ * Fixed-size ring of timestamped sample frames, each frame being {@code width} floats wide.
+ * Backed by preallocated primitive arrays, so adding and removing frames never allocates.
+ * <p>
+ * Not thread-safe: frames must be written and drained on the same thread.
+ */
+public final class EmpaticaE4SampleRing {
+    private final int width;
+    private final int mask;
+    private final long[] timestamps;
+    private final float[] values;
+
+    private long head; // next frame to be written
+    private long tail; // next frame to be read
+    private long dropped;
+
+    /**
+     * @param capacity number of frames, must be a power of two
+     * @param width    number of values per frame
+     */
+    public EmpaticaE4SampleRing(final int capacity, final int width) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("capacity must be a power of two: " + capacity);
+        }
+        this.width = width;
+        this.mask = capacity - 1;
+        this.timestamps = new long[capacity];
+        this.values = new float[capacity * width];
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Appends a single-value frame. Returns false and counts the frame as dropped if the ring is full.
+     */
+    public boolean offer(final long timestamp, final float value) {
+        if (head - tail > mask) {
+            dropped++;
+            return false;
+        }
+        final int slot = (int) head & mask;
+        timestamps[slot] = timestamp;
+        values[slot * width] = value;
+        head++;
+        return true;
+    }
+
+    /**
+     * Appends a three-value frame. Returns false and counts the frame as dropped if the ring is full.
+     */
+    public boolean offer(final long timestamp, final float x, final float y, final float z) {
+        if (head - tail > mask) {
+            dropped++;
+            return false;
+        }
+        final int slot = (int) head & mask;
+        final int offset = slot * width;
+        timestamps[slot] = timestamp;
+        values[offset] = x;
+        values[offset + 1] = y;
+        values[offset + 2] = z;
+        head++;
+        return true;
+    }
+
+    public boolean isEmpty() {
+        return head == tail;
+    }
+
+    public int size() {
+        return (int) (head - tail);
+    }
+
+    public long peekTimestamp() {
+        return timestamps[(int) tail & mask];
+    }
+
+    public float peekValue(final int channel) {
+        return values[((int) tail & mask) * width + channel];
+    }
+
+    /**
+     * @param index 0 for the oldest frame, up to {@link #size()} - 1
+     */
+    public long getTimestamp(final int index) {
+        return timestamps[(int) (tail + index) & mask];
+    }
+
+    /**
+     * @param index 0 for the oldest frame, up to {@link #size()} - 1
+     */
+    public float getValue(final int index, final int channel) {
+        return values[((int) (tail + index) & mask) * width + channel];
+    }
+
+    public void remove() {
+        if (head == tail) {
+            throw new IllegalStateException("ring is empty");
+        }
+        tail++;
+    }
+
+    public void clear() {
+        tail = head;
+    }
+
+    public long getDropped() {
+        return dropped;
+    }
+}
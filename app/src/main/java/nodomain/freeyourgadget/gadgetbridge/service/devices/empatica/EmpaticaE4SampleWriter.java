@@ -0,0 +1,207 @@
+package nodomain.freeyourgadget.gadgetbridge.service.devices.empatica;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import nodomain.freeyourgadget.gadgetbridge.database.SampleIngestionService;
+import nodomain.freeyourgadget.gadgetbridge.devices.empatica.EmpaticaE4Constants;
+import nodomain.freeyourgadget.gadgetbridge.devices.empatica.EmpaticaE4WaveformChunkProvider;
+import nodomain.freeyourgadget.gadgetbridge.entities.EmpaticaE4ActivitySample;
+import nodomain.freeyourgadget.gadgetbridge.entities.EmpaticaE4EdaSample;
+import nodomain.freeyourgadget.gadgetbridge.entities.EmpaticaE4IbiSample;
+import nodomain.freeyourgadget.gadgetbridge.entities.EmpaticaE4TemperatureSample;
+import nodomain.freeyourgadget.gadgetbridge.entities.EmpaticaE4WaveformChunk;
+import nodomain.freeyourgadget.gadgetbridge.entities.GenericHrvValueSample;
+import nodomain.freeyourgadget.gadgetbridge.entities.GenericStressSample;
+import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
+
+/**
+ * Write-behind stage for the E4 sensor streams of one device. Samples are collected in memory and
+ * taken by the shared {@link SampleIngestionService} on every flush, which persists the samples of
+ * all connected E4s, and of all other devices, in one transaction. A flush is requested early once
+ * {@link #FLUSH_THRESHOLD} samples are pending.
+ * <p>
+ * The high-rate BVP and accelerometer streams are stored as compressed
+ * {@link EmpaticaE4WaveformChunk}s instead of one row per sample. Chunks that are still being
+ * filled are persisted on every flush as well, and replaced once they grow.
+ */
+public class EmpaticaE4SampleWriter implements SampleIngestionService.Source {
+    private static final int FLUSH_THRESHOLD = 4096;
+
+    private final GBDevice gbDevice;
+    private final SampleIngestionService ingestionService;
+
+    private final Object pendingLock = new Object();
+    private final EmpaticaE4WaveformChunker bvpChunker = new EmpaticaE4WaveformChunker(
+            EmpaticaE4WaveformChunkProvider.CHANNEL_BVP, 1, EmpaticaE4Constants.BVP_SAMPLE_RATE);
+    private final EmpaticaE4WaveformChunker accChunker = new EmpaticaE4WaveformChunker(
+            EmpaticaE4WaveformChunkProvider.CHANNEL_ACC_X, 3, EmpaticaE4Constants.ACC_SAMPLE_RATE);
+    private List<EmpaticaE4WaveformChunk> pendingChunks = new ArrayList<>();
+    private List<EmpaticaE4EdaSample> pendingEda = new ArrayList<>();
+    private List<EmpaticaE4TemperatureSample> pendingTemperature = new ArrayList<>();
+    private List<EmpaticaE4IbiSample> pendingIbi = new ArrayList<>();
+    private List<GenericHrvValueSample> pendingHrv = new ArrayList<>();
+    private List<GenericStressSample> pendingStress = new ArrayList<>();
+    private List<EmpaticaE4ActivitySample> pendingActivity = new ArrayList<>();
+    private int pendingCount;
+    private boolean flushRequested;
+    // waveform samples count individually, even though they are stored as chunks
+    private long takenSamples;
+
+    public EmpaticaE4SampleWriter(final GBDevice gbDevice) {
+        this(gbDevice, SampleIngestionService.getInstance());
+    }
+
+    public EmpaticaE4SampleWriter(final GBDevice gbDevice, final SampleIngestionService ingestionService) {
+        this.gbDevice = gbDevice;
+        this.ingestionService = ingestionService;
+        ingestionService.register(this);
+    }
+
+    /**
+     * Moves all decoded samples from the decoder rings to the pending batch.
+     */
+    public void drain(final EmpaticaE4Decoder decoder) {
+        synchronized (pendingLock) {
+            final EmpaticaE4SampleRing bvp = decoder.getRing(EmpaticaE4Decoder.STREAM_BVP);
+            while (!bvp.isEmpty()) {
+                bvpChunker.add(bvp, pendingChunks);
+                bvp.remove();
+                onSampleAdded();
+            }
+            final EmpaticaE4SampleRing eda = decoder.getRing(EmpaticaE4Decoder.STREAM_GSR);
+            while (!eda.isEmpty()) {
+                addEda(eda.peekTimestamp(), eda.peekValue(0));
+                eda.remove();
+            }
+            final EmpaticaE4SampleRing acc = decoder.getRing(EmpaticaE4Decoder.STREAM_ACC);
+            while (!acc.isEmpty()) {
+                accChunker.add(acc, pendingChunks);
+                acc.remove();
+                onSampleAdded();
+            }
+            final EmpaticaE4SampleRing temperature = decoder.getRing(EmpaticaE4Decoder.STREAM_ST);
+            while (!temperature.isEmpty()) {
+                addTemperature(temperature.peekTimestamp(), temperature.peekValue(0));
+                temperature.remove();
+            }
+        }
+    }
+
+    private void addEda(final long timestamp, final float eda) {
+        final EmpaticaE4EdaSample sample = new EmpaticaE4EdaSample();
+        sample.setTimestamp(timestamp);
+        sample.setEda(eda);
+        pendingEda.add(sample);
+        onSampleAdded();
+    }
+
+    private void addTemperature(final long timestamp, final float temperature) {
+        final EmpaticaE4TemperatureSample sample = new EmpaticaE4TemperatureSample();
+        sample.setTimestamp(timestamp);
+        sample.setTemperature(temperature);
+        sample.setTemperatureType(0);
+        pendingTemperature.add(sample);
+        onSampleAdded();
+    }
+
+    public void addIbi(final long timestamp, final int ibi) {
+        final EmpaticaE4IbiSample sample = new EmpaticaE4IbiSample();
+        sample.setTimestamp(timestamp);
+        sample.setIbi(ibi);
+        synchronized (pendingLock) {
+            pendingIbi.add(sample);
+            onSampleAdded();
+        }
+    }
+
+    public void addHrv(final long timestamp, final int rmssd) {
+        final GenericHrvValueSample sample = new GenericHrvValueSample();
+        sample.setTimestamp(timestamp);
+        sample.setValue(rmssd);
+        synchronized (pendingLock) {
+            pendingHrv.add(sample);
+            onSampleAdded();
+        }
+    }
+
+    public void addStress(final long timestamp, final int stress) {
+        final GenericStressSample sample = new GenericStressSample();
+        sample.setTimestamp(timestamp);
+        sample.setStress(stress);
+        synchronized (pendingLock) {
+            pendingStress.add(sample);
+            onSampleAdded();
+        }
+    }
+
+    public void addActivity(final int timestamp, final int rawIntensity, final int steps, final int rawKind, final int heartRate) {
+        final EmpaticaE4ActivitySample sample = new EmpaticaE4ActivitySample();
+        sample.setTimestamp(timestamp);
+        sample.setRawIntensity(rawIntensity);
+        sample.setSteps(steps);
+        sample.setRawKind(rawKind);
+        sample.setHeartRate(heartRate);
+        synchronized (pendingLock) {
+            pendingActivity.add(sample);
+            onSampleAdded();
+        }
+    }
+
+    private void onSampleAdded() {
+        pendingCount++;
+        if (pendingCount >= FLUSH_THRESHOLD && !flushRequested) {
+            flushRequested = true;
+            ingestionService.requestFlush();
+        }
+    }
+
+    /**
+     * Takes the pending samples, including snapshots of the chunks that are still being filled.
+     */
+    @Override
+    public void takeSamples(final SampleIngestionService.Batch batch) {
+        synchronized (pendingLock) {
+            flushRequested = false;
+            if (pendingCount == 0) {
+                return;
+            }
+            bvpChunker.snapshot(pendingChunks);
+            accChunker.snapshot(pendingChunks);
+            batch.addAll(gbDevice, pendingChunks);
+            batch.addAll(gbDevice, pendingEda);
+            batch.addAll(gbDevice, pendingTemperature);
+            batch.addAll(gbDevice, pendingIbi);
+            batch.addAll(gbDevice, pendingHrv);
+            batch.addAll(gbDevice, pendingStress);
+            for (final EmpaticaE4ActivitySample sample : pendingActivity) {
+                batch.add(gbDevice, sample);
+            }
+            pendingChunks = new ArrayList<>();
+            pendingEda = new ArrayList<>(pendingEda.size());
+            pendingTemperature = new ArrayList<>(pendingTemperature.size());
+            pendingIbi = new ArrayList<>(pendingIbi.size());
+            pendingHrv = new ArrayList<>();
+            pendingStress = new ArrayList<>();
+            pendingActivity = new ArrayList<>();
+            takenSamples += pendingCount;
+            pendingCount = 0;
+        }
+    }
+
+    /**
+     * @return the number of samples taken by the ingestion service so far
+     */
+    public long getTakenSamples() {
+        synchronized (pendingLock) {
+            return takenSamples;
+        }
+    }
+
+    /**
+     * Persists all pending samples and detaches from the ingestion service. Blocks until done.
+     */
+    public void close() {
+        ingestionService.unregister(this);
+    }
+}
@@ -0,0 +1,194 @@
+package nodomain.freeyourgadget.gadgetbridge.service.devices.empatica;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+import nodomain.freeyourgadget.gadgetbridge.devices.empatica.EmpaticaE4SessionFile;
+
+/**
+ * Appends the raw E4 notifications of a session to a memory-mapped {@link EmpaticaE4SessionFile}.
+ * <p>
+ * Records are written straight into a mapped region of the file, which the kernel writes back
+ * even if the app is killed, so no system call is made per notification. Every
+ * {@link #SYNC_INTERVAL_MS} a sync record is appended, the committed end offset in the header is
+ * updated and the mapped pages are flushed, which bounds the data lost on a power failure.
+ * <p>
+ * A failure to write disables the recorder, but never the pipeline that feeds it. Not thread-safe,
+ * only used from the pipeline's consumer thread.
+ */
+public class EmpaticaE4SessionRecorder implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(EmpaticaE4SessionRecorder.class);
+
+    // about 40 minutes of all E4 streams
+    private static final int REGION_SIZE = 1024 * 1024;
+    private static final long SYNC_INTERVAL_MS = 5000L;
+
+    // the files of the sessions being recorded, which are not closed yet but not abandoned either
+    private static final Set<File> RECORDING = ConcurrentHashMap.newKeySet();
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private final MappedByteBuffer header;
+    private final byte[] recordHeader = new byte[EmpaticaE4SessionFile.RECORD_HEADER_SIZE];
+    private final CRC32 crc = new CRC32();
+
+    private MappedByteBuffer region;
+    private long regionStart;
+    private long lastSync;
+    private long frames;
+    private boolean failed;
+
+    private EmpaticaE4SessionRecorder(final File file, final String address, final long startTime) throws IOException {
+        this.file = file;
+        this.raf = new RandomAccessFile(file, "rw");
+        try {
+            this.channel = raf.getChannel();
+            this.header = channel.map(FileChannel.MapMode.READ_WRITE, 0, EmpaticaE4SessionFile.HEADER_SIZE);
+            EmpaticaE4SessionFile.writeHeader(header, address, startTime);
+            header.force();
+            mapRegion(EmpaticaE4SessionFile.HEADER_SIZE);
+        } catch (final IOException e) {
+            raf.close();
+            throw e;
+        }
+        this.lastSync = startTime;
+        RECORDING.add(file.getAbsoluteFile());
+    }
+
+    /**
+     * Recovers the sessions of the device that were not closed cleanly, and starts a new one.
+     */
+    public static EmpaticaE4SessionRecorder open(final File dir, final String address, final long startTime) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create " + dir);
+        }
+        for (final File unclosed : EmpaticaE4SessionFile.listUnclosed(dir, address)) {
+            final EmpaticaE4SessionFile.Info info = EmpaticaE4SessionFile.recover(unclosed);
+            LOG.info("Recovered E4 session {}: {} frames, {} bytes skipped", unclosed.getName(), info.getFrames(), info.getSkippedBytes());
+        }
+        final File file = EmpaticaE4SessionFile.createFile(dir, address, startTime);
+        LOG.info("Recording E4 session to {}", file);
+        return new EmpaticaE4SessionRecorder(file, address, startTime);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return whether the session file is still being recorded by a connected device
+     */
+    public static boolean isRecording(final File file) {
+        return RECORDING.contains(file.getAbsoluteFile());
+    }
+
+    public long getFrames() {
+        return frames;
+    }
+
+    private void mapRegion(final long position) throws IOException {
+        if (region != null) {
+            // make sure the completed region is on storage before it is released
+            region.force();
+        }
+        region = channel.map(FileChannel.MapMode.READ_WRITE, position, REGION_SIZE);
+        region.order(ByteOrder.LITTLE_ENDIAN);
+        regionStart = position;
+    }
+
+    /**
+     * Appends a notification payload.
+     *
+     * @return false if the recorder failed and no longer records
+     */
+    public boolean append(final int stream, final long timestamp, final byte[] data, final int offset, final int length) {
+        if (failed) {
+            return false;
+        }
+        if (length == 0) {
+            return true;
+        }
+        try {
+            writeRecord(EmpaticaE4SessionFile.TYPE_FRAME, stream, timestamp, data, offset, length);
+            frames++;
+            if (timestamp - lastSync >= SYNC_INTERVAL_MS) {
+                sync(timestamp);
+            }
+            return true;
+        } catch (final IOException | RuntimeException e) {
+            LOG.error("Failed to record E4 session to {}, stopping the recording", file, e);
+            failed = true;
+            return false;
+        }
+    }
+
+    private void writeRecord(final int type, final int stream, final long timestamp,
+                             final byte[] data, final int offset, final int length) throws IOException {
+        final int size = EmpaticaE4SessionFile.RECORD_OVERHEAD + length;
+        if (region.remaining() < size) {
+            mapRegion(regionStart + region.position());
+        }
+
+        recordHeader[0] = (byte) length;
+        recordHeader[1] = (byte) (length >> 8);
+        recordHeader[2] = (byte) type;
+        recordHeader[3] = (byte) stream;
+        for (int i = 0; i < 8; i++) {
+            recordHeader[4 + i] = (byte) (timestamp >> (8 * i));
+        }
+        crc.reset();
+        crc.update(recordHeader, 0, recordHeader.length);
+        crc.update(data, offset, length);
+
+        region.put(recordHeader);
+        region.put(data, offset, length);
+        region.putInt((int) crc.getValue());
+    }
+
+    private void sync(final long timestamp) throws IOException {
+        writeRecord(EmpaticaE4SessionFile.TYPE_SYNC, 0, timestamp,
+                EmpaticaE4SessionFile.SYNC_MARKER, 0, EmpaticaE4SessionFile.SYNC_MARKER.length);
+        region.force();
+        header.putLong(EmpaticaE4SessionFile.OFFSET_COMMITTED_END, regionStart + region.position());
+        header.force();
+        lastSync = timestamp;
+    }
+
+    /**
+     * Writes a final sync record, truncates the file after it and flags it as closed.
+     */
+    @Override
+    public void close() {
+        try {
+            if (!failed) {
+                sync(lastSync);
+                final long end = regionStart + region.position();
+                header.putShort(EmpaticaE4SessionFile.OFFSET_FLAGS, (short) EmpaticaE4SessionFile.FLAG_CLOSED);
+                header.force();
+                channel.truncate(end);
+                LOG.info("E4 session {} closed: {} frames, {} bytes", file.getName(), frames, end);
+            }
+        } catch (final IOException | RuntimeException e) {
+            LOG.error("Failed to close E4 session {}", file, e);
+        } finally {
+            RECORDING.remove(file.getAbsoluteFile());
+            try {
+                raf.close();
+            } catch (final IOException e) {
+                LOG.warn("Failed to close {}", file, e);
+            }
+        }
+    }
+}
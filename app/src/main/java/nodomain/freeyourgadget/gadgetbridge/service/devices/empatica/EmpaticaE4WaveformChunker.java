@@ -0,0 +1,101 @@
+package nodomain.freeyourgadget.gadgetbridge.service.devices.empatica;
+
+import java.util.List;
+
+import nodomain.freeyourgadget.gadgetbridge.devices.empatica.EmpaticaE4WaveformChunkProvider;
+import nodomain.freeyourgadget.gadgetbridge.entities.EmpaticaE4WaveformChunk;
+import nodomain.freeyourgadget.gadgetbridge.util.FloatXorCodec;
+
+/**
+ * Packs a fixed-rate stream of one or more channels into {@link EmpaticaE4WaveformChunk}s of at
+ * most {@link EmpaticaE4WaveformChunkProvider#CHUNK_DURATION_MS}. Only the timestamp of the first sample is stored, the others
+ * are implied by the sample rate, so a new chunk is started whenever the stream has a gap.
+ * <p>
+ * Not thread-safe.
+ */
+public class EmpaticaE4WaveformChunker {
+    // a notification arriving late or early by less than this is considered continuous
+    private static final long GAP_TOLERANCE_MS = 1000L;
+
+    private final int firstChannel;
+    private final int sampleRate;
+    private final int maxSamples;
+    private final FloatXorCodec.Encoder[] encoders;
+
+    private long startTimestamp;
+    private int sampleCount;
+
+    /**
+     * @param firstChannel the channel of the first value of each sample, further values get consecutive channels
+     * @param width        the number of values per sample
+     */
+    public EmpaticaE4WaveformChunker(final int firstChannel, final int width, final int sampleRate) {
+        this.firstChannel = firstChannel;
+        this.sampleRate = sampleRate;
+        this.maxSamples = (int) (EmpaticaE4WaveformChunkProvider.CHUNK_DURATION_MS * sampleRate / 1000);
+        this.encoders = new FloatXorCodec.Encoder[width];
+        for (int i = 0; i < width; i++) {
+            // assume ~2 bytes per sample, the encoder grows if needed
+            encoders[i] = new FloatXorCodec.Encoder(maxSamples * 2);
+        }
+    }
+
+    /**
+     * Appends the oldest sample of the ring without removing it, completing the current chunk into
+     * {@code completed} if it is full or the sample does not continue it.
+     */
+    public void add(final EmpaticaE4SampleRing ring, final List<EmpaticaE4WaveformChunk> completed) {
+        final long timestamp = ring.peekTimestamp();
+        if (sampleCount > 0) {
+            final long expected = startTimestamp + sampleCount * 1000L / sampleRate;
+            if (sampleCount >= maxSamples || Math.abs(timestamp - expected) > GAP_TOLERANCE_MS) {
+                complete(completed);
+            }
+        }
+        if (sampleCount == 0) {
+            startTimestamp = timestamp;
+        }
+        for (int i = 0; i < encoders.length; i++) {
+            encoders[i].add(ring.peekValue(i));
+        }
+        sampleCount++;
+    }
+
+    /**
+     * Adds the current, incomplete chunk to {@code out} without completing it. Since the chunk
+     * keeps its start timestamp, persisting it again later replaces the partial row.
+     */
+    public void snapshot(final List<EmpaticaE4WaveformChunk> out) {
+        if (sampleCount == 0) {
+            return;
+        }
+        for (int i = 0; i < encoders.length; i++) {
+            out.add(createChunk(i));
+        }
+    }
+
+    /**
+     * Adds the current chunk to {@code out} and starts a new one.
+     */
+    public void complete(final List<EmpaticaE4WaveformChunk> out) {
+        snapshot(out);
+        for (final FloatXorCodec.Encoder encoder : encoders) {
+            encoder.reset();
+        }
+        sampleCount = 0;
+    }
+
+    public int getSampleCount() {
+        return sampleCount;
+    }
+
+    private EmpaticaE4WaveformChunk createChunk(final int index) {
+        final EmpaticaE4WaveformChunk chunk = new EmpaticaE4WaveformChunk();
+        chunk.setTimestamp(startTimestamp);
+        chunk.setChannel(firstChannel + index);
+        chunk.setSampleRate(sampleRate);
+        chunk.setSampleCount(sampleCount);
+        chunk.setData(encoders[index].toByteArray());
+        return chunk;
+    }
+}
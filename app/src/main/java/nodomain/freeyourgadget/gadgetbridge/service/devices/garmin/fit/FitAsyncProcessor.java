@@ -7,7 +7,14 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 
 import nodomain.freeyourgadget.gadgetbridge.GBApplication;
@@ -16,10 +23,19 @@ import nodomain.freeyourgadget.gadgetbridge.devices.PendingFileProvider;
 import nodomain.freeyourgadget.gadgetbridge.entities.DaoSession;
 import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
 
+/**
+ * Imports FIT files in the background. The files are parsed in parallel, but persisted one at a time
+ * and in the given order by a single writer thread, so that samples of later files still replace
+ * those of earlier ones.
+ */
 public class FitAsyncProcessor {
     private static final Logger LOG = LoggerFactory.getLogger(FitAsyncProcessor.class);
     private static final AtomicLong THREAD_COUNTER = new AtomicLong(0L);
 
+    private static final int MAX_PARSER_THREADS = 4;
+    // parsed files waiting for the writer, per parser thread, bounds the samples kept in memory
+    private static final int FILES_AHEAD_PER_THREAD = 2;
+
     private final Context context;
     private final GBDevice gbDevice;
     private final Handler handler;
@@ -36,40 +52,117 @@ public class FitAsyncProcessor {
     public void process(final List<File> files, final Callback callback) {
         LOG.debug("Starting processor for {} files", files.size());
 
+        final long processorNumber = THREAD_COUNTER.getAndIncrement();
+
         new Thread(() -> {
+            final int parserThreads = Math.max(1, Math.min(files.size(), Math.min(MAX_PARSER_THREADS, Runtime.getRuntime().availableProcessors() - 1)));
+            final AtomicLong parserCounter = new AtomicLong(0L);
+            final ExecutorService parsers = Executors.newFixedThreadPool(parserThreads, runnable -> {
+                final Thread thread = new Thread(runnable, "FitAsyncProcessor_" + processorNumber + "_parser_" + parserCounter.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            });
+
+            final long start = System.nanoTime();
+            long totalParseNanos = 0;
+            long totalPersistNanos = 0;
+
             try {
-                int i = 0;
-                for (final File file : files) {
-                    i++;
-                    LOG.debug("Parsing {}", file);
+                final Deque<Future<ParsedFile>> parsing = new ArrayDeque<>();
+                int nextToParse = 0;
+                for (int i = 0; i < files.size(); i++) {
+                    while (nextToParse < files.size() && nextToParse < i + parserThreads * FILES_AHEAD_PER_THREAD) {
+                        final File file = files.get(nextToParse++);
+                        parsing.add(parsers.submit(() -> parse(file)));
+                    }
 
-                    final int finalI = i;
+                    final int finalI = i + 1;
                     FitAsyncProcessor.this.handler.post(() -> callback.onProgress(finalI));
 
-                    try {
-                        final FitImporter fitImporter = new FitImporter(context, gbDevice);
-                        fitImporter.importFile(file);
-                    } catch (final Exception ex) {
-                        LOG.error("Exception while importing {}", file, ex);
+                    final ParsedFile parsedFile = Objects.requireNonNull(parsing.poll()).get();
+                    totalParseNanos += parsedFile.parseNanos;
+                    if (parsedFile.importer == null) {
                         continue; // do not remove from pending files
                     }
 
-                    try (DBHandler handler = GBApplication.acquireDB()) {
-                        final DaoSession session = handler.getDaoSession();
-
-                        final PendingFileProvider pendingFileProvider = new PendingFileProvider(gbDevice, session);
-
-                        pendingFileProvider.removePendingFile(file.getPath());
-                    } catch (final Exception e) {
-                        LOG.error("Exception while removing pending file {}", file, e);
-                    }
+                    final long persistStart = System.nanoTime();
+                    persist(parsedFile);
+                    final long persistNanos = System.nanoTime() - persistStart;
+                    totalPersistNanos += persistNanos;
+
+                    LOG.debug(
+                            "Imported {}: parsed in {}ms, persisted in {}ms",
+                            parsedFile.file,
+                            TimeUnit.NANOSECONDS.toMillis(parsedFile.parseNanos),
+                            TimeUnit.NANOSECONDS.toMillis(persistNanos)
+                    );
                 }
+            } catch (final InterruptedException e) {
+                LOG.warn("Interrupted while processing files");
+                Thread.currentThread().interrupt();
             } catch (final Exception e) {
                 LOG.error("Failed to parse from storage", e);
+            } finally {
+                parsers.shutdownNow();
             }
 
+            LOG.info(
+                    "Processed {} files with {} parser threads in {}ms, parsing took {}ms, persisting {}ms",
+                    files.size(),
+                    parserThreads,
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start),
+                    TimeUnit.NANOSECONDS.toMillis(totalParseNanos),
+                    TimeUnit.NANOSECONDS.toMillis(totalPersistNanos)
+            );
+
             FitAsyncProcessor.this.handler.post(callback::onFinish);
-        }, "FitAsyncProcessor_" + THREAD_COUNTER.getAndIncrement()).start();
+        }, "FitAsyncProcessor_" + processorNumber).start();
+    }
+
+    private ParsedFile parse(final File file) {
+        LOG.debug("Parsing {}", file);
+
+        final long parseStart = System.nanoTime();
+        FitImporter fitImporter = new FitImporter(context, gbDevice);
+        try {
+            fitImporter.parseFile(file);
+        } catch (final Exception ex) {
+            LOG.error("Exception while importing {}", file, ex);
+            fitImporter = null;
+        }
+        return new ParsedFile(file, fitImporter, System.nanoTime() - parseStart);
+    }
+
+    private void persist(final ParsedFile parsedFile) {
+        try {
+            parsedFile.importer.persist(parsedFile.file);
+        } catch (final Exception ex) {
+            LOG.error("Exception while importing {}", parsedFile.file, ex);
+            return; // do not remove from pending files
+        }
+
+        try (DBHandler handler = GBApplication.acquireDB()) {
+            final DaoSession session = handler.getDaoSession();
+
+            final PendingFileProvider pendingFileProvider = new PendingFileProvider(gbDevice, session);
+
+            pendingFileProvider.removePendingFile(parsedFile.file.getPath());
+        } catch (final Exception e) {
+            LOG.error("Exception while removing pending file {}", parsedFile.file, e);
+        }
+    }
+
+    private static class ParsedFile {
+        private final File file;
+        // null if the file could not be parsed
+        private final FitImporter importer;
+        private final long parseNanos;
+
+        private ParsedFile(final File file, final FitImporter importer, final long parseNanos) {
+            this.file = file;
+            this.importer = importer;
+            this.parseNanos = parseNanos;
+        }
     }
 
     public interface Callback {
@@ -22,16 +22,12 @@ import androidx.annotation.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.ByteArrayOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.nio.ByteOrder;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.Optional;
 
 import nodomain.freeyourgadget.gadgetbridge.service.devices.garmin.ChecksumCalculator;
@@ -39,7 +35,6 @@ import nodomain.freeyourgadget.gadgetbridge.service.devices.garmin.FileType;
 import nodomain.freeyourgadget.gadgetbridge.service.devices.garmin.GarminByteBufferReader;
 import nodomain.freeyourgadget.gadgetbridge.service.devices.garmin.fit.exception.FitParseException;
 import nodomain.freeyourgadget.gadgetbridge.service.devices.garmin.fit.messages.FitFileId;
-import nodomain.freeyourgadget.gadgetbridge.service.devices.garmin.fit.messages.FitRecordDataFactory;
 import nodomain.freeyourgadget.gadgetbridge.service.devices.garmin.messages.MessageWriter;
 
 public class FitFile {
@@ -60,79 +55,19 @@ public class FitFile {
         this.canGenerateOutput = true;
     }
 
-    private static byte[] readFileToByteArray(File file) throws IOException {
-        try (ByteArrayOutputStream outputStream = new ByteArrayOutputStream(); InputStream inputStream = new FileInputStream(file)) {
-            byte[] buffer = new byte[1024];
-            int length;
-            while ((length = inputStream.read(buffer)) != -1) {
-                outputStream.write(buffer, 0, length);
-            }
-            return outputStream.toByteArray();
-        }
-    }
-
     public static FitFile parseIncoming(File file) throws IOException, FitParseException {
-        return parseIncoming(readFileToByteArray(file));
+        final List<RecordData> dataRecords = new ArrayList<>();
+        final Header header = FitFileReader.read(file, dataRecords::add);
+        return new FitFile(header, dataRecords);
     }
 
-    //TODO: process file in chunks??
     public static FitFile parseIncoming(byte[] fileContents) throws FitParseException {
-
-        final GarminByteBufferReader garminByteBufferReader = new GarminByteBufferReader(fileContents);
-        garminByteBufferReader.setByteOrder(ByteOrder.LITTLE_ENDIAN);
-
-        final Header header = Header.parseIncomingHeader(garminByteBufferReader);
-
-        // needed because the headers can be redefined in the file. The last header for a local message number wins
-        Map<Integer, RecordDefinition> recordDefinitionMap = new HashMap<>();
-        List<RecordData> dataRecords = new ArrayList<>();
-        Long referenceTimestamp = null;
-
-        while (garminByteBufferReader.getPosition() < header.getHeaderSize() + header.getDataSize()) {
-            byte rawRecordHeader = (byte) garminByteBufferReader.readByte();
-            RecordHeader recordHeader = new RecordHeader(rawRecordHeader);
-            final Integer timeOffset = recordHeader.getTimeOffset();
-            if (timeOffset != null) {
-                if (referenceTimestamp == null) {
-                    throw new FitParseException("Got compressed timestamp without knowing current timestamp");
-                }
-
-                if (timeOffset >= (referenceTimestamp & 0x1FL)) {
-                    referenceTimestamp = (referenceTimestamp & ~0x1FL) + timeOffset;
-                } else if (timeOffset < (referenceTimestamp & 0x1FL)) {
-                    referenceTimestamp = (referenceTimestamp & ~0x1FL) + timeOffset + 0x20;
-                }
-            }
-            if (recordHeader.isDefinition()) {
-                final RecordDefinition recordDefinition = RecordDefinition.parseIncoming(garminByteBufferReader, recordHeader);
-                if (recordDefinition != null) {
-                    if (recordHeader.isDeveloperData())
-                        for (RecordData rd : dataRecords) {
-                            if (GlobalFITMessage.FIELD_DESCRIPTION.equals(rd.getGlobalFITMessage()))
-                                recordDefinition.populateDevFields(rd);
-                        }
-                    recordDefinitionMap.put(recordHeader.getLocalMessageType(), recordDefinition);
-                }
-            } else {
-                final RecordDefinition referenceRecordDefinition = recordDefinitionMap.get(recordHeader.getLocalMessageType());
-                if (referenceRecordDefinition != null) {
-                    final RecordData runningData = FitRecordDataFactory.create(referenceRecordDefinition, recordHeader);
-                    dataRecords.add(runningData);
-                    Long newTimestamp = runningData.parseDataMessage(garminByteBufferReader, referenceTimestamp);
-                    if (newTimestamp != null)
-                        referenceTimestamp = newTimestamp;
-                }
-            }
-        }
-        garminByteBufferReader.setByteOrder(ByteOrder.LITTLE_ENDIAN);
-        final int fileCrc = garminByteBufferReader.readShort();
-        final int actualCrc = ChecksumCalculator.computeCrc(fileContents, 0, garminByteBufferReader.getPosition() - 2);
-        if (fileCrc != actualCrc) {
-            throw new FitParseException("Wrong CRC for FIT file: got " + actualCrc + " expected " + fileCrc);
-        }
-        if (garminByteBufferReader.getPosition() < garminByteBufferReader.getLimit()) {
-            LOG.warn("There are {} bytes after the fit file", garminByteBufferReader.getLimit() - garminByteBufferReader.getPosition());
-            // TODO a fit file should actually be multiple fit files
+        final List<RecordData> dataRecords = new ArrayList<>();
+        final Header header;
+        try {
+            header = new FitFileReader(new ByteArrayInputStream(fileContents)).read(dataRecords::add);
+        } catch (final IOException e) {
+            throw new FitParseException("Failed to read FIT file: " + e.getMessage());
         }
         return new FitFile(header, dataRecords);
     }
@@ -0,0 +1,223 @@
+package nodomain.freeyourgadget.gadgetbridge.service.devices.garmin.fit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteOrder;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import nodomain.freeyourgadget.gadgetbridge.service.devices.garmin.ChecksumCalculator;
+import nodomain.freeyourgadget.gadgetbridge.service.devices.garmin.GarminByteBufferReader;
+import nodomain.freeyourgadget.gadgetbridge.service.devices.garmin.fit.exception.FitParseException;
+import nodomain.freeyourgadget.gadgetbridge.service.devices.garmin.fit.messages.FitRecordDataFactory;
+
+/**
+ * Parses a FIT file from a stream, one record at a time, passing each data record to a
+ * {@link RecordHandler} as soon as it was read. Only the current record and the active record
+ * definitions are kept in memory, and the CRC is computed while reading.
+ * <p>
+ * The records are only known to be valid once {@link #read(RecordHandler)} returns, since the CRC
+ * is at the end of the file.
+ */
+public class FitFileReader {
+    private static final Logger LOG = LoggerFactory.getLogger(FitFileReader.class);
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int LOCAL_MESSAGE_TYPES = 16;
+
+    public interface RecordHandler {
+        void onRecord(RecordData record);
+    }
+
+    private final InputStream inputStream;
+
+    private byte[] buffer = new byte[256];
+    private GarminByteBufferReader bufferReader = new GarminByteBufferReader(buffer);
+    private int crc = 0;
+    private long position = 0;
+
+    // needed because the headers can be redefined in the file. The last header for a local message number wins
+    private final RecordDefinition[] recordDefinitions = new RecordDefinition[LOCAL_MESSAGE_TYPES];
+    private final int[] recordSizes = new int[LOCAL_MESSAGE_TYPES];
+    // field descriptions of developer fields, by RecordDefinition.getDevFieldKey
+    private final Map<Integer, RecordData> fieldDescriptions = new HashMap<>();
+
+    public FitFileReader(final InputStream inputStream) {
+        this.inputStream = inputStream;
+    }
+
+    public static FitFile.Header read(final File file, final RecordHandler handler) throws IOException, FitParseException {
+        try (InputStream inputStream = new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE)) {
+            return new FitFileReader(inputStream).read(handler);
+        }
+    }
+
+    /**
+     * Reads the whole FIT file, passing each data record to the handler in file order.
+     *
+     * @throws FitParseException if the file is malformed or the CRC does not match
+     */
+    public FitFile.Header read(final RecordHandler handler) throws IOException, FitParseException {
+        final FitFile.Header header = readHeader();
+        final long end = header.getHeaderSize() + (header.getDataSize() & 0xFFFFFFFFL);
+
+        Long referenceTimestamp = null;
+
+        while (position < end) {
+            fill(0, 1);
+            final RecordHeader recordHeader = new RecordHeader(buffer[0]);
+            final Integer timeOffset = recordHeader.getTimeOffset();
+            if (timeOffset != null) {
+                if (referenceTimestamp == null) {
+                    throw new FitParseException("Got compressed timestamp without knowing current timestamp");
+                }
+
+                if (timeOffset >= (referenceTimestamp & 0x1FL)) {
+                    referenceTimestamp = (referenceTimestamp & ~0x1FL) + timeOffset;
+                } else {
+                    referenceTimestamp = (referenceTimestamp & ~0x1FL) + timeOffset + 0x20;
+                }
+            }
+
+            if (recordHeader.isDefinition()) {
+                readRecordDefinition(recordHeader);
+            } else {
+                final int localMessageType = recordHeader.getLocalMessageType();
+                final RecordDefinition recordDefinition = recordDefinitions[localMessageType];
+                if (recordDefinition == null) {
+                    throw new FitParseException("Got data message for undefined local message type " + localMessageType);
+                }
+                fill(0, recordSizes[localMessageType]);
+                bufferReader.setPosition(0);
+
+                final RecordData record = FitRecordDataFactory.create(recordDefinition, recordHeader);
+                final Long newTimestamp = record.parseDataMessage(bufferReader, referenceTimestamp);
+                if (newTimestamp != null) {
+                    referenceTimestamp = newTimestamp;
+                }
+                if (GlobalFITMessage.FIELD_DESCRIPTION.equals(record.getGlobalFITMessage())) {
+                    addFieldDescription(record);
+                }
+                handler.onRecord(record);
+            }
+        }
+
+        final int actualCrc = crc;
+        final int fileCrc = readTrailingShort();
+        if (fileCrc != actualCrc) {
+            throw new FitParseException("Wrong CRC for FIT file: got " + actualCrc + " expected " + fileCrc);
+        }
+
+        long trailingBytes = 0;
+        int read;
+        while ((read = inputStream.read(buffer)) != -1) {
+            trailingBytes += read;
+        }
+        if (trailingBytes > 0) {
+            LOG.warn("There are {} bytes after the fit file", trailingBytes);
+            // TODO a fit file should actually be multiple fit files
+        }
+
+        return header;
+    }
+
+    private FitFile.Header readHeader() throws IOException, FitParseException {
+        fill(0, 1);
+        final int headerSize = Byte.toUnsignedInt(buffer[0]);
+        if (headerSize < 12) {
+            throw new FitParseException("Too short header in FIT file.");
+        }
+        fill(1, headerSize == 14 ? 13 : 11);
+        bufferReader.setPosition(0);
+        bufferReader.setByteOrder(ByteOrder.LITTLE_ENDIAN);
+        return FitFile.Header.parseIncomingHeader(bufferReader);
+    }
+
+    private void readRecordDefinition(final RecordHeader recordHeader) throws IOException {
+        // reserved, architecture, global message number and number of fields
+        fill(0, 5);
+        final int numFields = Byte.toUnsignedInt(buffer[4]);
+        int length = 5;
+        fill(length, numFields * 3);
+        length += numFields * 3;
+        if (recordHeader.isDeveloperData()) {
+            fill(length, 1);
+            final int numDevFields = Byte.toUnsignedInt(buffer[length]);
+            length++;
+            fill(length, numDevFields * 3);
+        }
+
+        bufferReader.setPosition(0);
+        final RecordDefinition recordDefinition = RecordDefinition.parseIncoming(bufferReader, recordHeader);
+        if (recordDefinition == null) {
+            return;
+        }
+        if (recordHeader.isDeveloperData()) {
+            recordDefinition.populateDevFields(fieldDescriptions);
+        }
+
+        int size = 0;
+        final List<FieldDefinition> fieldDefinitions = recordDefinition.getFieldDefinitions();
+        if (fieldDefinitions != null) {
+            for (final FieldDefinition fieldDefinition : fieldDefinitions) {
+                size += fieldDefinition.getSize();
+            }
+        }
+        final List<DevFieldDefinition> devFieldDefinitions = recordDefinition.getDevFieldDefinitions();
+        if (devFieldDefinitions != null) {
+            for (final DevFieldDefinition devFieldDefinition : devFieldDefinitions) {
+                size += devFieldDefinition.getSize();
+            }
+        }
+
+        recordDefinitions[recordHeader.getLocalMessageType()] = recordDefinition;
+        recordSizes[recordHeader.getLocalMessageType()] = size;
+    }
+
+    private void addFieldDescription(final RecordData record) {
+        final Object developerDataIndex = record.getFieldByName("developer_data_index");
+        final Object fieldDefinitionNumber = record.getFieldByName("field_definition_number");
+        if (developerDataIndex instanceof Integer && fieldDefinitionNumber instanceof Integer) {
+            fieldDescriptions.put(RecordDefinition.getDevFieldKey((Integer) developerDataIndex, (Integer) fieldDefinitionNumber), record);
+        }
+    }
+
+    /**
+     * Reads exactly length bytes into the buffer at the given offset, and adds them to the CRC.
+     */
+    private void fill(final int offset, final int length) throws IOException {
+        if (offset + length > buffer.length) {
+            final byte[] newBuffer = new byte[Math.max(offset + length, buffer.length * 2)];
+            System.arraycopy(buffer, 0, newBuffer, 0, offset);
+            buffer = newBuffer;
+            bufferReader = new GarminByteBufferReader(buffer);
+        }
+        int read = 0;
+        while (read < length) {
+            final int count = inputStream.read(buffer, offset + read, length - read);
+            if (count < 0) {
+                throw new EOFException("Unexpected end of FIT file at " + (position + read));
+            }
+            read += count;
+        }
+        crc = ChecksumCalculator.computeCrc(crc, buffer, offset, length);
+        position += length;
+    }
+
+    private int readTrailingShort() throws IOException {
+        final int low = inputStream.read();
+        final int high = inputStream.read();
+        if (low < 0 || high < 0) {
+            throw new EOFException("Missing CRC at the end of the FIT file");
+        }
+        return low | (high << 8);
+    }
+}
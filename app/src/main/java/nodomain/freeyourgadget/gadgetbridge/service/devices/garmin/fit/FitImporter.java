@@ -17,6 +17,7 @@
 package nodomain.freeyourgadget.gadgetbridge.service.devices.garmin.fit;
 
 import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
 import android.widget.Toast;
 
 import org.slf4j.Logger;
@@ -34,6 +35,7 @@ import java.util.Map;
 import java.util.Objects;
 import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.function.BiFunction;
 
 import nodomain.freeyourgadget.gadgetbridge.GBApplication;
 import nodomain.freeyourgadget.gadgetbridge.database.DBHandler;
@@ -116,6 +118,9 @@ import nodomain.freeyourgadget.gadgetbridge.util.GB;
 public class FitImporter {
     private static final Logger LOG = LoggerFactory.getLogger(FitImporter.class);
 
+    // samples of a type that are persisted together while the file is still being read
+    private static final int BATCH_SIZE = 2000;
+
     private final Context context;
     private final GBDevice gbDevice;
 
@@ -136,9 +141,13 @@ public class FitImporter {
     private final List<GenericTrainingLoadChronicSample> trainingLoadChronicSamples = new ArrayList<>();
     private final Map<Integer, Integer> unknownRecords = new HashMap<>();
     private FitSleepDataInfo fitSleepDataInfo = null;
-    private final List<FitSleepDataRaw> fitSleepDataRawSamples = new ArrayList<>();
+    private int fitSleepDataRawCount = 0;
     private final List<BatteryLevel> batterySamples = new ArrayList<>();
     private FitFileId fileId = null;
+    private Long lastMonitoringTimestamp = null;
+    private boolean persistBatches = false;
+    // holds the transaction of the batches of the file being imported, until its CRC was checked
+    private DBHandler batchHandler = null;
 
     private final GarminWorkoutParser workoutParser;
 
@@ -149,249 +158,39 @@ public class FitImporter {
     }
 
     /**
-     * @noinspection StatementWithEmptyBody
+     * Reads the file record by record. Samples are persisted in batches per type while reading, once
+     * the file type is known, and the remaining ones after the whole file was read. The batches are
+     * written in a transaction that is only committed if the whole file, including its CRC, is valid.
      */
     public void importFile(final File file) throws IOException, FitParseException {
-        reset();
-
-        final FitFile fitFile = FitFile.parseIncoming(file);
-
-        Long lastMonitoringTimestamp = null;
-
-        for (final RecordData record : fitFile.getRecords()) {
-            if (fileId != null && fileId.getType() == FileType.FILETYPE.ACTIVITY) {
-                if (workoutParser.handleRecord(record)) {
-                    continue;
-                }
-            }
-
-            final Long ts = record.getComputedTimestamp();
-
-            if (record instanceof FitFileId newFileId) {
-                LOG.debug("File ID: {}", newFileId);
-                if (fileId != null) {
-                    // Should not happen
-                    LOG.warn("Already had a file ID: {}", fileId);
-                }
-                fileId = newFileId;
-            } else if (record instanceof FitStressLevel stressRecord) {
-                final Integer stress = stressRecord.getStressLevelValue();
-                if (stress != null && stress >= 0) {
-                    LOG.trace("Stress at {}: {}", ts, stress);
-                    final GarminStressSample sample = new GarminStressSample();
-                    sample.setTimestamp(ts * 1000L);
-                    sample.setStress(stress);
-                    stressSamples.add(sample);
-                }
-
-                final Integer energy = stressRecord.getBodyEnergy();
-                if (energy != null) {
-                    LOG.trace("Body energy at {}: {}", ts, energy);
-                    final GarminBodyEnergySample sample = new GarminBodyEnergySample();
-                    sample.setTimestamp(ts * 1000L);
-                    sample.setEnergy(energy);
-                    bodyEnergySamples.add(sample);
-                }
-            } else if (record instanceof FitSleepDataInfo newFitSleepDataInfo) {
-                LOG.debug("Sleep Data Info: {}", newFitSleepDataInfo);
-                if (fitSleepDataInfo != null) {
-                    // Should not happen
-                    LOG.warn("Already had sleep data info: {}", fitSleepDataInfo);
-                }
-                fitSleepDataInfo = newFitSleepDataInfo;
-            } else if (record instanceof FitSleepDataRaw fitSleepDataRaw) {
-                //LOG.debug("Sleep Data Raw: {}", fitSleepDataRaw);
-                fitSleepDataRawSamples.add(fitSleepDataRaw);
-            } else if (record instanceof FitSleepStats) {
-                final Integer score = ((FitSleepStats) record).getOverallSleepScore();
-                if (score == null) {
-                    continue;
-                }
-                LOG.trace("Sleep stats at {}: {}", ts, record);
-                final GarminSleepStatsSample sample = new GarminSleepStatsSample();
-                sample.setTimestamp(ts * 1000L);
-                sample.setSleepScore(score);
-                sleepStatsSamples.add(sample);
-            } else if (record instanceof FitSleepStage) {
-                final FieldDefinitionSleepStage.SleepStage stage = ((FitSleepStage) record).getSleepStage();
-                if (stage == null) {
-                    continue;
-                }
-                LOG.trace("Sleep stage at {}: {}", ts, record);
-                final GarminSleepStageSample sample = new GarminSleepStageSample();
-                sample.setTimestamp(ts * 1000L);
-                sample.setStage(stage.getId());
-                sleepStageSamples.add(sample);
-            } else if (record instanceof FitNap nap) {
-                if (nap.getStartTimestamp() == null || nap.getEndTimestamp() == null) {
-                    continue;
-                }
-                LOG.trace("Nap at {}: from {} to {}", ts, nap.getStartTimestamp(), nap.getEndTimestamp());
-                final GarminNapSample sample = new GarminNapSample();
-                sample.setTimestamp(nap.getStartTimestamp() * 1000L);
-                sample.setEndTimestamp(nap.getEndTimestamp() * 1000L);
-                napSamples.add(sample);
-            } else if (record instanceof FitMonitoring monitoringRecord) {
-                LOG.trace("Monitoring at {}: {}", ts, record);
-                final Long currentMonitoringTimestamp = monitoringRecord.computeTimestamp(lastMonitoringTimestamp);
-                if (!activitySamplesPerTimestamp.containsKey(currentMonitoringTimestamp)) {
-                    activitySamplesPerTimestamp.put(currentMonitoringTimestamp, new ArrayList<>());
-                }
-                Objects.requireNonNull(activitySamplesPerTimestamp.get(currentMonitoringTimestamp)).add(monitoringRecord);
-                lastMonitoringTimestamp = currentMonitoringTimestamp;
-            } else if (record instanceof FitSpo2 fitSpo2) {
-                final Integer spo2 = fitSpo2.getReadingSpo2();
-                if (spo2 == null || spo2 <= 0) {
-                    continue;
-                }
-                LOG.trace("SpO2 at {}: {}", ts, spo2);
-                final GarminSpo2Sample sample = new GarminSpo2Sample();
-                sample.setTimestamp(ts * 1000L);
-                sample.setSpo2(spo2);
-                sample.setTypeNum(Spo2Sample.Type.UNKNOWN.getNum());
-                if (fitSpo2.getMode() != null) {
-                    switch (fitSpo2.getMode()) {
-                        case 1:
-                            sample.setTypeNum(Spo2Sample.Type.MANUAL.getNum());
-                            break;
-                        case 3:
-                            sample.setTypeNum(Spo2Sample.Type.AUTOMATIC.getNum());
-                            break;
-                    }
-                }
-                spo2samples.add(sample);
-            } else if (record instanceof FitRespirationRate) {
-                final Float respiratoryRate = ((FitRespirationRate) record).getRespirationRate();
-                if (respiratoryRate == null || respiratoryRate <= 0) {
-                    continue;
-                }
-                LOG.trace("Respiratory rate at {}: {}", ts, respiratoryRate);
-                final GarminRespiratoryRateSample sample = new GarminRespiratoryRateSample();
-                sample.setTimestamp(ts * 1000L);
-                sample.setRespiratoryRate(respiratoryRate);
-                respiratoryRateSamples.add(sample);
-            } else if (record instanceof FitEvent event) {
-                if (event.getEvent() == null) {
-                    LOG.warn("Event in {} is null", event);
-                    continue;
-                }
-
-                LOG.trace("Event at {}: {}", ts, event);
+        boolean successful = false;
+        try {
+            read(file, true);
+            persist(file);
+            successful = true;
+        } finally {
+            endBatches(successful);
+        }
+    }
 
-                final GarminEventSample sample = new GarminEventSample();
-                sample.setTimestamp(ts * 1000L);
-                sample.setEvent(event.getEvent());
-                if (event.getEventType() != null) {
-                    sample.setEventType(event.getEventType());
-                }
-                if (event.getData() != null) {
-                    sample.setData(event.getData());
-                }
-                events.add(sample);
-            } else if (record instanceof FitRecord) {
-                // handled in workout parser
-            } else if (record instanceof FitSession) {
-                // handled in workout parser
-            } else if (record instanceof FitPhysiologicalMetrics) {
-                // handled in workout parser
-            } else if (record instanceof FitSport) {
-                // handled in workout parser
-            } else if (record instanceof FitTimeInZone) {
-                // handled in workout parser
-            } else if (record instanceof FitUserProfile) {
-                // handled in workout parser
-            } else if (record instanceof FitHrvSummary hrvSummary) {
-                LOG.trace("HRV summary at {}: {}", ts, record);
-                final GarminHrvSummarySample sample = new GarminHrvSummarySample();
-                sample.setTimestamp(ts * 1000L);
-                if (hrvSummary.getWeeklyAverage() != null) {
-                    sample.setWeeklyAverage(Math.round(hrvSummary.getWeeklyAverage()));
-                }
-                if (hrvSummary.getLastNightAverage() != null) {
-                    sample.setLastNightAverage(Math.round(hrvSummary.getLastNightAverage()));
-                }
-                if (hrvSummary.getLastNight5MinHigh() != null) {
-                    sample.setLastNight5MinHigh(Math.round(hrvSummary.getLastNight5MinHigh()));
-                }
-                if (hrvSummary.getBaselineLowUpper() != null) {
-                    sample.setBaselineLowUpper(Math.round(hrvSummary.getBaselineLowUpper()));
-                }
-                if (hrvSummary.getBaselineBalancedLower() != null) {
-                    sample.setBaselineBalancedLower(Math.round(hrvSummary.getBaselineBalancedLower()));
-                }
-                if (hrvSummary.getBaselineBalancedUpper() != null) {
-                    sample.setBaselineBalancedUpper(Math.round(hrvSummary.getBaselineBalancedUpper()));
-                }
-                final FieldDefinitionHrvStatus.HrvStatus status = hrvSummary.getStatus();
-                if (status != null) {
-                    sample.setStatusNum(status.getId());
-                }
-                hrvSummarySamples.add(sample);
-            } else if (record instanceof FitHrvValue hrvValue) {
-                if (hrvValue.getValue() == null) {
-                    LOG.warn("HRV value at {} is null", ts);
-                    continue;
-                }
-                LOG.trace("HRV value at {}: {}", ts, hrvValue.getValue());
-                final GarminHrvValueSample sample = new GarminHrvValueSample();
-                sample.setTimestamp(ts * 1000L);
-                sample.setValue(Math.round(hrvValue.getValue()));
-                hrvValueSamples.add(sample);
-            } else if (record instanceof FitMonitoringInfo monitoringInfo) {
-                if (monitoringInfo.getRestingMetabolicRate() == null) {
-                    continue;
-                }
-                LOG.trace("Monitoring info at {}: {}", ts, record);
-                final GarminRestingMetabolicRateSample sample = new GarminRestingMetabolicRateSample();
-                sample.setTimestamp(ts * 1000L);
-                sample.setRestingMetabolicRate(monitoringInfo.getRestingMetabolicRate());
-                restingMetabolicRateSamples.add(sample);
-            } else if (record instanceof FitTrainingLoad trainingLoad) {
-                LOG.trace("Training load at {}: {}", ts, record);
-                if (trainingLoad.getTrainingLoadAcute() != null) {
-                    final GenericTrainingLoadAcuteSample sample = new GenericTrainingLoadAcuteSample();
-                    sample.setTimestamp(ts * 1000L);
-                    sample.setValue(trainingLoad.getTrainingLoadAcute());
-                    trainingLoadAcuteSamples.add(sample);
-                }
-                if (trainingLoad.getTrainingLoadChronic() != null) {
-                    final GenericTrainingLoadChronicSample sample = new GenericTrainingLoadChronicSample();
-                    sample.setTimestamp(ts * 1000L);
-                    sample.setValue(trainingLoad.getTrainingLoadChronic());
-                    trainingLoadChronicSamples.add(sample);
-                }
-            } else if (record instanceof FitMonitoringHrData monitoringHrData) {
-                if (monitoringHrData.getRestingHeartRate() == null) {
-                    LOG.warn("Resting HR at {} is null", ts);
-                    continue;
-                }
-                LOG.trace("Resting HR at {}: {}", ts, monitoringHrData.getRestingHeartRate());
-                final GarminHeartRateRestingSample sample = new GarminHeartRateRestingSample();
-                sample.setTimestamp(ts * 1000L);
-                sample.setHeartRate(monitoringHrData.getRestingHeartRate());
-                restingHrSamples.add(sample);
-            } else if (record instanceof FitDeviceStatus deviceStatus) {
-                Integer level = deviceStatus.getBatteryLevel();
-                if (ts != null && level != null){
-                    BatteryLevel batteryLevel = new BatteryLevel();
-                    batteryLevel.setTimestamp(ts.intValue());
-                    batteryLevel.setBatteryIndex(0);
-                    batteryLevel.setLevel(level);
-                    batterySamples.add(batteryLevel);
-                }
-            } else {
-                LOG.trace("Unknown record: {}", record);
+    /**
+     * Reads the file without accessing the database, so that files can be parsed in parallel. The
+     * samples are only persisted by a subsequent call to {@link #persist(File)}.
+     */
+    public void parseFile(final File file) throws IOException, FitParseException {
+        read(file, false);
+    }
 
-                if (!unknownRecords.containsKey(record.getGlobalFITMessage().getNumber())) {
-                    unknownRecords.put(record.getGlobalFITMessage().getNumber(), 0);
-                }
-                unknownRecords.put(
-                        record.getGlobalFITMessage().getNumber(),
-                        Objects.requireNonNull(unknownRecords.get(record.getGlobalFITMessage().getNumber())) + 1
-                );
-            }
-        }
+    private void read(final File file, final boolean persistBatches) throws IOException, FitParseException {
+        reset();
+        this.persistBatches = persistBatches;
+        FitFileReader.read(file, this::handleRecord);
+    }
 
+    /**
+     * Persists the samples of the file that was read last.
+     */
+    public void persist(final File file) {
         if (fileId == null) {
             LOG.error("Got no file ID");
             return;
@@ -489,6 +288,243 @@ public class FitImporter {
         }
     }
 
+    /**
+     * @noinspection StatementWithEmptyBody
+     */
+    private void handleRecord(final RecordData record) {
+        if (fileId != null && fileId.getType() == FileType.FILETYPE.ACTIVITY) {
+            if (workoutParser.handleRecord(record)) {
+                return;
+            }
+        }
+
+        final Long ts = record.getComputedTimestamp();
+
+        if (record instanceof FitFileId newFileId) {
+            LOG.debug("File ID: {}", newFileId);
+            if (fileId != null) {
+                // Should not happen
+                LOG.warn("Already had a file ID: {}", fileId);
+            }
+            fileId = newFileId;
+        } else if (record instanceof FitStressLevel stressRecord) {
+            final Integer stress = stressRecord.getStressLevelValue();
+            if (stress != null && stress >= 0) {
+                LOG.trace("Stress at {}: {}", ts, stress);
+                final GarminStressSample sample = new GarminStressSample();
+                sample.setTimestamp(ts * 1000L);
+                sample.setStress(stress);
+                addSample(stressSamples, sample, FileType.FILETYPE.MONITOR, GarminStressSampleProvider::new);
+            }
+
+            final Integer energy = stressRecord.getBodyEnergy();
+            if (energy != null) {
+                LOG.trace("Body energy at {}: {}", ts, energy);
+                final GarminBodyEnergySample sample = new GarminBodyEnergySample();
+                sample.setTimestamp(ts * 1000L);
+                sample.setEnergy(energy);
+                addSample(bodyEnergySamples, sample, FileType.FILETYPE.MONITOR, GarminBodyEnergySampleProvider::new);
+            }
+        } else if (record instanceof FitSleepDataInfo newFitSleepDataInfo) {
+            LOG.debug("Sleep Data Info: {}", newFitSleepDataInfo);
+            if (fitSleepDataInfo != null) {
+                // Should not happen
+                LOG.warn("Already had sleep data info: {}", fitSleepDataInfo);
+            }
+            fitSleepDataInfo = newFitSleepDataInfo;
+        } else if (record instanceof FitSleepDataRaw) {
+            // only the number of samples is used, see processRawSleepSamples
+            fitSleepDataRawCount++;
+        } else if (record instanceof FitSleepStats) {
+            final Integer score = ((FitSleepStats) record).getOverallSleepScore();
+            if (score == null) {
+                return;
+            }
+            LOG.trace("Sleep stats at {}: {}", ts, record);
+            final GarminSleepStatsSample sample = new GarminSleepStatsSample();
+            sample.setTimestamp(ts * 1000L);
+            sample.setSleepScore(score);
+            addSample(sleepStatsSamples, sample, FileType.FILETYPE.SLEEP, GarminSleepStatsSampleProvider::new);
+        } else if (record instanceof FitSleepStage) {
+            final FieldDefinitionSleepStage.SleepStage stage = ((FitSleepStage) record).getSleepStage();
+            if (stage == null) {
+                return;
+            }
+            LOG.trace("Sleep stage at {}: {}", ts, record);
+            final GarminSleepStageSample sample = new GarminSleepStageSample();
+            sample.setTimestamp(ts * 1000L);
+            sample.setStage(stage.getId());
+            sleepStageSamples.add(sample);
+        } else if (record instanceof FitNap nap) {
+            if (nap.getStartTimestamp() == null || nap.getEndTimestamp() == null) {
+                return;
+            }
+            LOG.trace("Nap at {}: from {} to {}", ts, nap.getStartTimestamp(), nap.getEndTimestamp());
+            final GarminNapSample sample = new GarminNapSample();
+            sample.setTimestamp(nap.getStartTimestamp() * 1000L);
+            sample.setEndTimestamp(nap.getEndTimestamp() * 1000L);
+            addSample(napSamples, sample, FileType.FILETYPE.SLEEP, GarminNapSampleProvider::new);
+        } else if (record instanceof FitMonitoring monitoringRecord) {
+            LOG.trace("Monitoring at {}: {}", ts, record);
+            final Long currentMonitoringTimestamp = monitoringRecord.computeTimestamp(lastMonitoringTimestamp);
+            if (!activitySamplesPerTimestamp.containsKey(currentMonitoringTimestamp)) {
+                activitySamplesPerTimestamp.put(currentMonitoringTimestamp, new ArrayList<>());
+            }
+            Objects.requireNonNull(activitySamplesPerTimestamp.get(currentMonitoringTimestamp)).add(monitoringRecord);
+            lastMonitoringTimestamp = currentMonitoringTimestamp;
+        } else if (record instanceof FitSpo2 fitSpo2) {
+            final Integer spo2 = fitSpo2.getReadingSpo2();
+            if (spo2 == null || spo2 <= 0) {
+                return;
+            }
+            LOG.trace("SpO2 at {}: {}", ts, spo2);
+            final GarminSpo2Sample sample = new GarminSpo2Sample();
+            sample.setTimestamp(ts * 1000L);
+            sample.setSpo2(spo2);
+            sample.setTypeNum(Spo2Sample.Type.UNKNOWN.getNum());
+            if (fitSpo2.getMode() != null) {
+                switch (fitSpo2.getMode()) {
+                    case 1:
+                        sample.setTypeNum(Spo2Sample.Type.MANUAL.getNum());
+                        break;
+                    case 3:
+                        sample.setTypeNum(Spo2Sample.Type.AUTOMATIC.getNum());
+                        break;
+                }
+            }
+            addSample(spo2samples, sample, FileType.FILETYPE.MONITOR, GarminSpo2SampleProvider::new);
+        } else if (record instanceof FitRespirationRate) {
+            final Float respiratoryRate = ((FitRespirationRate) record).getRespirationRate();
+            if (respiratoryRate == null || respiratoryRate <= 0) {
+                return;
+            }
+            LOG.trace("Respiratory rate at {}: {}", ts, respiratoryRate);
+            final GarminRespiratoryRateSample sample = new GarminRespiratoryRateSample();
+            sample.setTimestamp(ts * 1000L);
+            sample.setRespiratoryRate(respiratoryRate);
+            addSample(respiratoryRateSamples, sample, FileType.FILETYPE.MONITOR, GarminRespiratoryRateSampleProvider::new);
+        } else if (record instanceof FitEvent event) {
+            if (event.getEvent() == null) {
+                LOG.warn("Event in {} is null", event);
+                return;
+            }
+
+            LOG.trace("Event at {}: {}", ts, event);
+
+            final GarminEventSample sample = new GarminEventSample();
+            sample.setTimestamp(ts * 1000L);
+            sample.setEvent(event.getEvent());
+            if (event.getEventType() != null) {
+                sample.setEventType(event.getEventType());
+            }
+            if (event.getData() != null) {
+                sample.setData(event.getData());
+            }
+            addSample(events, sample, FileType.FILETYPE.SLEEP, GarminEventSampleProvider::new);
+        } else if (record instanceof FitRecord) {
+            // handled in workout parser
+        } else if (record instanceof FitSession) {
+            // handled in workout parser
+        } else if (record instanceof FitPhysiologicalMetrics) {
+            // handled in workout parser
+        } else if (record instanceof FitSport) {
+            // handled in workout parser
+        } else if (record instanceof FitTimeInZone) {
+            // handled in workout parser
+        } else if (record instanceof FitUserProfile) {
+            // handled in workout parser
+        } else if (record instanceof FitHrvSummary hrvSummary) {
+            LOG.trace("HRV summary at {}: {}", ts, record);
+            final GarminHrvSummarySample sample = new GarminHrvSummarySample();
+            sample.setTimestamp(ts * 1000L);
+            if (hrvSummary.getWeeklyAverage() != null) {
+                sample.setWeeklyAverage(Math.round(hrvSummary.getWeeklyAverage()));
+            }
+            if (hrvSummary.getLastNightAverage() != null) {
+                sample.setLastNightAverage(Math.round(hrvSummary.getLastNightAverage()));
+            }
+            if (hrvSummary.getLastNight5MinHigh() != null) {
+                sample.setLastNight5MinHigh(Math.round(hrvSummary.getLastNight5MinHigh()));
+            }
+            if (hrvSummary.getBaselineLowUpper() != null) {
+                sample.setBaselineLowUpper(Math.round(hrvSummary.getBaselineLowUpper()));
+            }
+            if (hrvSummary.getBaselineBalancedLower() != null) {
+                sample.setBaselineBalancedLower(Math.round(hrvSummary.getBaselineBalancedLower()));
+            }
+            if (hrvSummary.getBaselineBalancedUpper() != null) {
+                sample.setBaselineBalancedUpper(Math.round(hrvSummary.getBaselineBalancedUpper()));
+            }
+            final FieldDefinitionHrvStatus.HrvStatus status = hrvSummary.getStatus();
+            if (status != null) {
+                sample.setStatusNum(status.getId());
+            }
+            addSample(hrvSummarySamples, sample, FileType.FILETYPE.HRV_STATUS, GarminHrvSummarySampleProvider::new);
+        } else if (record instanceof FitHrvValue hrvValue) {
+            if (hrvValue.getValue() == null) {
+                LOG.warn("HRV value at {} is null", ts);
+                return;
+            }
+            LOG.trace("HRV value at {}: {}", ts, hrvValue.getValue());
+            final GarminHrvValueSample sample = new GarminHrvValueSample();
+            sample.setTimestamp(ts * 1000L);
+            sample.setValue(Math.round(hrvValue.getValue()));
+            addSample(hrvValueSamples, sample, FileType.FILETYPE.HRV_STATUS, GarminHrvValueSampleProvider::new);
+        } else if (record instanceof FitMonitoringInfo monitoringInfo) {
+            if (monitoringInfo.getRestingMetabolicRate() == null) {
+                return;
+            }
+            LOG.trace("Monitoring info at {}: {}", ts, record);
+            final GarminRestingMetabolicRateSample sample = new GarminRestingMetabolicRateSample();
+            sample.setTimestamp(ts * 1000L);
+            sample.setRestingMetabolicRate(monitoringInfo.getRestingMetabolicRate());
+            addSample(restingMetabolicRateSamples, sample, FileType.FILETYPE.MONITOR, GarminRestingMetabolicRateSampleProvider::new);
+        } else if (record instanceof FitTrainingLoad trainingLoad) {
+            LOG.trace("Training load at {}: {}", ts, record);
+            if (trainingLoad.getTrainingLoadAcute() != null) {
+                final GenericTrainingLoadAcuteSample sample = new GenericTrainingLoadAcuteSample();
+                sample.setTimestamp(ts * 1000L);
+                sample.setValue(trainingLoad.getTrainingLoadAcute());
+                addSample(trainingLoadAcuteSamples, sample, FileType.FILETYPE.METRICS, GenericTrainingLoadAcuteSampleProvider::new);
+            }
+            if (trainingLoad.getTrainingLoadChronic() != null) {
+                final GenericTrainingLoadChronicSample sample = new GenericTrainingLoadChronicSample();
+                sample.setTimestamp(ts * 1000L);
+                sample.setValue(trainingLoad.getTrainingLoadChronic());
+                addSample(trainingLoadChronicSamples, sample, FileType.FILETYPE.METRICS, GenericTrainingLoadChronicSampleProvider::new);
+            }
+        } else if (record instanceof FitMonitoringHrData monitoringHrData) {
+            if (monitoringHrData.getRestingHeartRate() == null) {
+                LOG.warn("Resting HR at {} is null", ts);
+                return;
+            }
+            LOG.trace("Resting HR at {}: {}", ts, monitoringHrData.getRestingHeartRate());
+            final GarminHeartRateRestingSample sample = new GarminHeartRateRestingSample();
+            sample.setTimestamp(ts * 1000L);
+            sample.setHeartRate(monitoringHrData.getRestingHeartRate());
+            addSample(restingHrSamples, sample, FileType.FILETYPE.MONITOR, GarminHeartRateRestingSampleProvider::new);
+        } else if (record instanceof FitDeviceStatus deviceStatus) {
+            Integer level = deviceStatus.getBatteryLevel();
+            if (ts != null && level != null){
+                BatteryLevel batteryLevel = new BatteryLevel();
+                batteryLevel.setTimestamp(ts.intValue());
+                batteryLevel.setBatteryIndex(0);
+                batteryLevel.setLevel(level);
+                batterySamples.add(batteryLevel);
+            }
+        } else {
+            LOG.trace("Unknown record: {}", record);
+
+            if (!unknownRecords.containsKey(record.getGlobalFITMessage().getNumber())) {
+                unknownRecords.put(record.getGlobalFITMessage().getNumber(), 0);
+            }
+            unknownRecords.put(
+                    record.getGlobalFITMessage().getNumber(),
+                    Objects.requireNonNull(unknownRecords.get(record.getGlobalFITMessage().getNumber())) + 1
+            );
+        }
+    }
+
     private void persistBattery(final DaoSession session, final long deviceId) {
         if (!batterySamples.isEmpty()) {
             for (BatteryLevel batteryLevel : batterySamples) {
@@ -550,9 +586,10 @@ public class FitImporter {
         trainingLoadChronicSamples.clear();
         unknownRecords.clear();
         fitSleepDataInfo = null;
-        fitSleepDataRawSamples.clear();
+        fitSleepDataRawCount = 0;
         batterySamples.clear();
         fileId = null;
+        lastMonitoringTimestamp = null;
         workoutParser.reset();
     }
 
@@ -719,7 +756,7 @@ public class FitImporter {
      * at all.
      */
     private void processRawSleepSamples(final DaoSession session) {
-        if (fitSleepDataRawSamples.isEmpty()) {
+        if (fitSleepDataRawCount == 0) {
             return;
         }
 
@@ -731,9 +768,9 @@ public class FitImporter {
         }
 
         final long asleepTimeMillis = Objects.requireNonNull(fileId.getTimeCreated()).intValue() * 1000L;
-        final long wakeTimeMillis = asleepTimeMillis + fitSleepDataRawSamples.size() * 60 * 1000L;
+        final long wakeTimeMillis = asleepTimeMillis + fitSleepDataRawCount * 60 * 1000L;
 
-        LOG.debug("Got {} raw sleep samples - faking sleep events from {} to {}", fitSleepDataRawSamples.size(), asleepTimeMillis, wakeTimeMillis);
+        LOG.debug("Got {} raw sleep samples - faking sleep events from {} to {}", fitSleepDataRawCount, asleepTimeMillis, wakeTimeMillis);
 
         // We only need to fake sleep start and end times, the sample provider will take care of the rest
         try {
@@ -765,6 +802,53 @@ public class FitImporter {
         }
     }
 
+    private <T extends AbstractTimeSample> void addSample(final List<T> samples,
+                                                          final T sample,
+                                                          final FileType.FILETYPE fileType,
+                                                          final BiFunction<GBDevice, DaoSession, AbstractTimeSampleProvider<T>> providerFactory) {
+        samples.add(sample);
+        if (!persistBatches || samples.size() < BATCH_SIZE || fileId == null || fileId.getType() != fileType) {
+            return;
+        }
+
+        try {
+            if (batchHandler == null) {
+                batchHandler = GBApplication.acquireDB();
+                batchHandler.getDatabase().beginTransaction();
+            }
+            persistAbstractSamples(samples, providerFactory.apply(gbDevice, batchHandler.getDaoSession()));
+        } catch (final Exception e) {
+            GB.toast(context, "Error saving samples", Toast.LENGTH_LONG, GB.ERROR, e);
+        }
+        samples.clear();
+    }
+
+    private void endBatches(final boolean successful) {
+        if (batchHandler == null) {
+            return;
+        }
+        final SQLiteDatabase db = batchHandler.getDatabase();
+        try {
+            if (successful) {
+                db.setTransactionSuccessful();
+            } else {
+                LOG.warn("Rolling back the samples persisted while reading the file");
+            }
+            db.endTransaction();
+            if (!successful) {
+                // the session may still cache the samples that were rolled back
+                batchHandler.getDaoSession().clear();
+            }
+        } finally {
+            try {
+                batchHandler.close();
+            } catch (final Exception e) {
+                LOG.error("Failed to release the database", e);
+            }
+            batchHandler = null;
+        }
+    }
+
     private <T extends AbstractTimeSample> void persistAbstractSamples(final List<T> samples,
                                                                        final AbstractTimeSampleProvider<T> sampleProvider) {
         sampleProvider.persistForDevice(context, gbDevice, samples);
@@ -6,6 +6,7 @@ import androidx.annotation.Nullable;
 import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 import nodomain.freeyourgadget.gadgetbridge.service.devices.garmin.GarminByteBufferReader;
 import nodomain.freeyourgadget.gadgetbridge.service.devices.garmin.fit.baseTypes.BaseType;
@@ -109,18 +110,27 @@ public class RecordDefinition {
                 " Global Message Number: " + globalFITMessage.name();
     }
 
-    public void populateDevFields(RecordData recordData) {
+    /**
+     * Sets the base type and name of the developer fields from their field descriptions, indexed by
+     * {@link #getDevFieldKey(int, int)}.
+     */
+    public void populateDevFields(Map<Integer, RecordData> fieldDescriptions) {
         for (DevFieldDefinition devFieldDef : getDevFieldDefinitions()) {
+            final RecordData recordData = fieldDescriptions.get(getDevFieldKey(devFieldDef.getDeveloperDataIndex(), devFieldDef.getFieldDefinitionNumber()));
+            if (recordData == null) {
+                continue;
+            }
             try {
-                if (devFieldDef.getFieldDefinitionNumber() == (int) recordData.getFieldByName("field_definition_number") &&
-                        devFieldDef.getDeveloperDataIndex() == (int) recordData.getFieldByName("developer_data_index")) {
-                    BaseType baseType = BaseType.fromIdentifier((int) recordData.getFieldByName("fit_base_type_id"));
-                    devFieldDef.setBaseType(baseType);
-                    devFieldDef.setName((String) recordData.getFieldByName("field_name"));
-                }
+                BaseType baseType = BaseType.fromIdentifier((int) recordData.getFieldByName("fit_base_type_id"));
+                devFieldDef.setBaseType(baseType);
+                devFieldDef.setName((String) recordData.getFieldByName("field_name"));
             } catch (Exception e) {
                 //ignore
             }
         }
     }
+
+    public static int getDevFieldKey(int developerDataIndex, int fieldDefinitionNumber) {
+        return (developerDataIndex << 8) | fieldDefinitionNumber;
+    }
 }
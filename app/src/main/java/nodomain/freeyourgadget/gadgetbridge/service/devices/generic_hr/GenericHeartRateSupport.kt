@@ -17,11 +17,9 @@
 package nodomain.freeyourgadget.gadgetbridge.service.devices.generic_hr
 
 import android.content.Intent
-import nodomain.freeyourgadget.gadgetbridge.GBApplication
-import nodomain.freeyourgadget.gadgetbridge.database.DBHelper
+import nodomain.freeyourgadget.gadgetbridge.database.SampleIngestionService
 import nodomain.freeyourgadget.gadgetbridge.deviceevents.GBDeviceEventBatteryInfo
 import nodomain.freeyourgadget.gadgetbridge.deviceevents.GBDeviceEventVersionInfo
-import nodomain.freeyourgadget.gadgetbridge.devices.GenericHeartRateSampleProvider
 import nodomain.freeyourgadget.gadgetbridge.entities.GenericHeartRateSample
 import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice
 import nodomain.freeyourgadget.gadgetbridge.service.btle.AbstractBTLESingleDeviceSupport
@@ -130,18 +128,15 @@ class GenericHeartRateSupport : AbstractBTLESingleDeviceSupport(LOG) {
             return
         }
 
-        val timestamp = Calendar.getInstance().getTimeInMillis()
-        try {
-            GBApplication.acquireDB().use { db ->
-                val sampleProvider = GenericHeartRateSampleProvider(device, db.getDaoSession())
-                val userId = DBHelper.getUser(db.getDaoSession()).id
-                val deviceId = DBHelper.getDevice(device, db.getDaoSession()).id
-                val sample = GenericHeartRateSample(timestamp, deviceId, userId, heartRate)
-                sampleProvider.addSample(sample)
-            }
-        } catch (e: Exception) {
-            LOG.error("Failed to save heartRate sample", e)
-        }
+        val sample = GenericHeartRateSample()
+        sample.timestamp = Calendar.getInstance().getTimeInMillis()
+        sample.heartRate = heartRate
+        SampleIngestionService.getInstance().submit(device, sample)
+    }
+
+    override fun dispose() {
+        SampleIngestionService.getInstance().requestFlush()
+        super.dispose()
     }
 
     companion object {
@@ -45,6 +45,7 @@ import nodomain.freeyourgadget.gadgetbridge.entities.HPlusHealthActivitySample;
 import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
 import nodomain.freeyourgadget.gadgetbridge.model.ActivityKind;
 import nodomain.freeyourgadget.gadgetbridge.model.ActivitySample;
+import nodomain.freeyourgadget.gadgetbridge.model.DailyRollups;
 import nodomain.freeyourgadget.gadgetbridge.model.DeviceService;
 import nodomain.freeyourgadget.gadgetbridge.service.btle.TransactionBuilder;
 import nodomain.freeyourgadget.gadgetbridge.service.serial.GBDeviceIoThread;
@@ -302,7 +303,7 @@ class HPlusHandlerThread extends GBDeviceIoThread {
                     }
                 }
 
-                provider.getSampleDao().insertOrReplaceInTx(samples);
+                provider.addGBActivitySamples(samples.toArray(new HPlusHealthActivitySample[0]));
                 mDaySlotRecords.clear();
 
                 //Create an overlay with unused slots
@@ -385,6 +386,9 @@ class HPlusHandlerThread extends GBDeviceIoThread {
             }
 
             overlayDao.insertOrReplaceInTx(overlayList);
+            if (!intervals.isEmpty()) {
+                DailyRollups.invalidate(session, deviceId, intervals.get(0).timestampFrom, intervals.get(intervals.size() - 1).timestampTo);
+            }
 
             //Store the data
             HPlusHealthActivitySample sample = createSample(dbHandler, record.timestamp);
@@ -74,8 +74,8 @@ import nodomain.freeyourgadget.gadgetbridge.R;
 import nodomain.freeyourgadget.gadgetbridge.activities.SettingsActivity;
 import nodomain.freeyourgadget.gadgetbridge.activities.devicesettings.DeviceSettingsPreferenceConst;
 import nodomain.freeyourgadget.gadgetbridge.capabilities.password.PasswordCapabilityImpl;
-import nodomain.freeyourgadget.gadgetbridge.database.DBHandler;
 import nodomain.freeyourgadget.gadgetbridge.database.DBHelper;
+import nodomain.freeyourgadget.gadgetbridge.database.SampleIngestionService;
 import nodomain.freeyourgadget.gadgetbridge.deviceevents.GBDeviceEventBatteryInfo;
 import nodomain.freeyourgadget.gadgetbridge.deviceevents.GBDeviceEventCallControl;
 import nodomain.freeyourgadget.gadgetbridge.deviceevents.GBDeviceEventFindPhone;
@@ -86,7 +86,6 @@ import nodomain.freeyourgadget.gadgetbridge.deviceevents.GBDeviceEventSilentMode
 import nodomain.freeyourgadget.gadgetbridge.deviceevents.GBDeviceEventVersionInfo;
 import nodomain.freeyourgadget.gadgetbridge.deviceevents.GBDeviceEventWearState;
 import nodomain.freeyourgadget.gadgetbridge.devices.DeviceCoordinator;
-import nodomain.freeyourgadget.gadgetbridge.devices.SampleProvider;
 import nodomain.freeyourgadget.gadgetbridge.devices.huami.ActivateDisplayOnLift;
 import nodomain.freeyourgadget.gadgetbridge.devices.huami.ActivateDisplayOnLiftSensitivity;
 import nodomain.freeyourgadget.gadgetbridge.devices.huami.DisconnectNotificationSetting;
@@ -100,15 +99,11 @@ import nodomain.freeyourgadget.gadgetbridge.devices.huami.miband3.MiBand3Coordin
 import nodomain.freeyourgadget.gadgetbridge.devices.huami.miband3.MiBand3Service;
 import nodomain.freeyourgadget.gadgetbridge.devices.miband.DateTimeDisplay;
 import nodomain.freeyourgadget.gadgetbridge.devices.miband.DoNotDisturb;
-import nodomain.freeyourgadget.gadgetbridge.devices.miband.MiBand2SampleProvider;
 import nodomain.freeyourgadget.gadgetbridge.devices.miband.MiBandConst;
 import nodomain.freeyourgadget.gadgetbridge.devices.miband.MiBandCoordinator;
 import nodomain.freeyourgadget.gadgetbridge.devices.miband.MiBandService;
 import nodomain.freeyourgadget.gadgetbridge.devices.miband.VibrationProfile;
-import nodomain.freeyourgadget.gadgetbridge.entities.DaoSession;
-import nodomain.freeyourgadget.gadgetbridge.entities.Device;
 import nodomain.freeyourgadget.gadgetbridge.entities.MiBandActivitySample;
-import nodomain.freeyourgadget.gadgetbridge.entities.User;
 import nodomain.freeyourgadget.gadgetbridge.externalevents.gps.GBLocationProviderType;
 import nodomain.freeyourgadget.gadgetbridge.externalevents.gps.GBLocationService;
 import nodomain.freeyourgadget.gadgetbridge.externalevents.opentracks.OpenTracksController;
@@ -122,6 +117,7 @@ import nodomain.freeyourgadget.gadgetbridge.model.SleepState;
 import nodomain.freeyourgadget.gadgetbridge.model.WearingState;
 import nodomain.freeyourgadget.gadgetbridge.model.weather.Weather;
 import nodomain.freeyourgadget.gadgetbridge.service.btle.AbstractBTLESingleDeviceSupport;
+import nodomain.freeyourgadget.gadgetbridge.service.btle.AbstractTransaction;
 import nodomain.freeyourgadget.gadgetbridge.service.devices.huami.zeppos.services.ZeppOsCannedMessagesService;
 import nodomain.freeyourgadget.gadgetbridge.service.devices.huami.zeppos.services.ZeppOsWorldClocksService;
 import nodomain.freeyourgadget.gadgetbridge.util.MediaManager;
@@ -357,6 +353,7 @@ public abstract class HuamiSupport extends AbstractBTLESingleDeviceSupport
     @Override
     public void dispose() {
         calendarSyncHandler.removeCallbacksAndMessages(null);
+        SampleIngestionService.getInstance().requestFlush();
         super.dispose();
     }
 
@@ -952,6 +949,7 @@ public abstract class HuamiSupport extends AbstractBTLESingleDeviceSupport
 
         try {
             TransactionBuilder builder = performInitialized("new notification");
+            builder.setPriority(AbstractTransaction.Priority.REALTIME);
 
             byte customIconId = HuamiIcon.mapToIconId(notificationSpec.type);
             AlertCategory alertCategory = AlertCategory.CustomHuami;
@@ -1238,6 +1236,7 @@ public abstract class HuamiSupport extends AbstractBTLESingleDeviceSupport
             buf.put(new byte[]{0, 0, 0, 2});
             try {
                 TransactionBuilder builder = performInitialized("incoming call");
+                builder.setPriority(AbstractTransaction.Priority.REALTIME);
                 writeToChunked(builder, 0, buf.array());
                 builder.queue();
             } catch (IOException e) {
@@ -1355,6 +1354,7 @@ public abstract class HuamiSupport extends AbstractBTLESingleDeviceSupport
 
         try {
             final TransactionBuilder builder = performInitialized("send volume");
+            builder.setPriority(AbstractTransaction.Priority.REALTIME);
             writeToChunked(builder, 3, volumeCommand);
 
             builder.queue();
@@ -1376,6 +1376,7 @@ public abstract class HuamiSupport extends AbstractBTLESingleDeviceSupport
 
         try {
             TransactionBuilder builder = performInitialized("send playback info");
+            builder.setPriority(AbstractTransaction.Priority.REALTIME);
             writeToChunked(builder, 3, encodeMusicState(getContext(), musicSpec, musicStateSpec, false));
             builder.queue();
         } catch (IOException e) {
@@ -1570,6 +1571,7 @@ public abstract class HuamiSupport extends AbstractBTLESingleDeviceSupport
         BluetoothGattCharacteristic characteristic = getCharacteristic(UUID_CHARACTERISTIC_ALERT_LEVEL);
         try {
             TransactionBuilder builder = performInitialized("find huami");
+            builder.setPriority(AbstractTransaction.Priority.REALTIME);
             builder.write(characteristic, start ? new byte[] {3} : new byte[] {0});
             builder.queue();
         } catch (IOException e) {
@@ -2375,12 +2377,12 @@ public abstract class HuamiSupport extends AbstractBTLESingleDeviceSupport
         }
     }
 
-    private MiBandActivitySample createActivitySample(Device device, User user, int timestampInSeconds, SampleProvider provider) {
+    private MiBandActivitySample createRealtimeSample(int timestampInSeconds, int heartRate) {
         MiBandActivitySample sample = new MiBandActivitySample();
-        sample.setDevice(device);
-        sample.setUser(user);
         sample.setTimestamp(timestampInSeconds);
-        sample.setProvider(provider);
+        sample.setHeartRate(heartRate);
+        sample.setRawIntensity(ActivitySample.NOT_MEASURED);
+        sample.setRawKind(HuamiConst.TYPE_ACTIVITY); // to make it visible in the charts TODO: add a MANUAL kind for that?
 
         return sample;
     }
@@ -2390,41 +2392,24 @@ public abstract class HuamiSupport extends AbstractBTLESingleDeviceSupport
             realtimeSamplesSupport = new RealtimeSamplesSupport(1000, 1000) {
                 @Override
                 public void doCurrentSample() {
+                    int ts = (int) (System.currentTimeMillis() / 1000);
+                    int heartRate = getHeartrateBpm();
 
-                    try (DBHandler handler = GBApplication.acquireDB()) {
-                        DaoSession session = handler.getDaoSession();
+                    SampleIngestionService.getInstance().submit(gbDevice, createRealtimeSample(ts, heartRate));
 
-                        Device device = DBHelper.getDevice(gbDevice, session);
-                        User user = DBHelper.getUser(session);
-                        int ts = (int) (System.currentTimeMillis() / 1000);
-                        MiBand2SampleProvider provider = new MiBand2SampleProvider(gbDevice, session);
-                        MiBandActivitySample sample = createActivitySample(device, user, ts, provider);
-                        sample.setHeartRate(getHeartrateBpm());
+                    // the broadcast sample is a separate one with the steps, since realtime steps
+                    // are also recorded in the regular samples and we must not count them twice
+                    MiBandActivitySample sample = createRealtimeSample(ts, heartRate);
+                    sample.setSteps(getSteps());
 
-//                        sample.setSteps(getSteps());
-                        sample.setRawIntensity(ActivitySample.NOT_MEASURED);
-                        sample.setRawKind(HuamiConst.TYPE_ACTIVITY); // to make it visible in the charts TODO: add a MANUAL kind for that?
-
-                        provider.addGBActivitySample(sample);
-
-                        // set the steps only afterwards, since realtime steps are also recorded
-                        // in the regular samples and we must not count them twice
-                        // Note: we know that the DAO sample is never committed again, so we simply
-                        // change the value here in memory.
-                        sample.setSteps(getSteps());
-
-                        if (LOG.isDebugEnabled()) {
-                            LOG.debug("realtime sample: " + sample);
-                        }
-
-                        Intent intent = new Intent(DeviceService.ACTION_REALTIME_SAMPLES)
-                                .putExtra(GBDevice.EXTRA_DEVICE, getDevice())
-                                .putExtra(DeviceService.EXTRA_REALTIME_SAMPLE, sample);
-                        LocalBroadcastManager.getInstance(getContext()).sendBroadcast(intent);
-
-                    } catch (Exception e) {
-                        LOG.warn("Unable to acquire db for saving realtime samples", e);
+                    if (LOG.isDebugEnabled()) {
+                        LOG.debug("realtime sample: " + sample);
                     }
+
+                    Intent intent = new Intent(DeviceService.ACTION_REALTIME_SAMPLES)
+                            .putExtra(GBDevice.EXTRA_DEVICE, getDevice())
+                            .putExtra(DeviceService.EXTRA_REALTIME_SAMPLE, sample);
+                    LocalBroadcastManager.getInstance(getContext()).sendBroadcast(intent);
                 }
             };
         }
@@ -36,6 +36,7 @@ import nodomain.freeyourgadget.gadgetbridge.R;
 import nodomain.freeyourgadget.gadgetbridge.deviceevents.GBDeviceEventDisplayMessage;
 import nodomain.freeyourgadget.gadgetbridge.devices.huami.HuamiFWHelper;
 import nodomain.freeyourgadget.gadgetbridge.devices.huami.HuamiService;
+import nodomain.freeyourgadget.gadgetbridge.service.btle.AbstractTransaction;
 import nodomain.freeyourgadget.gadgetbridge.service.btle.BLETypeConversions;
 import nodomain.freeyourgadget.gadgetbridge.service.btle.TransactionBuilder;
 import nodomain.freeyourgadget.gadgetbridge.service.devices.huami.AbstractHuamiFirmwareInfo;
@@ -245,6 +246,7 @@ public class UpdateFirmwareOperation extends AbstractMiBandOperation<HuamiSuppor
             int firmwareProgress = 0;
 
             TransactionBuilder builder = performInitialized("send firmware packet");
+            builder.setPriority(getUploadPriority());
             builder.write(fwCControlChar, getFirmwareStartCommand());
 
             for (int i = 0; i < packets; i++) {
@@ -289,6 +291,20 @@ public class UpdateFirmwareOperation extends AbstractMiBandOperation<HuamiSuppor
         builder.queue();
     }
 
+    /**
+     * Watchfaces and AGPS data may be interrupted by notifications and music control in between
+     * their packets. Everything else, and firmware updates in particular, is sent in one go.
+     */
+    protected AbstractTransaction.Priority getUploadPriority() {
+        switch (getFirmwareInfo().getFirmwareType()) {
+            case WATCHFACE:
+            case AGPS_UIHH:
+                return AbstractTransaction.Priority.BULK;
+            default:
+                return AbstractTransaction.Priority.INTERACTIVE;
+        }
+    }
+
     protected AbstractHuamiFirmwareInfo getFirmwareInfo() {
         return firmwareInfo;
     }
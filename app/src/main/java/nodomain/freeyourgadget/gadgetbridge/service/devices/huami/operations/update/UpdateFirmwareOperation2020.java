@@ -249,6 +249,7 @@ public class UpdateFirmwareOperation2020 extends UpdateFirmwareOperation {
             }
 
             TransactionBuilder builder = performInitialized("send firmware packets");
+            builder.setPriority(getUploadPriority());
 
             for (int i = 0; i < packets; i++) {
                 byte[] fwChunk = Arrays.copyOfRange(fwbytes, offset + i * packetLength, offset + i * packetLength + packetLength);
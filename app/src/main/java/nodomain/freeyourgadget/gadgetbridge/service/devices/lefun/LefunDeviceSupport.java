@@ -46,6 +46,7 @@ import nodomain.freeyourgadget.gadgetbridge.database.DBHandler;
 import nodomain.freeyourgadget.gadgetbridge.database.DBHelper;
 import nodomain.freeyourgadget.gadgetbridge.deviceevents.GBDeviceEventFindPhone;
 import nodomain.freeyourgadget.gadgetbridge.devices.lefun.LefunConstants;
+import nodomain.freeyourgadget.gadgetbridge.devices.lefun.LefunSampleProvider;
 import nodomain.freeyourgadget.gadgetbridge.devices.lefun.commands.FeaturesCommand;
 import nodomain.freeyourgadget.gadgetbridge.devices.lefun.commands.FindPhoneCommand;
 import nodomain.freeyourgadget.gadgetbridge.devices.lefun.commands.GetActivityDataCommand;
@@ -859,8 +860,8 @@ public class LefunDeviceSupport extends AbstractBTLESingleDeviceSupport {
             DaoSession session = handler.getDaoSession();
             int timestamp = dateToTimestamp(command.getYear(), command.getMonth(), command.getDay(),
                     command.getHour(), command.getMinute(), (byte) 0);
-            // For the most part I'm ignoring the sample provider, because it doesn't really help
-            // when I need to combine sample data instead of replacing
+            // The sample provider doesn't help with combining sample data instead of replacing,
+            // but still store through it so the cached daily totals are invalidated
             LefunActivitySample sample = getActivitySample(session, timestamp);
             if (sample == null) {
                 sample = new LefunActivitySample(timestamp,
@@ -874,7 +875,7 @@ public class LefunDeviceSupport extends AbstractBTLESingleDeviceSupport {
             sample.setCalories(command.getCalories());
             sample.setRawIntensity(LefunConstants.INTENSITY_AWAKE);
 
-            session.getLefunActivitySampleDao().insertOrReplace(sample);
+            new LefunSampleProvider(getDevice(), session).addGBActivitySample(sample);
         } catch (Exception e) {
             LOG.error("Error handling activity data", e);
         }
@@ -905,7 +906,7 @@ public class LefunDeviceSupport extends AbstractBTLESingleDeviceSupport {
 
                 sample.setHeartRate(ppgData0);
 
-                session.getLefunActivitySampleDao().insertOrReplace(sample);
+                new LefunSampleProvider(getDevice(), session).addGBActivitySample(sample);
 
                 final Intent intent = new Intent(DeviceService.ACTION_REALTIME_SAMPLES)
                         .putExtra(GBDevice.EXTRA_DEVICE, getDevice())
@@ -992,7 +993,7 @@ public class LefunDeviceSupport extends AbstractBTLESingleDeviceSupport {
             sample.setRawKind(rawKind);
             sample.setRawIntensity(intensity);
 
-            session.getLefunActivitySampleDao().insertOrReplace(sample);
+            new LefunSampleProvider(getDevice(), session).addGBActivitySample(sample);
 
             LefunSleepSample sleepSample = new LefunSleepSample(timestamp,
                     DBHelper.getDevice(getDevice(), session).getId());
@@ -10,12 +10,9 @@ import java.util.Calendar;
 import java.util.Objects;
 import java.util.UUID;
 
-import nodomain.freeyourgadget.gadgetbridge.GBApplication;
-import nodomain.freeyourgadget.gadgetbridge.database.DBHandler;
-import nodomain.freeyourgadget.gadgetbridge.database.DBHelper;
+import nodomain.freeyourgadget.gadgetbridge.database.SampleIngestionService;
 import nodomain.freeyourgadget.gadgetbridge.deviceevents.GBDeviceEventBatteryInfo;
 import nodomain.freeyourgadget.gadgetbridge.deviceevents.GBDeviceEventVersionInfo;
-import nodomain.freeyourgadget.gadgetbridge.devices.polar.PolarH10ActivitySampleProvider;
 import nodomain.freeyourgadget.gadgetbridge.entities.PolarH10ActivitySample;
 import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
 import nodomain.freeyourgadget.gadgetbridge.service.btle.AbstractBTLESingleDeviceSupport;
@@ -116,15 +113,16 @@ public class PolarH10DeviceSupport extends AbstractBTLESingleDeviceSupport {
 
     private void processSamples(int hr) {
         int timestamp = (int) (Calendar.getInstance().getTimeInMillis() / 1000L);
-        try (DBHandler db = GBApplication.acquireDB()) {
-            PolarH10ActivitySampleProvider sampleProvider = new PolarH10ActivitySampleProvider(this.getDevice(), db.getDaoSession());
-            Long userId = DBHelper.getUser(db.getDaoSession()).getId();
-            Long deviceId = DBHelper.getDevice(getDevice(), db.getDaoSession()).getId();
-            PolarH10ActivitySample sample = new PolarH10ActivitySample(timestamp, deviceId, userId, hr);
-            sampleProvider.addGBActivitySamples(new PolarH10ActivitySample[]{sample});
-        } catch (Exception e) {
-            LOG.error("Error acquiring database", e);
-        }
+        PolarH10ActivitySample sample = new PolarH10ActivitySample();
+        sample.setTimestamp(timestamp);
+        sample.setHeartRate(hr);
+        SampleIngestionService.getInstance().submit(getDevice(), sample);
+    }
+
+    @Override
+    public void dispose() {
+        SampleIngestionService.getInstance().requestFlush();
+        super.dispose();
     }
 
     private void handleDeviceInfo(nodomain.freeyourgadget.gadgetbridge.service.btle.profiles.deviceinfo.DeviceInfo info) {
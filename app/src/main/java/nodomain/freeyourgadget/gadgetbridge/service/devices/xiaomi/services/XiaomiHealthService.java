@@ -37,15 +37,8 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Set;
 
-import nodomain.freeyourgadget.gadgetbridge.GBApplication;
 import nodomain.freeyourgadget.gadgetbridge.activities.devicesettings.DeviceSettingsPreferenceConst;
-import nodomain.freeyourgadget.gadgetbridge.database.DBHandler;
-import nodomain.freeyourgadget.gadgetbridge.database.DBHelper;
 import nodomain.freeyourgadget.gadgetbridge.deviceevents.GBDeviceEventUpdatePreferences;
-import nodomain.freeyourgadget.gadgetbridge.devices.xiaomi.XiaomiSampleProvider;
-import nodomain.freeyourgadget.gadgetbridge.entities.DaoSession;
-import nodomain.freeyourgadget.gadgetbridge.entities.Device;
-import nodomain.freeyourgadget.gadgetbridge.entities.User;
 import nodomain.freeyourgadget.gadgetbridge.entities.XiaomiActivitySample;
 import nodomain.freeyourgadget.gadgetbridge.externalevents.gps.GBLocationProviderType;
 import nodomain.freeyourgadget.gadgetbridge.externalevents.gps.GBLocationService;
@@ -926,28 +919,14 @@ public class XiaomiHealthService extends AbstractXiaomiService {
             previousSteps = realTimeStats.getSteps();
         }
 
-        final XiaomiActivitySample sample;
-        try (final DBHandler dbHandler = GBApplication.acquireDB()) {
-            final DaoSession session = dbHandler.getDaoSession();
-
-            final GBDevice gbDevice = getSupport().getDevice();
-            final Device device = DBHelper.getDevice(gbDevice, session);
-            final User user = DBHelper.getUser(session);
-            final int ts = (int) (System.currentTimeMillis() / 1000);
-            final XiaomiSampleProvider provider = new XiaomiSampleProvider(gbDevice, session);
-            sample = provider.createActivitySample();
-
-            sample.setDeviceId(device.getId());
-            sample.setUserId(user.getId());
-            sample.setTimestamp(ts);
-            sample.setHeartRate(realTimeStats.getHeartRate());
-            sample.setSteps(realTimeStats.getSteps() - previousSteps);
-            sample.setRawKind(ActivityKind.UNKNOWN.getCode());
-            sample.setRawIntensity(ActivitySample.NOT_MEASURED);
-        } catch (final Exception e) {
-            LOG.error("Error creating activity sample", e);
-            return;
-        }
+        // only broadcast, the samples of the device are fetched and persisted later, so it needs
+        // neither the database nor the device and user ids
+        final XiaomiActivitySample sample = new XiaomiActivitySample();
+        sample.setTimestamp((int) (System.currentTimeMillis() / 1000));
+        sample.setHeartRate(realTimeStats.getHeartRate());
+        sample.setSteps(realTimeStats.getSteps() - previousSteps);
+        sample.setRawKind(ActivityKind.UNKNOWN.getCode());
+        sample.setRawIntensity(ActivitySample.NOT_MEASURED);
 
         previousSteps = realTimeStats.getSteps();
 
@@ -0,0 +1,72 @@
+package nodomain.freeyourgadget.gadgetbridge.util;
+
+/**
+ * Second order IIR filter section, with coefficients from the RBJ audio EQ cookbook. Cheap enough
+ * to run per sample on continuous sensor streams: constant time and no allocations.
+ * <p>
+ * Not thread-safe, since each instance keeps the state of the stream it filters.
+ */
+public final class Biquad {
+    private static final double BUTTERWORTH_Q = Math.sqrt(0.5);
+
+    private final double b0;
+    private final double b1;
+    private final double b2;
+    private final double a1;
+    private final double a2;
+
+    private double x1;
+    private double x2;
+    private double y1;
+    private double y2;
+
+    private Biquad(final double b0, final double b1, final double b2, final double a0, final double a1, final double a2) {
+        this.b0 = b0 / a0;
+        this.b1 = b1 / a0;
+        this.b2 = b2 / a0;
+        this.a1 = a1 / a0;
+        this.a2 = a2 / a0;
+    }
+
+    /**
+     * Butterworth low-pass filter.
+     */
+    public static Biquad lowPass(final double sampleRate, final double cutoff) {
+        final double w0 = 2 * Math.PI * cutoff / sampleRate;
+        final double cos = Math.cos(w0);
+        final double alpha = Math.sin(w0) / (2 * BUTTERWORTH_Q);
+        return new Biquad((1 - cos) / 2, 1 - cos, (1 - cos) / 2, 1 + alpha, -2 * cos, 1 - alpha);
+    }
+
+    /**
+     * Butterworth high-pass filter.
+     */
+    public static Biquad highPass(final double sampleRate, final double cutoff) {
+        final double w0 = 2 * Math.PI * cutoff / sampleRate;
+        final double cos = Math.cos(w0);
+        final double alpha = Math.sin(w0) / (2 * BUTTERWORTH_Q);
+        return new Biquad((1 + cos) / 2, -(1 + cos), (1 + cos) / 2, 1 + alpha, -2 * cos, 1 - alpha);
+    }
+
+    public double filter(final double x) {
+        final double y = b0 * x + b1 * x1 + b2 * x2 - a1 * y1 - a2 * y2;
+        x2 = x1;
+        x1 = x;
+        y2 = y1;
+        y1 = y;
+        return y;
+    }
+
+    /**
+     * Resets the filter as if it had been fed {@code value} forever, which avoids the step response
+     * when a stream (re)starts at a level far from zero.
+     */
+    public void reset(final double value) {
+        // steady state gain of the filter
+        final double gain = (b0 + b1 + b2) / (1 + a1 + a2);
+        x1 = value;
+        x2 = value;
+        y1 = value * gain;
+        y2 = value * gain;
+    }
+}
@@ -0,0 +1,166 @@
+package nodomain.freeyourgadget.gadgetbridge.util;
+
+import java.util.Arrays;
+
+/**
+ * Lossless compression of a series of float values by XOR-ing each value with its predecessor,
+ * as in Facebook's Gorilla time series database. Slowly changing or repeating signals, such as
+ * sensor waveforms, compress to a few bits per sample.
+ * <p>
+ * Per value, after the first one which is stored verbatim:
+ * <ul>
+ *     <li>{@code 0}: same value as the previous one</li>
+ *     <li>{@code 10}: the meaningful bits of the XOR fit in the previous window and follow</li>
+ *     <li>{@code 11}: 5 bits of leading zeros, 5 bits of meaningful bit count - 1, then the meaningful bits</li>
+ * </ul>
+ * Neither the {@link Encoder} nor the {@link Decoder} allocate per value, and both can be reused.
+ */
+public final class FloatXorCodec {
+    public interface ValueConsumer {
+        void accept(int index, float value);
+    }
+
+    private FloatXorCodec() {
+        // utility class
+    }
+
+    public static final class Encoder {
+        private byte[] buffer;
+        private int position;
+        private long bits;
+        private int bitCount;
+
+        private int count;
+        private int previous;
+        private int previousLeading = -1;
+        private int previousTrailing;
+
+        public Encoder(final int initialCapacity) {
+            buffer = new byte[Math.max(initialCapacity, 8)];
+        }
+
+        public void reset() {
+            position = 0;
+            bits = 0;
+            bitCount = 0;
+            count = 0;
+            previousLeading = -1;
+        }
+
+        public void add(final float value) {
+            final int current = Float.floatToRawIntBits(value);
+            if (count++ == 0) {
+                write(current, 32);
+                previous = current;
+                return;
+            }
+
+            final int xor = current ^ previous;
+            previous = current;
+            if (xor == 0) {
+                write(0, 1);
+                return;
+            }
+
+            final int leading = Integer.numberOfLeadingZeros(xor);
+            final int trailing = Integer.numberOfTrailingZeros(xor);
+            if (previousLeading >= 0 && leading >= previousLeading && trailing >= previousTrailing) {
+                write(0b10, 2);
+                write(xor >>> previousTrailing, 32 - previousLeading - previousTrailing);
+            } else {
+                final int meaningful = 32 - leading - trailing;
+                write(0b11, 2);
+                write(leading, 5);
+                write(meaningful - 1, 5);
+                write(xor >>> trailing, meaningful);
+                previousLeading = leading;
+                previousTrailing = trailing;
+            }
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        /**
+         * @return the encoded values so far, the encoder can keep adding values afterwards
+         */
+        public byte[] toByteArray() {
+            final int length = bitCount > 0 ? position + 1 : position;
+            final byte[] ret = Arrays.copyOf(buffer, length);
+            if (bitCount > 0) {
+                ret[position] = (byte) (bits << (8 - bitCount));
+            }
+            return ret;
+        }
+
+        private void write(final int value, final int n) {
+            bits = (bits << n) | (value & 0xffffffffL & ((1L << n) - 1));
+            bitCount += n;
+            while (bitCount >= 8) {
+                bitCount -= 8;
+                if (position == buffer.length) {
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                }
+                buffer[position++] = (byte) (bits >>> bitCount);
+            }
+        }
+    }
+
+    public static final class Decoder {
+        private byte[] data;
+        private int position;
+        private long bits;
+        private int bitCount;
+        private boolean truncated;
+
+        /**
+         * Decodes the first {@code count} values in {@code data}, passing each to the consumer.
+         *
+         * @return the number of values decoded, which is less than {@code count} if the data is truncated
+         */
+        public int decode(final byte[] data, final int count, final ValueConsumer consumer) {
+            this.data = data;
+            position = 0;
+            bits = 0;
+            bitCount = 0;
+            truncated = false;
+
+            int previous = 0;
+            int previousLeading = 0;
+            int previousTrailing = 0;
+            for (int i = 0; i < count; i++) {
+                if (i == 0) {
+                    previous = read(32);
+                } else if (read(1) != 0) {
+                    if (read(1) != 0) {
+                        previousLeading = read(5);
+                        final int meaningful = read(5) + 1;
+                        previousTrailing = 32 - previousLeading - meaningful;
+                    }
+                    previous ^= read(32 - previousLeading - previousTrailing) << previousTrailing;
+                }
+                if (truncated) {
+                    this.data = null;
+                    return i;
+                }
+                consumer.accept(i, Float.intBitsToFloat(previous));
+            }
+            this.data = null;
+            return count;
+        }
+
+        private int read(final int n) {
+            while (bitCount < n) {
+                if (position == data.length) {
+                    truncated = true;
+                    return 0;
+                }
+                bits = (bits << 8) | (data[position++] & 0xff);
+                bitCount += 8;
+            }
+            bitCount -= n;
+            return (int) ((bits >>> bitCount) & ((1L << n) - 1));
+        }
+    }
+}
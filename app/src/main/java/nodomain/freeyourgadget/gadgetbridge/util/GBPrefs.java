@@ -65,6 +65,8 @@ public class GBPrefs extends Prefs {
     public static final String AUTO_EXPORT_INTERVAL = "auto_export_interval";
     public static final String AUTO_EXPORT_LAST_EXECUTION = "auto_export_last_execution";
     public static final String AUTO_EXPORT_NEXT_EXECUTION = "auto_export_next_execution";
+    public static final String AUTO_EXPORT_INCREMENTAL = "auto_export_incremental";
+    public static final String AUTO_EXPORT_KEEP_SNAPSHOTS = "auto_export_keep_snapshots";
 
     // DB export has no prefix
     public static final String AUTO_EXPORT_DB_ENABLED = AUTO_EXPORT_ENABLED;
@@ -79,6 +81,7 @@ public class GBPrefs extends Prefs {
     public static final String AUTO_EXPORT_ZIP_INTERVAL = "zip_auto_export_interval";
     public static final String AUTO_EXPORT_ZIP_LAST_EXECUTION = "zip_auto_export_last_execution";
     public static final String AUTO_EXPORT_ZIP_NEXT_EXECUTION = "zip_auto_export_next_execution";
+    public static final String AUTO_EXPORT_ZIP_KEEP_SNAPSHOTS = "zip_auto_export_keep_snapshots";
 
     // Intent API
     public static final String INTENT_API_BROADCAST_EXPORT_DB = "intent_api_broadcast_export";
@@ -24,6 +24,13 @@ abstract class PeriodicExporter {
     abstract fun getFileMimeType(): String
     abstract fun getFileExtension(): String
 
+    /**
+     * Whether a folder can be chosen instead of a file, for incremental exports.
+     */
+    open fun supportsIncremental(): Boolean {
+        return false
+    }
+
     fun scheduleNextExecution(context: Context) {
         try {
             val keyPrefix = getKeyPrefix()
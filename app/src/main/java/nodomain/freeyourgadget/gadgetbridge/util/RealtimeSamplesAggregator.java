@@ -89,6 +89,10 @@ public class RealtimeSamplesAggregator {
             final User user = DBHelper.getUser(session);
 
             final SampleProvider<? extends ActivitySample> sampleProvider = gbDevice.getDeviceCoordinator().getSampleProvider(gbDevice, session);
+            if (sampleProvider == null) {
+                // the device does not have activity samples to carry the values
+                return;
+            }
             sample = sampleProvider.createActivitySample();
             if (!(sample instanceof Serializable)) {
                 LOG.error("Activity sample {} is not Serializable!", sample.getClass());
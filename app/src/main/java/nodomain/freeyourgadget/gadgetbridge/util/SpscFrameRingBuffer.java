@@ -0,0 +1,159 @@
+package nodomain.freeyourgadget.gadgetbridge.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A lock-free single-producer / single-consumer ring buffer of fixed-width byte frames, each
+ * carrying an int tag and a timestamp. All storage is preallocated, so neither side allocates.
+ * <p>
+ * Intended to decouple a time-critical producer (eg. the BLE receiver thread) from slower
+ * consumers. When the buffer is full, new frames are dropped rather than blocking the producer.
+ * {@link #offer} must only be called from one thread, and {@link #drain} from one other thread.
+ */
+public final class SpscFrameRingBuffer {
+    public interface FrameHandler {
+        /**
+         * Called on the consumer thread for each frame. The data must be copied or consumed before
+         * returning, since the slot is reused afterwards.
+         */
+        void onFrame(int tag, long timestamp, byte[] data, int offset, int length);
+    }
+
+    private final int capacity;
+    private final int mask;
+    private final int frameSize;
+
+    private final byte[] data;
+    private final int[] tags;
+    private final int[] lengths;
+    private final long[] timestamps;
+
+    // next slot to be written, only advanced by the producer
+    private final AtomicLong head = new AtomicLong();
+    // next slot to be read, only advanced by the consumer
+    private final AtomicLong tail = new AtomicLong();
+
+    // producer-local copy of tail, consumer-local copy of head
+    private long cachedTail;
+    private long cachedHead;
+
+    // backpressure metrics, only written by the producer
+    private volatile long offered;
+    private volatile long dropped;
+    private volatile int highWaterMark;
+
+    /**
+     * @param capacity  number of frames, must be a power of two
+     * @param frameSize maximum number of bytes per frame
+     */
+    public SpscFrameRingBuffer(final int capacity, final int frameSize) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("capacity must be a power of two: " + capacity);
+        }
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        this.frameSize = frameSize;
+        this.data = new byte[capacity * frameSize];
+        this.tags = new int[capacity];
+        this.lengths = new int[capacity];
+        this.timestamps = new long[capacity];
+    }
+
+    /**
+     * Copies a frame into the buffer. Producer thread only.
+     *
+     * @return false if the buffer was full and the frame was dropped
+     */
+    public boolean offer(final int tag, final long timestamp, final byte[] src, final int offset, final int length) {
+        if (length > frameSize) {
+            throw new IllegalArgumentException("frame of " + length + " bytes exceeds frame size " + frameSize);
+        }
+        offered++;
+
+        final long h = head.get();
+        if (h - cachedTail >= capacity) {
+            cachedTail = tail.get();
+            if (h - cachedTail >= capacity) {
+                dropped++;
+                return false;
+            }
+        }
+
+        final int slot = (int) h & mask;
+        System.arraycopy(src, offset, data, slot * frameSize, length);
+        tags[slot] = tag;
+        lengths[slot] = length;
+        timestamps[slot] = timestamp;
+        // ordered store, publishes the slot contents to the consumer
+        head.lazySet(h + 1);
+
+        final int occupancy = (int) (h + 1 - tail.get());
+        if (occupancy > highWaterMark) {
+            highWaterMark = occupancy;
+        }
+        return true;
+    }
+
+    /**
+     * Passes up to {@code limit} frames to the handler, oldest first. Consumer thread only.
+     *
+     * @return the number of frames consumed
+     */
+    public int drain(final FrameHandler handler, final int limit) {
+        long t = tail.get();
+        if (t >= cachedHead) {
+            cachedHead = head.get();
+            if (t >= cachedHead) {
+                return 0;
+            }
+        }
+
+        int count = 0;
+        while (t < cachedHead && count < limit) {
+            final int slot = (int) t & mask;
+            handler.onFrame(tags[slot], timestamps[slot], data, slot * frameSize, lengths[slot]);
+            t++;
+            count++;
+            // ordered store, releases the slot to the producer
+            tail.lazySet(t);
+        }
+        return count;
+    }
+
+    public boolean isEmpty() {
+        return tail.get() >= head.get();
+    }
+
+    public int size() {
+        return (int) (head.get() - tail.get());
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int getFrameSize() {
+        return frameSize;
+    }
+
+    /**
+     * Total number of frames offered, including dropped ones.
+     */
+    public long getOffered() {
+        return offered;
+    }
+
+    /**
+     * Number of frames dropped because the consumer did not keep up.
+     */
+    public long getDropped() {
+        return dropped;
+    }
+
+    /**
+     * Maximum number of frames that were queued at the same time.
+     */
+    public int getHighWaterMark() {
+        return highWaterMark;
+    }
+}
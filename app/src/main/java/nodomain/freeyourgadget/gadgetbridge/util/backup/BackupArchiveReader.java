@@ -0,0 +1,31 @@
+package nodomain.freeyourgadget.gadgetbridge.util.backup;
+
+import androidx.annotation.Nullable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+/**
+ * Where {@link ZipBackupImportJob} reads the backup entries from, either a single zip file or a
+ * snapshot in an {@link IncrementalBackupRepository}.
+ */
+interface BackupArchiveReader extends Closeable {
+    /**
+     * @return the metadata, or null if the backup has none
+     */
+    @Nullable
+    ZipBackupMetadata getMetadata() throws IOException;
+
+    List<String> getEntryNames();
+
+    boolean hasEntry(String name);
+
+    InputStream openEntry(String name) throws IOException;
+
+    /**
+     * @return the last modification time of an entry, or 0 if unknown
+     */
+    long getLastModified(String name);
+}
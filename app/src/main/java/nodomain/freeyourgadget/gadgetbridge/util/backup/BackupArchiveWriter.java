@@ -0,0 +1,22 @@
+package nodomain.freeyourgadget.gadgetbridge.util.backup;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Where {@link ZipBackupExportJob} writes the backup entries to, either a single zip file or a
+ * snapshot in an {@link IncrementalBackupRepository}.
+ */
+interface BackupArchiveWriter extends Closeable {
+    /**
+     * Starts a new entry, ending the previous one. The returned stream must not be closed.
+     */
+    OutputStream putEntry(String name, long lastModified) throws IOException;
+
+    /**
+     * Ends the last entry and writes the metadata. Nothing written before is considered part of the
+     * backup until this is called.
+     */
+    void finish(ZipBackupMetadata metadata, String comment) throws IOException;
+}
@@ -0,0 +1,78 @@
+package nodomain.freeyourgadget.gadgetbridge.util.backup;
+
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Splits a stream of bytes into chunks, with boundaries determined by the content itself (using a
+ * gear rolling hash), instead of at fixed offsets. Inserting or removing bytes only changes the
+ * chunks around the modification, all other chunks keep the same content and can be deduplicated.
+ * <p>
+ * Data is pushed with {@link #update}, and chunks are passed to the {@link Consumer} as soon as
+ * they are complete. {@link #finish} must be called at the end, to emit the last chunk.
+ */
+public class ContentDefinedChunker {
+    public static final int MIN_CHUNK_SIZE = 16 * 1024;
+    public static final int MAX_CHUNK_SIZE = 256 * 1024;
+
+    // 16 bits set, for an average chunk size of 64KiB over the minimum size. Only the high bits
+    // depend on the previous 64 bytes, the low bits would only depend on the last few
+    private static final long BOUNDARY_MASK = 0xffffL << 48;
+
+    // Must never change, or existing chunks will no longer be reused
+    private static final long[] GEAR = new long[256];
+
+    static {
+        final Random random = new Random(0x4742L);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    public interface Consumer {
+        void onChunk(byte[] data, int length) throws IOException;
+    }
+
+    private final Consumer consumer;
+    private final byte[] buffer = new byte[MAX_CHUNK_SIZE];
+    private int length;
+    private long hash;
+
+    public ContentDefinedChunker(final Consumer consumer) {
+        this.consumer = consumer;
+    }
+
+    public void update(final byte[] data, int offset, final int count) throws IOException {
+        final int end = offset + count;
+        while (offset < end) {
+            // The first bytes of a chunk can never be a boundary, no need to hash them
+            if (length < MIN_CHUNK_SIZE) {
+                final int skip = Math.min(MIN_CHUNK_SIZE - length, end - offset);
+                System.arraycopy(data, offset, buffer, length, skip);
+                length += skip;
+                offset += skip;
+                continue;
+            }
+
+            final byte b = data[offset++];
+            buffer[length++] = b;
+            hash = (hash << 1) + GEAR[b & 0xff];
+
+            if ((hash & BOUNDARY_MASK) == 0 || length == MAX_CHUNK_SIZE) {
+                emit();
+            }
+        }
+    }
+
+    public void finish() throws IOException {
+        if (length > 0) {
+            emit();
+        }
+    }
+
+    private void emit() throws IOException {
+        consumer.onChunk(buffer, length);
+        length = 0;
+        hash = 0;
+    }
+}
@@ -0,0 +1,179 @@
+package nodomain.freeyourgadget.gadgetbridge.util.backup;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.DocumentsContract;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Stores an {@link IncrementalBackupRepository} in a folder picked by the user through the storage
+ * access framework.
+ * <p>
+ * Each query to the document provider is slow, so every folder is only listed once, with a single
+ * query, and the documents are looked up by name from then on. {@code DocumentFile} is not used,
+ * since it would query the provider again for the name of every file.
+ */
+public class DocumentTreeStorage implements IncrementalBackupRepository.Storage {
+    private static final Logger LOG = LoggerFactory.getLogger(DocumentTreeStorage.class);
+
+    private static final String MIME_TYPE = "application/octet-stream";
+
+    private static final String[] CHILD_PROJECTION = new String[]{
+            DocumentsContract.Document.COLUMN_DOCUMENT_ID,
+            DocumentsContract.Document.COLUMN_DISPLAY_NAME,
+            DocumentsContract.Document.COLUMN_MIME_TYPE
+    };
+
+    private final ContentResolver mContentResolver;
+    private final Uri treeUri;
+    private final Uri rootUri;
+
+    // folder and file uris by name, listed on first use
+    private Map<String, Uri> folders;
+    private final Map<String, Map<String, Uri>> files = new HashMap<>();
+
+    public DocumentTreeStorage(final Context context, final Uri treeUri) {
+        this.mContentResolver = context.getContentResolver();
+        this.treeUri = treeUri;
+        this.rootUri = DocumentsContract.buildDocumentUriUsingTree(treeUri, DocumentsContract.getTreeDocumentId(treeUri));
+    }
+
+    @Override
+    public Set<String> list(final String folder) throws IOException {
+        return new HashSet<>(getFiles(folder).keySet());
+    }
+
+    @Override
+    public OutputStream create(final String folder, final String name) throws IOException {
+        Uri folderUri = getFolders().get(folder);
+        if (folderUri == null) {
+            folderUri = DocumentsContract.createDocument(mContentResolver, rootUri, DocumentsContract.Document.MIME_TYPE_DIR, folder);
+            if (folderUri == null) {
+                throw new IOException("Failed to create folder " + folder);
+            }
+            folders.put(folder, folderUri);
+        }
+
+        final Map<String, Uri> folderFiles = getFiles(folder);
+        final Uri existing = folderFiles.remove(name);
+        if (existing != null && !DocumentsContract.deleteDocument(mContentResolver, existing)) {
+            throw new IOException("Failed to replace " + folder + "/" + name);
+        }
+
+        final Uri fileUri = DocumentsContract.createDocument(mContentResolver, folderUri, MIME_TYPE, name);
+        if (fileUri == null) {
+            throw new IOException("Failed to create " + folder + "/" + name);
+        }
+        folderFiles.put(name, fileUri);
+
+        final OutputStream outputStream = mContentResolver.openOutputStream(fileUri);
+        if (outputStream == null) {
+            throw new IOException("Failed to open " + folder + "/" + name);
+        }
+        return outputStream;
+    }
+
+    @Override
+    public InputStream open(final String folder, final String name) throws IOException {
+        final Uri fileUri = getFiles(folder).get(name);
+        if (fileUri == null) {
+            throw new FileNotFoundException(folder + "/" + name);
+        }
+
+        final InputStream inputStream = mContentResolver.openInputStream(fileUri);
+        if (inputStream == null) {
+            throw new IOException("Failed to open " + folder + "/" + name);
+        }
+        return inputStream;
+    }
+
+    @Override
+    public void rename(final String folder, final String from, final String to) throws IOException {
+        final Map<String, Uri> folderFiles = getFiles(folder);
+        final Uri fileUri = folderFiles.get(from);
+        if (fileUri == null) {
+            throw new FileNotFoundException(folder + "/" + from);
+        }
+
+        final Uri existing = folderFiles.remove(to);
+        if (existing != null && !DocumentsContract.deleteDocument(mContentResolver, existing)) {
+            throw new IOException("Failed to replace " + folder + "/" + to);
+        }
+
+        final Uri renamedUri = DocumentsContract.renameDocument(mContentResolver, fileUri, to);
+        if (renamedUri == null) {
+            throw new IOException("Failed to rename " + from + " to " + to + " in " + folder);
+        }
+        folderFiles.remove(from);
+        folderFiles.put(to, renamedUri);
+    }
+
+    @Override
+    public void delete(final String folder, final String name) throws IOException {
+        final Map<String, Uri> folderFiles = getFiles(folder);
+        final Uri fileUri = folderFiles.get(name);
+        if (fileUri == null) {
+            return;
+        }
+        if (!DocumentsContract.deleteDocument(mContentResolver, fileUri)) {
+            throw new IOException("Failed to delete " + folder + "/" + name);
+        }
+        folderFiles.remove(name);
+    }
+
+    private Map<String, Uri> getFolders() throws IOException {
+        if (folders == null) {
+            folders = queryChildren(rootUri, true);
+        }
+        return folders;
+    }
+
+    private Map<String, Uri> getFiles(final String folder) throws IOException {
+        Map<String, Uri> folderFiles = files.get(folder);
+        if (folderFiles == null) {
+            final Uri folderUri = getFolders().get(folder);
+            folderFiles = folderUri != null ? queryChildren(folderUri, false) : new HashMap<>();
+            files.put(folder, folderFiles);
+        }
+        return folderFiles;
+    }
+
+    private Map<String, Uri> queryChildren(final Uri parentUri, final boolean directories) throws IOException {
+        final Uri childrenUri = DocumentsContract.buildChildDocumentsUriUsingTree(
+                treeUri,
+                DocumentsContract.getDocumentId(parentUri)
+        );
+
+        final Map<String, Uri> children = new HashMap<>();
+        try (Cursor cursor = mContentResolver.query(childrenUri, CHILD_PROJECTION, null, null, null)) {
+            if (cursor == null) {
+                throw new IOException("Failed to list " + parentUri);
+            }
+            while (cursor.moveToNext()) {
+                final String documentId = cursor.getString(0);
+                final String name = cursor.getString(1);
+                final boolean isDirectory = DocumentsContract.Document.MIME_TYPE_DIR.equals(cursor.getString(2));
+                if (name != null && isDirectory == directories) {
+                    children.put(name, DocumentsContract.buildDocumentUriUsingTree(treeUri, documentId));
+                }
+            }
+        }
+
+        LOG.debug("Listed {} {} in {}", children.size(), directories ? "folders" : "files", parentUri);
+
+        return children;
+    }
+}
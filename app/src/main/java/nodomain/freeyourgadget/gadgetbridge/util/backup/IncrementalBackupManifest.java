@@ -0,0 +1,58 @@
+package nodomain.freeyourgadget.gadgetbridge.util.backup;
+
+import java.util.List;
+
+/**
+ * The contents of a snapshot in an {@link IncrementalBackupRepository}: the same entries as in a
+ * zip backup, each stored as a list of chunks.
+ */
+public class IncrementalBackupManifest {
+    private final ZipBackupMetadata metadata;
+    private final List<Entry> entries;
+
+    public IncrementalBackupManifest(final ZipBackupMetadata metadata, final List<Entry> entries) {
+        this.metadata = metadata;
+        this.entries = entries;
+    }
+
+    public ZipBackupMetadata getMetadata() {
+        return metadata;
+    }
+
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    public static class Entry {
+        private final String name;
+        private final long lastModified;
+        private final long size;
+        private final List<String> chunks;
+
+        public Entry(final String name, final long lastModified, final long size, final List<String> chunks) {
+            this.name = name;
+            this.lastModified = lastModified;
+            this.size = size;
+            this.chunks = chunks;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * @return the ids of the chunks, in order
+         */
+        public List<String> getChunks() {
+            return chunks;
+        }
+    }
+}
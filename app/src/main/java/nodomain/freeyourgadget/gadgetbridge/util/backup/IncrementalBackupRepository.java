@@ -0,0 +1,471 @@
+package nodomain.freeyourgadget.gadgetbridge.util.backup;
+
+import androidx.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * A folder with incremental backups. Every snapshot is a manifest in {@link #SNAPSHOTS_FOLDER},
+ * listing the chunks of each entry. Chunks are stored compressed in {@link #CHUNKS_FOLDER}, named
+ * by the SHA-256 of their content, and shared by all snapshots, so each new snapshot only writes
+ * the chunks that changed since any of the previous ones.
+ * <p>
+ * Files are only given their final name once they were completely written, so an interrupted
+ * backup never leaves a partial chunk or snapshot behind. Old snapshots, and the chunks only they
+ * used, are removed by {@link #prune}.
+ */
+public class IncrementalBackupRepository {
+    private static final Logger LOG = LoggerFactory.getLogger(IncrementalBackupRepository.class);
+
+    public static final String SNAPSHOTS_FOLDER = "snapshots";
+    public static final String CHUNKS_FOLDER = "chunks";
+
+    private static final String SNAPSHOT_EXTENSION = ".json";
+    private static final String TMP_EXTENSION = ".tmp";
+
+    /**
+     * The files of the repository, all of them in a folder directly below the root.
+     */
+    public interface Storage {
+        /**
+         * @return the names of the files in a folder, empty if it does not exist
+         */
+        Set<String> list(String folder) throws IOException;
+
+        /**
+         * Creates a file, replacing it if it exists, and the folder if needed.
+         */
+        OutputStream create(String folder, String name) throws IOException;
+
+        InputStream open(String folder, String name) throws IOException;
+
+        /**
+         * Renames a file, replacing the target if it exists.
+         */
+        void rename(String folder, String from, String to) throws IOException;
+
+        /**
+         * Deletes a file, if it exists.
+         */
+        void delete(String folder, String name) throws IOException;
+    }
+
+    private final Storage storage;
+
+    // the ids of the chunks already in the repository, listed on first use
+    private Set<String> knownChunks;
+
+    public IncrementalBackupRepository(final Storage storage) {
+        this.storage = storage;
+    }
+
+    /**
+     * @return the names of all snapshots, oldest first
+     */
+    public List<String> listSnapshots() throws IOException {
+        final List<String> snapshots = new ArrayList<>();
+        for (final String filename : storage.list(SNAPSHOTS_FOLDER)) {
+            if (filename.endsWith(SNAPSHOT_EXTENSION)) {
+                snapshots.add(filename.substring(0, filename.length() - SNAPSHOT_EXTENSION.length()));
+            }
+        }
+        // Snapshots are named after their date, so this also sorts them by date
+        Collections.sort(snapshots);
+        return snapshots;
+    }
+
+    /**
+     * @return the name of the newest snapshot, or null if there are none
+     */
+    @Nullable
+    public String getLatestSnapshot() throws IOException {
+        final List<String> snapshots = listSnapshots();
+        return snapshots.isEmpty() ? null : snapshots.get(snapshots.size() - 1);
+    }
+
+    public IncrementalBackupManifest readManifest(final String snapshot) throws IOException {
+        try (InputStream in = storage.open(SNAPSHOTS_FOLDER, snapshot + SNAPSHOT_EXTENSION)) {
+            final IncrementalBackupManifest manifest = AbstractZipBackupJob.GSON.fromJson(
+                    new InputStreamReader(in, StandardCharsets.UTF_8),
+                    IncrementalBackupManifest.class
+            );
+            if (manifest == null || manifest.getEntries() == null) {
+                throw new IOException("Invalid manifest for snapshot " + snapshot);
+            }
+            return manifest;
+        }
+    }
+
+    BackupArchiveWriter newSnapshot(final String snapshot) throws IOException {
+        if (knownChunks == null) {
+            knownChunks = new HashSet<>();
+            for (final String filename : storage.list(CHUNKS_FOLDER)) {
+                if (!filename.endsWith(TMP_EXTENSION)) {
+                    knownChunks.add(filename);
+                }
+            }
+            LOG.debug("Found {} existing chunks", knownChunks.size());
+        }
+
+        return new SnapshotWriter(snapshot);
+    }
+
+    BackupArchiveReader openSnapshot(final String snapshot) throws IOException {
+        return new SnapshotReader(readManifest(snapshot));
+    }
+
+    /**
+     * Deletes all but the newest snapshots, and then every chunk no longer referenced by any of the
+     * remaining ones, along with leftovers from interrupted backups.
+     * <p>
+     * Chunks are only deleted once all remaining manifests were read, so a manifest that fails to
+     * load aborts the cleanup instead of losing the chunks of that snapshot.
+     *
+     * @param keepSnapshots the number of snapshots to keep, at least 1
+     */
+    public void prune(final int keepSnapshots) throws IOException {
+        if (keepSnapshots < 1) {
+            throw new IllegalArgumentException("At least one snapshot must be kept");
+        }
+
+        final List<String> snapshots = listSnapshots();
+        final int deletedSnapshots = Math.max(0, snapshots.size() - keepSnapshots);
+        for (final String snapshot : snapshots.subList(0, deletedSnapshots)) {
+            storage.delete(SNAPSHOTS_FOLDER, snapshot + SNAPSHOT_EXTENSION);
+        }
+        for (final String filename : storage.list(SNAPSHOTS_FOLDER)) {
+            if (filename.endsWith(TMP_EXTENSION)) {
+                storage.delete(SNAPSHOTS_FOLDER, filename);
+            }
+        }
+
+        // Mark
+        final Set<String> referencedChunks = new HashSet<>();
+        for (final String snapshot : snapshots.subList(deletedSnapshots, snapshots.size())) {
+            for (final IncrementalBackupManifest.Entry entry : readManifest(snapshot).getEntries()) {
+                referencedChunks.addAll(entry.getChunks());
+            }
+        }
+
+        // Sweep
+        int deletedChunks = 0;
+        for (final String filename : storage.list(CHUNKS_FOLDER)) {
+            if (!referencedChunks.contains(filename)) {
+                storage.delete(CHUNKS_FOLDER, filename);
+                deletedChunks++;
+            }
+        }
+        if (knownChunks != null) {
+            knownChunks.retainAll(referencedChunks);
+        }
+
+        LOG.info("Deleted {} snapshots and {} chunks, kept {} snapshots", deletedSnapshots, deletedChunks, snapshots.size() - deletedSnapshots);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    private static String toHex(final byte[] bytes) {
+        final StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (final byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    private class SnapshotWriter implements BackupArchiveWriter {
+        private final String snapshot;
+        private final List<IncrementalBackupManifest.Entry> entries = new ArrayList<>();
+        private final MessageDigest digest = newDigest();
+        private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        private final ContentDefinedChunker chunker = new ContentDefinedChunker(this::onChunk);
+
+        private final OutputStream entryOutputStream = new OutputStream() {
+            @Override
+            public void write(final int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(final byte[] b, final int off, final int len) throws IOException {
+                if (entryName == null) {
+                    throw new IOException("No entry");
+                }
+                entrySize += len;
+                chunker.update(b, off, len);
+            }
+        };
+
+        private String entryName;
+        private long entryLastModified;
+        private long entrySize;
+        private List<String> entryChunks;
+
+        private int chunksTotal;
+        private int chunksWritten;
+
+        private SnapshotWriter(final String snapshot) {
+            this.snapshot = snapshot;
+        }
+
+        @Override
+        public OutputStream putEntry(final String name, final long lastModified) throws IOException {
+            endEntry();
+
+            entryName = name;
+            entryLastModified = lastModified;
+            entrySize = 0;
+            entryChunks = new ArrayList<>();
+
+            return entryOutputStream;
+        }
+
+        private void endEntry() throws IOException {
+            if (entryName == null) {
+                return;
+            }
+
+            chunker.finish();
+            entries.add(new IncrementalBackupManifest.Entry(entryName, entryLastModified, entrySize, entryChunks));
+            entryName = null;
+        }
+
+        private void onChunk(final byte[] data, final int length) throws IOException {
+            digest.update(data, 0, length);
+            final String id = toHex(digest.digest());
+            entryChunks.add(id);
+            chunksTotal++;
+
+            if (knownChunks.contains(id)) {
+                return;
+            }
+
+            try (OutputStream out = new DeflaterOutputStream(storage.create(CHUNKS_FOLDER, id + TMP_EXTENSION), deflater)) {
+                out.write(data, 0, length);
+            } finally {
+                deflater.reset();
+            }
+            storage.rename(CHUNKS_FOLDER, id + TMP_EXTENSION, id);
+
+            knownChunks.add(id);
+            chunksWritten++;
+        }
+
+        @Override
+        public void finish(final ZipBackupMetadata metadata, final String comment) throws IOException {
+            endEntry();
+
+            final IncrementalBackupManifest manifest = new IncrementalBackupManifest(metadata, entries);
+            final String filename = snapshot + SNAPSHOT_EXTENSION;
+            try (OutputStream out = storage.create(SNAPSHOTS_FOLDER, filename + TMP_EXTENSION)) {
+                out.write(AbstractZipBackupJob.GSON.toJson(manifest).getBytes(StandardCharsets.UTF_8));
+            }
+            storage.rename(SNAPSHOTS_FOLDER, filename + TMP_EXTENSION, filename);
+
+            LOG.info("Wrote snapshot {}, {} of {} chunks were new", snapshot, chunksWritten, chunksTotal);
+        }
+
+        @Override
+        public void close() {
+            deflater.end();
+        }
+    }
+
+    private class SnapshotReader implements BackupArchiveReader {
+        private final IncrementalBackupManifest manifest;
+        private final Map<String, IncrementalBackupManifest.Entry> entries = new LinkedHashMap<>();
+
+        private SnapshotReader(final IncrementalBackupManifest manifest) {
+            this.manifest = manifest;
+            for (final IncrementalBackupManifest.Entry entry : manifest.getEntries()) {
+                entries.put(entry.getName(), entry);
+            }
+        }
+
+        @Override
+        public ZipBackupMetadata getMetadata() {
+            return manifest.getMetadata();
+        }
+
+        @Override
+        public List<String> getEntryNames() {
+            return new ArrayList<>(entries.keySet());
+        }
+
+        @Override
+        public boolean hasEntry(final String name) {
+            return entries.containsKey(name);
+        }
+
+        @Override
+        public InputStream openEntry(final String name) throws IOException {
+            final IncrementalBackupManifest.Entry entry = entries.get(name);
+            if (entry == null) {
+                throw new FileNotFoundException("No entry " + name);
+            }
+            return new ChunkedInputStream(entry);
+        }
+
+        @Override
+        public long getLastModified(final String name) {
+            final IncrementalBackupManifest.Entry entry = entries.get(name);
+            return entry != null ? entry.getLastModified() : 0;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * Reads the chunks of an entry one by one, verifying each of them against its id.
+     */
+    private class ChunkedInputStream extends InputStream {
+        private final IncrementalBackupManifest.Entry entry;
+        private final MessageDigest digest = newDigest();
+        private final byte[] copyBuffer = new byte[8192];
+
+        private int nextChunk;
+        private byte[] chunk = new byte[0];
+        private int position;
+        private long totalSize;
+
+        private ChunkedInputStream(final IncrementalBackupManifest.Entry entry) {
+            this.entry = entry;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (position == chunk.length) {
+                if (!loadNextChunk()) {
+                    return -1;
+                }
+            }
+
+            final int count = Math.min(len, chunk.length - position);
+            System.arraycopy(chunk, position, b, off, count);
+            position += count;
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return chunk.length - position;
+        }
+
+        private boolean loadNextChunk() throws IOException {
+            if (nextChunk == entry.getChunks().size()) {
+                if (totalSize != entry.getSize()) {
+                    throw new IOException("Size mismatch for " + entry.getName() + ": " + totalSize + " != " + entry.getSize());
+                }
+                return false;
+            }
+
+            final String id = entry.getChunks().get(nextChunk++);
+            final ByteArrayOutputStream out = new ByteArrayOutputStream(ContentDefinedChunker.MAX_CHUNK_SIZE);
+            try (InputStream in = new InflaterInputStream(storage.open(CHUNKS_FOLDER, id))) {
+                int read;
+                while ((read = in.read(copyBuffer)) != -1) {
+                    out.write(copyBuffer, 0, read);
+                }
+            }
+
+            chunk = out.toByteArray();
+            position = 0;
+            totalSize += chunk.length;
+
+            if (!id.equals(toHex(digest.digest(chunk)))) {
+                throw new IOException("Corrupted chunk " + id + " in " + entry.getName());
+            }
+
+            return true;
+        }
+    }
+
+    /**
+     * Stores the repository in a regular folder.
+     */
+    public static class FileStorage implements Storage {
+        private final File root;
+
+        public FileStorage(final File root) {
+            this.root = root;
+        }
+
+        @Override
+        public Set<String> list(final String folder) {
+            final String[] names = new File(root, folder).list();
+            return names != null ? new HashSet<>(Arrays.asList(names)) : new HashSet<>();
+        }
+
+        @Override
+        public OutputStream create(final String folder, final String name) throws IOException {
+            final File dir = new File(root, folder);
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Failed to create " + dir);
+            }
+            return new FileOutputStream(new File(dir, name));
+        }
+
+        @Override
+        public InputStream open(final String folder, final String name) throws IOException {
+            return new FileInputStream(new File(new File(root, folder), name));
+        }
+
+        @Override
+        public void rename(final String folder, final String from, final String to) throws IOException {
+            final File dir = new File(root, folder);
+            if (!new File(dir, from).renameTo(new File(dir, to))) {
+                throw new IOException("Failed to rename " + from + " to " + to + " in " + dir);
+            }
+        }
+
+        @Override
+        public void delete(final String folder, final String name) throws IOException {
+            final File file = new File(new File(root, folder), name);
+            if (!file.delete() && file.exists()) {
+                throw new IOException("Failed to delete " + file);
+            }
+        }
+    }
+}
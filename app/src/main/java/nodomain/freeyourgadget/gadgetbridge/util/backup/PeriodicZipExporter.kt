@@ -35,4 +35,8 @@ object PeriodicZipExporter: PeriodicExporter() {
     override fun getFileExtension(): String {
         return "zip"
     }
+
+    override fun supportsIncremental(): Boolean {
+        return true
+    }
 }
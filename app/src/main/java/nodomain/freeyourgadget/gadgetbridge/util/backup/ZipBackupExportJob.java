@@ -19,6 +19,7 @@ package nodomain.freeyourgadget.gadgetbridge.util.backup;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.net.Uri;
+import android.provider.DocumentsContract;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -29,11 +30,13 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
 import java.util.Locale;
+import java.util.TimeZone;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
@@ -45,14 +48,20 @@ import nodomain.freeyourgadget.gadgetbridge.database.DBHelper;
 import nodomain.freeyourgadget.gadgetbridge.entities.Device;
 import nodomain.freeyourgadget.gadgetbridge.util.DateTimeUtils;
 import nodomain.freeyourgadget.gadgetbridge.util.FileUtils;
+import nodomain.freeyourgadget.gadgetbridge.util.GBPrefs;
 
 public class ZipBackupExportJob extends AbstractZipBackupJob {
     private static final Logger LOG = LoggerFactory.getLogger(ZipBackupExportJob.class);
 
+    public static final int DEFAULT_KEEP_SNAPSHOTS = 30;
+
     private final Uri mUri;
 
     private final byte[] copyBuffer = new byte[8192];
 
+    // set when exporting to a folder
+    private IncrementalBackupRepository repository;
+
     public ZipBackupExportJob(final Context context, final ZipBackupCallback callback, final Uri uri) {
         super(context, callback);
         this.mUri = uri;
@@ -60,20 +69,19 @@ public class ZipBackupExportJob extends AbstractZipBackupJob {
 
     @Override
     public void run() {
-        try (final OutputStream outputStream = getContext().getContentResolver().openOutputStream(mUri);
-             final ZipOutputStream zipOut = new ZipOutputStream(outputStream)) {
+        try (final BackupArchiveWriter archive = openArchive()) {
 
             if (isAborted()) return;
 
             // Preferences
             updateProgress(0, R.string.backup_restore_exporting_preferences);
-            exportPreferences(zipOut);
+            exportPreferences(archive);
 
             if (isAborted()) return;
 
             // Database
             updateProgress(10, R.string.backup_restore_exporting_database);
-            exportDatabase(zipOut, getContext());
+            exportDatabase(archive, getContext());
 
             if (isAborted()) return;
 
@@ -88,7 +96,7 @@ public class ZipBackupExportJob extends AbstractZipBackupJob {
 
             for (int i = 0; i < allExternalFiles.size() && !isAborted(); i++) {
                 final String child = allExternalFiles.get(i);
-                exportSingleExternalFile(zipOut, externalFilesDir, child);
+                exportSingleExternalFile(archive, externalFilesDir, child);
 
                 final int progress = (int) Math.min(99, 50 + 49 * (i / (float) allExternalFiles.size()));
                 updateProgress(progress, R.string.backup_restore_exporting_files_i_of_n, i + 1, allExternalFiles.size());
@@ -99,15 +107,16 @@ public class ZipBackupExportJob extends AbstractZipBackupJob {
 
             if (isAborted()) return;
 
-            addMetadata(zipOut);
-
-            zipOut.finish();
-            zipOut.flush();
+            addMetadata(archive);
 
             if (isAborted()) return;
 
             LOG.info("Export complete");
 
+            if (repository != null) {
+                pruneSnapshots();
+            }
+
             onSuccess(null);
         } catch (final Exception e) {
             LOG.error("Export failed", e);
@@ -118,11 +127,46 @@ public class ZipBackupExportJob extends AbstractZipBackupJob {
         }
     }
 
-    private static void exportPreferences(final ZipOutputStream zipOut) throws IOException {
+    /**
+     * A folder picked as the destination holds incremental backups, a single file is a zip.
+     */
+    private BackupArchiveWriter openArchive() throws IOException {
+        if (DocumentsContract.isTreeUri(mUri)) {
+            final SimpleDateFormat sdf = new SimpleDateFormat("yyyyMMdd'T'HHmmss'Z'", Locale.ROOT);
+            sdf.setTimeZone(TimeZone.getTimeZone("UTC"));
+            final String snapshot = "gadgetbridge_" + sdf.format(new Date());
+
+            LOG.debug("Exporting snapshot {} to {}", snapshot, mUri);
+
+            repository = new IncrementalBackupRepository(new DocumentTreeStorage(getContext(), mUri));
+            return repository.newSnapshot(snapshot);
+        }
+
+        final OutputStream outputStream = getContext().getContentResolver().openOutputStream(mUri);
+        if (outputStream == null) {
+            throw new IOException("Failed to open " + mUri);
+        }
+        return new ZipArchiveWriter(outputStream);
+    }
+
+    /**
+     * The export already succeeded at this point, failing to delete old snapshots only means they
+     * are kept until the next export.
+     */
+    private void pruneSnapshots() {
+        final int keepSnapshots = GBApplication.getPrefs().getInt(GBPrefs.AUTO_EXPORT_ZIP_KEEP_SNAPSHOTS, DEFAULT_KEEP_SNAPSHOTS);
+        try {
+            repository.prune(Math.max(1, keepSnapshots));
+        } catch (final Exception e) {
+            LOG.warn("Failed to delete old snapshots from {}", mUri, e);
+        }
+    }
+
+    private static void exportPreferences(final BackupArchiveWriter archive) throws IOException {
         LOG.debug("Exporting global preferences");
 
         final SharedPreferences globalPreferences = GBApplication.getPrefs().getPreferences();
-        exportPreferences(zipOut, globalPreferences, PREFS_GLOBAL_FILENAME);
+        exportPreferences(archive, globalPreferences, PREFS_GLOBAL_FILENAME);
 
         try (DBHandler dbHandler = GBApplication.acquireDB()) {
             final List<Device> activeDevices = DBHelper.getActiveDevices(dbHandler.getDaoSession());
@@ -130,7 +174,7 @@ public class ZipBackupExportJob extends AbstractZipBackupJob {
                 LOG.debug("Exporting device preferences for {}", dbDevice.getIdentifier());
                 final SharedPreferences devicePrefs = GBApplication.getDeviceSpecificSharedPrefs(dbDevice.getIdentifier());
                 if (devicePrefs != null) {
-                    exportPreferences(zipOut, devicePrefs, String.format(Locale.ROOT, PREFS_DEVICE_FILENAME, dbDevice.getIdentifier()));
+                    exportPreferences(archive, devicePrefs, String.format(Locale.ROOT, PREFS_DEVICE_FILENAME, dbDevice.getIdentifier()));
                 }
             }
         } catch (final Exception e) {
@@ -138,7 +182,7 @@ public class ZipBackupExportJob extends AbstractZipBackupJob {
         }
     }
 
-    private static void exportPreferences(final ZipOutputStream zipOut,
+    private static void exportPreferences(final BackupArchiveWriter archive,
                                           final SharedPreferences sharedPreferences,
                                           final String zipEntryName) throws IOException {
         LOG.debug("Exporting preferences to {}", zipEntryName);
@@ -146,23 +190,17 @@ public class ZipBackupExportJob extends AbstractZipBackupJob {
         final JsonBackupPreferences jsonBackupPreferences = JsonBackupPreferences.exportFrom(sharedPreferences);
         final String preferencesJson = jsonBackupPreferences.toJson();
 
-        final ZipEntry zipEntry = new ZipEntry(zipEntryName);
-        zipOut.putNextEntry(zipEntry);
-        zipOut.write(preferencesJson.getBytes(StandardCharsets.UTF_8));
+        archive.putEntry(zipEntryName, 0).write(preferencesJson.getBytes(StandardCharsets.UTF_8));
     }
 
-    private static void exportDatabase(final ZipOutputStream zipOut, final Context context) throws IOException {
+    private static void exportDatabase(final BackupArchiveWriter archive, final Context context) throws IOException {
         LOG.debug("Exporting database");
 
-        final ZipEntry zipEntry = new ZipEntry(DATABASE_FILENAME);
-        zipOut.putNextEntry(zipEntry);
+        final OutputStream databaseOut = archive.putEntry(DATABASE_FILENAME, 0);
 
-        try (DBHandler dbHandler = GBApplication.acquireDB()) {
-            final DBHelper helper = new DBHelper(context);
-            helper.exportDB(dbHandler, zipOut);
-        } catch (final Exception e) {
-            throw new IOException("Failed to export database", e);
-        }
+        // The database stays open, so devices can keep syncing while it is exported
+        final DBHelper helper = new DBHelper(context);
+        helper.exportDB(databaseOut);
     }
 
     /**
@@ -208,7 +246,7 @@ public class ZipBackupExportJob extends AbstractZipBackupJob {
         }
     }
 
-    private void exportSingleExternalFile(final ZipOutputStream zipOut,
+    private void exportSingleExternalFile(final BackupArchiveWriter archive,
                                           final File externalFilesDir,
                                           final String relativePath) throws IOException {
         final File file = new File(externalFilesDir, relativePath);
@@ -218,21 +256,19 @@ public class ZipBackupExportJob extends AbstractZipBackupJob {
 
         LOG.trace("Exporting file: {}", relativePath);
 
-        final ZipEntry zipEntry = new ZipEntry(EXTERNAL_FILES_FOLDER + "/" + relativePath);
-        zipEntry.setTime(file.lastModified());
-        zipOut.putNextEntry(zipEntry);
+        final OutputStream out = archive.putEntry(EXTERNAL_FILES_FOLDER + "/" + relativePath, file.lastModified());
 
         try (final InputStream in = new FileInputStream(file)) {
             int read;
             while ((read = in.read(copyBuffer)) > 0) {
-                zipOut.write(copyBuffer, 0, read);
+                out.write(copyBuffer, 0, read);
             }
         } catch (final Exception e) {
             throw new IOException("Failed to write " + relativePath, e);
         }
     }
 
-    private static void addMetadata(final ZipOutputStream zipOut) throws IOException {
+    private static void addMetadata(final BackupArchiveWriter archive) throws IOException {
         LOG.debug("Adding metadata");
 
         final ZipBackupMetadata metadata = new ZipBackupMetadata(
@@ -242,7 +278,6 @@ public class ZipBackupExportJob extends AbstractZipBackupJob {
                 VERSION,
                 new Date()
         );
-        final String metadataJson = GSON.toJson(metadata);
 
         // the comment is deliberately not localized
         // store the same comment both as zip archive comment and metadata file comment
@@ -250,11 +285,42 @@ public class ZipBackupExportJob extends AbstractZipBackupJob {
         final String date = DateTimeUtils.formatIso8601UTC(metadata.getBackupDate());
         final String comment = "data export from Android application " + metadata.getAppId() + " version " + metadata.getAppVersionName() + " from " + date;
 
-        final ZipEntry zipEntry = new ZipEntry(METADATA_FILENAME);
-        zipEntry.setComment(comment);
-        zipOut.putNextEntry(zipEntry);
-        zipOut.write(metadataJson.getBytes(StandardCharsets.UTF_8));
+        archive.finish(metadata, comment);
+    }
+
+    private static class ZipArchiveWriter implements BackupArchiveWriter {
+        private final ZipOutputStream zipOut;
 
-        zipOut.setComment(comment);
+        private ZipArchiveWriter(final OutputStream outputStream) {
+            this.zipOut = new ZipOutputStream(outputStream);
+        }
+
+        @Override
+        public OutputStream putEntry(final String name, final long lastModified) throws IOException {
+            final ZipEntry zipEntry = new ZipEntry(name);
+            if (lastModified > 0) {
+                zipEntry.setTime(lastModified);
+            }
+            zipOut.putNextEntry(zipEntry);
+            return zipOut;
+        }
+
+        @Override
+        public void finish(final ZipBackupMetadata metadata, final String comment) throws IOException {
+            final ZipEntry zipEntry = new ZipEntry(METADATA_FILENAME);
+            zipEntry.setComment(comment);
+            zipOut.putNextEntry(zipEntry);
+            zipOut.write(GSON.toJson(metadata).getBytes(StandardCharsets.UTF_8));
+
+            zipOut.setComment(comment);
+
+            zipOut.finish();
+            zipOut.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            zipOut.close();
+        }
     }
 }
@@ -20,6 +20,9 @@ import android.content.Context;
 import android.content.SharedPreferences;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.net.Uri;
+import android.provider.DocumentsContract;
+
+import androidx.annotation.Nullable;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -49,47 +52,58 @@ public class ZipBackupImportJob extends AbstractZipBackupJob {
     private static final Logger LOG = LoggerFactory.getLogger(ZipBackupImportJob.class);
 
     private final Uri mUri;
+    @Nullable
+    private final String mSnapshot;
     private final byte[] copyBuffer = new byte[8192];
 
     public ZipBackupImportJob(final Context context, final ZipBackupCallback callback, final Uri uri) {
+        this(context, callback, uri, null);
+    }
+
+    /**
+     * @param uri      a zip file, or a folder with incremental backups
+     * @param snapshot the snapshot to restore from a folder, the latest one if null
+     */
+    public ZipBackupImportJob(final Context context,
+                              final ZipBackupCallback callback,
+                              final Uri uri,
+                              @Nullable final String snapshot) {
         super(context, callback);
         this.mUri = uri;
+        this.mSnapshot = snapshot;
     }
 
     @Override
     public void run() {
-        try {
-            updateProgress(0, R.string.backup_restore_importing_loading);
-
-            // Load zip to temporary file so we can seek
-            LOG.debug("Getting zip file from {}", mUri);
-            final ZipFile zipFile = getZipFromUri(getContext(), mUri);
+        updateProgress(0, R.string.backup_restore_importing_loading);
 
+        try (BackupArchiveReader archive = openArchive()) {
             if (isAborted()) return;
 
             // Validate file
             updateProgress(10, R.string.backup_restore_importing_validating);
-            validateBackupFile(zipFile);
+            validateBackupFile(archive);
 
-            LOG.debug("Valid zip file: {}", mUri);
+            LOG.debug("Valid backup: {}", mUri);
 
             if (isAborted()) return;
 
-            final List<ZipEntry> externalFiles = new ArrayList<>();
-            final List<ZipEntry> devicePreferences = new ArrayList<>();
+            final List<String> externalFiles = new ArrayList<>();
+            final List<String> devicePreferences = new ArrayList<>();
 
-            final Enumeration<? extends ZipEntry> entries = zipFile.entries();
-            while (entries.hasMoreElements() && !isAborted()) {
-                final ZipEntry zipEntry = entries.nextElement();
+            for (final String entryName : archive.getEntryNames()) {
+                if (isAborted()) {
+                    break;
+                }
 
-                if (zipEntry.getName().startsWith(EXTERNAL_FILES_FOLDER + "/")) {
-                    if (zipEntry.getName().endsWith(".log") || zipEntry.getName().endsWith(".log.zip")) {
+                if (entryName.startsWith(EXTERNAL_FILES_FOLDER + "/")) {
+                    if (entryName.endsWith(".log") || entryName.endsWith(".log.zip")) {
                         continue;
                     }
 
-                    externalFiles.add(zipEntry);
-                } else if (zipEntry.getName().startsWith("preferences/device_")) {
-                    devicePreferences.add(zipEntry);
+                    externalFiles.add(entryName);
+                } else if (entryName.startsWith("preferences/device_")) {
+                    devicePreferences.add(entryName);
                 }
             }
 
@@ -100,8 +114,8 @@ public class ZipBackupImportJob extends AbstractZipBackupJob {
             final List<String> failedFiles = new ArrayList<>();
 
             for (int i = 0; i < externalFiles.size() && !isAborted(); i++) {
-                final ZipEntry externalFile = externalFiles.get(i);
-                final File targetExternalFile = new File(externalFilesDir, externalFile.getName().replaceFirst(EXTERNAL_FILES_FOLDER + "/", ""));
+                final String externalFile = externalFiles.get(i);
+                final File targetExternalFile = new File(externalFilesDir, externalFile.replaceFirst(EXTERNAL_FILES_FOLDER + "/", ""));
                 final File parentFile = targetExternalFile.getParentFile();
                 if (parentFile == null) {
                     LOG.warn("Parent file for {} is null", targetExternalFile);
@@ -113,18 +127,18 @@ public class ZipBackupImportJob extends AbstractZipBackupJob {
                     }
                 }
 
-                try (InputStream inputStream = zipFile.getInputStream(externalFile);
+                try (InputStream inputStream = archive.openEntry(externalFile);
                      FileOutputStream fout = new FileOutputStream(targetExternalFile)) {
-                    while (inputStream.available() > 0) {
-                        final int bytes = inputStream.read(copyBuffer);
+                    int bytes;
+                    while ((bytes = inputStream.read(copyBuffer)) != -1) {
                         fout.write(copyBuffer, 0, bytes);
                     }
                 } catch (final Exception e) {
                     LOG.error("Failed to restore file {}", externalFile);
-                    failedFiles.add(externalFile.getName());
+                    failedFiles.add(externalFile);
                 }
 
-                final long zipEntryTime = externalFile.getTime();
+                final long zipEntryTime = archive.getLastModified(externalFile);
                 if (zipEntryTime > 0) {
                     //noinspection ResultOfMethodCallIgnored
                     targetExternalFile.setLastModified(zipEntryTime);
@@ -143,7 +157,7 @@ public class ZipBackupImportJob extends AbstractZipBackupJob {
             try (DBHandler dbHandler = GBApplication.acquireDB()) {
                 final DBHelper helper = new DBHelper(getContext());
                 final SQLiteOpenHelper sqLiteOpenHelper = dbHandler.getHelper();
-                try (InputStream databaseInputStream = zipFile.getInputStream(zipFile.getEntry(DATABASE_FILENAME))) {
+                try (InputStream databaseInputStream = archive.openEntry(DATABASE_FILENAME)) {
                     helper.importDB(dbHandler, databaseInputStream);
                     helper.validateDB(sqLiteOpenHelper);
                 }
@@ -154,7 +168,7 @@ public class ZipBackupImportJob extends AbstractZipBackupJob {
             // Restore preferences
             LOG.debug("Importing global preferences");
             updateProgress(85, R.string.backup_restore_importing_preferences);
-            try (InputStream globalPrefsInputStream = zipFile.getInputStream(zipFile.getEntry(PREFS_GLOBAL_FILENAME))) {
+            try (InputStream globalPrefsInputStream = archive.openEntry(PREFS_GLOBAL_FILENAME)) {
                 final SharedPreferences globalPreferences = GBApplication.getPrefs().getPreferences();
 
                 final JsonBackupPreferences jsonBackupPreferences = JsonBackupPreferences.fromJson(globalPrefsInputStream);
@@ -177,11 +191,11 @@ public class ZipBackupImportJob extends AbstractZipBackupJob {
                     LOG.debug("Importing device preferences for {}", dbDevice.getIdentifier());
                     final SharedPreferences devicePrefs = GBApplication.getDeviceSpecificSharedPrefs(dbDevice.getIdentifier());
                     if (devicePrefs != null && !isAborted()) {
-                        final ZipEntry devicePrefsZipEntry = zipFile.getEntry(String.format(Locale.ROOT, PREFS_DEVICE_FILENAME, dbDevice.getIdentifier()));
-                        if (devicePrefsZipEntry == null) {
+                        final String devicePrefsEntry = String.format(Locale.ROOT, PREFS_DEVICE_FILENAME, dbDevice.getIdentifier());
+                        if (!archive.hasEntry(devicePrefsEntry)) {
                             continue;
                         }
-                        try (InputStream devicePrefsInputStream = zipFile.getInputStream(devicePrefsZipEntry)) {
+                        try (InputStream devicePrefsInputStream = archive.openEntry(devicePrefsEntry)) {
                             final JsonBackupPreferences jsonBackupPreferences = JsonBackupPreferences.fromJson(devicePrefsInputStream);
                             if (!jsonBackupPreferences.importInto(devicePrefs)) {
                                 LOG.warn("Device preferences for {} were not commited", dbDevice.getIdentifier());
@@ -207,6 +221,29 @@ public class ZipBackupImportJob extends AbstractZipBackupJob {
         }
     }
 
+    /**
+     * A folder holds incremental backups, a single file is a zip.
+     */
+    private BackupArchiveReader openArchive() throws IOException {
+        if (DocumentsContract.isTreeUri(mUri)) {
+            final IncrementalBackupRepository repository = new IncrementalBackupRepository(
+                    new DocumentTreeStorage(getContext(), mUri)
+            );
+            final String snapshot = mSnapshot != null ? mSnapshot : repository.getLatestSnapshot();
+            if (snapshot == null) {
+                throw new IOException("No snapshots in " + mUri);
+            }
+
+            LOG.debug("Importing snapshot {}", snapshot);
+
+            return repository.openSnapshot(snapshot);
+        }
+
+        // Load zip to temporary file so we can seek
+        LOG.debug("Getting zip file from {}", mUri);
+        return new ZipArchiveReader(getZipFromUri(getContext(), mUri));
+    }
+
     private ZipFile getZipFromUri(final Context context, final Uri uri) throws IOException {
         final File tmpFile = File.createTempFile("gb-backup-zip-import", "zip", context.getCacheDir());
         tmpFile.deleteOnExit();
@@ -226,24 +263,75 @@ public class ZipBackupImportJob extends AbstractZipBackupJob {
         return new ZipFile(tmpFile);
     }
 
-    private static void validateBackupFile(final ZipFile zipFile) throws IOException {
-        final ZipEntry metadataEntry = zipFile.getEntry(METADATA_FILENAME);
-        if (metadataEntry == null) {
-            throw new IOException("Zip file has no metadata");
+    private static void validateBackupFile(final BackupArchiveReader archive) throws IOException {
+        final ZipBackupMetadata zipBackupMetadata = archive.getMetadata();
+        if (zipBackupMetadata == null) {
+            throw new IOException("Backup has no metadata");
         }
-        final InputStream inputStream = zipFile.getInputStream(metadataEntry);
-        final ZipBackupMetadata zipBackupMetadata = GSON.fromJson(
-                new InputStreamReader(inputStream, StandardCharsets.UTF_8),
-                ZipBackupMetadata.class
-        );
 
         if (zipBackupMetadata.getBackupVersion() > VERSION) {
             throw new IOException("Unsupported backup version " + zipBackupMetadata.getBackupVersion());
         }
 
-        final ZipEntry databaseEntry = zipFile.getEntry(DATABASE_FILENAME);
-        if (databaseEntry == null) {
-            throw new IOException("Zip file has no database");
+        if (!archive.hasEntry(DATABASE_FILENAME)) {
+            throw new IOException("Backup has no database");
+        }
+    }
+
+    private static class ZipArchiveReader implements BackupArchiveReader {
+        private final ZipFile zipFile;
+
+        private ZipArchiveReader(final ZipFile zipFile) {
+            this.zipFile = zipFile;
+        }
+
+        @Override
+        public ZipBackupMetadata getMetadata() throws IOException {
+            final ZipEntry metadataEntry = zipFile.getEntry(METADATA_FILENAME);
+            if (metadataEntry == null) {
+                return null;
+            }
+            try (InputStream inputStream = zipFile.getInputStream(metadataEntry)) {
+                return GSON.fromJson(
+                        new InputStreamReader(inputStream, StandardCharsets.UTF_8),
+                        ZipBackupMetadata.class
+                );
+            }
+        }
+
+        @Override
+        public List<String> getEntryNames() {
+            final List<String> names = new ArrayList<>();
+            final Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while (entries.hasMoreElements()) {
+                names.add(entries.nextElement().getName());
+            }
+            return names;
+        }
+
+        @Override
+        public boolean hasEntry(final String name) {
+            return zipFile.getEntry(name) != null;
+        }
+
+        @Override
+        public InputStream openEntry(final String name) throws IOException {
+            final ZipEntry zipEntry = zipFile.getEntry(name);
+            if (zipEntry == null) {
+                throw new IOException("Zip file has no " + name);
+            }
+            return zipFile.getInputStream(zipEntry);
+        }
+
+        @Override
+        public long getLastModified(final String name) {
+            final ZipEntry zipEntry = zipFile.getEntry(name);
+            return zipEntry != null ? zipEntry.getTime() : 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            zipFile.close();
         }
     }
 }
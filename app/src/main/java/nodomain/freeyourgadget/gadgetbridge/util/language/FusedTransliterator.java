@@ -0,0 +1,142 @@
+package nodomain.freeyourgadget.gadgetbridge.util.language;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Produces the same output as a {@link MultiTransliterator} over the same transliterators, but
+ * compiles every run of consecutive {@link SimpleTransliterator}s into a single char-indexed table,
+ * so that they are applied in one pass over the text instead of one pass per language.
+ * <p>
+ * Transliterators that depend on the surrounding characters (eg. Korean, Bengali, Armenian) can
+ * not be fused, and are still applied on their own, in order.
+ */
+public class FusedTransliterator implements Transliterator {
+    private final List<Transliterator> stages;
+
+    public FusedTransliterator(final List<Transliterator> transliterators) {
+        final List<Transliterator> stages = new ArrayList<>();
+        final List<SimpleTransliterator> run = new ArrayList<>();
+
+        for (final Transliterator transliterator : transliterators) {
+            if (transliterator instanceof SimpleTransliterator) {
+                run.add((SimpleTransliterator) transliterator);
+                continue;
+            }
+
+            if (!run.isEmpty()) {
+                stages.add(new CharTable(run));
+                run.clear();
+            }
+            stages.add(transliterator);
+        }
+
+        if (!run.isEmpty()) {
+            stages.add(new CharTable(run));
+        }
+
+        this.stages = Collections.unmodifiableList(stages);
+    }
+
+    @Override
+    public String transliterate(String txt) {
+        if (txt == null || txt.isEmpty()) {
+            return txt;
+        }
+
+        for (final Transliterator stage : stages) {
+            txt = stage.transliterate(txt);
+        }
+
+        return txt;
+    }
+
+    /**
+     * The composition of a run of {@link SimpleTransliterator}s. Each of them replaces characters
+     * independently of their neighbours, so the whole run can be precomputed per character.
+     * <p>
+     * The table is split in pages of 256 characters, and only pages with at least one replaced
+     * character are allocated. Characters without a replacement are kept as-is.
+     */
+    private static class CharTable implements Transliterator {
+        private final String[][] pages = new String[256][];
+        // whether all ASCII characters are kept as-is
+        private final boolean asciiKept;
+
+        private CharTable(final List<SimpleTransliterator> transliterators) {
+            final boolean[] sourceChars = new boolean[Character.MAX_VALUE + 1];
+            for (final SimpleTransliterator transliterator : transliterators) {
+                for (final char c : transliterator.getSourceChars()) {
+                    sourceChars[c] = true;
+                }
+            }
+
+            // A character can only change if the first transliterator that changes it has it as
+            // a source character, possibly after converting it to lowercase
+            for (int i = Character.MIN_VALUE; i <= Character.MAX_VALUE; i++) {
+                final char c = (char) i;
+                if (!sourceChars[c] && !sourceChars[Character.toLowerCase(c)]) {
+                    continue;
+                }
+
+                final String original = String.valueOf(c);
+                String replacement = original;
+                for (final SimpleTransliterator transliterator : transliterators) {
+                    replacement = transliterator.transliterate(replacement);
+                }
+
+                if (!replacement.equals(original)) {
+                    if (pages[c >>> 8] == null) {
+                        pages[c >>> 8] = new String[256];
+                    }
+                    pages[c >>> 8][c & 0xff] = replacement;
+                }
+            }
+
+            boolean asciiKept = true;
+            for (char c = 0; c < 0x80; c++) {
+                asciiKept &= lookup(c) == null;
+            }
+            this.asciiKept = asciiKept;
+        }
+
+        private String lookup(final char c) {
+            final String[] page = pages[c >>> 8];
+            return page != null ? page[c & 0xff] : null;
+        }
+
+        @Override
+        public String transliterate(final String txt) {
+            final int length = txt.length();
+
+            // Skip over the characters that are kept as-is, which for most notifications are
+            // all of them, and only copy the text once something needs to be replaced
+            int i = 0;
+            while (i < length) {
+                final char c = txt.charAt(i);
+                if ((c >= 0x80 || !asciiKept) && lookup(c) != null) {
+                    break;
+                }
+                i++;
+            }
+            if (i == length) {
+                return txt;
+            }
+
+            final StringBuilder sb = new StringBuilder(length + 16);
+            sb.append(txt, 0, i);
+            for (; i < length; i++) {
+                final char c = txt.charAt(i);
+                final String replacement = lookup(c);
+                if (replacement != null) {
+                    sb.append(replacement);
+                } else {
+                    sb.append(c);
+                }
+            }
+
+            return sb.toString();
+        }
+    }
+}
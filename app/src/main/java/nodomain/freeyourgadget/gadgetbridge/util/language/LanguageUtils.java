@@ -29,6 +29,7 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import nodomain.freeyourgadget.gadgetbridge.GBApplication;
 import nodomain.freeyourgadget.gadgetbridge.devices.DeviceCoordinator;
@@ -92,6 +93,9 @@ public class LanguageUtils {
         put("armenian", new ArmenianTransliterator());
     }};
 
+    // Fused transliterators by configured languages, since compiling their tables is not free
+    private static final Map<String, Transliterator> FUSED_TRANSLITERATORS = new ConcurrentHashMap<>();
+
     /**
      * Get a {@link Transliterator} for a specific language.
      *
@@ -123,8 +127,22 @@ public class LanguageUtils {
             return null;
         }
 
+        // For now, assume that if the device does not support unicode emoji, it also doesn't
+        // support utf, so flatten to ASCII. This allows for devices that support unicode
+        // characters to still use transliterators for languages not supported by the device,
+        // and still get emoji
+        // TODO: Maybe this should be configurable, or at least separate from the emoji setting
+        final boolean flattenToAscii = !coordinator.supportsUnicodeEmojis(device);
+
+        return FUSED_TRANSLITERATORS.computeIfAbsent(
+                transliterateLanguagesPref + (flattenToAscii ? ";ascii" : ""),
+                key -> createTransliterator(transliterateLanguagesPref, flattenToAscii)
+        );
+    }
+
+    private static Transliterator createTransliterator(final String transliterateLanguagesPref, final boolean flattenToAscii) {
         final List<String> languages = Arrays.asList(transliterateLanguagesPref.split(","));
-        final List<Transliterator> transliterators = new ArrayList<>(languages.size());
+        final List<Transliterator> transliterators = new ArrayList<>(languages.size() + 1);
 
         for (String language : languages) {
             if (!TRANSLITERATORS_MAP.containsKey(language)) {
@@ -135,15 +153,10 @@ public class LanguageUtils {
             transliterators.add(TRANSLITERATORS_MAP.get(language));
         }
 
-        if (!coordinator.supportsUnicodeEmojis(device)) {
-            // For now, assume that if the device does not support unicode emoji, it also doesn't
-            // support utf, so flatten to ASCII. This allows for devices that support unicode
-            // characters to still use transliterators for languages not supported by the device,
-            // and still get emoji
-            // TODO: Maybe this should be configurable, or at least separate from the emoji setting
+        if (flattenToAscii) {
             transliterators.add(new FlattenToAsciiTransliterator());
         }
 
-        return new MultiTransliterator(transliterators);
+        return new FusedTransliterator(transliterators);
     }
 }
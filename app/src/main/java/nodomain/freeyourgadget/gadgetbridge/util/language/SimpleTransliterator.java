@@ -19,6 +19,7 @@ package nodomain.freeyourgadget.gadgetbridge.util.language;
 import org.apache.commons.lang3.text.WordUtils;
 
 import java.util.Map;
+import java.util.Set;
 
 public class SimpleTransliterator implements Transliterator {
     private final Map<Character, String> transliterateMap;
@@ -33,6 +34,13 @@ public class SimpleTransliterator implements Transliterator {
         this(transliterateMap, true);
     }
 
+    /**
+     * @return the characters this transliterator replaces, before converting to lowercase
+     */
+    Set<Character> getSourceChars() {
+        return transliterateMap.keySet();
+    }
+
     @Override
     public String transliterate(String txt) {
         if (txt == null || txt.isEmpty()) {
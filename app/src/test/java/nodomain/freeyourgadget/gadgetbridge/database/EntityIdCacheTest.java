@@ -0,0 +1,93 @@
+package nodomain.freeyourgadget.gadgetbridge.database;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+import nodomain.freeyourgadget.gadgetbridge.entities.Device;
+import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
+import nodomain.freeyourgadget.gadgetbridge.test.TestBase;
+
+public class EntityIdCacheTest extends TestBase {
+    private static final String ADDRESS = "AA:BB:CC:DD:EE:01";
+    private static final String NEW_ADDRESS = "AA:BB:CC:DD:EE:02";
+
+    @Test
+    public void testDeviceIdIsCached() {
+        final GBDevice gbDevice = createDummyGDevice(ADDRESS);
+        assertNull(DBHelper.findDeviceId(gbDevice, daoSession));
+
+        final long deviceId = DBHelper.getDeviceId(gbDevice, daoSession);
+        assertEquals(deviceId, (long) DBHelper.getDevice(gbDevice, daoSession).getId());
+
+        final EntityIdCache cache = DBHelper.getIdCache();
+        final long hits = cache.getHits();
+        final long misses = cache.getMisses();
+        for (int i = 0; i < 10; i++) {
+            assertEquals(deviceId, (long) DBHelper.findDeviceId(gbDevice, daoSession));
+        }
+        assertEquals(hits + 10, cache.getHits());
+        assertEquals(misses, cache.getMisses());
+
+        assertEquals((long) DBHelper.getUser(daoSession).getId(), DBHelper.getUserId(daoSession));
+    }
+
+    @Test
+    public void testUpdateDeviceMacAddressInvalidates() {
+        final long deviceId = DBHelper.getDeviceId(createDummyGDevice(ADDRESS), daoSession);
+        assertNull(DBHelper.findDeviceId(createDummyGDevice(NEW_ADDRESS), daoSession));
+
+        DBHelper.updateDeviceMacAddress(daoSession, ADDRESS, NEW_ADDRESS);
+
+        assertNull(DBHelper.findDeviceId(createDummyGDevice(ADDRESS), daoSession));
+        assertEquals(deviceId, (long) DBHelper.findDeviceId(createDummyGDevice(NEW_ADDRESS), daoSession));
+    }
+
+    @Test
+    public void testReopeningDatabaseInvalidates() {
+        final GBDevice gbDevice = createDummyGDevice(ADDRESS);
+        final Device device = DBHelper.getDevice(gbDevice, daoSession);
+        daoSession.getDeviceDao().delete(device);
+        // deleted behind the back of the cache
+        assertEquals(device.getId(), DBHelper.findDeviceId(gbDevice, daoSession));
+
+        dbHandler.closeDb();
+        dbHandler.openDb();
+        daoSession = dbHandler.getDaoSession();
+
+        assertNull(DBHelper.findDeviceId(gbDevice, daoSession));
+    }
+
+    @Test
+    public void testIdFromRolledBackTransactionIsNotCached() {
+        final GBDevice gbDevice = createDummyGDevice(ADDRESS);
+        daoSession.getDatabase().beginTransaction();
+        try {
+            DBHelper.getDeviceId(gbDevice, daoSession);
+            // not marked successful, so the device is rolled back
+        } finally {
+            daoSession.getDatabase().endTransaction();
+        }
+
+        assertNull(DBHelper.findDeviceId(gbDevice, daoSession));
+    }
+
+    @Test
+    public void testLookupRacingInvalidationIsNotCached() {
+        final EntityIdCache cache = new EntityIdCache();
+        final long generation = cache.getGeneration();
+        // the device is deleted while the lookup runs
+        cache.invalidateDevice(ADDRESS);
+        cache.putDeviceId(ADDRESS, 1L, generation);
+        assertNull(cache.getDeviceId(ADDRESS));
+
+        cache.putDeviceId(ADDRESS, 2L, cache.getGeneration());
+        assertEquals(2L, (long) cache.getDeviceId(ADDRESS));
+
+        cache.putUserId(3L, generation);
+        assertNull(cache.getUserId());
+        cache.invalidateAll();
+        assertNull(cache.getDeviceId(ADDRESS));
+    }
+}
@@ -0,0 +1,144 @@
+package nodomain.freeyourgadget.gadgetbridge.database;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import nodomain.freeyourgadget.gadgetbridge.GBApplication;
+import nodomain.freeyourgadget.gadgetbridge.entities.DaoSession;
+import nodomain.freeyourgadget.gadgetbridge.entities.Device;
+import nodomain.freeyourgadget.gadgetbridge.test.TestBase;
+
+public class ReadOnlyDBTest extends TestBase {
+    @Test
+    public void testReaderDoesNotWaitForWriter() throws Exception {
+        // the test thread holds the writer, see TestBase
+        final Device device = DBHelper.getDevice(createDummyGDevice("AA:BB:CC:DD:EE:01"), daoSession);
+        final long readersBefore = GBApplication.getDBLockMetrics().getReader().getAcquired();
+
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final Future<Long> count = executor.submit(() -> {
+                try (DBHandler db = GBApplication.acquireReadOnlyDB()) {
+                    assertNotSame(daoSession, db.getDaoSession());
+                    return db.getDaoSession().getDeviceDao().count();
+                }
+            });
+            assertEquals(1L, (long) count.get(5, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(readersBefore + 1, GBApplication.getDBLockMetrics().getReader().getAcquired());
+
+        // readers do not cache entities, so they see changes of the writer
+        device.setName("renamed");
+        daoSession.getDeviceDao().update(device);
+        try (DBHandler db = GBApplication.acquireReadOnlyDB()) {
+            assertEquals("renamed", db.getDaoSession().getDeviceDao().load(device.getId()).getName());
+        }
+    }
+
+    @Test
+    public void testNestedReadersShareSession() throws Exception {
+        try (DBHandler outer = GBApplication.acquireReadOnlyDB()) {
+            try (DBHandler inner = GBApplication.acquireReadOnlyDB()) {
+                assertSame(outer, inner);
+            }
+            // still usable after the inner one was closed
+            outer.getDaoSession().getDeviceDao().count();
+        }
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testReaderCannotCloseDatabase() throws Exception {
+        try (DBHandler db = GBApplication.acquireReadOnlyDB()) {
+            db.closeDb();
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testDatabaseCannotBeClosedWhileReading() throws Exception {
+        try (DBHandler db = GBApplication.acquireReadOnlyDB()) {
+            dbHandler.closeDb();
+        }
+    }
+
+    @Test
+    public void testReaderCreatesDeviceThroughWriter() throws Exception {
+        try (DBHandler db = GBApplication.acquireReadOnlyDB()) {
+            final DaoSession readSession = db.getDaoSession();
+            final Device device = DBHelper.getDevice(createDummyGDevice("AA:BB:CC:DD:EE:02"), readSession);
+            assertNotNull(device.getId());
+            assertEquals(device.getId(), DBHelper.getDevice(createDummyGDevice("AA:BB:CC:DD:EE:02"), readSession).getId());
+            assertEquals(DBHelper.getUser(daoSession).getId(), DBHelper.getUser(readSession).getId());
+        }
+    }
+
+    @Test
+    public void testReaderDoesNotWaitForWriterClosingDatabase() throws Exception {
+        final CountDownLatch reading = new CountDownLatch(1);
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final Future<?> create = executor.submit(() -> {
+                try (DBHandler db = GBApplication.acquireReadOnlyDB()) {
+                    reading.countDown();
+                    // let the test thread start closing the database
+                    Thread.sleep(200);
+                    // needs the writer, which waits for this reader
+                    DBHelper.getDevice(createDummyGDevice("AA:BB:CC:DD:EE:03"), db.getDaoSession());
+                }
+                return null;
+            });
+            assertTrue(reading.await(5, TimeUnit.SECONDS));
+
+            final long start = System.nanoTime();
+            dbHandler.closeDb();
+            assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+            try {
+                create.get(5, TimeUnit.SECONDS);
+                fail("The reader got the writer of a database being closed");
+            } catch (final ExecutionException e) {
+                assertTrue(e.getCause() instanceof IllegalStateException);
+            }
+        } finally {
+            executor.shutdown();
+            dbHandler.openDb();
+            daoSession = dbHandler.getDaoSession();
+        }
+    }
+
+    @Test
+    public void testReaderWaitsWhileDatabaseIsClosed() throws Exception {
+        dbHandler.closeDb();
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final Future<Long> count = executor.submit(() -> {
+                try (DBHandler db = GBApplication.acquireReadOnlyDB()) {
+                    return db.getDaoSession().getDeviceDao().count();
+                }
+            });
+            Thread.sleep(200);
+            assertFalse(count.isDone());
+
+            dbHandler.openDb();
+            daoSession = dbHandler.getDaoSession();
+            assertEquals(0L, (long) count.get(5, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdown();
+        }
+        assertTrue(GBApplication.getDBLockMetrics().getReader().getMaxWaitNanos() >= TimeUnit.MILLISECONDS.toNanos(200));
+    }
+}
@@ -0,0 +1,200 @@
+package nodomain.freeyourgadget.gadgetbridge.database;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import nodomain.freeyourgadget.gadgetbridge.entities.GenericHeartRateSample;
+import nodomain.freeyourgadget.gadgetbridge.entities.PolarH10ActivitySample;
+import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
+import nodomain.freeyourgadget.gadgetbridge.model.DeviceType;
+
+public class SampleIngestionServiceTest {
+    private final GBDevice polar = new GBDevice("AA:BB:CC:DD:EE:01", "Polar H10", null, null, DeviceType.TEST);
+    private final GBDevice strap = new GBDevice("AA:BB:CC:DD:EE:02", "Heart rate strap", null, null, DeviceType.TEST);
+
+    private static class RecordingStore implements SampleIngestionService.Store<AutoCloseable> {
+        final List<Map<Class<?>, List<SampleIngestionService.Pending>>> transactions = new ArrayList<>();
+
+        @Override
+        public AutoCloseable acquire() {
+            return () -> {
+            };
+        }
+
+        @Override
+        public synchronized void persist(final AutoCloseable handle, final Map<Class<?>, List<SampleIngestionService.Pending>> samples) {
+            transactions.add(new LinkedHashMap<>(samples));
+        }
+
+        synchronized int count() {
+            return transactions.size();
+        }
+    }
+
+    private static PolarH10ActivitySample polarSample(final int timestamp) {
+        final PolarH10ActivitySample sample = new PolarH10ActivitySample();
+        sample.setTimestamp(timestamp);
+        sample.setHeartRate(60);
+        return sample;
+    }
+
+    private static GenericHeartRateSample heartRateSample(final long timestamp) {
+        final GenericHeartRateSample sample = new GenericHeartRateSample();
+        sample.setTimestamp(timestamp);
+        sample.setHeartRate(70);
+        return sample;
+    }
+
+    @Test
+    public void testSamplesAreCoalescedPerEntity() {
+        final RecordingStore store = new RecordingStore();
+        final SampleIngestionService service = new SampleIngestionService(store, TimeUnit.HOURS.toMillis(1), 1000);
+
+        for (int i = 0; i < 10; i++) {
+            service.submit(polar, polarSample(i));
+            service.submit(strap, heartRateSample(i * 1000L));
+        }
+        assertEquals(20, service.getPendingCount());
+        assertEquals(0, store.count());
+
+        service.flushAndWait();
+
+        assertEquals(1, store.count());
+        final Map<Class<?>, List<SampleIngestionService.Pending>> transaction = store.transactions.get(0);
+        assertEquals(2, transaction.size());
+        final List<SampleIngestionService.Pending> polarSamples = transaction.get(PolarH10ActivitySample.class);
+        assertEquals(10, polarSamples.size());
+        for (int i = 0; i < 10; i++) {
+            assertEquals(polar, polarSamples.get(i).getDevice());
+            assertEquals(i, ((PolarH10ActivitySample) polarSamples.get(i).getSample()).getTimestamp());
+        }
+        assertEquals(10, transaction.get(GenericHeartRateSample.class).size());
+        assertEquals(0, service.getPendingCount());
+        assertEquals(20, service.getCommittedSamples());
+        assertEquals(1, service.getFlushes());
+
+        // nothing pending, nothing to write
+        service.flushAndWait();
+        assertEquals(1, store.count());
+    }
+
+    @Test
+    public void testFlushWhenThresholdIsReached() throws Exception {
+        final RecordingStore store = new RecordingStore();
+        final SampleIngestionService service = new SampleIngestionService(store, TimeUnit.HOURS.toMillis(1), 5);
+
+        for (int i = 0; i < 5; i++) {
+            service.submit(polar, polarSample(i));
+        }
+        waitFor(() -> store.count() == 1);
+        assertEquals(5, store.transactions.get(0).get(PolarH10ActivitySample.class).size());
+    }
+
+    @Test
+    public void testFlushAfterInterval() throws Exception {
+        final RecordingStore store = new RecordingStore();
+        final SampleIngestionService service = new SampleIngestionService(store, 50, 1000);
+
+        service.submit(strap, heartRateSample(1000L));
+        service.submit(strap, heartRateSample(2000L));
+        waitFor(() -> store.count() == 1);
+        assertEquals(2, store.transactions.get(0).get(GenericHeartRateSample.class).size());
+
+        // the next sample starts a new interval
+        service.submit(strap, heartRateSample(3000L));
+        waitFor(() -> store.count() == 2);
+        assertEquals(3, service.getCommittedSamples());
+    }
+
+    @Test
+    public void testFailedFlushIsRetriedOnce() {
+        final int[] failures = {2};
+        final RecordingStore store = new RecordingStore() {
+            @Override
+            public AutoCloseable acquire() {
+                if (failures[0]-- > 0) {
+                    throw new IllegalStateException("database closed");
+                }
+                return super.acquire();
+            }
+        };
+        final SampleIngestionService service = new SampleIngestionService(store, TimeUnit.HOURS.toMillis(1), 1000);
+
+        service.submit(polar, polarSample(1));
+        service.flushAndWait();
+        assertEquals(1, service.getFailedFlushes());
+        assertEquals(0, service.getDroppedSamples());
+        assertEquals(0, service.getPendingCount());
+
+        // retried with the next flush, which fails again
+        service.submit(polar, polarSample(2));
+        service.flushAndWait();
+        assertEquals(2, service.getFailedFlushes());
+        assertEquals(1, service.getDroppedSamples());
+
+        // the second sample gets its retry
+        service.submit(polar, polarSample(3));
+        service.flushAndWait();
+        assertEquals(1, store.count());
+        final List<SampleIngestionService.Pending> samples = store.transactions.get(0).get(PolarH10ActivitySample.class);
+        assertEquals(2, samples.size());
+        assertEquals(2, ((PolarH10ActivitySample) samples.get(0).getSample()).getTimestamp());
+        assertEquals(3, ((PolarH10ActivitySample) samples.get(1).getSample()).getTimestamp());
+        assertEquals(2, service.getCommittedSamples());
+
+        // nothing left to retry
+        service.flushAndWait();
+        assertEquals(1, store.count());
+    }
+
+    @Test
+    public void testSourcesAreTakenWithSubmittedSamples() {
+        final RecordingStore store = new RecordingStore();
+        final SampleIngestionService service = new SampleIngestionService(store, TimeUnit.HOURS.toMillis(1), 1000);
+        final List<GenericHeartRateSample> collected = new ArrayList<>();
+        final SampleIngestionService.Source source = batch -> {
+            batch.addAll(strap, collected);
+            collected.clear();
+        };
+        service.register(source);
+
+        collected.add(heartRateSample(1000L));
+        collected.add(heartRateSample(2000L));
+        service.submit(polar, polarSample(1));
+        service.flushAndWait();
+
+        assertEquals(1, store.count());
+        assertEquals(2, store.transactions.get(0).get(GenericHeartRateSample.class).size());
+        assertEquals(1, store.transactions.get(0).get(PolarH10ActivitySample.class).size());
+
+        // the remaining samples are written when the source leaves
+        collected.add(heartRateSample(3000L));
+        service.unregister(source);
+        assertEquals(2, store.count());
+        assertEquals(4, service.getCommittedSamples());
+
+        collected.add(heartRateSample(4000L));
+        service.flushAndWait();
+        assertEquals(2, store.count());
+    }
+
+    private interface Condition {
+        boolean met();
+    }
+
+    private static void waitFor(final Condition condition) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.met()) {
+            assertTrue("timed out", System.nanoTime() < deadline);
+            Thread.sleep(5);
+        }
+    }
+}
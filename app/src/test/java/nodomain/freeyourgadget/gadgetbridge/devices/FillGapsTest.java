@@ -0,0 +1,91 @@
+package nodomain.freeyourgadget.gadgetbridge.devices;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import nodomain.freeyourgadget.gadgetbridge.entities.GarminActivitySample;
+import nodomain.freeyourgadget.gadgetbridge.model.ActivitySample;
+
+public class FillGapsTest {
+    private static GarminActivitySample sample(final int timestamp, final int steps) {
+        final GarminActivitySample sample = new GarminActivitySample();
+        sample.setTimestamp(timestamp);
+        sample.setSteps(steps);
+        return sample;
+    }
+
+    private static GarminActivitySample placeholder(final int timestamp) {
+        return sample(timestamp, ActivitySample.NOT_MEASURED);
+    }
+
+    private static List<Integer> timestamps(final List<GarminActivitySample> samples) {
+        final List<Integer> ret = new ArrayList<>(samples.size());
+        for (final GarminActivitySample sample : samples) {
+            ret.add(sample.getTimestamp());
+        }
+        return ret;
+    }
+
+    @Test
+    public void testFillsGaps() {
+        final List<GarminActivitySample> samples = Arrays.asList(
+                sample(1000, 1),
+                sample(1060, 2),
+                sample(1200, 3), // gap of 140s
+                sample(1230, 4) // not a gap
+        );
+
+        final List<GarminActivitySample> filled = AbstractSampleProvider.fillGaps(
+                samples, 800, 1400, FillGapsTest::placeholder
+        );
+
+        assertEquals(
+                Arrays.asList(800, 860, 920, 980, 1000, 1060, 1120, 1180, 1200, 1230, 1290, 1350),
+                timestamps(filled)
+        );
+        assertSame(samples.get(2), filled.get(8));
+        assertEquals(ActivitySample.NOT_MEASURED, filled.get(6).getSteps());
+    }
+
+    @Test
+    public void testNoGaps() {
+        final List<GarminActivitySample> samples = Arrays.asList(
+                sample(1000, 1),
+                sample(1060, 2)
+        );
+
+        final List<GarminActivitySample> filled = AbstractSampleProvider.fillGaps(
+                samples, 960, 1120, FillGapsTest::placeholder
+        );
+
+        assertEquals(samples, filled);
+    }
+
+    @Test
+    public void testPlaceholdersAreDistinct() {
+        final List<GarminActivitySample> samples = Arrays.asList(
+                sample(1000, 1),
+                sample(1300, 2)
+        );
+
+        final List<GarminActivitySample> filled = AbstractSampleProvider.fillGaps(
+                samples, 1000, 1300, FillGapsTest::placeholder
+        );
+
+        // Callers modify the samples in place, eg. to shift the timestamps
+        for (final GarminActivitySample sample : filled) {
+            sample.setTimestamp(sample.getTimestamp() - 60);
+        }
+        filled.get(2).setSteps(5);
+
+        assertEquals(Arrays.asList(940, 1000, 1060, 1120, 1180, 1240), timestamps(filled));
+        assertEquals(5, filled.get(2).getSteps());
+        assertEquals(ActivitySample.NOT_MEASURED, filled.get(3).getSteps());
+    }
+}
@@ -0,0 +1,94 @@
+package nodomain.freeyourgadget.gadgetbridge.externalevents;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import nodomain.freeyourgadget.gadgetbridge.activities.NotificationFilterActivity;
+import nodomain.freeyourgadget.gadgetbridge.entities.NotificationFilter;
+
+public class CompiledNotificationFilterTest {
+    private static CompiledNotificationFilter compile(final int mode, final int subMode, final List<String> words) {
+        final NotificationFilter filter = new NotificationFilter();
+        filter.setNotificationFilterMode(mode);
+        filter.setNotificationFilterSubMode(subMode);
+        return CompiledNotificationFilter.compile(filter, words);
+    }
+
+    @Test
+    public void testBlacklistAny() {
+        final CompiledNotificationFilter filter = compile(
+                NotificationFilterActivity.NOTIFICATION_FILTER_MODE_BLACKLIST,
+                NotificationFilterActivity.NOTIFICATION_FILTER_SUBMODE_ANY,
+                Arrays.asList("promo", "sale")
+        );
+
+        assertFalse(filter.shouldContinue("Big summer sale today"));
+        assertFalse(filter.shouldContinue("Your promotion code"));
+        assertTrue(filter.shouldContinue("Your package was delivered"));
+        // matching is case-sensitive, like before
+        assertTrue(filter.shouldContinue("SALE"));
+    }
+
+    @Test
+    public void testWhitelistAll() {
+        final CompiledNotificationFilter filter = compile(
+                NotificationFilterActivity.NOTIFICATION_FILTER_MODE_WHITELIST,
+                NotificationFilterActivity.NOTIFICATION_FILTER_SUBMODE_ALL,
+                Arrays.asList("alarm", "larm", "front door", "alarm")
+        );
+
+        // overlapping and repeated words must all be found
+        assertTrue(filter.shouldContinue("The alarm at the front door went off"));
+        assertFalse(filter.shouldContinue("The alarm went off"));
+        assertFalse(filter.shouldContinue("Someone is at the front door"));
+    }
+
+    @Test
+    public void testBlacklistAll() {
+        final CompiledNotificationFilter filter = compile(
+                NotificationFilterActivity.NOTIFICATION_FILTER_MODE_BLACKLIST,
+                NotificationFilterActivity.NOTIFICATION_FILTER_SUBMODE_ALL,
+                Arrays.asList("Hello", "world")
+        );
+
+        assertFalse(filter.shouldContinue("Hello world"));
+        assertTrue(filter.shouldContinue("Hello there"));
+    }
+
+    @Test
+    public void testNoneMode() {
+        final CompiledNotificationFilter filter = compile(
+                NotificationFilterActivity.NOTIFICATION_FILTER_MODE_NONE,
+                NotificationFilterActivity.NOTIFICATION_FILTER_SUBMODE_ANY,
+                Collections.singletonList("anything")
+        );
+
+        assertSame(CompiledNotificationFilter.NONE, filter);
+        assertTrue(filter.shouldContinue("anything"));
+    }
+
+    @Test
+    public void testCacheSkipsStaleLookups() {
+        final NotificationFilterCache cache = NotificationFilterCache.getInstance();
+        cache.invalidateAll();
+
+        final long generation = cache.getGeneration();
+        cache.invalidate("org.example.Chat");
+        cache.put("org.example.chat", CompiledNotificationFilter.NONE, generation);
+        assertNull(cache.get("org.example.chat"));
+
+        cache.put("org.example.chat", CompiledNotificationFilter.NONE, cache.getGeneration());
+        assertSame(CompiledNotificationFilter.NONE, cache.get("org.example.Chat"));
+
+        cache.invalidateAll();
+        assertNull(cache.get("org.example.chat"));
+    }
+}
@@ -0,0 +1,121 @@
+package nodomain.freeyourgadget.gadgetbridge.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+import java.util.Calendar;
+
+import nodomain.freeyourgadget.gadgetbridge.database.DBHelper;
+import nodomain.freeyourgadget.gadgetbridge.devices.miband.MiBandSampleProvider;
+import nodomain.freeyourgadget.gadgetbridge.entities.DailyRollup;
+import nodomain.freeyourgadget.gadgetbridge.entities.DailyRollupDao;
+import nodomain.freeyourgadget.gadgetbridge.entities.MiBandActivitySample;
+import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
+import nodomain.freeyourgadget.gadgetbridge.test.TestBase;
+
+public class DailyRollupsTest extends TestBase {
+    private static final long HOUR = 3600;
+
+    private GBDevice gbDevice;
+    private long deviceId;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        gbDevice = createDummyGDevice("AA:BB:CC:DD:EE:01");
+        deviceId = DBHelper.getDeviceId(gbDevice, daoSession);
+    }
+
+    private static Calendar daysAgo(final int days) {
+        final Calendar day = Calendar.getInstance();
+        day.add(Calendar.DATE, -days);
+        return day;
+    }
+
+    private DailyRollup insertRollup(final Calendar day, final long steps) {
+        final DailyRollup rollup = new DailyRollup(DailyRollups.getDayStart(day), deviceId, steps, 1000, 300, 60, 120, 30, 10);
+        daoSession.getDailyRollupDao().insertOrReplace(rollup);
+        return rollup;
+    }
+
+    private DailyRollup loadRollup(final int dayStart) {
+        return daoSession.getDailyRollupDao().queryBuilder()
+                .where(DailyRollupDao.Properties.DeviceId.eq(deviceId), DailyRollupDao.Properties.DayStart.eq(dayStart))
+                .unique();
+    }
+
+    @Test
+    public void testPastDayIsReadFromRollup() {
+        final Calendar day = daysAgo(3);
+        insertRollup(day, 12345);
+        final long hits = DailyRollups.getHits();
+
+        final DailyTotals totals = DailyTotals.getDailyTotalsForDevice(gbDevice, day, dbHandler);
+
+        assertEquals(hits + 1, DailyRollups.getHits());
+        assertEquals(12345, totals.getSteps());
+        assertEquals(1000, totals.getDistance());
+        assertEquals(300, totals.getActiveCalories());
+        // awake sleep is excluded
+        assertEquals(60 + 120 + 30, totals.getSleep());
+    }
+
+    @Test
+    public void testTodayIsNeverReadFromRollup() {
+        final Calendar today = Calendar.getInstance();
+        insertRollup(today, 12345);
+        final long hits = DailyRollups.getHits();
+        final long misses = DailyRollups.getMisses();
+
+        final DailyTotals totals = DailyTotals.getDailyTotalsForDevice(gbDevice, today, dbHandler);
+
+        assertNotEquals(12345, totals.getSteps());
+        assertEquals(hits, DailyRollups.getHits());
+        assertEquals(misses, DailyRollups.getMisses());
+    }
+
+    @Test
+    public void testWritingSamplesInvalidatesAffectedDays() {
+        final Calendar day = daysAgo(5);
+        final int dayStart = DailyRollups.getDayStart(day);
+        final Calendar before = daysAgo(7);
+        final Calendar after = daysAgo(3);
+        insertRollup(before, 1);
+        insertRollup(day, 1);
+        insertRollup(after, 1);
+        // the sleep window of the next day starts at noon
+        final Calendar nextDay = daysAgo(4);
+        insertRollup(nextDay, 1);
+
+        final MiBandSampleProvider provider = new MiBandSampleProvider(gbDevice, daoSession);
+        final MiBandActivitySample sample = provider.createActivitySample();
+        sample.setDeviceId(deviceId);
+        sample.setUserId(DBHelper.getUserId(daoSession));
+        sample.setTimestamp((int) (dayStart + 13 * HOUR));
+        sample.setSteps(100);
+        provider.addGBActivitySample(sample);
+
+        assertNull(loadRollup(dayStart));
+        assertNull(loadRollup(DailyRollups.getDayStart(nextDay)));
+        assertNotNull(loadRollup(DailyRollups.getDayStart(before)));
+        assertNotNull(loadRollup(DailyRollups.getDayStart(after)));
+    }
+
+    @Test
+    public void testInvalidateOnlyAffectsDevice() {
+        final Calendar day = daysAgo(2);
+        final int dayStart = DailyRollups.getDayStart(day);
+        insertRollup(day, 1);
+        final long otherDeviceId = DBHelper.getDeviceId(createDummyGDevice("AA:BB:CC:DD:EE:02"), daoSession);
+
+        DailyRollups.invalidate(daoSession, otherDeviceId, dayStart, dayStart + 24 * HOUR - 1);
+        assertNotNull(loadRollup(dayStart));
+
+        DailyRollups.invalidate(daoSession, deviceId, dayStart, dayStart + 24 * HOUR - 1);
+        assertNull(loadRollup(dayStart));
+    }
+}
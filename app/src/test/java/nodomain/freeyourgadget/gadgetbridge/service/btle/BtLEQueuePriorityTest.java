@@ -0,0 +1,167 @@
+package nodomain.freeyourgadget.gadgetbridge.service.btle;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
+import nodomain.freeyourgadget.gadgetbridge.service.btle.actions.FunctionAction;
+import nodomain.freeyourgadget.gadgetbridge.service.btle.actions.WriteAction;
+import nodomain.freeyourgadget.gadgetbridge.test.TestBase;
+
+/**
+ * Verifies that a {@link AbstractTransaction.Priority#REALTIME} transaction runs in between the
+ * chunks of a {@link AbstractTransaction.Priority#BULK} upload, and that the upload keeps receiving
+ * the events of its own characteristics meanwhile.
+ */
+public class BtLEQueuePriorityTest extends TestBase {
+    private static final Logger LOG = LoggerFactory.getLogger(BtLEQueuePriorityTest.class);
+
+    private static final UUID UPLOAD_CONTROL = UUID.fromString("0000fff1-0000-1000-8000-00805f9b34fb");
+    private static final UUID UPLOAD_DATA = UUID.fromString("0000fff2-0000-1000-8000-00805f9b34fb");
+    private static final UUID ALERT = UUID.fromString("0000fff3-0000-1000-8000-00805f9b34fb");
+
+    private static class TestSupport extends AbstractBTLESingleDeviceSupport {
+        final List<String> events = Collections.synchronizedList(new ArrayList<>());
+
+        TestSupport() {
+            super(LOG);
+        }
+
+        @Override
+        public boolean onCharacteristicWrite(final BluetoothGatt gatt, final BluetoothGattCharacteristic characteristic, final int status) {
+            events.add("write " + characteristic.getUuid());
+            return true;
+        }
+
+        @Override
+        public boolean onCharacteristicChanged(final BluetoothGatt gatt, final BluetoothGattCharacteristic characteristic, final byte[] value) {
+            events.add("changed " + characteristic.getUuid());
+            return true;
+        }
+
+        @Override
+        public boolean useAutoConnect() {
+            return false;
+        }
+    }
+
+    private static class UploadCallback extends AbstractGattCallback {
+        final List<String> events = Collections.synchronizedList(new ArrayList<>());
+
+        @Override
+        public boolean onCharacteristicWrite(final BluetoothGatt gatt, final BluetoothGattCharacteristic characteristic, final int status) {
+            events.add("write " + characteristic.getUuid());
+            return true;
+        }
+
+        @Override
+        public boolean onCharacteristicChanged(final BluetoothGatt gatt, final BluetoothGattCharacteristic characteristic, final byte[] value) {
+            events.add("changed " + characteristic.getUuid());
+            return true;
+        }
+    }
+
+    @Test
+    public void testRealtimeTransactionRunsBetweenBulkChunks() throws Exception {
+        final GBDevice device = createDummyGDevice("AA:BB:CC:DD:EE:FF");
+        final TestSupport support = new TestSupport();
+        support.setContext(device, null, getContext());
+        final BtLEQueue queue = new BtLEQueue(device, Collections.emptySet(), support);
+
+        final BluetoothGattCharacteristic control = characteristic(UPLOAD_CONTROL);
+        final BluetoothGattCharacteristic data = characteristic(UPLOAD_DATA);
+        final BluetoothGattCharacteristic alert = characteristic(ALERT);
+
+        // reports each write like the stack does, from a thread of its own. Each write to the
+        // alert characteristic is answered by a notification of the upload, as a device would
+        // acknowledge a chunk while the alert is shown
+        final List<UUID> written = Collections.synchronizedList(new ArrayList<>());
+        final ExecutorService radio = Executors.newSingleThreadExecutor();
+        final BluetoothGatt gatt = mock(BluetoothGatt.class);
+        final BluetoothGattCallback callback = (BluetoothGattCallback) getField(queue, "internalGattCallback");
+        when(gatt.writeCharacteristic(any(BluetoothGattCharacteristic.class))).thenAnswer(invocation -> {
+            final BluetoothGattCharacteristic characteristic = invocation.getArgument(0);
+            written.add(characteristic.getUuid());
+            radio.execute(() -> {
+                if (characteristic == alert) {
+                    callback.onCharacteristicChanged(gatt, control, new byte[]{1});
+                }
+                callback.onCharacteristicWrite(gatt, characteristic, BluetoothGatt.GATT_SUCCESS);
+            });
+            return true;
+        });
+        setField(queue, "mBluetoothGatt", gatt);
+        device.setState(GBDevice.State.INITIALIZED);
+
+        final Transaction realtime = new Transaction("find device");
+        realtime.setPriority(AbstractTransaction.Priority.REALTIME);
+        realtime.add(new WriteAction(alert, new byte[]{3}));
+
+        final UploadCallback uploadCallback = new UploadCallback();
+        final Transaction upload = new Transaction("upload");
+        upload.setPriority(AbstractTransaction.Priority.BULK);
+        upload.setCallback(uploadCallback);
+        upload.add(new WriteAction(control, new byte[]{1}));
+        upload.add(new WriteAction(data, new byte[]{2}));
+        // the find device request arrives while the first chunk is being sent
+        upload.add(new FunctionAction(() -> queue.add(realtime)));
+        upload.add(new WriteAction(data, new byte[]{4}));
+        final CountDownLatch done = new CountDownLatch(1);
+        upload.add(new FunctionAction(done::countDown));
+
+        queue.add(upload);
+        assertTrue("upload timed out", done.await(10, TimeUnit.SECONDS));
+        queue.dispose();
+        radio.shutdown();
+
+        assertEquals(Arrays.asList(UPLOAD_CONTROL, UPLOAD_DATA, ALERT, UPLOAD_DATA), written);
+        // the upload callback stayed installed, and only missed the result of the alert
+        assertEquals(Arrays.asList(
+                "write " + UPLOAD_CONTROL,
+                "write " + UPLOAD_DATA,
+                "changed " + UPLOAD_CONTROL,
+                "write " + UPLOAD_DATA
+        ), uploadCallback.events);
+        assertEquals(Collections.singletonList("write " + ALERT), support.events);
+        assertEquals(1, queue.getLaneStats()[AbstractTransaction.Priority.REALTIME.ordinal()].getPreemptions());
+    }
+
+    private static BluetoothGattCharacteristic characteristic(final UUID uuid) {
+        return new BluetoothGattCharacteristic(uuid,
+                BluetoothGattCharacteristic.PROPERTY_WRITE, BluetoothGattCharacteristic.PERMISSION_WRITE);
+    }
+
+    private static void setField(final Object object, final String name, final Object value) throws Exception {
+        final Field field = object.getClass().getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(object, value);
+    }
+
+    private static Object getField(final Object object, final String name) throws Exception {
+        final Field field = object.getClass().getDeclaredField(name);
+        field.setAccessible(true);
+        return field.get(object);
+    }
+}
@@ -0,0 +1,186 @@
+package nodomain.freeyourgadget.gadgetbridge.service.btle;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.Field;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
+import nodomain.freeyourgadget.gadgetbridge.service.btle.actions.FunctionAction;
+import nodomain.freeyourgadget.gadgetbridge.service.btle.actions.WriteAction;
+import nodomain.freeyourgadget.gadgetbridge.test.TestBase;
+
+/**
+ * Compares the throughput of an upload through {@link BtLEQueue} with serial and pipelined writes,
+ * against a fake {@link BluetoothGatt} that models the time on air of each packet and the latency
+ * of the write callbacks.
+ */
+public class BtLEQueueWriteWindowTest extends TestBase {
+    private static final Logger LOG = LoggerFactory.getLogger(BtLEQueueWriteWindowTest.class);
+
+    private static final UUID CHARACTERISTIC = UUID.fromString("0000fff1-0000-1000-8000-00805f9b34fb");
+    private static final int CHUNKS = 200;
+    private static final int CHUNK_SIZE = 244;
+    private static final int WINDOW = 4;
+    private static final long PACKET_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long CALLBACK_LATENCY_NANOS = TimeUnit.MILLISECONDS.toNanos(3);
+
+    private static class TestSupport extends AbstractBTLESingleDeviceSupport {
+        TestSupport() {
+            super(LOG);
+        }
+
+        @Override
+        public boolean useAutoConnect() {
+            return false;
+        }
+    }
+
+    /**
+     * Accepts up to a number of writes at once, sends them one after another and reports each
+     * one, a while after it was sent.
+     */
+    private static class FakeLink {
+        final int maxOutstanding;
+        final ScheduledExecutorService radio = Executors.newSingleThreadScheduledExecutor();
+        final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        BluetoothGattCallback callback;
+        int outstanding;
+        int refused;
+        long lastSent;
+
+        FakeLink(final int maxOutstanding) {
+            this.maxOutstanding = maxOutstanding;
+        }
+
+        synchronized boolean write(final BluetoothGatt gatt, final BluetoothGattCharacteristic characteristic) {
+            if (outstanding >= maxOutstanding) {
+                refused++;
+                return false;
+            }
+            outstanding++;
+            final byte[] value = characteristic.getValue().clone();
+            received.write(value, 0, value.length);
+
+            final long now = System.nanoTime();
+            lastSent = Math.max(now, lastSent) + PACKET_NANOS;
+            radio.schedule(() -> {
+                synchronized (this) {
+                    outstanding--;
+                }
+                callback.onCharacteristicWrite(gatt, characteristic, BluetoothGatt.GATT_SUCCESS);
+            }, lastSent + CALLBACK_LATENCY_NANOS - now, TimeUnit.NANOSECONDS);
+            return true;
+        }
+    }
+
+    @Test
+    public void testPipelinedWritesAreFaster() throws Exception {
+        final FakeLink serialLink = new FakeLink(WINDOW);
+        final double serial = upload(serialLink, 1);
+        final FakeLink pipelinedLink = new FakeLink(WINDOW);
+        final double pipelined = upload(pipelinedLink, WINDOW);
+
+        LOG.info(String.format(Locale.ROOT, "serial: %.0f bytes/s, window of %d: %.0f bytes/s (%.1fx)",
+                serial, WINDOW, pipelined, pipelined / serial));
+        assertEquals(0, serialLink.refused);
+        assertEquals(0, pipelinedLink.refused);
+        assertTrue(pipelined > 1.5 * serial);
+    }
+
+    @Test
+    public void testPipelinedWritesOnBusyStack() throws Exception {
+        // Android refuses a write while the previous one was not reported yet
+        final FakeLink link = new FakeLink(1);
+        final double pipelined = upload(link, WINDOW);
+
+        LOG.info(String.format(Locale.ROOT, "window of %d on a busy stack: %.0f bytes/s, %d writes retried",
+                WINDOW, pipelined, link.refused));
+        assertTrue(link.refused > 0);
+    }
+
+    /**
+     * Uploads the chunks in one transaction and verifies that all of them arrived in order.
+     *
+     * @return the throughput in bytes/s
+     */
+    private double upload(final FakeLink link, final int window) throws Exception {
+        final GBDevice device = createDummyGDevice("AA:BB:CC:DD:EE:FF");
+        final TestSupport support = new TestSupport();
+        support.setContext(device, null, getContext());
+        final BtLEQueue queue = new BtLEQueue(device, Collections.emptySet(), support);
+
+        final BluetoothGatt gatt = mock(BluetoothGatt.class);
+        when(gatt.writeCharacteristic(any(BluetoothGattCharacteristic.class)))
+                .thenAnswer(invocation -> link.write(gatt, invocation.getArgument(0)));
+        setField(queue, "mBluetoothGatt", gatt);
+        link.callback = (BluetoothGattCallback) getField(queue, "internalGattCallback");
+        device.setState(GBDevice.State.INITIALIZED);
+
+        final BluetoothGattCharacteristic characteristic = new BluetoothGattCharacteristic(CHARACTERISTIC,
+                BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE, BluetoothGattCharacteristic.PERMISSION_WRITE);
+        characteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+
+        final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        final Transaction transaction = new Transaction("upload");
+        transaction.setWriteWindow(window);
+        for (int i = 0; i < CHUNKS; i++) {
+            final byte[] chunk = new byte[CHUNK_SIZE];
+            for (int j = 0; j < CHUNK_SIZE; j++) {
+                chunk[j] = (byte) (i + j);
+            }
+            expected.write(chunk, 0, chunk.length);
+            transaction.add(new WriteAction(characteristic, chunk));
+        }
+        final CountDownLatch done = new CountDownLatch(1);
+        transaction.add(new FunctionAction(done::countDown));
+
+        final BtLEQueueMetrics metrics = queue.getMetrics();
+        final long bytesOutBefore = metrics.getBytesOut();
+        final long writesBefore = metrics.getLatency(BtLEQueueMetrics.ActionType.WRITE).getCount();
+        final long start = System.nanoTime();
+        queue.add(transaction);
+        assertTrue("upload timed out", done.await(30, TimeUnit.SECONDS));
+        final long elapsed = System.nanoTime() - start;
+
+        queue.dispose();
+        link.radio.shutdown();
+        assertArrayEquals(expected.toByteArray(), link.received.toByteArray());
+        assertEquals(CHUNKS * CHUNK_SIZE, metrics.getBytesOut() - bytesOutBefore);
+        assertTrue(metrics.getLatency(BtLEQueueMetrics.ActionType.WRITE).getCount() > writesBefore);
+        LOG.info("write latency with a window of {}: {}", window, metrics.getLatency(BtLEQueueMetrics.ActionType.WRITE));
+        return CHUNKS * CHUNK_SIZE / (elapsed / 1e9);
+    }
+
+    private static void setField(final Object object, final String name, final Object value) throws Exception {
+        final Field field = object.getClass().getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(object, value);
+    }
+
+    private static Object getField(final Object object, final String name) throws Exception {
+        final Field field = object.getClass().getDeclaredField(name);
+        field.setAccessible(true);
+        return field.get(object);
+    }
+}
@@ -0,0 +1,69 @@
+package nodomain.freeyourgadget.gadgetbridge.service.btle;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+public class LatencyHistogramTest {
+    @Test
+    public void testBucketsCoverAllValues() {
+        int previous = -1;
+        for (long micros = 0; micros <= 100_000; micros++) {
+            final int index = LatencyHistogram.bucketIndex(micros);
+            assertTrue("bucket of " + micros + " went backwards", index >= previous);
+            assertTrue("bucket of " + micros + " skipped one", index <= previous + 1);
+            assertTrue(micros <= LatencyHistogram.bucketUpperBound(index));
+            if (index > 0) {
+                assertTrue(micros > LatencyHistogram.bucketUpperBound(index - 1));
+            }
+            previous = index;
+        }
+    }
+
+    @Test
+    public void testRelativeError() {
+        for (long micros = 1; micros <= LatencyHistogram.MAX_VALUE_MICROS; micros = micros * 3 + 7) {
+            final long upperBound = LatencyHistogram.bucketUpperBound(LatencyHistogram.bucketIndex(micros));
+            assertTrue((upperBound - micros) / (double) micros <= 1.0 / LatencyHistogram.SUB_BUCKETS);
+        }
+    }
+
+    @Test
+    public void testPercentiles() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentileMicros(99));
+
+        for (int i = 1; i <= 1000; i++) {
+            histogram.recordNanos(TimeUnit.MILLISECONDS.toNanos(i));
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(500_500, histogram.getMeanMicros());
+        assertEquals(1_000_000, histogram.getMaxMicros());
+        assertWithin(500_000, histogram.getPercentileMicros(50));
+        assertWithin(990_000, histogram.getPercentileMicros(99));
+        assertEquals(1_000_000, histogram.getPercentileMicros(100));
+        assertEquals(LatencyHistogram.bucketUpperBound(LatencyHistogram.bucketIndex(1000)), histogram.getPercentileMicros(0));
+
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMaxMicros());
+    }
+
+    @Test
+    public void testValuesAreClamped() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        histogram.recordNanos(-5);
+        histogram.recordNanos(TimeUnit.HOURS.toNanos(1));
+        assertEquals(2, histogram.getCount());
+        assertEquals(LatencyHistogram.MAX_VALUE_MICROS, histogram.getMaxMicros());
+        assertEquals(0, histogram.getPercentileMicros(50));
+    }
+
+    private static void assertWithin(final long expected, final long actual) {
+        assertTrue("expected about " + expected + " but was " + actual,
+                actual >= expected && actual <= expected + expected / LatencyHistogram.SUB_BUCKETS);
+    }
+}
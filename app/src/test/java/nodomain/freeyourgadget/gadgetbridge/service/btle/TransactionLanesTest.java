@@ -0,0 +1,100 @@
+package nodomain.freeyourgadget.gadgetbridge.service.btle;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TransactionLanesTest {
+    private static Transaction transaction(final String name, final AbstractTransaction.Priority priority) {
+        final Transaction transaction = new Transaction(name);
+        transaction.setPriority(priority);
+        return transaction;
+    }
+
+    @Test
+    public void testLanesAreServedInPriorityOrder() throws Exception {
+        final TransactionLanes lanes = new TransactionLanes();
+        final Transaction background = transaction("background", AbstractTransaction.Priority.BACKGROUND);
+        final Transaction bulk = transaction("bulk", AbstractTransaction.Priority.BULK);
+        final Transaction interactive1 = transaction("interactive 1", AbstractTransaction.Priority.INTERACTIVE);
+        final Transaction interactive2 = transaction("interactive 2", AbstractTransaction.Priority.INTERACTIVE);
+        final Transaction realtime = transaction("realtime", AbstractTransaction.Priority.REALTIME);
+        final Transaction inserted = transaction("inserted", AbstractTransaction.Priority.INTERACTIVE);
+
+        lanes.addLast(background);
+        lanes.addLast(bulk);
+        lanes.addLast(interactive1);
+        lanes.addLast(interactive2);
+        lanes.addLast(realtime);
+        lanes.addFirst(inserted);
+        assertEquals(6, lanes.size());
+
+        assertSame(realtime, lanes.takeFirst());
+        assertSame(inserted, lanes.takeFirst());
+        assertSame(interactive1, lanes.takeFirst());
+        assertSame(interactive2, lanes.takeFirst());
+        assertSame(bulk, lanes.takeFirst());
+        assertSame(background, lanes.takeFirst());
+        assertEquals(0, lanes.size());
+    }
+
+    @Test
+    public void testPollAbove() {
+        final TransactionLanes lanes = new TransactionLanes();
+        final Transaction bulk = transaction("bulk", AbstractTransaction.Priority.BULK);
+        final Transaction interactive = transaction("interactive", AbstractTransaction.Priority.INTERACTIVE);
+        lanes.addLast(bulk);
+
+        // a bulk transaction is not preempted by another one
+        assertNull(lanes.pollAbove(AbstractTransaction.Priority.BULK));
+        assertSame(bulk, lanes.pollAbove(AbstractTransaction.Priority.BACKGROUND));
+
+        lanes.addLast(interactive);
+        assertSame(interactive, lanes.pollAbove(AbstractTransaction.Priority.BULK));
+
+        final TransactionLanes.LaneStats[] stats = lanes.getStats();
+        assertEquals(1, stats[AbstractTransaction.Priority.INTERACTIVE.ordinal()].getPreemptions());
+        assertEquals(1, stats[AbstractTransaction.Priority.BULK.ordinal()].getPreemptions());
+    }
+
+    @Test
+    public void testStats() throws Exception {
+        final TransactionLanes lanes = new TransactionLanes();
+        for (int i = 0; i < 3; i++) {
+            lanes.addLast(transaction("bulk " + i, AbstractTransaction.Priority.BULK));
+        }
+        Thread.sleep(20);
+        lanes.takeFirst();
+
+        final TransactionLanes.LaneStats bulk = lanes.getStats()[AbstractTransaction.Priority.BULK.ordinal()];
+        assertEquals(AbstractTransaction.Priority.BULK, bulk.getPriority());
+        assertEquals(2, bulk.getDepth());
+        assertEquals(3, bulk.getMaxDepth());
+        assertEquals(1, bulk.getDequeued());
+        assertTrue(bulk.getMaxWaitNanos() >= 20_000_000L);
+        assertEquals(bulk.getMaxWaitNanos(), bulk.getTotalWaitNanos());
+
+        lanes.clear();
+        assertEquals(0, lanes.getStats()[AbstractTransaction.Priority.BULK.ordinal()].getDepth());
+        assertEquals(3, lanes.getStats()[AbstractTransaction.Priority.BULK.ordinal()].getMaxDepth());
+    }
+
+    @Test
+    public void testTakeFirstWaits() throws Exception {
+        final TransactionLanes lanes = new TransactionLanes();
+        final Transaction transaction = transaction("late", AbstractTransaction.Priority.BACKGROUND);
+        final Thread producer = new Thread(() -> {
+            try {
+                Thread.sleep(50);
+            } catch (final InterruptedException ignored) {
+            }
+            lanes.addLast(transaction);
+        });
+        producer.start();
+        assertSame(transaction, lanes.takeFirst());
+        producer.join();
+    }
+}
@@ -0,0 +1,236 @@
+package nodomain.freeyourgadget.gadgetbridge.service.btle.replay;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.bluetooth.BluetoothGattService;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+import nodomain.freeyourgadget.gadgetbridge.GBApplication;
+import nodomain.freeyourgadget.gadgetbridge.devices.empatica.EmpaticaE4Constants;
+import nodomain.freeyourgadget.gadgetbridge.devices.empatica.EmpaticaE4SessionFile;
+import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
+import nodomain.freeyourgadget.gadgetbridge.model.DeviceType;
+import nodomain.freeyourgadget.gadgetbridge.service.btle.AbstractBTLESingleDeviceSupport;
+import nodomain.freeyourgadget.gadgetbridge.service.btle.GattCharacteristic;
+import nodomain.freeyourgadget.gadgetbridge.service.btle.GattService;
+import nodomain.freeyourgadget.gadgetbridge.service.devices.empatica.EmpaticaE4Decoder;
+import nodomain.freeyourgadget.gadgetbridge.service.devices.empatica.EmpaticaE4DeviceSupport;
+import nodomain.freeyourgadget.gadgetbridge.service.devices.empatica.EmpaticaE4Pipeline;
+import nodomain.freeyourgadget.gadgetbridge.service.devices.empatica.EmpaticaE4SessionRecorder;
+import nodomain.freeyourgadget.gadgetbridge.service.devices.generic_hr.GenericHeartRateSupport;
+import nodomain.freeyourgadget.gadgetbridge.service.devices.polar.PolarH10DeviceSupport;
+import nodomain.freeyourgadget.gadgetbridge.test.TestBase;
+
+/**
+ * Replays notifications into the sensor drivers at 1x, 10x and 100x real time, and reports the
+ * latency and allocations per notification and the rows committed to the database.
+ * <p>
+ * Every run covers {@link #RUN_MILLIS} of replay time, so faster runs replay longer traces. The
+ * runs use a {@link BleNotificationReplayer.VirtualClock}, which skips the idle time between
+ * notifications, so the test does not sleep through the traces.
+ */
+public class BleNotificationReplayTest extends TestBase {
+    private static final double[] SPEEDS = {1, 10, 100};
+    private static final long RUN_MILLIS = 2000L;
+    private static final long START = 1_700_000_000_000L;
+
+    private static final List<UUID> E4_STREAM_CHARACTERISTICS = Arrays.asList(
+            EmpaticaE4Constants.BVP_CHARACTERISTIC,
+            EmpaticaE4Constants.GSR_CHARACTERISTIC,
+            EmpaticaE4Constants.ACC_CHARACTERISTIC,
+            EmpaticaE4Constants.ST_CHARACTERISTIC
+    );
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private int deviceCounter;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        // drivers may persist from threads of their own, which must be able to acquire the DB
+        GBApplication.releaseDB();
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        GBApplication.acquireDB();
+        super.tearDown();
+    }
+
+    @Test
+    public void testPolarH10() throws Exception {
+        for (final double speed : SPEEDS) {
+            final BleNotificationReplayer.Result result = replay(
+                    PolarH10DeviceSupport::new,
+                    DeviceType.POLARH10,
+                    heartRateServices(),
+                    heartRateTrace((long) (RUN_MILLIS * speed)),
+                    speed,
+                    () -> daoSession.getPolarH10ActivitySampleDao().count()
+            );
+            // samples are stored per second, so faster replays overwrite each other
+            assertTrue(result.getCommittedRows() > 0);
+            assertTrue(result.getCommittedRows() <= result.getNotifications());
+        }
+    }
+
+    @Test
+    public void testGenericHeartRate() throws Exception {
+        for (final double speed : SPEEDS) {
+            final BleNotificationReplayer.Result result = replay(
+                    GenericHeartRateSupport::new,
+                    DeviceType.GENERIC_HEART_RATE,
+                    heartRateServices(),
+                    heartRateTrace((long) (RUN_MILLIS * speed)),
+                    speed,
+                    () -> daoSession.getGenericHeartRateSampleDao().count()
+            );
+            assertTrue(result.getCommittedRows() > 0);
+            assertTrue(result.getCommittedRows() <= result.getNotifications());
+        }
+    }
+
+    @Test
+    public void testEmpaticaE4() throws Exception {
+        final List<BluetoothGattService> services = Arrays.asList(
+                BleNotificationReplayer.service(EmpaticaE4Constants.SENSOR_SERVICE,
+                        E4_STREAM_CHARACTERISTICS.toArray(new UUID[0])),
+                BleNotificationReplayer.service(EmpaticaE4Constants.STATUS_SERVICE,
+                        EmpaticaE4Constants.BATTERY_CHARACTERISTIC, EmpaticaE4Constants.CONTROL_CHARACTERISTIC),
+                BleNotificationReplayer.service(EmpaticaE4Constants.CMD_SERVICE,
+                        EmpaticaE4Constants.CMD_CHARACTERISTIC)
+        );
+        final LongSupplier rows = () -> {
+            // dispose only stops the pipeline, which persists the pending samples on its own thread
+            try {
+                assertTrue(EmpaticaE4Pipeline.awaitClosed(TimeUnit.SECONDS.toMillis(10)));
+            } catch (final InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+            return daoSession.getEmpaticaE4WaveformChunkDao().count()
+                    + daoSession.getEmpaticaE4EdaSampleDao().count()
+                    + daoSession.getEmpaticaE4TemperatureSampleDao().count();
+        };
+
+        for (final double speed : SPEEDS) {
+            final File session = recordE4Session(folder.newFolder(), (long) (RUN_MILLIS * speed));
+            final BleNotificationReplayer.Result result = replay(
+                    EmpaticaE4DeviceSupport::new,
+                    DeviceType.EMPANGAN,
+                    services,
+                    e4Trace(session),
+                    speed,
+                    rows
+            );
+            // the waveforms and EDA samples are written by the pipeline, and flushed once it is closed
+            assertTrue(result.getCommittedRows() > 0);
+        }
+    }
+
+    private BleNotificationReplayer.Result replay(final Supplier<? extends AbstractBTLESingleDeviceSupport> supportFactory,
+                                                  final DeviceType deviceType,
+                                                  final List<BluetoothGattService> services,
+                                                  final BleNotificationTrace trace,
+                                                  final double speed,
+                                                  final LongSupplier committedRows) throws Exception {
+        // a device of its own for each run, so that nothing is cached across runs
+        final String address = String.format(Locale.ROOT, "AA:BB:CC:DD:EE:%02X", deviceCounter++);
+        final GBDevice device = new GBDevice(address, deviceType.name(), null, null, deviceType);
+        final AbstractBTLESingleDeviceSupport support = supportFactory.get();
+        final BleNotificationReplayer replayer = new BleNotificationReplayer(support, device, getContext(), services);
+
+        final BleNotificationReplayer.Result result = replayer.replay(trace, speed, committedRows,
+                new BleNotificationReplayer.VirtualClock());
+        System.out.println(support.getClass().getSimpleName() + " " + result);
+
+        assertEquals(trace.size(), result.getNotifications());
+        // the replay keeps up with the trace, apart from scheduling jitter
+        final long expectedNanos = (long) (trace.getDurationNanos() / speed);
+        assertTrue(result.toString(), result.getDeliveryNanos() < expectedNanos + TimeUnit.SECONDS.toNanos(1));
+        return result;
+    }
+
+    private static List<BluetoothGattService> heartRateServices() throws Exception {
+        return Arrays.asList(
+                BleNotificationReplayer.service(GattService.UUID_SERVICE_HEART_RATE,
+                        GattCharacteristic.UUID_CHARACTERISTIC_HEART_RATE_MEASUREMENT),
+                BleNotificationReplayer.service(GattService.UUID_SERVICE_BATTERY_SERVICE,
+                        GattCharacteristic.UUID_CHARACTERISTIC_BATTERY_LEVEL)
+        );
+    }
+
+    /**
+     * A heart rate measurement every second, with an 8 bit heart rate.
+     */
+    private static BleNotificationTrace heartRateTrace(final long durationMillis) {
+        return new BleNotificationTrace().addPeriodic(
+                GattCharacteristic.UUID_CHARACTERISTIC_HEART_RATE_MEASUREMENT, 1000, durationMillis,
+                (index, offset) -> new byte[]{0x00, (byte) (60 + index % 40)}
+        );
+    }
+
+    /**
+     * Records a session with the notification pattern of the E4: BVP and ACC every 250ms, EDA and
+     * temperature every second.
+     */
+    private static File recordE4Session(final File dir, final long durationMillis) throws Exception {
+        final EmpaticaE4SessionRecorder recorder = EmpaticaE4SessionRecorder.open(dir, "AA:BB:CC:DD:EE:FF", START);
+        final byte[] acc = new byte[8 * 3];
+        for (int quarter = 0; quarter < durationMillis / 250; quarter++) {
+            final long timestamp = START + quarter * 250L;
+            final byte[] bvp = floatFrame(16, quarter % 100);
+            recorder.append(EmpaticaE4Decoder.STREAM_BVP, timestamp, bvp, 0, bvp.length);
+            for (int i = 0; i < acc.length; i++) {
+                acc[i] = (byte) ((quarter + i) % 64);
+            }
+            recorder.append(EmpaticaE4Decoder.STREAM_ACC, timestamp, acc, 0, acc.length);
+            if (quarter % 4 == 3) {
+                final byte[] eda = floatFrame(4, 0.002f);
+                final byte[] temperature = floatFrame(4, 33f);
+                recorder.append(EmpaticaE4Decoder.STREAM_GSR, timestamp, eda, 0, eda.length);
+                recorder.append(EmpaticaE4Decoder.STREAM_ST, timestamp, temperature, 0, temperature.length);
+            }
+        }
+        recorder.close();
+        return recorder.getFile();
+    }
+
+    /**
+     * Turns a recorded E4 session back into the notifications it was recorded from.
+     */
+    private static BleNotificationTrace e4Trace(final File session) throws Exception {
+        final BleNotificationTrace trace = new BleNotificationTrace();
+        final EmpaticaE4SessionFile.Info info = EmpaticaE4SessionFile.scan(session, (stream, timestamp, data, offset, length) ->
+                trace.add(TimeUnit.MILLISECONDS.toNanos(timestamp - START), E4_STREAM_CHARACTERISTICS.get(stream),
+                        Arrays.copyOfRange(data, offset, offset + length))
+        );
+        assertEquals(info.getFrames(), trace.size());
+        return trace;
+    }
+
+    private static byte[] floatFrame(final int count, final float base) {
+        final byte[] frame = new byte[count * 4];
+        for (int i = 0; i < count; i++) {
+            final int bits = Float.floatToIntBits(base + i * 0.01f);
+            for (int b = 0; b < 4; b++) {
+                frame[i * 4 + b] = (byte) (bits >> (8 * b));
+            }
+        }
+        return frame;
+    }
+}
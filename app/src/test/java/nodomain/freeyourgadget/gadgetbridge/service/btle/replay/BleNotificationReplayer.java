@@ -0,0 +1,295 @@
+package nodomain.freeyourgadget.gadgetbridge.service.btle.replay;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+import android.content.Context;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Field;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongSupplier;
+
+import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
+import nodomain.freeyourgadget.gadgetbridge.service.btle.AbstractBTLESingleDeviceSupport;
+import nodomain.freeyourgadget.gadgetbridge.service.btle.BtLEQueue;
+
+/**
+ * Feeds a {@link BleNotificationTrace} into a device support, as the receiver thread of the
+ * {@link BtLEQueue} would, at a multiple of the real time of the trace.
+ * <p>
+ * The support is initialized through {@link AbstractBTLESingleDeviceSupport#onServicesDiscovered}
+ * with the given services, against a mocked queue that drops the initialization transaction, so
+ * that no connection is needed. Each notification is delivered on the calling thread and its
+ * latency and allocations are measured. After the trace the support is disposed, so that drivers
+ * that persist asynchronously flush their pending samples, and the rows committed to the database
+ * in the meantime are counted.
+ */
+public class BleNotificationReplayer {
+    private static final AtomicInteger NEXT_INSTANCE_ID = new AtomicInteger(1);
+
+    private final AbstractBTLESingleDeviceSupport support;
+    private final BluetoothGatt gatt;
+    private final Map<UUID, BluetoothGattCharacteristic> characteristics = new HashMap<>();
+
+    public BleNotificationReplayer(final AbstractBTLESingleDeviceSupport support, final GBDevice device,
+                                   final Context context, final List<BluetoothGattService> services) throws Exception {
+        this.support = support;
+        for (final BluetoothGattService service : services) {
+            for (final BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
+                characteristics.put(characteristic.getUuid(), characteristic);
+            }
+        }
+
+        support.setContext(device, null, context);
+        final Field queue = AbstractBTLESingleDeviceSupport.class.getDeclaredField("mQueue");
+        queue.setAccessible(true);
+        queue.set(support, mock(BtLEQueue.class));
+
+        gatt = mock(BluetoothGatt.class);
+        when(gatt.getServices()).thenReturn(services);
+        support.onServicesDiscovered(gatt);
+    }
+
+    /**
+     * Creates a service with the given characteristics, each with a unique instance id, as drivers
+     * may dispatch on it.
+     */
+    public static BluetoothGattService service(final UUID uuid, final UUID... characteristicUuids) throws Exception {
+        final BluetoothGattService service = new BluetoothGattService(uuid, BluetoothGattService.SERVICE_TYPE_PRIMARY);
+        final Field instance = BluetoothGattCharacteristic.class.getDeclaredField("mInstance");
+        instance.setAccessible(true);
+        for (final UUID characteristicUuid : characteristicUuids) {
+            final BluetoothGattCharacteristic characteristic = new BluetoothGattCharacteristic(characteristicUuid,
+                    BluetoothGattCharacteristic.PROPERTY_NOTIFY | BluetoothGattCharacteristic.PROPERTY_READ | BluetoothGattCharacteristic.PROPERTY_WRITE,
+                    BluetoothGattCharacteristic.PERMISSION_READ | BluetoothGattCharacteristic.PERMISSION_WRITE);
+            instance.setInt(characteristic, NEXT_INSTANCE_ID.getAndIncrement());
+            service.addCharacteristic(characteristic);
+        }
+        return service;
+    }
+
+    /**
+     * The time the notifications are scheduled against.
+     */
+    public interface Clock {
+        /**
+         * Waits in real time, delivering the notifications at the pace of the trace.
+         */
+        Clock REAL = new Clock() {
+            @Override
+            public long nanoTime() {
+                return System.nanoTime();
+            }
+
+            @Override
+            public void waitUntil(final long nanos) {
+                long now = System.nanoTime();
+                while (now < nanos) {
+                    LockSupport.parkNanos(nanos - now);
+                    now = System.nanoTime();
+                }
+            }
+        };
+
+        long nanoTime();
+
+        void waitUntil(long nanos);
+    }
+
+    /**
+     * Skips the idle time between notifications instead of waiting for it, so a trace of any
+     * length replays as fast as the support processes it. The time spent in the support still
+     * passes, so lag is measured as with the real clock.
+     */
+    public static class VirtualClock implements Clock {
+        private long skippedNanos;
+
+        @Override
+        public long nanoTime() {
+            return System.nanoTime() + skippedNanos;
+        }
+
+        @Override
+        public void waitUntil(final long nanos) {
+            skippedNanos += Math.max(0, nanos - nanoTime());
+        }
+    }
+
+    /**
+     * Replays the trace in real time and disposes the support.
+     *
+     * @param speed         the multiple of real time, 1 replays the trace in its own duration
+     * @param committedRows counts the rows of the driver in the database
+     */
+    public Result replay(final BleNotificationTrace trace, final double speed, final LongSupplier committedRows) {
+        return replay(trace, speed, committedRows, Clock.REAL);
+    }
+
+    public Result replay(final BleNotificationTrace trace, final double speed, final LongSupplier committedRows,
+                         final Clock clock) {
+        final List<BleNotificationTrace.Notification> notifications = trace.getNotifications();
+        final long[] latencies = new long[notifications.size()];
+        final AllocationCounter allocations = AllocationCounter.create();
+        final long rowsBefore = committedRows.getAsLong();
+        long allocatedBytes = 0;
+        long maxLagNanos = 0;
+
+        final long start = clock.nanoTime();
+        for (int i = 0; i < latencies.length; i++) {
+            final BleNotificationTrace.Notification notification = notifications.get(i);
+            final BluetoothGattCharacteristic characteristic = characteristics.get(notification.getCharacteristic());
+            if (characteristic == null) {
+                throw new IllegalArgumentException("Unknown characteristic " + notification.getCharacteristic());
+            }
+
+            final long due = start + (long) (notification.getOffsetNanos() / speed);
+            clock.waitUntil(due);
+            maxLagNanos = Math.max(maxLagNanos, clock.nanoTime() - due);
+
+            final long allocatedBefore = allocations.get();
+            final long before = System.nanoTime();
+            support.onCharacteristicChanged(gatt, characteristic, notification.getValue());
+            latencies[i] = System.nanoTime() - before;
+            allocatedBytes += allocations.get() - allocatedBefore;
+        }
+        final long delivered = clock.nanoTime();
+        support.dispose();
+        final long drained = clock.nanoTime();
+
+        return new Result(speed, latencies, allocations.isSupported() ? allocatedBytes : -1, maxLagNanos,
+                delivered - start, drained - start, committedRows.getAsLong() - rowsBefore);
+    }
+
+    public static class Result {
+        private final double speed;
+        private final long[] sortedLatencies;
+        private final long allocatedBytes;
+        private final long maxLagNanos;
+        private final long deliveryNanos;
+        private final long totalNanos;
+        private final long committedRows;
+
+        Result(final double speed, final long[] latencies, final long allocatedBytes, final long maxLagNanos,
+               final long deliveryNanos, final long totalNanos, final long committedRows) {
+            this.speed = speed;
+            this.sortedLatencies = latencies.clone();
+            Arrays.sort(sortedLatencies);
+            this.allocatedBytes = allocatedBytes;
+            this.maxLagNanos = maxLagNanos;
+            this.deliveryNanos = deliveryNanos;
+            this.totalNanos = totalNanos;
+            this.committedRows = committedRows;
+        }
+
+        public int getNotifications() {
+            return sortedLatencies.length;
+        }
+
+        /**
+         * @param percentile between 0 and 100
+         */
+        public long getLatencyNanos(final double percentile) {
+            if (sortedLatencies.length == 0) {
+                return 0;
+            }
+            final int index = (int) Math.ceil(percentile / 100 * sortedLatencies.length) - 1;
+            return sortedLatencies[Math.max(0, Math.min(index, sortedLatencies.length - 1))];
+        }
+
+        public long getMaxLatencyNanos() {
+            return getLatencyNanos(100);
+        }
+
+        /**
+         * @return the bytes allocated on the delivering thread per notification, or -1 if the JVM
+         * does not count allocations per thread
+         */
+        public long getAllocatedBytesPerNotification() {
+            if (allocatedBytes < 0 || sortedLatencies.length == 0) {
+                return allocatedBytes;
+            }
+            return allocatedBytes / sortedLatencies.length;
+        }
+
+        /**
+         * @return how late the most delayed notification was delivered, because earlier ones took
+         * longer than the time between them
+         */
+        public long getMaxLagNanos() {
+            return maxLagNanos;
+        }
+
+        public long getDeliveryNanos() {
+            return deliveryNanos;
+        }
+
+        /**
+         * @return the time until all notifications were delivered and the support was disposed
+         */
+        public long getTotalNanos() {
+            return totalNanos;
+        }
+
+        public long getCommittedRows() {
+            return committedRows;
+        }
+
+        public double getCommittedRowsPerSecond() {
+            return totalNanos == 0 ? 0 : committedRows / (totalNanos / 1e9);
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT,
+                    "%.0fx: %d notifications in %.1fms, latency p50 %.1fus p99 %.1fus max %.1fus, max lag %.2fms, "
+                            + "%d bytes/notification, %d rows committed in %.1fms (%.0f rows/s)",
+                    speed, getNotifications(), deliveryNanos / 1e6,
+                    getLatencyNanos(50) / 1e3, getLatencyNanos(99) / 1e3, getMaxLatencyNanos() / 1e3,
+                    maxLagNanos / 1e6, getAllocatedBytesPerNotification(),
+                    committedRows, totalNanos / 1e6, getCommittedRowsPerSecond());
+        }
+    }
+
+    /**
+     * The bytes allocated by the current thread so far, if the JVM supports counting them.
+     */
+    private static class AllocationCounter {
+        private final com.sun.management.ThreadMXBean bean;
+        private final long threadId = Thread.currentThread().getId();
+
+        private AllocationCounter(final com.sun.management.ThreadMXBean bean) {
+            this.bean = bean;
+        }
+
+        static AllocationCounter create() {
+            final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+            if (bean instanceof com.sun.management.ThreadMXBean
+                    && ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()) {
+                final com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean) bean;
+                allocationBean.setThreadAllocatedMemoryEnabled(true);
+                return new AllocationCounter(allocationBean);
+            }
+            return new AllocationCounter(null);
+        }
+
+        boolean isSupported() {
+            return bean != null;
+        }
+
+        long get() {
+            return bean == null ? 0 : bean.getThreadAllocatedBytes(threadId);
+        }
+    }
+}
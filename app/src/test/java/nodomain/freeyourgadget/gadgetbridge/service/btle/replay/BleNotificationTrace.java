@@ -0,0 +1,95 @@
+package nodomain.freeyourgadget.gadgetbridge.service.btle.replay;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A sequence of characteristic notifications, each at an offset from the start of the trace, to be
+ * fed into a device support by a {@link BleNotificationReplayer}.
+ * <p>
+ * Traces are either synthesized with {@link #addPeriodic}, or built from a recording with
+ * {@link #add}.
+ */
+public class BleNotificationTrace {
+    public static class Notification {
+        private final long offsetNanos;
+        private final UUID characteristic;
+        private final byte[] value;
+
+        Notification(final long offsetNanos, final UUID characteristic, final byte[] value) {
+            this.offsetNanos = offsetNanos;
+            this.characteristic = characteristic;
+            this.value = value;
+        }
+
+        public long getOffsetNanos() {
+            return offsetNanos;
+        }
+
+        public UUID getCharacteristic() {
+            return characteristic;
+        }
+
+        public byte[] getValue() {
+            return value;
+        }
+    }
+
+    public interface ValueGenerator {
+        /**
+         * @param index  the number of the notification on this characteristic, starting at 0
+         * @param offset the offset of the notification from the start of the trace, in milliseconds
+         */
+        byte[] generate(int index, long offset);
+    }
+
+    private final List<Notification> notifications = new ArrayList<>();
+    private boolean sorted = true;
+
+    /**
+     * Adds a notification. The value is not copied.
+     */
+    public BleNotificationTrace add(final long offsetNanos, final UUID characteristic, final byte[] value) {
+        if (!notifications.isEmpty() && notifications.get(notifications.size() - 1).offsetNanos > offsetNanos) {
+            sorted = false;
+        }
+        notifications.add(new Notification(offsetNanos, characteristic, value));
+        return this;
+    }
+
+    /**
+     * Adds a notification on the characteristic every interval, for the duration of the trace.
+     */
+    public BleNotificationTrace addPeriodic(final UUID characteristic, final long intervalMillis,
+                                            final long durationMillis, final ValueGenerator generator) {
+        int index = 0;
+        for (long offset = 0; offset < durationMillis; offset += intervalMillis) {
+            add(TimeUnit.MILLISECONDS.toNanos(offset), characteristic, generator.generate(index++, offset));
+        }
+        return this;
+    }
+
+    /**
+     * @return the notifications, ordered by their offset
+     */
+    public List<Notification> getNotifications() {
+        if (!sorted) {
+            // stable, so that notifications at the same offset keep the order they were added in
+            Collections.sort(notifications, Comparator.comparingLong(Notification::getOffsetNanos));
+            sorted = true;
+        }
+        return notifications;
+    }
+
+    public int size() {
+        return notifications.size();
+    }
+
+    public long getDurationNanos() {
+        return notifications.isEmpty() ? 0 : getNotifications().get(notifications.size() - 1).offsetNanos;
+    }
+}
@@ -0,0 +1,154 @@
+package nodomain.freeyourgadget.gadgetbridge.service.devices.empatica;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import nodomain.freeyourgadget.gadgetbridge.devices.empatica.EmpaticaE4ActivitySampleProvider;
+
+public class EmpaticaE4ActivityProcessorTest {
+    private static final int SAMPLE_RATE = 32;
+
+    private static class RecordingListener implements EmpaticaE4ActivityProcessor.Listener {
+        final List<int[]> minutes = new ArrayList<>();
+
+        @Override
+        public void onActivityMinute(final int timestamp, final int rawIntensity, final int steps, final int rawKind, final int heartRate) {
+            minutes.add(new int[]{timestamp, rawIntensity, steps, rawKind, heartRate});
+        }
+    }
+
+    /**
+     * Synthesizes wrist acceleration with a vertical bounce at {@code stepsPerSecond} on top of
+     * gravity, quantized to 1/64 g like the E4 does.
+     */
+    private static long feed(final EmpaticaE4ActivityProcessor processor, final Random random, final long start,
+                             final int seconds, final double stepsPerSecond, final double amplitude) {
+        long timestamp = start;
+        for (int i = 0; i < seconds * SAMPLE_RATE; i++) {
+            timestamp = start + i * 1000L / SAMPLE_RATE;
+            final double t = i / (double) SAMPLE_RATE;
+            final double bounce = amplitude * Math.sin(2 * Math.PI * stepsPerSecond * t);
+            processor.add(timestamp,
+                    Math.round(random.nextGaussian() * 0.3),
+                    Math.round(random.nextGaussian() * 0.3),
+                    Math.round(64 * (1 + bounce) + random.nextGaussian() * 0.3));
+        }
+        return timestamp + 1000L / SAMPLE_RATE;
+    }
+
+    @Test
+    public void testWalkingAndResting() {
+        final RecordingListener listener = new RecordingListener();
+        final EmpaticaE4ActivityProcessor processor = new EmpaticaE4ActivityProcessor(SAMPLE_RATE, listener);
+        final Random random = new Random(1);
+
+        long timestamp = feed(processor, random, 0L, 5 * 60, 2.0, 0.4);
+        processor.addHeartRate(100);
+        timestamp = feed(processor, random, timestamp, 10 * 60, 0, 0);
+        processor.flush();
+
+        assertEquals(15, listener.minutes.size());
+        for (int i = 0; i < 15; i++) {
+            assertEquals(i * 60, listener.minutes.get(i)[0]);
+        }
+        // the first minute includes the steps needed to detect walking
+        for (int i = 0; i < 5; i++) {
+            final int[] minute = listener.minutes.get(i);
+            assertEquals(120, minute[2], 2);
+            assertEquals(EmpaticaE4ActivitySampleProvider.RAW_KIND_WALKING, minute[3]);
+        }
+        assertEquals(100, listener.minutes.get(4)[4]);
+        // the filters delay the last step into the next minute
+        assertTrue(listener.minutes.get(5)[2] <= 1);
+        assertEquals(-1, listener.minutes.get(5)[4]);
+        for (int i = 6; i < 15; i++) {
+            final int[] minute = listener.minutes.get(i);
+            assertEquals(0, minute[2]);
+            assertEquals(-1, minute[4]);
+            assertTrue(minute[1] < 10);
+        }
+        // far enough from the walk, resting minutes are scored as sleep
+        assertEquals(EmpaticaE4ActivitySampleProvider.RAW_KIND_SLEEP, listener.minutes.get(12)[3]);
+    }
+
+    @Test
+    public void testIsolatedMovementsAreNoSteps() {
+        final RecordingListener listener = new RecordingListener();
+        final EmpaticaE4ActivityProcessor processor = new EmpaticaE4ActivityProcessor(SAMPLE_RATE, listener);
+        final Random random = new Random(1);
+
+        long timestamp = 0;
+        for (int i = 0; i < 20; i++) {
+            // a single movement every 3 seconds
+            timestamp = feed(processor, random, timestamp, 1, 1.0, 0.5);
+            timestamp = feed(processor, random, timestamp, 2, 0, 0);
+        }
+        processor.flush();
+
+        for (final int[] minute : listener.minutes) {
+            assertEquals(0, minute[2]);
+        }
+    }
+
+    @Test
+    public void testGapReportsPendingMinutes() {
+        final RecordingListener listener = new RecordingListener();
+        final EmpaticaE4ActivityProcessor processor = new EmpaticaE4ActivityProcessor(SAMPLE_RATE, listener);
+        final Random random = new Random(1);
+
+        feed(processor, random, 0L, 3 * 60, 0, 0);
+        // the last minutes are held back for sleep scoring
+        assertEquals(0, listener.minutes.size());
+        feed(processor, random, 10 * 60_000L, 60, 0, 0);
+        assertEquals(3, listener.minutes.size());
+    }
+
+    /**
+     * Reduces 3 hours of backlog and checks that this does not allocate per sample.
+     */
+    @Test
+    public void testBacklogDoesNotAllocate() {
+        final java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        final com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+
+        final int[] minutes = {0};
+        final EmpaticaE4ActivityProcessor processor = new EmpaticaE4ActivityProcessor(SAMPLE_RATE,
+                (timestamp, rawIntensity, steps, rawKind, heartRate) -> minutes[0]++);
+        final EmpaticaE4SampleRing ring = new EmpaticaE4SampleRing(256, 3);
+        final int samples = 3 * 60 * 60 * SAMPLE_RATE;
+
+        // warm up, so that JIT compilation does not show up in the measurement
+        runBacklog(processor, ring, 0, samples / 10);
+
+        final long threadId = Thread.currentThread().getId();
+        final long before = threadBean.getThreadAllocatedBytes(threadId);
+        runBacklog(processor, ring, samples / 10, samples);
+        final long allocated = threadBean.getThreadAllocatedBytes(threadId) - before;
+
+        assertTrue("allocated " + allocated + " bytes for " + samples + " samples", allocated < 1024);
+        // all but the current minute and the ones held back for sleep scoring
+        assertEquals(3 * 60 - 3, minutes[0]);
+    }
+
+    private static void runBacklog(final EmpaticaE4ActivityProcessor processor, final EmpaticaE4SampleRing ring,
+                                   final int from, final int to) {
+        for (int i = from; i < to; i++) {
+            ring.offer(i * 1000L / SAMPLE_RATE, i % 7, i % 5, 64 + i % 3);
+            if (ring.size() == 256) {
+                processor.process(ring);
+                ring.clear();
+            }
+        }
+    }
+}
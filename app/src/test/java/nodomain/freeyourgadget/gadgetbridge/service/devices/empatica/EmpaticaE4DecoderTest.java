@@ -0,0 +1,177 @@
+package nodomain.freeyourgadget.gadgetbridge.service.devices.empatica;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+public class EmpaticaE4DecoderTest {
+    private static final int BVP_HANDLE = 0x21;
+    private static final int GSR_HANDLE = 0x24;
+    private static final int ACC_HANDLE = 0x27;
+    private static final int ST_HANDLE = 0x2a;
+
+    private static EmpaticaE4Decoder createDecoder() {
+        final EmpaticaE4Decoder decoder = new EmpaticaE4Decoder();
+        decoder.setHandle(EmpaticaE4Decoder.STREAM_BVP, BVP_HANDLE);
+        decoder.setHandle(EmpaticaE4Decoder.STREAM_GSR, GSR_HANDLE);
+        decoder.setHandle(EmpaticaE4Decoder.STREAM_ACC, ACC_HANDLE);
+        decoder.setHandle(EmpaticaE4Decoder.STREAM_ST, ST_HANDLE);
+        return decoder;
+    }
+
+    private static byte[] floats(final float... values) {
+        final ByteBuffer buf = ByteBuffer.allocate(values.length * 4).order(ByteOrder.LITTLE_ENDIAN);
+        for (final float value : values) {
+            buf.putFloat(value);
+        }
+        return buf.array();
+    }
+
+    @Test
+    public void testDispatchOnHandle() {
+        final EmpaticaE4Decoder decoder = createDecoder();
+        assertEquals(EmpaticaE4Decoder.STREAM_BVP, decoder.streamForHandle(BVP_HANDLE));
+        assertEquals(EmpaticaE4Decoder.STREAM_GSR, decoder.streamForHandle(GSR_HANDLE));
+        assertEquals(EmpaticaE4Decoder.STREAM_ACC, decoder.streamForHandle(ACC_HANDLE));
+        assertEquals(EmpaticaE4Decoder.STREAM_ST, decoder.streamForHandle(ST_HANDLE));
+        assertEquals(EmpaticaE4Decoder.STREAM_UNKNOWN, decoder.streamForHandle(0x99));
+    }
+
+    @Test
+    public void testDecodeBvp() {
+        final EmpaticaE4Decoder decoder = createDecoder();
+        assertEquals(4, decoder.decode(EmpaticaE4Decoder.STREAM_BVP, floats(1.5f, -2.25f, 0f, 42f), 10_000L));
+
+        final EmpaticaE4SampleRing ring = decoder.getRing(EmpaticaE4Decoder.STREAM_BVP);
+        assertEquals(4, ring.size());
+        final float[] expected = {1.5f, -2.25f, 0f, 42f};
+        final long[] expectedTimestamps = {10_000L - 47, 10_000L - 31, 10_000L - 16, 10_000L};
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expectedTimestamps[i], ring.peekTimestamp());
+            assertEquals(expected[i], ring.peekValue(0), 0f);
+            ring.remove();
+        }
+        assertTrue(ring.isEmpty());
+    }
+
+    @Test
+    public void testDecodeAcc() {
+        final EmpaticaE4Decoder decoder = createDecoder();
+        assertEquals(2, decoder.decode(EmpaticaE4Decoder.STREAM_ACC, new byte[]{64, -64, 0, 1, 2, -3}, 10_000L));
+
+        final EmpaticaE4SampleRing ring = decoder.getRing(EmpaticaE4Decoder.STREAM_ACC);
+        assertEquals(64f, ring.peekValue(0), 0f);
+        assertEquals(-64f, ring.peekValue(1), 0f);
+        assertEquals(0f, ring.peekValue(2), 0f);
+        ring.remove();
+        assertEquals(1f, ring.peekValue(0), 0f);
+        assertEquals(2f, ring.peekValue(1), 0f);
+        assertEquals(-3f, ring.peekValue(2), 0f);
+    }
+
+    @Test
+    public void testTimestampsStayMonotonic() {
+        final EmpaticaE4Decoder decoder = createDecoder();
+        // two notifications arriving at the same time must not overlap
+        decoder.decode(EmpaticaE4Decoder.STREAM_GSR, floats(1f, 2f), 10_000L);
+        decoder.decode(EmpaticaE4Decoder.STREAM_GSR, floats(3f, 4f), 10_000L);
+
+        final EmpaticaE4SampleRing ring = decoder.getRing(EmpaticaE4Decoder.STREAM_GSR);
+        long previous = Long.MIN_VALUE;
+        while (!ring.isEmpty()) {
+            assertTrue(ring.peekTimestamp() > previous);
+            previous = ring.peekTimestamp();
+            ring.remove();
+        }
+    }
+
+    @Test
+    public void testRingDropsWhenFull() {
+        final EmpaticaE4SampleRing ring = new EmpaticaE4SampleRing(4, 1);
+        for (int i = 0; i < 6; i++) {
+            ring.offer(i, i);
+        }
+        assertEquals(4, ring.size());
+        assertEquals(2, ring.getDropped());
+        assertEquals(0f, ring.peekValue(0), 0f);
+    }
+
+    @Test
+    public void testBatchOfLargestNotificationsFitsRing() {
+        final EmpaticaE4Decoder decoder = new EmpaticaE4Decoder();
+        final byte[] data = new byte[244];
+        final int batch = EmpaticaE4Decoder.RING_CAPACITY / EmpaticaE4Decoder.getMaxSamples(data.length);
+        for (int i = 0; i < batch; i++) {
+            decoder.decode(EmpaticaE4Decoder.STREAM_ACC, data, 1000L * i);
+        }
+        assertEquals(0, decoder.getDropped());
+
+        // one more notification would not fit anymore
+        decoder.decode(EmpaticaE4Decoder.STREAM_ACC, data, 1000L * batch);
+        assertTrue(decoder.getDropped() > 0);
+    }
+
+    /**
+     * Microbenchmark-style check that decoding and draining a notification does not allocate.
+     */
+    @Test
+    public void testDecodeDoesNotAllocate() {
+        final java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        final com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+
+        final EmpaticaE4Decoder decoder = createDecoder();
+        final byte[] bvp = floats(1f, 2f, 3f, 4f, 5f, 6f, 7f, 8f, 9f, 10f, 11f, 12f, 13f, 14f, 15f, 16f);
+        final byte[] gsr = floats(0.1f);
+        final byte[] acc = new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 17, 18};
+        final byte[] st = floats(33.5f);
+
+        // warm up, so that JIT compilation does not show up in the measurement
+        final int warmup = 50_000;
+        final int iterations = 100_000;
+        long now = 0;
+        for (int i = 0; i < warmup; i++) {
+            now += 10;
+            notify(decoder, BVP_HANDLE, bvp, now);
+            notify(decoder, GSR_HANDLE, gsr, now);
+            notify(decoder, ACC_HANDLE, acc, now);
+            notify(decoder, ST_HANDLE, st, now);
+        }
+
+        final long threadId = Thread.currentThread().getId();
+        final long before = threadBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < iterations; i++) {
+            now += 10;
+            notify(decoder, BVP_HANDLE, bvp, now);
+            notify(decoder, GSR_HANDLE, gsr, now);
+            notify(decoder, ACC_HANDLE, acc, now);
+            notify(decoder, ST_HANDLE, st, now);
+        }
+        final long allocated = threadBean.getThreadAllocatedBytes(threadId) - before;
+
+        // allow for the measurement itself, but nothing that scales with the notification count
+        assertTrue("allocated " + allocated + " bytes for " + iterations * 4 + " notifications", allocated < 1024);
+    }
+
+    private static float notify(final EmpaticaE4Decoder decoder, final int handle, final byte[] data, final long now) {
+        final int stream = decoder.streamForHandle(handle);
+        decoder.decode(stream, data, now);
+
+        // consume everything like the writer would
+        final EmpaticaE4SampleRing ring = decoder.getRing(stream);
+        float sum = 0;
+        while (!ring.isEmpty()) {
+            sum += ring.peekValue(0) + ring.peekTimestamp();
+            ring.remove();
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,99 @@
+package nodomain.freeyourgadget.gadgetbridge.service.devices.empatica;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class EmpaticaE4EdaProcessorTest {
+    private static final int SAMPLE_RATE = 4;
+
+    private static class RecordingListener implements EmpaticaE4EdaProcessor.Listener {
+        final List<Long> timestamps = new ArrayList<>();
+        final List<Integer> stress = new ArrayList<>();
+        final List<Boolean> partial = new ArrayList<>();
+
+        @Override
+        public void onStress(final long timestamp, final int value, final boolean partialMinute) {
+            timestamps.add(timestamp);
+            stress.add(value);
+            partial.add(partialMinute);
+        }
+    }
+
+    /**
+     * Synthesizes a slowly drifting tonic level with {@code responsesPerMinute} evenly spaced SCRs
+     * of 0.2 µS, each rising over 2 seconds and recovering over 6 seconds.
+     */
+    private static void feed(final EmpaticaE4EdaProcessor processor, final long start, final double minutes, final int responsesPerMinute) {
+        final double responseInterval = responsesPerMinute > 0 ? 60_000.0 / responsesPerMinute : Double.MAX_VALUE;
+        for (int i = 0; i < minutes * 60 * SAMPLE_RATE; i++) {
+            final double t = i * 1000.0 / SAMPLE_RATE;
+            final double tonic = 2.0 + 0.5 * Math.sin(2 * Math.PI * t / 1_800_000.0);
+            final double sinceResponse = t % responseInterval;
+            final double phasic;
+            if (sinceResponse < 2000) {
+                phasic = 0.2 * sinceResponse / 2000;
+            } else {
+                phasic = 0.2 * Math.exp(-(sinceResponse - 2000) / 2000);
+            }
+            processor.add(start + Math.round(t), (float) (tonic + phasic));
+        }
+    }
+
+    @Test
+    public void testStressFollowsResponseRate() {
+        final RecordingListener calm = new RecordingListener();
+        feed(new EmpaticaE4EdaProcessor(SAMPLE_RATE, calm), 0L, 10, 1);
+        final RecordingListener aroused = new RecordingListener();
+        feed(new EmpaticaE4EdaProcessor(SAMPLE_RATE, aroused), 0L, 10, 6);
+
+        assertEquals(9, calm.stress.size());
+        assertEquals(9, aroused.stress.size());
+        final int calmLevel = calm.stress.get(calm.stress.size() - 1);
+        final int arousedLevel = aroused.stress.get(aroused.stress.size() - 1);
+        assertTrue("calm " + calmLevel, calmLevel < 40);
+        assertTrue("aroused " + arousedLevel, arousedLevel >= 40 && arousedLevel < 80);
+        assertEquals(60_000L, (long) calm.timestamps.get(0));
+        assertTrue(calm.partial.stream().noneMatch(partial -> partial));
+    }
+
+    @Test
+    public void testPartialMinuteIsReported() {
+        final RecordingListener listener = new RecordingListener();
+        final EmpaticaE4EdaProcessor processor = new EmpaticaE4EdaProcessor(SAMPLE_RATE, listener);
+        feed(processor, 0L, 2.5, 6);
+        // the gap ends the minute in progress
+        feed(processor, 600_000L, 2, 6);
+        processor.flush();
+
+        assertEquals(Arrays.asList(60_000L, 120_000L, 150_000L, 660_000L, 720_000L), listener.timestamps);
+        assertEquals(Arrays.asList(false, false, true, false, true), listener.partial);
+        // scaled to the half minute it covers, so the level does not drop
+        assertEquals(listener.stress.get(1), listener.stress.get(2), 10);
+    }
+
+    @Test
+    public void testTonicTracksBaseline() {
+        final EmpaticaE4EdaProcessor processor = new EmpaticaE4EdaProcessor(SAMPLE_RATE, (timestamp, stress, partial) -> {
+        });
+        feed(processor, 0L, 5, 6);
+        final double expectedTonic = 2.0 + 0.5 * Math.sin(2 * Math.PI * 300_000.0 / 1_800_000.0);
+        assertEquals(expectedTonic, processor.getTonic(), 0.05);
+        assertTrue(processor.getPhasic() >= 0);
+    }
+
+    @Test
+    public void testNoStressWithoutSkinContact() {
+        final RecordingListener listener = new RecordingListener();
+        final EmpaticaE4EdaProcessor processor = new EmpaticaE4EdaProcessor(SAMPLE_RATE, listener);
+        for (int i = 0; i < 5 * 60 * SAMPLE_RATE; i++) {
+            processor.add(i * 1000L / SAMPLE_RATE, 0.01f);
+        }
+        assertTrue(listener.stress.isEmpty());
+    }
+}
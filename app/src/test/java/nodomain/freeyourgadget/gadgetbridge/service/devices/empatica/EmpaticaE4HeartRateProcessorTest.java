@@ -0,0 +1,112 @@
+package nodomain.freeyourgadget.gadgetbridge.service.devices.empatica;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class EmpaticaE4HeartRateProcessorTest {
+    private static final int SAMPLE_RATE = 64;
+
+    private static class RecordingListener implements EmpaticaE4HeartRateProcessor.Listener {
+        final List<Integer> heartRates = new ArrayList<>();
+        final List<Integer> ibis = new ArrayList<>();
+        final List<Integer> hrv = new ArrayList<>();
+
+        @Override
+        public void onHeartRate(final long timestamp, final int heartRate) {
+            heartRates.add(heartRate);
+        }
+
+        @Override
+        public void onIbi(final long timestamp, final int ibi) {
+            ibis.add(ibi);
+        }
+
+        @Override
+        public void onHrv(final long timestamp, final int rmssd) {
+            hrv.add(rmssd);
+        }
+    }
+
+    /**
+     * Synthesizes a pulse wave with beats alternating between {@code ibi1} and {@code ibi2}
+     * milliseconds apart, with baseline wander and noise.
+     */
+    private static void feed(final EmpaticaE4HeartRateProcessor processor, final long start, final long durationMs,
+                             final double ibi1, final double ibi2) {
+        final Random random = new Random(1);
+        double nextBeat = 500;
+        double previousBeat = 0;
+        int beat = 0;
+        for (int i = 0; i * 1000L / SAMPLE_RATE < durationMs; i++) {
+            final double t = i * 1000.0 / SAMPLE_RATE;
+            if (t >= nextBeat) {
+                previousBeat = nextBeat;
+                nextBeat += beat++ % 2 == 0 ? ibi1 : ibi2;
+            }
+            // systolic upstroke followed by a slower decay and a small dicrotic wave
+            final double phase = (t - previousBeat) / 1000.0;
+            final double pulse = 80 * Math.exp(-Math.pow((phase - 0.12) / 0.05, 2))
+                    + 20 * Math.exp(-Math.pow((phase - 0.35) / 0.06, 2));
+            final double wander = 30 * Math.sin(2 * Math.PI * 0.1 * t / 1000.0);
+            processor.add(start + Math.round(t), (float) (pulse + wander + random.nextGaussian() * 2));
+        }
+    }
+
+    @Test
+    public void testHeartRateAndHrv() {
+        final RecordingListener listener = new RecordingListener();
+        final EmpaticaE4HeartRateProcessor processor = new EmpaticaE4HeartRateProcessor(SAMPLE_RATE, listener);
+        // 75 bpm on average, successive differences of 40ms
+        feed(processor, 1_000_000L, 11 * 60_000L, 780, 820);
+
+        assertTrue(listener.heartRates.size() > 500);
+        for (final int heartRate : listener.heartRates.subList(10, listener.heartRates.size())) {
+            assertEquals(75, heartRate, 2);
+        }
+
+        assertTrue(listener.ibis.size() > 500);
+        for (final int ibi : listener.ibis) {
+            assertEquals(800, ibi, 40);
+        }
+
+        assertEquals(2, listener.hrv.size());
+        for (final int rmssd : listener.hrv) {
+            assertEquals(40, rmssd, 8);
+        }
+    }
+
+    @Test
+    public void testNoBeatsInFlatSignal() {
+        final RecordingListener listener = new RecordingListener();
+        final EmpaticaE4HeartRateProcessor processor = new EmpaticaE4HeartRateProcessor(SAMPLE_RATE, listener);
+        for (int i = 0; i < SAMPLE_RATE * 60; i++) {
+            processor.add(i * 1000L / SAMPLE_RATE, 12.5f);
+        }
+        assertTrue(listener.heartRates.isEmpty());
+        assertTrue(listener.ibis.isEmpty());
+        assertTrue(listener.hrv.isEmpty());
+    }
+
+    @Test
+    public void testGapResetsState() {
+        final RecordingListener listener = new RecordingListener();
+        final EmpaticaE4HeartRateProcessor processor = new EmpaticaE4HeartRateProcessor(SAMPLE_RATE, listener);
+        feed(processor, 0L, 4 * 60_000L, 800, 800);
+        assertFalse(listener.heartRates.isEmpty());
+
+        // a gap in the middle of the HRV window must not produce a bogus interval
+        listener.heartRates.clear();
+        feed(processor, 10 * 60_000L, 4 * 60_000L, 600, 600);
+        for (final int heartRate : listener.heartRates) {
+            assertEquals(100, heartRate, 2);
+        }
+        assertTrue(listener.hrv.isEmpty());
+    }
+}
@@ -0,0 +1,217 @@
+package nodomain.freeyourgadget.gadgetbridge.service.devices.empatica;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+import nodomain.freeyourgadget.gadgetbridge.database.SampleIngestionService;
+import nodomain.freeyourgadget.gadgetbridge.devices.empatica.EmpaticaE4SessionFile;
+import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
+import nodomain.freeyourgadget.gadgetbridge.model.DeviceType;
+
+/**
+ * Replays recorded sessions of several E4s concurrently, each through its own decoder and writer,
+ * into one shared {@link SampleIngestionService}, and reports the sustained throughput and the
+ * time spent waiting for the database lock.
+ */
+public class EmpaticaE4MultiDeviceLoadTest {
+    private static final int DEVICES = 4;
+    private static final int MINUTES = 10;
+    private static final long START = 1_700_000_000_000L;
+    // cost of inserting one row while holding the lock
+    private static final long ROW_COST_NANOS = 2_000L;
+    // the drain batch of the pipeline
+    private static final int DRAIN_BATCH = 64;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Stands in for the global DB lock, which other threads contend on as well.
+     */
+    private static class LockingStore implements SampleIngestionService.Store<LockingStore.Handle> {
+        final ReentrantLock lock = new ReentrantLock();
+        final Map<String, AtomicLong> rowsPerDevice = new ConcurrentHashMap<>();
+        final AtomicLong rows = new AtomicLong();
+
+        class Handle implements AutoCloseable {
+            @Override
+            public void close() {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public Handle acquire() {
+            lock.lock();
+            return new Handle();
+        }
+
+        @Override
+        public void persist(final Handle handle, final Map<Class<?>, List<SampleIngestionService.Pending>> samples) {
+            long batchRows = 0;
+            for (final List<SampleIngestionService.Pending> list : samples.values()) {
+                for (final SampleIngestionService.Pending pending : list) {
+                    rowsPerDevice.computeIfAbsent(pending.getDevice().getAddress(), address -> new AtomicLong())
+                            .incrementAndGet();
+                }
+                batchRows += list.size();
+            }
+            rows.addAndGet(batchRows);
+            LockSupport.parkNanos(batchRows * ROW_COST_NANOS);
+        }
+    }
+
+    private static byte[] floatFrame(final int count, final float base) {
+        final byte[] frame = new byte[count * 4];
+        for (int i = 0; i < count; i++) {
+            final int bits = Float.floatToIntBits(base + i * 0.01f);
+            for (int b = 0; b < 4; b++) {
+                frame[i * 4 + b] = (byte) (bits >> (8 * b));
+            }
+        }
+        return frame;
+    }
+
+    /**
+     * Records a session with the notification pattern of the E4: BVP and ACC every 250ms, EDA and
+     * temperature every second.
+     *
+     * @return the number of samples in the session
+     */
+    private static long recordSession(final File dir, final String address) throws IOException {
+        final EmpaticaE4SessionRecorder recorder = EmpaticaE4SessionRecorder.open(dir, address, START);
+        final byte[] acc = new byte[8 * 3];
+        long samples = 0;
+        for (int quarter = 0; quarter < MINUTES * 60 * 4; quarter++) {
+            final long timestamp = START + quarter * 250L;
+            recorder.append(EmpaticaE4Decoder.STREAM_BVP, timestamp, floatFrame(16, quarter % 100), 0, 64);
+            for (int i = 0; i < acc.length; i++) {
+                acc[i] = (byte) ((quarter + i) % 64);
+            }
+            recorder.append(EmpaticaE4Decoder.STREAM_ACC, timestamp, acc, 0, acc.length);
+            samples += 16 + 8;
+            if (quarter % 4 == 3) {
+                recorder.append(EmpaticaE4Decoder.STREAM_GSR, timestamp, floatFrame(4, 0.002f), 0, 16);
+                recorder.append(EmpaticaE4Decoder.STREAM_ST, timestamp, floatFrame(4, 33f), 0, 16);
+                samples += 4 + 4;
+            }
+        }
+        recorder.close();
+        return samples;
+    }
+
+    @Test
+    public void testConcurrentDevices() throws Exception {
+        final File dir = folder.newFolder();
+        final List<File> sessions = new ArrayList<>();
+        long totalSamples = 0;
+        for (int device = 0; device < DEVICES; device++) {
+            final String address = String.format(Locale.ROOT, "AA:BB:CC:DD:EE:%02X", device);
+            totalSamples += recordSession(dir, address);
+            sessions.add(EmpaticaE4SessionFile.list(dir).get(0));
+        }
+
+        final LockingStore store = new LockingStore();
+        final SampleIngestionService service = new SampleIngestionService(store, 50, 1000);
+        final List<EmpaticaE4SampleWriter> writers = new ArrayList<>();
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Thread> replays = new ArrayList<>();
+        final List<Throwable> errors = new ArrayList<>();
+        for (final File session : sessions) {
+            final Thread replay = new Thread(() -> {
+                try {
+                    replay(session, service, writers, start);
+                } catch (final Throwable e) {
+                    synchronized (errors) {
+                        errors.add(e);
+                    }
+                }
+            });
+            replay.start();
+            replays.add(replay);
+        }
+
+        // a reader, such as a chart, that holds the lock for 2ms every 10ms
+        final Thread reader = new Thread(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                store.lock.lock();
+                try {
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(2));
+                } finally {
+                    store.lock.unlock();
+                }
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+            }
+        });
+        reader.start();
+
+        final long startTime = System.nanoTime();
+        start.countDown();
+        for (final Thread replay : replays) {
+            replay.join();
+        }
+        final long elapsed = System.nanoTime() - startTime;
+        reader.interrupt();
+        reader.join();
+
+        assertTrue(errors.toString(), errors.isEmpty());
+        assertEquals(0, service.getFailedFlushes());
+        assertEquals(DEVICES, writers.size());
+        for (final EmpaticaE4SampleWriter writer : writers) {
+            assertEquals(totalSamples / DEVICES, writer.getTakenSamples());
+        }
+        assertEquals(DEVICES, store.rowsPerDevice.size());
+        assertEquals(store.rows.get(), service.getCommittedSamples());
+
+        System.out.printf(Locale.ROOT,
+                "%d E4s, %d samples in %.1fms: %.0f samples/s, %d flushes, %d rows%n",
+                DEVICES, totalSamples, elapsed / 1e6, totalSamples / (elapsed / 1e9),
+                service.getFlushes(), store.rows.get());
+        System.out.printf(Locale.ROOT,
+                "lock wait: %.2fms total, %.2fms max, %.3fms/flush; committing: %.2fms total%n",
+                service.getLockWaitNanos() / 1e6, service.getMaxLockWaitNanos() / 1e6,
+                service.getLockWaitNanos() / 1e6 / service.getFlushes(), service.getCommitNanos() / 1e6);
+    }
+
+    /**
+     * Feeds a session through a decoder and writer of its own, as the pipeline of a device does.
+     */
+    private static void replay(final File session, final SampleIngestionService service,
+                               final List<EmpaticaE4SampleWriter> writers, final CountDownLatch start) throws Exception {
+        final EmpaticaE4SessionFile.Info info = EmpaticaE4SessionFile.scan(session, null);
+        final GBDevice device = new GBDevice(info.getAddress(), "Empatica E4", null, null, DeviceType.TEST);
+        final EmpaticaE4Decoder decoder = new EmpaticaE4Decoder();
+        final EmpaticaE4SampleWriter writer = new EmpaticaE4SampleWriter(device, service);
+        synchronized (writers) {
+            writers.add(writer);
+        }
+        final int[] frames = {0};
+
+        start.await();
+        EmpaticaE4SessionFile.scan(session, (stream, timestamp, data, offset, length) -> {
+            decoder.decode(stream, data, offset, length, timestamp);
+            if (++frames[0] % DRAIN_BATCH == 0) {
+                writer.drain(decoder);
+            }
+        });
+        writer.drain(decoder);
+        writer.close();
+    }
+}
@@ -0,0 +1,155 @@
+package nodomain.freeyourgadget.gadgetbridge.service.devices.empatica;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import nodomain.freeyourgadget.gadgetbridge.devices.empatica.EmpaticaE4SessionExporter;
+import nodomain.freeyourgadget.gadgetbridge.devices.empatica.EmpaticaE4SessionFile;
+
+public class EmpaticaE4SessionRecorderTest {
+    private static final String ADDRESS = "AA:BB:CC:DD:EE:FF";
+    private static final long START = 1_700_000_000_000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static byte[] bvpFrame(final int seed) {
+        // 4 floats, as notified by the E4
+        final byte[] frame = new byte[16];
+        for (int i = 0; i < 4; i++) {
+            final int bits = Float.floatToIntBits(seed + i * 0.25f);
+            for (int b = 0; b < 4; b++) {
+                frame[i * 4 + b] = (byte) (bits >> (8 * b));
+            }
+        }
+        return frame;
+    }
+
+    /**
+     * Records one BVP notification every 62.5 ms, as the E4 sends them.
+     */
+    private static void record(final EmpaticaE4SessionRecorder recorder, final int frames) {
+        for (int i = 0; i < frames; i++) {
+            assertTrue(recorder.append(EmpaticaE4Decoder.STREAM_BVP, START + i * 1000L / 16, bvpFrame(i), 0, 16));
+        }
+    }
+
+    private static List<byte[]> readFrames(final File file) throws IOException {
+        final List<byte[]> frames = new ArrayList<>();
+        EmpaticaE4SessionFile.scan(file, (stream, timestamp, data, offset, length) ->
+                frames.add(Arrays.copyOfRange(data, offset, offset + length)));
+        return frames;
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        final File dir = folder.newFolder();
+        final EmpaticaE4SessionRecorder recorder = EmpaticaE4SessionRecorder.open(dir, ADDRESS, START);
+        record(recorder, 1000);
+        // not closed yet, but not to be mistaken for an abandoned session
+        assertTrue(EmpaticaE4SessionRecorder.isRecording(recorder.getFile()));
+        recorder.close();
+        assertFalse(EmpaticaE4SessionRecorder.isRecording(recorder.getFile()));
+
+        final EmpaticaE4SessionFile.Info info = EmpaticaE4SessionFile.scan(recorder.getFile(), null);
+        assertTrue(info.isClosed());
+        assertFalse(info.isRecovered());
+        assertEquals(ADDRESS, info.getAddress());
+        assertEquals(START, info.getStartTime());
+        assertEquals(1000, info.getFrames());
+        assertEquals(0, info.getSkippedBytes());
+        assertEquals(recorder.getFile().length(), info.getValidEnd());
+
+        final List<byte[]> frames = readFrames(recorder.getFile());
+        assertEquals(1000, frames.size());
+        assertArrayEquals(bvpFrame(999), frames.get(999));
+    }
+
+    @Test
+    public void testRecoversUnclosedSession() throws IOException {
+        final File dir = folder.newFolder();
+        final EmpaticaE4SessionRecorder crashed = EmpaticaE4SessionRecorder.open(dir, ADDRESS, START);
+        record(crashed, 500);
+        // not closed, as if the process was killed
+
+        final EmpaticaE4SessionFile.Info before = EmpaticaE4SessionFile.scan(crashed.getFile(), null);
+        assertFalse(before.isClosed());
+        assertEquals(500, before.getFrames());
+
+        final EmpaticaE4SessionRecorder next = EmpaticaE4SessionRecorder.open(dir, ADDRESS, START + 3_600_000L);
+        next.close();
+
+        final EmpaticaE4SessionFile.Info recovered = EmpaticaE4SessionFile.scan(crashed.getFile(), null);
+        assertTrue(recovered.isClosed());
+        assertTrue(recovered.isRecovered());
+        assertEquals(500, recovered.getFrames());
+        // the zero-filled tail of the mapped region was truncated
+        assertEquals(crashed.getFile().length(), recovered.getValidEnd());
+        assertEquals(2, EmpaticaE4SessionFile.list(dir).size());
+    }
+
+    @Test
+    public void testSkipsCorruptRecordsToNextSync() throws IOException {
+        final File dir = folder.newFolder();
+        final EmpaticaE4SessionRecorder recorder = EmpaticaE4SessionRecorder.open(dir, ADDRESS, START);
+        // 20 seconds, so that there are sync records every 5 seconds
+        record(recorder, 320);
+        recorder.close();
+
+        // damage the payload of the 10th frame
+        try (RandomAccessFile raf = new RandomAccessFile(recorder.getFile(), "rw")) {
+            final long position = EmpaticaE4SessionFile.HEADER_SIZE + 9L * (EmpaticaE4SessionFile.RECORD_OVERHEAD + 16) + 14;
+            raf.seek(position);
+            raf.write(0x55);
+        }
+
+        final List<byte[]> frames = readFrames(recorder.getFile());
+        final EmpaticaE4SessionFile.Info info = EmpaticaE4SessionFile.scan(recorder.getFile(), null);
+        assertTrue(info.getSkippedBytes() > 0);
+        // the frames up to the sync record written after the frame at 5 seconds are lost
+        assertEquals(9 + 320 - 81, frames.size());
+        assertArrayEquals(bvpFrame(8), frames.get(8));
+        assertArrayEquals(bvpFrame(81), frames.get(9));
+    }
+
+    @Test
+    public void testExport() throws IOException {
+        final File dir = folder.newFolder();
+        final EmpaticaE4SessionRecorder recorder = EmpaticaE4SessionRecorder.open(dir, ADDRESS, START);
+        record(recorder, 160);
+        recorder.close();
+
+        final List<File> csvFiles = EmpaticaE4SessionExporter.exportCsv(recorder.getFile(), dir);
+        assertEquals(4, csvFiles.size());
+        final List<String> bvp = Files.readAllLines(csvFiles.get(0).toPath(), StandardCharsets.UTF_8);
+        assertEquals("timestamp,bvp", bvp.get(0));
+        assertEquals(1 + 160 * 4, bvp.size());
+
+        final File edf = EmpaticaE4SessionExporter.exportEdf(recorder.getFile(), dir);
+        final byte[] content = Files.readAllBytes(edf.toPath());
+        final int signals = 6;
+        final int headerSize = 256 * (signals + 1);
+        final String header = new String(content, 0, 256, StandardCharsets.US_ASCII);
+        final int records = Integer.parseInt(header.substring(236, 244).trim());
+        assertEquals(signals, Integer.parseInt(header.substring(252, 256).trim()));
+        assertEquals(headerSize, Integer.parseInt(header.substring(184, 192).trim()));
+        // 64 + 4 + 3 * 32 + 4 samples of 2 bytes per data record
+        assertEquals(headerSize + records * 168 * 2, content.length);
+        assertTrue(records >= 10 && records <= 11);
+    }
+}
@@ -0,0 +1,89 @@
+package nodomain.freeyourgadget.gadgetbridge.service.devices.empatica;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import nodomain.freeyourgadget.gadgetbridge.entities.EmpaticaE4WaveformChunk;
+import nodomain.freeyourgadget.gadgetbridge.util.FloatXorCodec;
+
+public class EmpaticaE4WaveformChunkerTest {
+    private static void add(final EmpaticaE4WaveformChunker chunker, final long timestamp, final float value, final List<EmpaticaE4WaveformChunk> out) {
+        final EmpaticaE4SampleRing ring = new EmpaticaE4SampleRing(1, 1);
+        ring.offer(timestamp, value);
+        chunker.add(ring, out);
+    }
+
+    @Test
+    public void testSplitsOnDuration() {
+        final EmpaticaE4WaveformChunker chunker = new EmpaticaE4WaveformChunker(0, 1, 4);
+        final List<EmpaticaE4WaveformChunk> out = new ArrayList<>();
+        // 90 seconds at 4Hz
+        for (int i = 0; i < 360; i++) {
+            add(chunker, 1000L + i * 250L, i, out);
+        }
+        assertEquals(1, out.size());
+        assertEquals(1000L, out.get(0).getTimestamp());
+        assertEquals(240, out.get(0).getSampleCount());
+        assertEquals(120, chunker.getSampleCount());
+
+        chunker.complete(out);
+        assertEquals(2, out.size());
+        assertEquals(61_000L, out.get(1).getTimestamp());
+
+        final float[] decoded = new float[120];
+        new FloatXorCodec.Decoder().decode(out.get(1).getData(), 120, (index, value) -> decoded[index] = value);
+        assertEquals(240f, decoded[0], 0f);
+        assertEquals(359f, decoded[119], 0f);
+    }
+
+    @Test
+    public void testSplitsOnGap() {
+        final EmpaticaE4WaveformChunker chunker = new EmpaticaE4WaveformChunker(0, 1, 4);
+        final List<EmpaticaE4WaveformChunk> out = new ArrayList<>();
+        add(chunker, 0L, 1f, out);
+        add(chunker, 250L, 2f, out);
+        // jitter within the tolerance is fine
+        add(chunker, 900L, 3f, out);
+        assertEquals(0, out.size());
+
+        add(chunker, 10_000L, 4f, out);
+        assertEquals(1, out.size());
+        assertEquals(3, out.get(0).getSampleCount());
+
+        chunker.snapshot(out);
+        assertEquals(2, out.size());
+        assertEquals(10_000L, out.get(1).getTimestamp());
+        // a snapshot keeps the chunk open
+        assertEquals(1, chunker.getSampleCount());
+    }
+
+    @Test
+    public void testMultipleChannels() {
+        final EmpaticaE4WaveformChunker chunker = new EmpaticaE4WaveformChunker(1, 3, 32);
+        final EmpaticaE4SampleRing ring = new EmpaticaE4SampleRing(4, 3);
+        ring.offer(0L, 10, 20, 30);
+        ring.offer(31L, 11, 21, 31);
+        final List<EmpaticaE4WaveformChunk> out = new ArrayList<>();
+        while (!ring.isEmpty()) {
+            chunker.add(ring, out);
+            ring.remove();
+        }
+        chunker.complete(out);
+
+        assertEquals(3, out.size());
+        for (int i = 0; i < 3; i++) {
+            final EmpaticaE4WaveformChunk chunk = out.get(i);
+            assertEquals(1 + i, chunk.getChannel());
+            assertEquals(32, chunk.getSampleRate());
+            assertEquals(2, chunk.getSampleCount());
+            final float[] decoded = new float[2];
+            new FloatXorCodec.Decoder().decode(chunk.getData(), 2, (index, value) -> decoded[index] = value);
+            assertEquals(10 * (i + 1), decoded[0], 0f);
+            assertEquals(10 * (i + 1) + 1, decoded[1], 0f);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package nodomain.freeyourgadget.gadgetbridge.service.devices.garmin.fit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import nodomain.freeyourgadget.gadgetbridge.service.devices.garmin.GarminSupportTest;
+import nodomain.freeyourgadget.gadgetbridge.service.devices.garmin.fit.exception.FitParseException;
+import nodomain.freeyourgadget.gadgetbridge.service.devices.garmin.fit.messages.FitRecord;
+import nodomain.freeyourgadget.gadgetbridge.util.GB;
+
+public class FitFileReaderTest {
+    //https://github.com/polyvertex/fitdecode/blob/48b6554d8a3baf33f8b5b9b2fd079fcbe9ac8ce2/tests/files/DeveloperData.fit
+    private static final String DEVELOPER_DATA = "0e206806a20000002e464954bed040000100000401028400010002028403048c00000f042329000006a540000100cf0201100d030102000101020305080d1522375990e97962db0040000100ce05000102010102020102031107080a0700000001646f7567686e7574735f6561726e656400646f7567686e7574730060000100140403010204010205048606028401000100008c580000c738b98001008f5a00032c808e400200905c0005a9388a1003d39e";
+
+    private static List<RecordData> read(final byte[] contents) throws Exception {
+        final List<RecordData> records = new ArrayList<>();
+        new FitFileReader(new ByteArrayInputStream(contents)).read(records::add);
+        return records;
+    }
+
+    @Test
+    public void testDeveloperFieldsAreResolved() throws Exception {
+        final List<RecordData> records = read(GB.hexStringToByteArray(DEVELOPER_DATA));
+
+        assertEquals(6, records.size());
+        assertTrue(records.get(3) instanceof FitRecord);
+        assertEquals(1, records.get(3).getFieldByName("doughnuts_earned"));
+        assertEquals(3, records.get(5).getFieldByName("doughnuts_earned"));
+    }
+
+    @Test
+    public void testRecordsArePassedWhileReading() throws Exception {
+        final byte[] contents = GarminSupportTest.readBinaryResource("/TestFitMessageTypeParsing.fit");
+        final ByteArrayInputStream inputStream = new ByteArrayInputStream(contents);
+        final List<Integer> remainingPerRecord = new ArrayList<>();
+
+        new FitFileReader(inputStream).read(record -> remainingPerRecord.add(inputStream.available()));
+
+        assertEquals(FitFile.parseIncoming(contents).getRecords().size(), remainingPerRecord.size());
+        assertTrue(remainingPerRecord.get(0) > contents.length / 2);
+        assertEquals(2, (int) remainingPerRecord.get(remainingPerRecord.size() - 1));
+    }
+
+    @Test
+    public void testWrongCrc() throws Exception {
+        final byte[] contents = GB.hexStringToByteArray(DEVELOPER_DATA);
+        contents[contents.length - 1] ^= 0x01;
+        try {
+            read(contents);
+            fail("Expected CRC mismatch");
+        } catch (final FitParseException e) {
+            assertTrue(e.getMessage().startsWith("Wrong CRC"));
+        }
+    }
+
+    @Test(expected = EOFException.class)
+    public void testTruncated() throws Exception {
+        final byte[] contents = GB.hexStringToByteArray(DEVELOPER_DATA);
+        read(Arrays.copyOf(contents, contents.length - 10));
+    }
+}
@@ -0,0 +1,89 @@
+package nodomain.freeyourgadget.gadgetbridge.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+public class FloatXorCodecTest {
+    private static float[] roundTrip(final float[] values) {
+        final FloatXorCodec.Encoder encoder = new FloatXorCodec.Encoder(4);
+        for (final float value : values) {
+            encoder.add(value);
+        }
+        assertEquals(values.length, encoder.getCount());
+
+        final float[] decoded = new float[values.length];
+        final int count = new FloatXorCodec.Decoder().decode(encoder.toByteArray(), values.length, (index, value) -> decoded[index] = value);
+        assertEquals(values.length, count);
+        return decoded;
+    }
+
+    private static void assertBitwiseEquals(final float[] expected, final float[] actual) {
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals("value " + i, Float.floatToRawIntBits(expected[i]), Float.floatToRawIntBits(actual[i]));
+        }
+    }
+
+    @Test
+    public void testRoundTripSpecialValues() {
+        final float[] values = {0f, -0f, 1f, 1f, Float.NaN, Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY,
+                Float.MIN_VALUE, Float.MAX_VALUE, -123.456f, 0f};
+        assertBitwiseEquals(values, roundTrip(values));
+    }
+
+    @Test
+    public void testRoundTripRandom() {
+        final Random random = new Random(42);
+        final float[] values = new float[10_000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = Float.intBitsToFloat(random.nextInt());
+        }
+        assertBitwiseEquals(values, roundTrip(values));
+    }
+
+    @Test
+    public void testCompressesWaveform() {
+        // one minute of a 64Hz pulse-like signal with a coarse resolution, like the E4 BVP stream
+        final float[] values = new float[64 * 60];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = Math.round(Math.sin(i * 2 * Math.PI / 64) * 100) / 4f;
+        }
+        final FloatXorCodec.Encoder encoder = new FloatXorCodec.Encoder(16);
+        for (final float value : values) {
+            encoder.add(value);
+        }
+        final int size = encoder.toByteArray().length;
+        assertTrue("encoded to " + size + " bytes", size < values.length * 4 / 2);
+        assertBitwiseEquals(values, roundTrip(values));
+    }
+
+    @Test
+    public void testEncoderCanContinueAfterSnapshot() {
+        final FloatXorCodec.Encoder encoder = new FloatXorCodec.Encoder(8);
+        encoder.add(1.5f);
+        encoder.add(2.5f);
+        final byte[] partial = encoder.toByteArray();
+        encoder.add(3.5f);
+
+        final float[] decoded = new float[3];
+        assertEquals(2, new FloatXorCodec.Decoder().decode(partial, 2, (index, value) -> decoded[index] = value));
+        assertEquals(3, new FloatXorCodec.Decoder().decode(encoder.toByteArray(), 3, (index, value) -> decoded[index] = value));
+        assertBitwiseEquals(new float[]{1.5f, 2.5f, 3.5f}, decoded);
+    }
+
+    @Test
+    public void testTruncatedData() {
+        final FloatXorCodec.Encoder encoder = new FloatXorCodec.Encoder(8);
+        for (int i = 0; i < 100; i++) {
+            encoder.add(i * 1.1f);
+        }
+        final byte[] data = encoder.toByteArray();
+        final int decoded = new FloatXorCodec.Decoder().decode(Arrays.copyOf(data, data.length / 2), 100, (index, value) -> {
+        });
+        assertTrue(decoded > 0 && decoded < 100);
+    }
+}
@@ -0,0 +1,92 @@
+package nodomain.freeyourgadget.gadgetbridge.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import nodomain.freeyourgadget.gadgetbridge.service.btle.BLETypeConversions;
+
+public class SpscFrameRingBufferTest {
+    @Test
+    public void testOfferAndDrain() {
+        final SpscFrameRingBuffer ring = new SpscFrameRingBuffer(4, 8);
+        assertTrue(ring.isEmpty());
+        assertTrue(ring.offer(1, 100L, new byte[]{1, 2, 3}, 0, 3));
+        assertTrue(ring.offer(2, 200L, new byte[]{9, 4, 5, 6}, 1, 3));
+        assertEquals(2, ring.size());
+
+        final StringBuilder sb = new StringBuilder();
+        assertEquals(2, ring.drain((tag, timestamp, data, offset, length) -> {
+            sb.append(tag).append('@').append(timestamp).append(':');
+            for (int i = 0; i < length; i++) {
+                sb.append(data[offset + i]);
+            }
+            sb.append(' ');
+        }, 10));
+        assertEquals("1@100:123 2@200:456 ", sb.toString());
+        assertTrue(ring.isEmpty());
+    }
+
+    @Test
+    public void testDropsWhenFull() {
+        final SpscFrameRingBuffer ring = new SpscFrameRingBuffer(2, 1);
+        final byte[] frame = {0};
+        assertTrue(ring.offer(0, 0, frame, 0, 1));
+        assertTrue(ring.offer(0, 0, frame, 0, 1));
+        assertFalse(ring.offer(0, 0, frame, 0, 1));
+
+        assertEquals(3, ring.getOffered());
+        assertEquals(1, ring.getDropped());
+        assertEquals(2, ring.getHighWaterMark());
+
+        // space is available again after draining
+        assertEquals(1, ring.drain((tag, timestamp, data, offset, length) -> {
+        }, 1));
+        assertTrue(ring.offer(0, 0, frame, 0, 1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsOversizedFrames() {
+        new SpscFrameRingBuffer(2, 2).offer(0, 0, new byte[3], 0, 3);
+    }
+
+    @Test
+    public void testConcurrentProducerConsumer() throws InterruptedException {
+        final int frames = 50_000;
+        final SpscFrameRingBuffer ring = new SpscFrameRingBuffer(64, 8);
+        final AtomicReference<String> error = new AtomicReference<>();
+
+        final Thread consumer = new Thread(() -> {
+            final long[] expected = {0};
+            while (expected[0] < frames) {
+                ring.drain((tag, timestamp, data, offset, length) -> {
+                    final long value = BLETypeConversions.toUint64(data, offset);
+                    if (value != expected[0] || timestamp != expected[0] || tag != (int) (expected[0] & 0xff)) {
+                        error.compareAndSet(null, "expected " + expected[0] + " but got " + value);
+                    }
+                    expected[0]++;
+                }, 16);
+            }
+        });
+        consumer.start();
+
+        final byte[] buf = new byte[8];
+        for (long i = 0; i < frames; i++) {
+            BLETypeConversions.writeUint64(buf, 0, i);
+            // spin until there is space, so that every frame arrives in order
+            while (!ring.offer((int) (i & 0xff), i, buf, 0, 8)) {
+                Thread.yield();
+            }
+        }
+        consumer.join(30_000);
+
+        assertFalse(consumer.isAlive());
+        assertEquals(null, error.get());
+        assertTrue(ring.isEmpty());
+        assertTrue(ring.getHighWaterMark() <= ring.getCapacity());
+    }
+}
@@ -0,0 +1,219 @@
+package nodomain.freeyourgadget.gadgetbridge.util.backup;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.zip.DeflaterOutputStream;
+
+public class IncrementalBackupRepositoryTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static byte[] randomBytes(final int length, final long seed) {
+        final byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static byte[] insert(final byte[] data, final int position, final byte[] inserted) {
+        final byte[] ret = new byte[data.length + inserted.length];
+        System.arraycopy(data, 0, ret, 0, position);
+        System.arraycopy(inserted, 0, ret, position, inserted.length);
+        System.arraycopy(data, position, ret, position + inserted.length, data.length - position);
+        return ret;
+    }
+
+    private static List<Integer> chunkSizes(final byte[] data, final int writeSize) throws IOException {
+        final List<Integer> sizes = new ArrayList<>();
+        final ContentDefinedChunker chunker = new ContentDefinedChunker((chunk, length) -> sizes.add(length));
+        for (int i = 0; i < data.length; i += writeSize) {
+            chunker.update(data, i, Math.min(writeSize, data.length - i));
+        }
+        chunker.finish();
+        return sizes;
+    }
+
+    private static void writeSnapshot(final IncrementalBackupRepository repository,
+                                      final String snapshot,
+                                      final byte[] database,
+                                      final String preferences) throws IOException {
+        try (BackupArchiveWriter writer = repository.newSnapshot(snapshot)) {
+            final OutputStream databaseOut = writer.putEntry(AbstractZipBackupJob.DATABASE_FILENAME, 0);
+            // written in pieces, like the database export does
+            for (int i = 0; i < database.length; i += 1000) {
+                databaseOut.write(database, i, Math.min(1000, database.length - i));
+            }
+            writer.putEntry(AbstractZipBackupJob.PREFS_GLOBAL_FILENAME, 0).write(preferences.getBytes(StandardCharsets.UTF_8));
+            writer.putEntry(AbstractZipBackupJob.EXTERNAL_FILES_FOLDER + "/empty.txt", 1234L);
+            writer.finish(new ZipBackupMetadata("app", "1.0", 1, AbstractZipBackupJob.VERSION, new Date(0)), "comment");
+        }
+    }
+
+    private static byte[] readEntry(final BackupArchiveReader reader, final String name) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = reader.openEntry(name)) {
+            final byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private int countChunks(final File root) {
+        final String[] chunks = new File(root, IncrementalBackupRepository.CHUNKS_FOLDER).list();
+        return chunks != null ? chunks.length : 0;
+    }
+
+    @Test
+    public void testChunkBoundariesDependOnContentOnly() throws IOException {
+        final byte[] data = randomBytes(3 * 1024 * 1024, 1);
+
+        final List<Integer> sizes = chunkSizes(data, data.length);
+        assertEquals(sizes, chunkSizes(data, 1));
+        assertEquals(sizes, chunkSizes(data, 8191));
+
+        int total = 0;
+        for (int i = 0; i < sizes.size(); i++) {
+            final int size = sizes.get(i);
+            assertTrue(size <= ContentDefinedChunker.MAX_CHUNK_SIZE);
+            if (i < sizes.size() - 1) {
+                assertTrue(size >= ContentDefinedChunker.MIN_CHUNK_SIZE);
+            }
+            total += size;
+        }
+        assertEquals(data.length, total);
+        // average of 80KiB
+        assertTrue(sizes.size() > 20 && sizes.size() < 80);
+    }
+
+    @Test
+    public void testRestoreAnySnapshot() throws IOException {
+        final File root = tmp.newFolder();
+        final IncrementalBackupRepository repository = new IncrementalBackupRepository(new IncrementalBackupRepository.FileStorage(root));
+
+        final byte[] database1 = randomBytes(2 * 1024 * 1024, 2);
+        writeSnapshot(repository, "gadgetbridge_1", database1, "{\"a\": 1}");
+        final int chunks1 = countChunks(root);
+
+        // Rows inserted in the middle move all the following data
+        final byte[] database2 = insert(database1, 1024 * 1024 + 7, randomBytes(100, 3));
+        writeSnapshot(repository, "gadgetbridge_2", database2, "{\"a\": 2}");
+        final int chunks2 = countChunks(root);
+
+        assertTrue("Too many new chunks: " + (chunks2 - chunks1), chunks2 - chunks1 <= 3);
+
+        // A new instance, listing the existing chunks from storage
+        final IncrementalBackupRepository reopened = new IncrementalBackupRepository(new IncrementalBackupRepository.FileStorage(root));
+        writeSnapshot(reopened, "gadgetbridge_3", database2, "{\"a\": 2}");
+        assertEquals(chunks2, countChunks(root));
+
+        assertEquals(Arrays.asList("gadgetbridge_1", "gadgetbridge_2", "gadgetbridge_3"), reopened.listSnapshots());
+        assertEquals("gadgetbridge_3", reopened.getLatestSnapshot());
+
+        try (BackupArchiveReader reader = reopened.openSnapshot("gadgetbridge_1")) {
+            assertEquals(AbstractZipBackupJob.VERSION, reader.getMetadata().getBackupVersion());
+            assertArrayEquals(database1, readEntry(reader, AbstractZipBackupJob.DATABASE_FILENAME));
+            assertEquals("{\"a\": 1}", new String(readEntry(reader, AbstractZipBackupJob.PREFS_GLOBAL_FILENAME), StandardCharsets.UTF_8));
+            assertEquals(0, readEntry(reader, AbstractZipBackupJob.EXTERNAL_FILES_FOLDER + "/empty.txt").length);
+            assertEquals(1234L, reader.getLastModified(AbstractZipBackupJob.EXTERNAL_FILES_FOLDER + "/empty.txt"));
+            assertFalse(reader.hasEntry("missing"));
+        }
+
+        try (BackupArchiveReader reader = reopened.openSnapshot("gadgetbridge_2")) {
+            assertArrayEquals(database2, readEntry(reader, AbstractZipBackupJob.DATABASE_FILENAME));
+        }
+    }
+
+    @Test
+    public void testIncompleteSnapshotIsIgnored() throws IOException {
+        final File root = tmp.newFolder();
+        final IncrementalBackupRepository repository = new IncrementalBackupRepository(new IncrementalBackupRepository.FileStorage(root));
+
+        try (BackupArchiveWriter writer = repository.newSnapshot("gadgetbridge_1")) {
+            writer.putEntry(AbstractZipBackupJob.DATABASE_FILENAME, 0).write(randomBytes(100_000, 4));
+            // aborted before finishing
+        }
+
+        assertTrue(repository.listSnapshots().isEmpty());
+    }
+
+    @Test
+    public void testCorruptedChunkIsDetected() throws IOException {
+        final File root = tmp.newFolder();
+        final IncrementalBackupRepository repository = new IncrementalBackupRepository(new IncrementalBackupRepository.FileStorage(root));
+        writeSnapshot(repository, "gadgetbridge_1", randomBytes(100_000, 5), "{}");
+
+        final String chunk = repository.readManifest("gadgetbridge_1").getEntries().get(0).getChunks().get(0);
+        try (OutputStream out = new DeflaterOutputStream(new FileOutputStream(new File(new File(root, IncrementalBackupRepository.CHUNKS_FOLDER), chunk)))) {
+            out.write(randomBytes(1000, 6));
+        }
+
+        try (BackupArchiveReader reader = repository.openSnapshot("gadgetbridge_1")) {
+            readEntry(reader, AbstractZipBackupJob.DATABASE_FILENAME);
+            fail("Corrupted chunk was not detected");
+        } catch (final IOException e) {
+            assertTrue(e.getMessage().startsWith("Corrupted chunk"));
+        }
+    }
+
+    @Test
+    public void testPruneDeletesUnreferencedChunks() throws IOException {
+        final File root = tmp.newFolder();
+        final IncrementalBackupRepository repository = new IncrementalBackupRepository(new IncrementalBackupRepository.FileStorage(root));
+
+        writeSnapshot(repository, "gadgetbridge_1", randomBytes(1024 * 1024, 7), "{\"a\": 1}");
+        final byte[] database2 = randomBytes(1024 * 1024, 8);
+        writeSnapshot(repository, "gadgetbridge_2", database2, "{\"a\": 2}");
+        writeSnapshot(repository, "gadgetbridge_3", database2, "{\"a\": 3}");
+        final int chunksBefore = countChunks(root);
+
+        // Leftover from an interrupted backup
+        new File(new File(root, IncrementalBackupRepository.CHUNKS_FOLDER), "abc.tmp").createNewFile();
+
+        repository.prune(2);
+
+        assertEquals(Arrays.asList("gadgetbridge_2", "gadgetbridge_3"), repository.listSnapshots());
+        final Set<String> referenced = new HashSet<>();
+        for (final String snapshot : repository.listSnapshots()) {
+            for (final IncrementalBackupManifest.Entry entry : repository.readManifest(snapshot).getEntries()) {
+                referenced.addAll(entry.getChunks());
+            }
+        }
+        assertEquals(referenced, new HashSet<>(Arrays.asList(new File(root, IncrementalBackupRepository.CHUNKS_FOLDER).list())));
+        assertTrue(countChunks(root) < chunksBefore);
+
+        try (BackupArchiveReader reader = repository.openSnapshot("gadgetbridge_2")) {
+            assertArrayEquals(database2, readEntry(reader, AbstractZipBackupJob.DATABASE_FILENAME));
+        }
+
+        // Chunks deleted by the prune are written again when needed
+        final byte[] database4 = randomBytes(1024 * 1024, 7);
+        writeSnapshot(repository, "gadgetbridge_4", database4, "{}");
+        try (BackupArchiveReader reader = repository.openSnapshot("gadgetbridge_4")) {
+            assertArrayEquals(database4, readEntry(reader, AbstractZipBackupJob.DATABASE_FILENAME));
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package nodomain.freeyourgadget.gadgetbridge.util.language;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import nodomain.freeyourgadget.gadgetbridge.util.language.impl.FlattenToAsciiTransliterator;
+
+public class FusedTransliteratorTest {
+    private static final List<String> ALL_LANGUAGES = Arrays.asList(
+            "arabic", "bengali", "common_symbols", "croatian", "czech", "estonian", "extended_ascii",
+            "french", "georgian", "german", "greek", "hebrew", "hungarian", "icelandic", "korean",
+            "latvian", "lithuanian", "persian", "polish", "russian", "scandinavian", "serbian",
+            "turkish", "ukranian", "armenian"
+    );
+
+    private static final List<String> INPUTS = Arrays.asList(
+            "The quick brown fox jumped over the lazy dog.",
+            "Прõсто текčт",
+            "Тхе qицк брон фоx јумпед овер тхе лаз* дог, Љуљачка, ЉУЉАЧКА",
+            "Novak Đoković: Ä Ö Ü ß ẞ schön",
+            "בדיקה עברית",
+            "نص حكيم له سر قاطع ﺓ ءأؤإئآ ٠١٢٣٤٥٦٧٨٩ گچپژ ۰۱۲۳۴۵۶۷۸۹",
+            "বিজ্ঞানযাত্রা চলছে চলবে। আমার জাভা কোড is so bad!",
+            "\"웬 초콜릿? 제가 원했던 건 뻥튀기 쬐끔과 의류예요.\" ㅋㅋㅋ",
+            "Ελληνικά ΕΛΛΗΝΙΚΆ, ქართული, Բարեւ ձեզ, Ողջույն",
+            "İstanbul ığdır ŞĞÜ, Ō ō Ā ā, Þórður Æ æ",
+            "“quotes” – dashes… and emoji 👍🏽 \uD83D"
+    );
+
+    @Test
+    public void testSameAsMultiTransliterator() {
+        final List<List<Transliterator>> chains = new ArrayList<>();
+        for (final String language : ALL_LANGUAGES) {
+            chains.add(Collections.singletonList(LanguageUtils.getTransliterator(language)));
+        }
+
+        final List<Transliterator> allLanguages = new ArrayList<>();
+        for (final String language : ALL_LANGUAGES) {
+            allLanguages.add(LanguageUtils.getTransliterator(language));
+        }
+        chains.add(allLanguages);
+
+        final List<Transliterator> reversed = new ArrayList<>(allLanguages);
+        Collections.reverse(reversed);
+        chains.add(reversed);
+
+        final List<Transliterator> flattened = new ArrayList<>(allLanguages);
+        flattened.add(new FlattenToAsciiTransliterator());
+        chains.add(flattened);
+
+        for (final List<Transliterator> chain : chains) {
+            final Transliterator multi = new MultiTransliterator(chain);
+            final Transliterator fused = new FusedTransliterator(chain);
+
+            for (final String input : INPUTS) {
+                assertEquals("Transliteration differs for " + input, multi.transliterate(input), fused.transliterate(input));
+            }
+        }
+    }
+
+    @Test
+    public void testUnchangedTextIsNotCopied() {
+        final Transliterator fused = new FusedTransliterator(Arrays.asList(
+                LanguageUtils.getTransliterator("german"),
+                LanguageUtils.getTransliterator("russian"),
+                new FlattenToAsciiTransliterator()
+        ));
+
+        final String ascii = "Nothing to see here";
+        assertSame(ascii, fused.transliterate(ascii));
+        assertEquals("Schoen", fused.transliterate("Schön"));
+        assertEquals("", fused.transliterate(""));
+    }
+}
@@ -0,0 +1,47 @@
+package nodomain.freeyourgadget.gadgetbridge.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import nodomain.freeyourgadget.gadgetbridge.activities.charts.SleepAnalysis;
+import nodomain.freeyourgadget.gadgetbridge.activities.charts.StepAnalysis;
+import nodomain.freeyourgadget.gadgetbridge.devices.garmin.GarminActivitySampleProvider;
+import nodomain.freeyourgadget.gadgetbridge.entities.GarminActivitySample;
+import nodomain.freeyourgadget.gadgetbridge.model.ActivitySession;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ActivityAnalysisBenchmark {
+    @Param({"1", "7"})
+    public int days;
+
+    private List<GarminActivitySample> samples;
+
+    @Setup
+    public void setup() throws ReflectiveOperationException {
+        BenchmarkUtils.installDefaultPrefs();
+
+        final GarminActivitySampleProvider provider = new GarminActivitySampleProvider(null, null);
+        samples = BenchmarkUtils.createSamples(provider, 1700000000, days, 0);
+    }
+
+    @Benchmark
+    public List<SleepAnalysis.SleepSession> calculateSleepSessions() {
+        return new SleepAnalysis().calculateSleepSessions(samples);
+    }
+
+    @Benchmark
+    public List<ActivitySession> calculateStepSessions() {
+        return new StepAnalysis().calculateStepSessions(samples);
+    }
+}
@@ -0,0 +1,168 @@
+package nodomain.freeyourgadget.gadgetbridge.benchmark;
+
+import android.content.SharedPreferences;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import nodomain.freeyourgadget.gadgetbridge.GBApplication;
+import nodomain.freeyourgadget.gadgetbridge.devices.garmin.GarminActivitySampleProvider;
+import nodomain.freeyourgadget.gadgetbridge.entities.GarminActivitySample;
+import nodomain.freeyourgadget.gadgetbridge.model.ActivityKind;
+import nodomain.freeyourgadget.gadgetbridge.model.ActivitySample;
+import nodomain.freeyourgadget.gadgetbridge.util.GBPrefs;
+
+final class BenchmarkUtils {
+    private BenchmarkUtils() {
+        // utility class
+    }
+
+    static byte[] readResource(final String name) throws IOException {
+        try (InputStream inputStream = BenchmarkUtils.class.getResourceAsStream(name)) {
+            if (inputStream == null) {
+                throw new IOException("Resource not found: " + name);
+            }
+            final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[8192];
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                outputStream.write(buffer, 0, read);
+            }
+            return outputStream.toByteArray();
+        }
+    }
+
+    /**
+     * Some of the benchmarked code reads its configuration from {@link GBApplication#getPrefs()},
+     * which is only set once the application is created. Install empty preferences, so that all
+     * the defaults are used.
+     */
+    static void installDefaultPrefs() throws ReflectiveOperationException {
+        final Field prefsField = GBApplication.class.getDeclaredField("prefs");
+        prefsField.setAccessible(true);
+        prefsField.set(null, new GBPrefs(new EmptySharedPreferences()));
+    }
+
+    /**
+     * Creates one sample per minute, with a night of sleep followed by a day with some walks.
+     * If gapPercent is greater than 0, that percentage of the minutes is left out, in runs of
+     * up to an hour, similar to a device that was not worn for a while.
+     */
+    static List<GarminActivitySample> createSamples(final GarminActivitySampleProvider provider,
+                                                    final int startTimestamp,
+                                                    final int days,
+                                                    final int gapPercent) {
+        final Random random = new Random(42);
+        final List<GarminActivitySample> samples = new ArrayList<>(days * 1440);
+
+        int minute = 0;
+        while (minute < days * 1440) {
+            if (gapPercent > 0 && random.nextInt(100 * 30) < gapPercent) {
+                // skip up to an hour, the average gap is 30 minutes
+                minute += 1 + random.nextInt(60);
+                continue;
+            }
+
+            final int minuteOfDay = minute % 1440;
+            final GarminActivitySample sample = new GarminActivitySample();
+            sample.setProvider(provider);
+            sample.setTimestamp(startTimestamp + minute * 60);
+            sample.setHeartRate(50 + random.nextInt(40));
+            sample.setDistanceCm(ActivitySample.NOT_MEASURED);
+            sample.setActiveCalories(ActivitySample.NOT_MEASURED);
+
+            if (minuteOfDay < 7 * 60) {
+                final int cycleMinute = minuteOfDay % 90;
+                final ActivityKind kind;
+                if (cycleMinute < 20) {
+                    kind = ActivityKind.DEEP_SLEEP;
+                } else if (cycleMinute < 70) {
+                    kind = ActivityKind.LIGHT_SLEEP;
+                } else if (cycleMinute < 85) {
+                    kind = ActivityKind.REM_SLEEP;
+                } else {
+                    kind = ActivityKind.AWAKE_SLEEP;
+                }
+                sample.setRawKind(kind.getCode());
+                sample.setRawIntensity(random.nextInt(5));
+                sample.setSteps(0);
+            } else if (minuteOfDay % 180 < 40) {
+                sample.setRawKind(ActivityKind.WALKING.getCode());
+                sample.setRawIntensity(40 + random.nextInt(60));
+                sample.setSteps(60 + random.nextInt(60));
+            } else {
+                sample.setRawKind(ActivityKind.ACTIVITY.getCode());
+                sample.setRawIntensity(random.nextInt(30));
+                sample.setSteps(random.nextInt(4) == 0 ? random.nextInt(30) : 0);
+            }
+
+            samples.add(sample);
+            minute++;
+        }
+
+        return samples;
+    }
+
+    private static class EmptySharedPreferences implements SharedPreferences {
+        @Override
+        public Map<String, ?> getAll() {
+            return Collections.emptyMap();
+        }
+
+        @Override
+        public String getString(final String key, final String defValue) {
+            return defValue;
+        }
+
+        @Override
+        public Set<String> getStringSet(final String key, final Set<String> defValues) {
+            return defValues;
+        }
+
+        @Override
+        public int getInt(final String key, final int defValue) {
+            return defValue;
+        }
+
+        @Override
+        public long getLong(final String key, final long defValue) {
+            return defValue;
+        }
+
+        @Override
+        public float getFloat(final String key, final float defValue) {
+            return defValue;
+        }
+
+        @Override
+        public boolean getBoolean(final String key, final boolean defValue) {
+            return defValue;
+        }
+
+        @Override
+        public boolean contains(final String key) {
+            return false;
+        }
+
+        @Override
+        public Editor edit() {
+            throw new UnsupportedOperationException("Preferences are read-only in benchmarks");
+        }
+
+        @Override
+        public void registerOnSharedPreferenceChangeListener(final OnSharedPreferenceChangeListener listener) {
+        }
+
+        @Override
+        public void unregisterOnSharedPreferenceChangeListener(final OnSharedPreferenceChangeListener listener) {
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package nodomain.freeyourgadget.gadgetbridge.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import nodomain.freeyourgadget.gadgetbridge.devices.garmin.GarminActivitySampleProvider;
+import nodomain.freeyourgadget.gadgetbridge.entities.GarminActivitySample;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class FillGapsBenchmark {
+    private static final int START_TIMESTAMP = 1700000000;
+
+    @Param({"1", "7"})
+    public int days;
+
+    @Param({"10", "50"})
+    public int gapPercent;
+
+    private BenchmarkSampleProvider provider;
+    private List<GarminActivitySample> samples;
+
+    @Setup
+    public void setup() {
+        provider = new BenchmarkSampleProvider();
+        samples = provider.createSamples(days, gapPercent);
+    }
+
+    @Benchmark
+    public List<GarminActivitySample> fillGaps() {
+        // Start an hour early, so that there is a gap at the start as well
+        return provider.fillGaps(samples, START_TIMESTAMP - 3600, START_TIMESTAMP + days * 86400);
+    }
+
+    @Benchmark
+    public long fillGapsAndIterate() {
+        // Also measure going through every sample, like the charts do
+        long steps = 0;
+        for (final GarminActivitySample sample : fillGaps()) {
+            steps += sample.getSteps();
+        }
+        return steps;
+    }
+
+    /**
+     * Exposes the protected fillGaps, without a device or database.
+     */
+    private static class BenchmarkSampleProvider extends GarminActivitySampleProvider {
+        BenchmarkSampleProvider() {
+            super(null, null);
+        }
+
+        List<GarminActivitySample> createSamples(final int days, final int gapPercent) {
+            return BenchmarkUtils.createSamples(this, START_TIMESTAMP, days, gapPercent);
+        }
+
+        @Override
+        public List<GarminActivitySample> fillGaps(final List<GarminActivitySample> samples, final int timestamp_from, final int timestamp_to) {
+            return super.fillGaps(samples, timestamp_from, timestamp_to);
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package nodomain.freeyourgadget.gadgetbridge.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import nodomain.freeyourgadget.gadgetbridge.service.devices.garmin.fit.FitFile;
+import nodomain.freeyourgadget.gadgetbridge.service.devices.garmin.fit.exception.FitParseException;
+import nodomain.freeyourgadget.gadgetbridge.util.GB;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class FitFileBenchmark {
+    // Same file as in GarminSupportTest.TestFitFileDevelopersField
+    private static final String DEVELOPER_DATA = "0e206806a20000002e464954bed040000100000401028400010002028403048c00000f042329000006a540000100cf0201100d030102000101020305080d1522375990e97962db0040000100ce05000102010102020102031107080a0700000001646f7567686e7574735f6561726e656400646f7567686e7574730060000100140403010204010205048606028401000100008c580000c738b98001008f5a00032c808e400200905c0005a9388a1003d39e";
+
+    private byte[] messageTypes;
+    private byte[] developerData;
+
+    @Setup
+    public void setup() throws IOException {
+        messageTypes = BenchmarkUtils.readResource("/TestFitMessageTypeParsing.fit");
+        developerData = GB.hexStringToByteArray(DEVELOPER_DATA);
+    }
+
+    @Benchmark
+    public FitFile parseMessageTypes() throws FitParseException {
+        return FitFile.parseIncoming(messageTypes);
+    }
+
+    @Benchmark
+    public FitFile parseDeveloperData() throws FitParseException {
+        return FitFile.parseIncoming(developerData);
+    }
+}
@@ -0,0 +1,63 @@
+package nodomain.freeyourgadget.gadgetbridge.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import nodomain.freeyourgadget.gadgetbridge.devices.huawei.HuaweiPacket;
+import nodomain.freeyourgadget.gadgetbridge.devices.huawei.HuaweiTLV;
+
+/**
+ * The fitness data packets in the test fixtures are encrypted, so the benchmark uses a container
+ * with the layout of a decrypted sleep data response (see FitnessData.MessageData.SleepResponse).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class HuaweiTLVBenchmark {
+    @Param({"500"})
+    public int numberOfRecords;
+
+    private byte[] serialized;
+
+    @Setup
+    public void setup() {
+        final HuaweiTLV container = new HuaweiTLV().put(0x02, (short) numberOfRecords);
+        for (int i = 0; i < numberOfRecords; i++) {
+            container.put(0x83, new HuaweiTLV()
+                    .put(0x04, (byte) (i % 4))
+                    .put(0x05, ByteBuffer.allocate(4).putInt(1700000000 + i * 60).array())
+            );
+        }
+        serialized = new HuaweiTLV().put(0x81, container).serialize();
+    }
+
+    @Benchmark
+    public HuaweiTLV parse() {
+        return new HuaweiTLV().parse(serialized);
+    }
+
+    @Benchmark
+    public void parseContainers(final Blackhole blackhole) throws HuaweiPacket.MissingTagException {
+        final HuaweiTLV container = new HuaweiTLV().parse(serialized).getObject(0x81);
+        blackhole.consume(container.getShort(0x02));
+        for (final HuaweiTLV record : container.getObjects(0x83)) {
+            blackhole.consume(record.getByte(0x04));
+            blackhole.consume(record.getBytes(0x05));
+        }
+    }
+
+    @Benchmark
+    public byte[] serialize() {
+        return new HuaweiTLV().parse(serialized).serialize();
+    }
+}
@@ -0,0 +1,90 @@
+package nodomain.freeyourgadget.gadgetbridge.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import nodomain.freeyourgadget.gadgetbridge.util.language.FusedTransliterator;
+import nodomain.freeyourgadget.gadgetbridge.util.language.LanguageUtils;
+import nodomain.freeyourgadget.gadgetbridge.util.language.MultiTransliterator;
+import nodomain.freeyourgadget.gadgetbridge.util.language.Transliterator;
+import nodomain.freeyourgadget.gadgetbridge.util.language.impl.FlattenToAsciiTransliterator;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class TransliteratorBenchmark {
+    private static final List<String> ALL_LANGUAGES = Arrays.asList(
+            "arabic", "bengali", "common_symbols", "croatian", "czech", "estonian", "extended_ascii",
+            "french", "georgian", "german", "greek", "hebrew", "hungarian", "icelandic", "korean",
+            "latvian", "lithuanian", "persian", "polish", "russian", "scandinavian", "serbian",
+            "turkish", "ukranian", "armenian"
+    );
+
+    // Notification-sized texts, based on the strings in LanguageUtilsTest
+    private static final String ASCII = "The quick brown fox jumped over the lazy dog. See you at 10:30 tomorrow, bring the keys!";
+    private static final String CYRILLIC = "Тхе qицк брон фоx јумпед овер тхе лаз* дог. Српска ћирилица, Љуљачка, Наковањ, Прõсто текčт";
+    private static final String MIXED = "Novak Đoković: نص حكيم له سر قاطع. בדיקה עברית! Качкаваљ, Чачак ٠١٢٣٤٥٦٧٨٩ 👍";
+
+    @Param({"ascii", "cyrillic", "mixed"})
+    public String text;
+
+    private String input;
+    private Transliterator russian;
+    private Transliterator allLanguages;
+    private Transliterator allLanguagesFused;
+
+    @Setup
+    public void setup() {
+        switch (text) {
+            case "ascii":
+                input = ASCII;
+                break;
+            case "cyrillic":
+                input = CYRILLIC;
+                break;
+            case "mixed":
+                input = MIXED;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown text " + text);
+        }
+
+        russian = LanguageUtils.getTransliterator("russian");
+
+        // Same transliterators as LanguageUtils.getTransliterator(GBDevice) uses for a device
+        // without unicode support, with every language enabled
+        final List<Transliterator> transliterators = new ArrayList<>(ALL_LANGUAGES.size() + 1);
+        for (final String language : ALL_LANGUAGES) {
+            transliterators.add(LanguageUtils.getTransliterator(language));
+        }
+        transliterators.add(new FlattenToAsciiTransliterator());
+        allLanguages = new MultiTransliterator(transliterators);
+        allLanguagesFused = new FusedTransliterator(transliterators);
+    }
+
+    @Benchmark
+    public String singleLanguage() {
+        return russian.transliterate(input);
+    }
+
+    @Benchmark
+    public String allLanguages() {
+        return allLanguages.transliterate(input);
+    }
+
+    @Benchmark
+    public String allLanguagesFused() {
+        return allLanguagesFused.transliterate(input);
+    }
+}
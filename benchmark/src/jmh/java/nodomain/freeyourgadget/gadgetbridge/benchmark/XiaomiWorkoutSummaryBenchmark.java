@@ -0,0 +1,82 @@
+package nodomain.freeyourgadget.gadgetbridge.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import nodomain.freeyourgadget.gadgetbridge.entities.BaseActivitySummary;
+import nodomain.freeyourgadget.gadgetbridge.service.devices.xiaomi.activity.XiaomiActivityFileId;
+import nodomain.freeyourgadget.gadgetbridge.service.devices.xiaomi.activity.XiaomiActivityParser;
+import nodomain.freeyourgadget.gadgetbridge.service.devices.xiaomi.activity.impl.WorkoutSummaryParser;
+import nodomain.freeyourgadget.gadgetbridge.util.CheckSums;
+
+/**
+ * The other {@link XiaomiActivityParser} implementations persist their samples while parsing, so
+ * only the workout summary parsing can be benchmarked without a database. The summary is a
+ * synthesized freestyle workout, version 8.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class XiaomiWorkoutSummaryBenchmark {
+    private static final int START_TIME = 1700000000;
+
+    private byte[] rawSummary;
+
+    @Setup
+    public void setup() {
+        final XiaomiActivityFileId fileId = new XiaomiActivityFileId(
+                new Date(START_TIME * 1000L),
+                4,
+                XiaomiActivityFileId.Type.SPORTS.getCode(),
+                XiaomiActivityFileId.Subtype.SPORTS_FREESTYLE.getCode(),
+                XiaomiActivityFileId.DetailType.SUMMARY.getCode(),
+                8
+        );
+
+        final ByteBuffer buf = ByteBuffer.allocate(7 + 1 + 6 + 76 + 4).order(ByteOrder.LITTLE_ENDIAN);
+        buf.put(fileId.toBytes());
+        buf.put((byte) 0); // padding
+        buf.put(new byte[]{(byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff}); // valid fields
+        buf.putInt(START_TIME);
+        buf.putInt(START_TIME + 2700);
+        buf.putInt(2580); // active seconds
+        buf.putShort((short) 310); // calories
+        buf.put((byte) 128).put((byte) 171).put((byte) 82); // hr avg, max, min
+        buf.put(new byte[6]);
+        buf.putFloat(2.8f); // aerobic training effect
+        buf.put(new byte[2]);
+        buf.putShort((short) 18); // recovery time
+        // The heart rate zones are left empty, their colors would be resolved through the app context
+        buf.put(new byte[5 * 4]);
+        buf.put(new byte[6]);
+        buf.putFloat(0.9f); // anaerobic training effect
+        buf.put((byte) 0);
+        buf.putShort((short) 1); // workout type
+        buf.put(new byte[2]);
+        buf.putInt(3600); // time goal
+        buf.putShort((short) 400); // calories goal
+        buf.putShort((short) 74); // workout load
+        buf.put((byte) 0);
+        buf.put((byte) 3); // vitality gain
+        buf.putInt(CheckSums.getCRC32(buf.array(), 0, buf.position()));
+
+        rawSummary = buf.array();
+    }
+
+    @Benchmark
+    public BaseActivitySummary parseBinaryData() {
+        final BaseActivitySummary summary = new BaseActivitySummary();
+        summary.setRawSummaryData(rawSummary);
+        return new WorkoutSummaryParser().parseBinaryData(summary, true);
+    }
+}
@@ -0,0 +1,122 @@
+package nodomain.freeyourgadget.gadgetbridge.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import nodomain.freeyourgadget.gadgetbridge.GBException;
+import nodomain.freeyourgadget.gadgetbridge.entities.BaseActivitySummary;
+import nodomain.freeyourgadget.gadgetbridge.entities.Device;
+import nodomain.freeyourgadget.gadgetbridge.entities.User;
+import nodomain.freeyourgadget.gadgetbridge.service.devices.huami.zeppos.ZeppOsActivityDetailsParser;
+import nodomain.freeyourgadget.gadgetbridge.service.devices.huami.zeppos.ZeppOsActivityTrack;
+
+/**
+ * There is no raw Zepp OS activity details file in the test fixtures, so a workout is synthesized
+ * with the same TLV layout as the watches send: one GPS delta and heart rate per second, with
+ * speed and altitude every few seconds and a timestamp every 30 seconds.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ZeppOsActivityDetailsBenchmark {
+    private static final long START_TIME = 1700000000000L;
+
+    @Param({"3600"})
+    public int durationSeconds;
+
+    private BaseActivitySummary summary;
+    private byte[] details;
+
+    @Setup
+    public void setup() {
+        summary = new BaseActivitySummary(1L);
+        summary.setName("Outdoor Running");
+        summary.setStartTime(new Date(START_TIME));
+        summary.setBaseLongitude(0);
+        summary.setBaseLatitude(0);
+        summary.setBaseAltitude(0);
+        summary.setDevice(new Device(1L));
+        summary.setUser(new User(1L));
+
+        details = createDetails(durationSeconds);
+    }
+
+    @Benchmark
+    public ZeppOsActivityTrack parse() throws GBException {
+        return new ZeppOsActivityDetailsParser(summary).parse(details);
+    }
+
+    private static byte[] createDetails(final int durationSeconds) {
+        final ByteBuffer buf = ByteBuffer.allocate(64 + durationSeconds * 40).order(ByteOrder.LITTLE_ENDIAN);
+
+        // GPS coordinates, in the format used by Huami (degrees * 3000000)
+        putHeader(buf, 2, 20);
+        buf.put(new byte[6]);
+        buf.putInt(13_500_000); // longitude
+        buf.putInt(116_000_000); // latitude
+        buf.put(new byte[6]);
+
+        putHeader(buf, 4, 4); // status: start
+        buf.putShort((short) 0);
+        buf.putShort((short) 1);
+
+        for (int second = 0; second < durationSeconds; second++) {
+            if (second % 30 == 0) {
+                putHeader(buf, 1, 12);
+                buf.putInt(0);
+                buf.putLong(START_TIME + second * 1000L);
+            }
+
+            final short offset = (short) ((second % 30) * 1000);
+
+            putHeader(buf, 3, 8); // gps delta
+            buf.putShort(offset);
+            buf.putShort((short) (3 + second % 5));
+            buf.putShort((short) (2 - second % 3));
+            buf.putShort((short) 2);
+
+            putHeader(buf, 8, 3); // heart rate
+            buf.putShort(offset);
+            buf.put((byte) (120 + second % 40));
+
+            if (second % 5 == 0) {
+                putHeader(buf, 5, 8); // speed
+                buf.putShort(offset);
+                buf.putShort((short) 165); // cadence
+                buf.putShort((short) 110); // stride
+                buf.putShort((short) 330); // pace
+            }
+
+            if (second % 10 == 0) {
+                putHeader(buf, 7, 6); // altitude
+                buf.putShort(offset);
+                buf.putInt(5000 + second % 700);
+            }
+        }
+
+        putHeader(buf, 4, 4); // status: stop
+        buf.putShort((short) 0);
+        buf.putShort((short) 6);
+
+        final byte[] bytes = new byte[buf.position()];
+        buf.flip();
+        buf.get(bytes);
+        return bytes;
+    }
+
+    private static void putHeader(final ByteBuffer buf, final int type, final int length) {
+        buf.put((byte) type);
+        buf.put((byte) length);
+    }
+}